@@ -0,0 +1,69 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.service.pool;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Borrowing a converter from PdfaConverterWrapperPool and returning it, with more threads than converters so the
+ * threads contend for them. The pool is configured the way PdfaConverterServlet configures it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@Threads(8)
+public class PoolBorrowReturnBenchmark {
+
+	@Param({ "1", "5", "10" })
+	private int maxTotal;
+
+	private PdfaConverterWrapperPool pool;
+
+	@Setup(Level.Trial)
+	public void createPool() {
+		GenericObjectPoolConfig poolConfig = new GenericObjectPoolConfig();
+		poolConfig.setMinIdle(Math.min(3, maxTotal));
+		poolConfig.setMaxTotal(maxTotal);
+		poolConfig.setTestOnBorrow(true);
+		poolConfig.setBlockWhenExhausted(true);
+		pool = new PdfaConverterWrapperPool(new StubPdfaConverterWrapperFactory(), poolConfig);
+	}
+
+	@TearDown(Level.Trial)
+	public void closePool() {
+		pool.close();
+	}
+
+	@Benchmark
+	public PdfaConverterWrapper borrowAndReturn() throws Exception {
+		PdfaConverterWrapper pdfaConverterWrapper = pool.borrowObject();
+		pool.returnObject(pdfaConverterWrapper);
+		return pdfaConverterWrapper;
+	}
+}
@@ -0,0 +1,31 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.service.pool;
+
+import edu.harvard.hul.ois.drs.pdfaconvert.PdfaConvert;
+
+/**
+ * Creates wrappers around a stub converter so the pool can be exercised without the external conversion tools
+ * being installed. The stub is never asked to convert anything.
+ */
+public class StubPdfaConverterWrapperFactory extends PdfaConverterWrapperFactory {
+
+	@Override
+	public PdfaConverterWrapper create() throws Exception {
+		return new PdfaConverterWrapper(new StubPdfaConvert());
+	}
+
+	private static class StubPdfaConvert extends PdfaConvert {
+		@Override
+		public String getVersion() {
+			return "benchmark-stub";
+		}
+	}
+}
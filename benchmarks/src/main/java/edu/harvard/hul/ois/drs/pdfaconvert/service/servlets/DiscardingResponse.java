@@ -0,0 +1,76 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.service.servlets;
+
+import java.lang.reflect.Proxy;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * An HttpServletResponse standing in for the container's whose body is counted and thrown away.
+ * Only the output stream is implemented; every other method does nothing and returns null, 0 or false.
+ */
+class DiscardingResponse {
+
+	private final CountingOutputStream outputStream = new CountingOutputStream();
+	private final HttpServletResponse response;
+
+	DiscardingResponse() {
+		response = (HttpServletResponse) Proxy.newProxyInstance(HttpServletResponse.class.getClassLoader(),
+				new Class<?>[] { HttpServletResponse.class }, (proxy, method, args) -> {
+					if ("getOutputStream".equals(method.getName())) {
+						return outputStream;
+					}
+					Class<?> returnType = method.getReturnType();
+					if (returnType == boolean.class) {
+						return false;
+					} else if (returnType == int.class) {
+						return 0;
+					} else if (returnType == long.class) {
+						return 0L;
+					}
+					return null;
+				});
+	}
+
+	HttpServletResponse getResponse() {
+		return response;
+	}
+
+	long getBytesWritten() {
+		return outputStream.count;
+	}
+
+	private static class CountingOutputStream extends ServletOutputStream {
+		private long count = 0;
+
+		@Override
+		public void write(int b) {
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+
+		@Override
+		public boolean isReady() {
+			return true;
+		}
+
+		@Override
+		public void setWriteListener(WriteListener writeListener) {
+			// always ready so never called back
+		}
+	}
+}
@@ -0,0 +1,48 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.service.servlets;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.harvard.hul.ois.drs.pdfaconvert.service.common.ErrorMessage;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.common.XmlMarshaller;
+
+/**
+ * Marshalling an ErrorMessage to XML, which every error response does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class ErrorMessageBenchmark {
+
+	private final ErrorMessage errorMessage = new ErrorMessage(HttpServletResponse.SC_BAD_REQUEST,
+			" PdfaConverter Could not handle this request: unknown file type", "http://localhost:8080/pdfa-converter-service/convert",
+			"unknown file type");
+
+	@Benchmark
+	public String errorMessageToString() {
+		return XmlMarshaller.toXml(errorMessage);
+	}
+}
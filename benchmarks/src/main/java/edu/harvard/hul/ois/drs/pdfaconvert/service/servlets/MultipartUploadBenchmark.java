@@ -0,0 +1,129 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.service.servlets;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.fileupload.FileItemIterator;
+import org.apache.commons.fileupload.FileItemStream;
+import org.apache.commons.fileupload.FileUploadException;
+import org.apache.commons.fileupload.UploadContext;
+import org.apache.commons.fileupload.servlet.ServletFileUpload;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.harvard.hul.ois.drs.pdfaconvert.service.common.Constants;
+
+/**
+ * Parsing a multipart upload and copying the uploaded file to disk the way doPost does, from a request body
+ * held in memory so the network is not part of the measurement.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class MultipartUploadBenchmark {
+
+	private static final String BOUNDARY = "----pdfaBenchmarkBoundary7MA4YWxkTrZu0gW";
+	private static final long MAX_SIZE = 100 * 1024 * 1024;
+
+	@Param({ "65536", "1048576", "16777216" })
+	private int fileSize;
+
+	private byte[] requestBody;
+
+	@Setup(Level.Trial)
+	public void createRequestBody() throws IOException {
+		byte[] content = new byte[fileSize];
+		new Random(42).nextBytes(content);
+		ByteArrayOutputStream body = new ByteArrayOutputStream(fileSize + 512);
+		body.write(("--" + BOUNDARY + "\r\n"
+				+ "Content-Disposition: form-data; name=\"" + Constants.FORM_FIELD_DATAFILE + "\"; filename=\"document.docx\"\r\n"
+				+ "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+		body.write(content);
+		body.write(("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+		requestBody = body.toByteArray();
+	}
+
+	@Benchmark
+	public long parseAndStageUpload() throws IOException, FileUploadException {
+		ServletFileUpload upload = new ServletFileUpload();
+		upload.setFileSizeMax(MAX_SIZE);
+		upload.setSizeMax(MAX_SIZE);
+		FileItemIterator iter = upload.getItemIterator(new InMemoryUploadContext(requestBody));
+		long staged = 0;
+		while (iter.hasNext()) {
+			FileItemStream item = iter.next();
+			File uploadFile = File.createTempFile("upload_", ".tmp-" + item.getName());
+			try {
+				staged += ConversionHandler.stageUpload(item.openStream(), uploadFile, "docx");
+			} finally {
+				uploadFile.delete();
+			}
+		}
+		return staged;
+	}
+
+	/*
+	 * A multipart request body held in memory.
+	 */
+	private static class InMemoryUploadContext implements UploadContext {
+		private final byte[] body;
+
+		private InMemoryUploadContext(byte[] body) {
+			this.body = body;
+		}
+
+		@Override
+		public String getCharacterEncoding() {
+			return StandardCharsets.UTF_8.name();
+		}
+
+		@Override
+		public String getContentType() {
+			return "multipart/form-data; boundary=" + BOUNDARY;
+		}
+
+		@Override
+		@Deprecated
+		public int getContentLength() {
+			return body.length;
+		}
+
+		@Override
+		public long contentLength() {
+			return body.length;
+		}
+
+		@Override
+		public InputStream getInputStream() {
+			return new ByteArrayInputStream(body);
+		}
+	}
+}
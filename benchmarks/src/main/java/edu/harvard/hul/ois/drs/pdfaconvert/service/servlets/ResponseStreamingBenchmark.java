@@ -0,0 +1,68 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.service.servlets;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Streaming a converted file into the response the way sendPdfaConverterExamineResponse does once the conversion
+ * has finished. The response body is discarded so only the cost of reading and copying the file is measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class ResponseStreamingBenchmark {
+
+	@Param({ "65536", "1048576", "16777216" })
+	private int fileSize;
+
+	private File convertedFile;
+
+	@Setup(Level.Trial)
+	public void createConvertedFile() throws IOException {
+		convertedFile = File.createTempFile("benchmark_", ".pdf");
+		byte[] content = new byte[fileSize];
+		new Random(42).nextBytes(content);
+		Files.write(convertedFile.toPath(), content);
+	}
+
+	@TearDown(Level.Trial)
+	public void deleteConvertedFile() {
+		convertedFile.delete();
+	}
+
+	@Benchmark
+	public long transferFile() throws IOException {
+		DiscardingResponse response = new DiscardingResponse();
+		ServletSupport.transferFile(convertedFile, response.getResponse());
+		return response.getBytesWritten();
+	}
+}
@@ -0,0 +1,324 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.service.batch;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.http.HttpServletResponse;
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+
+import org.apache.commons.io.FilenameUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import edu.harvard.hul.ois.drs.pdfaconvert.service.clients.Client;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.common.ErrorMessage;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.pool.AdmissionController;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.pool.ConversionExecutor;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.pool.ConversionTask;
+
+/**
+ * Converts the documents of a batch in parallel and streams the results back as a ZIP file.
+ * At most <code>parallelism</code> documents of the batch are handed to the ConversionExecutor at a time so that
+ * a large batch does not fill the conversion queue, and each is admitted by the AdmissionController as a request of
+ * its own, counted against the client's share, for as long as it is queued or converting. Each PDF/A is written to the ZIP file as soon as its conversion
+ * finishes, in whatever order they finish, and a manifest listing the outcome for every document is written last.
+ * Writing is done on container threads through the AsyncContext so conversion threads never wait on the client.
+ */
+public class BatchConversion {
+
+	public static final String MANIFEST_FILENAME = "manifest.xml";
+
+	private static final Logger logger = LogManager.getLogger();
+
+	private final ConversionExecutor conversionExecutor;
+	private final AdmissionController admissionController;
+	private final int parallelism;
+	private final String requestUrl;
+	private final Client client;
+	private final List<Item> items = new ArrayList<Item>();
+	private final Deque<Item> pending = new ArrayDeque<Item>(); // also guards inFlight
+	private int inFlight = 0;
+	private final Queue<Item> finished = new ConcurrentLinkedQueue<Item>();
+	private final BatchManifest manifest = new BatchManifest();
+	private final Set<String> usedOutputNames = new HashSet<String>();
+
+	private AsyncContext asyncContext;
+	private ZipOutputStream zipOutputStream;
+	private int written = 0;
+	private boolean aborted = false;
+	private boolean completed = false;
+
+	/**
+	 * @param conversionExecutor - executor that runs the conversions
+	 * @param admissionController - admits each document of the batch before it is handed to the executor
+	 * @param parallelism - maximum number of documents of this batch queued or converting at a time
+	 * @param requestUrl - URL of the batch request, used in error messages
+	 * @param client - the client the batch is for
+	 */
+	public BatchConversion(ConversionExecutor conversionExecutor, AdmissionController admissionController, int parallelism,
+			String requestUrl, Client client) {
+		this.conversionExecutor = conversionExecutor;
+		this.admissionController = admissionController;
+		this.parallelism = Math.max(1, parallelism);
+		this.requestUrl = requestUrl;
+		this.client = client;
+	}
+
+	/**
+	 * Add a staged document to convert. The staged file is deleted once it has been converted.
+	 *
+	 * @param inputName - the original name of the document
+	 * @param stagedFile - the document's content staged to a temporary file
+	 * @param inputKey - the key of the document's content computed while it was staged, or null to compute it later
+	 */
+	public void addDocument(String inputName, File stagedFile, String inputKey) {
+		Item item = new Item(inputName, stagedFile, null);
+		item.inputKey = inputKey;
+		items.add(item);
+	}
+
+	/**
+	 * Add a document that could not be staged so it is reported in the manifest.
+	 *
+	 * @param inputName - the original name of the document
+	 * @param error - the reason the document could not be staged
+	 */
+	public void addFailure(String inputName, ErrorMessage error) {
+		items.add(new Item(inputName, null, error));
+	}
+
+	/**
+	 * @return The number of documents in the batch.
+	 */
+	public int size() {
+		return items.size();
+	}
+
+	/**
+	 * Delete all staged files. Used when the batch is abandoned before it was started.
+	 */
+	public void discard() {
+		for (Item item : items) {
+			if (item.stagedFile != null) {
+				item.stagedFile.delete();
+			}
+		}
+	}
+
+	/**
+	 * Start converting the batch. The ZIP file is written to the response of the AsyncContext which is completed
+	 * once the manifest has been written.
+	 *
+	 * @param asyncContext - the asynchronous context of the batch request
+	 * @throws IOException if the response cannot be opened
+	 */
+	public void start(AsyncContext asyncContext) throws IOException {
+		this.asyncContext = asyncContext;
+		OutputStream out = asyncContext.getResponse().getOutputStream();
+		zipOutputStream = new ZipOutputStream(out);
+		zipOutputStream.setLevel(Deflater.BEST_SPEED); // PDFs are mostly compressed already
+		for (Item item : items) {
+			if (item.error != null) {
+				finished.add(item);
+			} else {
+				synchronized (pending) {
+					pending.add(item);
+				}
+			}
+		}
+		for (int i = 0; i < parallelism; i++) {
+			submitNext();
+		}
+		if (!finished.isEmpty() || items.isEmpty()) {
+			asyncContext.start(this::drain);
+		}
+	}
+
+	/*
+	 * Hand the next pending document, if any, to the conversion executor. If it is not admitted or the conversion
+	 * queue is full the document is retried when another document of this batch finishes, or failed if none are
+	 * left running.
+	 */
+	private void submitNext() {
+		while (true) {
+			final Item item;
+			synchronized (pending) {
+				item = pending.poll();
+				if (item == null) {
+					return;
+				}
+				inFlight++;
+			}
+			ConversionTask submitted = null;
+			if (admissionController.tryAdmit(client)) {
+				try {
+					submitted = conversionExecutor.submit(item.stagedFile, item.inputKey, client);
+				} catch (RejectedExecutionException e) {
+					admissionController.release(client);
+				}
+			}
+			if (submitted == null) {
+				synchronized (pending) {
+					inFlight--;
+					if (inFlight > 0) {
+						pending.addFirst(item);
+						return;
+					}
+				}
+				item.stagedFile.delete();
+				item.error = new ErrorMessage(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+						" Too many conversions waiting. Try again later.", requestUrl, item.inputName);
+				onFinished(item);
+				continue;
+			}
+			final ConversionTask task = submitted;
+			item.task = task;
+			task.getResult().whenComplete((convertedFile, error) -> {
+				admissionController.release(client);
+				item.stagedFile.delete();
+				if (error != null) {
+					logger.warn("Batch conversion of {} failed: {}", item.inputName, error.getMessage());
+					item.error = ErrorMessage.forConversionFailure(error, requestUrl);
+					item.error.setSupport(item.inputName);
+				} else {
+					item.convertedFile = convertedFile;
+				}
+				synchronized (pending) {
+					inFlight--;
+				}
+				onFinished(item);
+				submitNext();
+			});
+			return;
+		}
+	}
+
+	private void onFinished(Item item) {
+		finished.add(item);
+		try {
+			asyncContext.start(this::drain);
+		} catch (IllegalStateException e) {
+			// the request is already over
+			drain();
+		}
+	}
+
+	/*
+	 * Write every finished document to the ZIP file and, once all have been written, the manifest.
+	 */
+	private synchronized void drain() {
+		Item item;
+		while ((item = finished.poll()) != null) {
+			try {
+				if (!aborted) {
+					writeItem(item);
+				}
+			} catch (IOException e) {
+				logger.warn("Batch response aborted: {}", e.getMessage());
+				aborted = true;
+			} finally {
+				if (item.task != null) {
+					// the converted file may be shared with other requests converting the same content
+					item.task.releaseOutput();
+				}
+			}
+			written++;
+		}
+		if (!completed && written == items.size()) {
+			completed = true;
+			try {
+				if (!aborted) {
+					writeManifest();
+					zipOutputStream.finish();
+				}
+			} catch (IOException e) {
+				logger.warn("Batch response aborted: {}", e.getMessage());
+			} finally {
+				asyncContext.complete();
+			}
+		}
+	}
+
+	private void writeItem(Item item) throws IOException {
+		String outputName = null;
+		if (item.error == null) {
+			outputName = toUniqueOutputName(item.inputName);
+			zipOutputStream.putNextEntry(new ZipEntry(outputName));
+			long size = Files.copy(item.convertedFile.toPath(), zipOutputStream);
+			conversionExecutor.getMetrics().addBytesOut(size);
+			zipOutputStream.closeEntry();
+			zipOutputStream.flush();
+		}
+		manifest.addEntry(new BatchEntry(item.inputName, outputName, item.error));
+	}
+
+	private void writeManifest() throws IOException {
+		zipOutputStream.putNextEntry(new ZipEntry(MANIFEST_FILENAME));
+		try {
+			JAXBContext jaxbContext = JAXBContext.newInstance(BatchManifest.class);
+			Marshaller jaxbMarshaller = jaxbContext.createMarshaller();
+			jaxbMarshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, Boolean.TRUE);
+			jaxbMarshaller.marshal(manifest, zipOutputStream);
+		} catch (JAXBException e) {
+			logger.error("Unable to write batch manifest", e);
+		}
+		zipOutputStream.closeEntry();
+		logger.info("Batch finished -- converted: {} -- failed: {}", manifest.getConverted(), manifest.getFailed());
+	}
+
+	/*
+	 * Name the PDF/A after the input document, adding a counter when two documents share a base name.
+	 */
+	private String toUniqueOutputName(String inputName) {
+		String baseName = FilenameUtils.getBaseName(inputName);
+		String outputName = baseName + ".pdf";
+		for (int i = 2; !usedOutputNames.add(outputName); i++) {
+			outputName = baseName + "-" + i + ".pdf";
+		}
+		return outputName;
+	}
+
+	/*
+	 * One document of the batch.
+	 */
+	private static class Item {
+		private final String inputName;
+		private final File stagedFile;
+		private volatile ErrorMessage error;
+		private volatile File convertedFile;
+		private volatile String inputKey;
+		private volatile ConversionTask task;
+
+		private Item(String inputName, File stagedFile, ErrorMessage error) {
+			this.inputName = inputName;
+			this.stagedFile = stagedFile;
+			this.error = error;
+		}
+	}
+}
@@ -0,0 +1,59 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.service.batch;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlAttribute;
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlType;
+
+import edu.harvard.hul.ois.drs.pdfaconvert.service.common.ErrorMessage;
+
+/**
+ * The outcome of converting one document of a batch as listed in the batch manifest.
+ */
+@XmlAccessorType(XmlAccessType.FIELD)
+@XmlType(propOrder={"input", "output", "error"})
+public class BatchEntry {
+	@XmlAttribute
+	private String input;
+	@XmlAttribute
+	private String output;
+	@XmlElement
+	private ErrorMessage error;
+
+	public BatchEntry() {
+		super();
+	}
+
+	/**
+	 * @param input - the name of the input document
+	 * @param output - the name of the PDF/A in the ZIP file, or null if the conversion failed
+	 * @param error - the reason the conversion failed, or null if it succeeded
+	 */
+	public BatchEntry(String input, String output, ErrorMessage error) {
+		this.input = input;
+		this.output = output;
+		this.error = error;
+	}
+
+	public String getInput() {
+		return input;
+	}
+
+	public String getOutput() {
+		return output;
+	}
+
+	public ErrorMessage getError() {
+		return error;
+	}
+}
@@ -0,0 +1,58 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.service.batch;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlAttribute;
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * Manifest written as the last entry of a batch ZIP file listing the outcome of every document in the batch.
+ */
+@XmlRootElement(name="batch")
+@XmlAccessorType(XmlAccessType.FIELD)
+public class BatchManifest {
+	@XmlAttribute
+	private int converted;
+	@XmlAttribute
+	private int failed;
+	@XmlElement(name="entry")
+	private List<BatchEntry> entries = new ArrayList<BatchEntry>();
+
+	public BatchManifest() {
+		super();
+	}
+
+	public void addEntry(BatchEntry entry) {
+		entries.add(entry);
+		if (entry.getError() == null) {
+			converted++;
+		} else {
+			failed++;
+		}
+	}
+
+	public List<BatchEntry> getEntries() {
+		return entries;
+	}
+
+	public int getConverted() {
+		return converted;
+	}
+
+	public int getFailed() {
+		return failed;
+	}
+}
@@ -0,0 +1,475 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.service.bulk;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Predicate;
+
+import javax.servlet.AsyncContext;
+
+import org.apache.commons.io.FilenameUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import edu.harvard.hul.ois.drs.pdfaconvert.service.clients.Client;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.filetype.InputFileType;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.filetype.UnsupportedInputException;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.pool.AdmissionController;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.pool.ConversionExecutor;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.pool.ConversionTask;
+
+/**
+ * Converts the documents of a directory tree, or those listed in a manifest, into PDF/As written to an output
+ * directory on the same filesystem, laid out as the documents were. Like BatchConversion, at most
+ * <code>parallelism</code> documents are handed to the ConversionExecutor at a time, each admitted as a request of its
+ * own against the client's share. Instead of the converted files,
+ * the response streams one line of JSON per document as it finishes, giving its outcome, followed by a summary line.
+ * <p>
+ * A run can be repeated to resume one that was interrupted: a document whose PDF/A already exists and was written
+ * after the document last changed is skipped. Each PDF/A is written under a temporary name and then renamed, so a
+ * run stopped part way never leaves a partial PDF/A that would be taken as up to date.
+ */
+public class BulkConversion {
+
+	public static final String OUTCOME_CONVERTED = "converted";
+	public static final String OUTCOME_SKIPPED = "skipped";
+	public static final String OUTCOME_FAILED = "failed";
+
+	private static final Logger logger = LogManager.getLogger();
+	private static final String PART_FILE_SUFFIX = ".part";
+
+	private final ConversionExecutor conversionExecutor;
+	private final AdmissionController admissionController;
+	private final int parallelism;
+	private final File outputDirectory;
+	private final Client client;
+	private final List<Item> items = new ArrayList<Item>();
+	private final Map<File, Item> itemsByOutput = new HashMap<File, Item>();
+	private final Deque<Item> pending = new ArrayDeque<Item>(); // also guards inFlight and completed
+	private int inFlight = 0;
+	private boolean completed = false;
+
+	private AsyncContext asyncContext;
+	private OutputStream out;
+	private volatile boolean aborted = false;
+	private int converted = 0;
+	private int skipped = 0;
+	private int failed = 0;
+	private long startMillis;
+
+	/**
+	 * @param conversionExecutor - executor that runs the conversions
+	 * @param admissionController - admits each document before it is handed to the executor
+	 * @param parallelism - maximum number of documents queued or converting at a time
+	 * @param outputDirectory - the directory the PDF/As are written to
+	 * @param client - the client the conversions are for
+	 */
+	public BulkConversion(ConversionExecutor conversionExecutor, AdmissionController admissionController, int parallelism,
+			File outputDirectory, Client client) {
+		this.conversionExecutor = conversionExecutor;
+		this.admissionController = admissionController;
+		this.parallelism = Math.max(1, parallelism);
+		this.outputDirectory = outputDirectory;
+		this.client = client;
+	}
+
+	/**
+	 * Add every document under a directory whose file name extension is one the converter takes. Other files,
+	 * symbolic links and the output directory, if it is within the source directory, are passed over, as are the
+	 * PDF/As of this run's documents should they land within the source directory. The output directory must not be
+	 * the source directory itself.
+	 *
+	 * @param sourceDirectory - the directory to convert
+	 * @param maxFiles - the most documents to add; one more is added to show the limit was passed
+	 * @throws IOException if the directory cannot be read
+	 * @throws IllegalArgumentException if the source directory is the output directory
+	 */
+	public void addDirectory(File sourceDirectory, final int maxFiles) throws IOException {
+		final Path sourcePath = sourceDirectory.toPath();
+		final Path outputPath = outputDirectory.toPath();
+		if (sourcePath.equals(outputPath)) {
+			throw new IllegalArgumentException("The output directory must not be the source directory");
+		}
+		final List<Path> documents = new ArrayList<Path>();
+		Files.walkFileTree(sourcePath, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+				if (dir.equals(outputPath)) {
+					return FileVisitResult.SKIP_SUBTREE;
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+				if (attrs.isRegularFile() && InputFileType.isSupportedExtension(file.getFileName().toString())) {
+					documents.add(file);
+				}
+				return items.size() + documents.size() > maxFiles ? FileVisitResult.TERMINATE : FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException e) {
+				addFailure(file.toFile(), toName(sourcePath.relativize(file)), "Unable to read: " + e.getMessage());
+				return items.size() + documents.size() > maxFiles ? FileVisitResult.TERMINATE : FileVisitResult.CONTINUE;
+			}
+		});
+		// in a fixed order so that a resumed run gives the same output to the same document
+		Collections.sort(documents);
+		// a PDF/A written by an earlier run is not a document to convert again
+		Set<File> outputs = new HashSet<File>();
+		for (Path document : documents) {
+			outputs.add(toOutput(toName(sourcePath.relativize(document))));
+		}
+		for (Path document : documents) {
+			if (!outputs.contains(document.toFile().getAbsoluteFile())) {
+				addDocument(document.toFile(), toName(sourcePath.relativize(document)));
+			}
+		}
+	}
+
+	/**
+	 * Add the documents listed in a manifest, one path per line. Blank lines and lines starting with # are ignored.
+	 * A relative path is resolved against the manifest's directory and keeps its place below the output directory;
+	 * a document given by an absolute path outside the manifest's directory is written to the top of the output
+	 * directory.
+	 *
+	 * @param manifest - the manifest file
+	 * @param allowed - which documents may be read; any others are reported as failed
+	 * @param maxFiles - the most documents to add; one more is added to show the limit was passed
+	 * @throws IOException if the manifest cannot be read
+	 */
+	public void addManifest(File manifest, Predicate<File> allowed, int maxFiles) throws IOException {
+		Path basePath = manifest.getAbsoluteFile().getParentFile().toPath();
+		try (BufferedReader reader = Files.newBufferedReader(manifest.toPath(), StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = reader.readLine()) != null && items.size() <= maxFiles) {
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+				Path path = basePath.resolve(line).normalize();
+				File input = path.toFile();
+				String name = path.startsWith(basePath) ? toName(basePath.relativize(path)) : input.getName();
+				if (!allowed.test(input)) {
+					addFailure(input, line, "Not within a directory allowed for bulk conversion");
+				} else if (!input.isFile()) {
+					addFailure(input, line, "No such file");
+				} else {
+					addDocument(input, name);
+				}
+			}
+		}
+	}
+
+	private static String toName(Path relativePath) {
+		return FilenameUtils.separatorsToUnix(relativePath.toString());
+	}
+
+	private File toOutput(String name) {
+		return new File(outputDirectory, FilenameUtils.removeExtension(name) + ".pdf").getAbsoluteFile();
+	}
+
+	/*
+	 * Add a document, failing it if its PDF/A would overwrite another document's PDF/A or the document itself.
+	 * A document whose PDF/A would have the same name as an earlier document's, such as report.docx after
+	 * report.doc, keeps its extension in its PDF/A's name, e.g. report.docx.pdf.
+	 */
+	private void addDocument(File input, String name) {
+		File output = toOutput(name);
+		if (itemsByOutput.containsKey(output)) {
+			output = new File(outputDirectory, name + ".pdf").getAbsoluteFile();
+		}
+		Item existing = itemsByOutput.get(output);
+		if (existing != null) {
+			addFailure(input, name, "Has the same output as " + existing.name);
+		} else if (output.equals(input.getAbsoluteFile())) {
+			addFailure(input, name, "Output would overwrite the input");
+		} else {
+			Item item = new Item(input, name, output, null);
+			itemsByOutput.put(output, item);
+			items.add(item);
+		}
+	}
+
+	private void addFailure(File input, String name, String error) {
+		items.add(new Item(input, name, null, error));
+	}
+
+	/**
+	 * @return The number of documents added.
+	 */
+	public int size() {
+		return items.size();
+	}
+
+	/**
+	 * Start converting. The progress lines are written to the response of the AsyncContext which is completed once
+	 * every document has finished, or once those in progress have finished if the client goes away.
+	 *
+	 * @param asyncContext - the asynchronous context of the bulk request
+	 * @throws IOException if the response cannot be opened
+	 */
+	public void start(AsyncContext asyncContext) throws IOException {
+		this.asyncContext = asyncContext;
+		this.out = asyncContext.getResponse().getOutputStream();
+		this.startMillis = System.currentTimeMillis();
+		logger.info("Bulk conversion of {} documents to {} started", items.size(), outputDirectory);
+		synchronized (pending) {
+			pending.addAll(items);
+		}
+		for (int i = 0; i < parallelism; i++) {
+			submitNext();
+		}
+	}
+
+	/*
+	 * Hand the next pending document that needs converting to the conversion executor, reporting the documents
+	 * skipped or failed on the way. If it is not admitted or the conversion queue is full the document is retried
+	 * when another document finishes, or failed if none are left running. Once nothing is pending or in flight the run is finished.
+	 */
+	private void submitNext() {
+		while (true) {
+			final Item item;
+			synchronized (pending) {
+				if (aborted) {
+					pending.clear();
+				}
+				item = pending.poll();
+				if (item == null) {
+					if (inFlight == 0 && !completed) {
+						completed = true;
+						break;
+					}
+					return;
+				}
+				inFlight++;
+			}
+			if (item.error == null) {
+				checkDocument(item);
+			}
+			if (item.error != null || item.outcome != null) {
+				finishItem(item);
+				continue;
+			}
+			ConversionTask submitted = null;
+			if (admissionController.tryAdmit(client)) {
+				try {
+					submitted = conversionExecutor.submit(item.input, null, client);
+				} catch (RejectedExecutionException e) {
+					admissionController.release(client);
+				}
+			}
+			if (submitted == null) {
+				synchronized (pending) {
+					if (inFlight > 1) {
+						inFlight--;
+						pending.addFirst(item);
+						return;
+					}
+				}
+				item.error = "Too many conversions waiting. Try again later.";
+				finishItem(item);
+				continue;
+			}
+			final ConversionTask task = submitted;
+			task.getResult().whenComplete((convertedFile, error) -> runOnContainer(() -> {
+				admissionController.release(client);
+				try {
+					if (error != null) {
+						logger.warn("Bulk conversion of {} failed: {}", item.name, error.getMessage());
+						item.error = error.getMessage() != null ? error.getMessage() : error.toString();
+					} else {
+						writeOutput(item, convertedFile);
+					}
+				} finally {
+					// the converted file may be shared with other requests converting the same content
+					task.releaseOutput();
+				}
+				finishItem(item);
+				submitNext();
+			}));
+			return;
+		}
+		finish();
+	}
+
+	/*
+	 * Skip a document whose PDF/A is up to date, and fail one the converter cannot take before it is queued.
+	 */
+	private void checkDocument(Item item) {
+		if (item.output.isFile() && item.output.lastModified() >= item.input.lastModified()) {
+			item.outcome = OUTCOME_SKIPPED;
+			return;
+		}
+		try {
+			InputFileType.check(item.input);
+		} catch (UnsupportedInputException e) {
+			conversionExecutor.getMetrics().inputRejected();
+			item.error = e.getMessage();
+		} catch (IOException e) {
+			item.error = "Unable to read: " + e.getMessage();
+		}
+	}
+
+	/*
+	 * Copy the converted file next to its final place and rename it into place.
+	 */
+	private void writeOutput(Item item, File convertedFile) {
+		Path target = item.output.toPath();
+		Path partFile = target.resolveSibling(target.getFileName() + PART_FILE_SUFFIX);
+		try {
+			Files.createDirectories(target.getParent());
+			Files.copy(convertedFile.toPath(), partFile, StandardCopyOption.REPLACE_EXISTING);
+			try {
+				Files.move(partFile, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(partFile, target, StandardCopyOption.REPLACE_EXISTING);
+			}
+			item.outcome = OUTCOME_CONVERTED;
+		} catch (IOException e) {
+			logger.warn("Unable to write {}: {}", target, e.getMessage());
+			item.error = "Unable to write " + item.output.getName() + ": " + e.getMessage();
+			partFile.toFile().delete();
+		}
+	}
+
+	/*
+	 * Report a document that has finished and take it out of flight.
+	 */
+	private void finishItem(Item item) {
+		if (item.error != null) {
+			item.outcome = OUTCOME_FAILED;
+		}
+		synchronized (this) {
+			if (OUTCOME_CONVERTED.equals(item.outcome)) {
+				converted++;
+			} else if (OUTCOME_SKIPPED.equals(item.outcome)) {
+				skipped++;
+			} else {
+				failed++;
+			}
+			StringBuilder sb = new StringBuilder(256);
+			sb.append('{');
+			appendField(sb, "input", item.name);
+			if (item.error == null) {
+				appendField(sb, "output", toName(outputDirectory.getAbsoluteFile().toPath().relativize(item.output.toPath())));
+			}
+			appendField(sb, "outcome", item.outcome);
+			appendField(sb, "error", item.error);
+			appendField(sb, "done", converted + skipped + failed);
+			sb.append("\"total\":").append(items.size()).append('}');
+			writeLine(sb);
+		}
+		synchronized (pending) {
+			inFlight--;
+		}
+	}
+
+	private void finish() {
+		synchronized (this) {
+			StringBuilder sb = new StringBuilder(128);
+			sb.append('{');
+			appendField(sb, "converted", converted);
+			appendField(sb, "skipped", skipped);
+			appendField(sb, "failed", failed);
+			sb.append("\"total\":").append(items.size()).append('}');
+			writeLine(sb);
+			logger.info("Bulk conversion to {} {} -- converted: {} -- skipped: {} -- failed: {} -- {} seconds", outputDirectory,
+					aborted ? "stopped" : "finished", converted, skipped, failed,
+					(System.currentTimeMillis() - startMillis) / 1000);
+		}
+		asyncContext.complete();
+	}
+
+	private void writeLine(StringBuilder sb) {
+		if (aborted) {
+			return;
+		}
+		try {
+			out.write(sb.append('\n').toString().getBytes(StandardCharsets.UTF_8));
+			out.flush();
+		} catch (IOException e) {
+			// the documents in flight finish and are written, the rest are left for the run to be resumed
+			logger.warn("Bulk conversion to {} stopped, the client has gone: {}", outputDirectory, e.getMessage());
+			aborted = true;
+		}
+	}
+
+	private void runOnContainer(Runnable runnable) {
+		try {
+			asyncContext.start(runnable);
+		} catch (IllegalStateException e) {
+			// the request is already over
+			runnable.run();
+		}
+	}
+
+	private static void appendField(StringBuilder sb, String name, String value) {
+		if (value == null) {
+			return;
+		}
+		sb.append('"').append(name).append("\":\"");
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\') {
+				sb.append('\\').append(c);
+			} else if (c < 0x20) {
+				sb.append(String.format("\\u%04x", (int) c));
+			} else {
+				sb.append(c);
+			}
+		}
+		sb.append("\",");
+	}
+
+	private static void appendField(StringBuilder sb, String name, long value) {
+		sb.append('"').append(name).append("\":").append(value).append(',');
+	}
+
+	/*
+	 * One document of the run.
+	 */
+	private static class Item {
+		private final File input;
+		private final String name;
+		private final File output;
+		private volatile String error;
+		private volatile String outcome;
+
+		private Item(File input, String name, File output, String error) {
+			this.input = input;
+			this.name = name;
+			this.output = output;
+			this.error = error;
+		}
+	}
+}
@@ -0,0 +1,259 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.service.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Disk cache of converted files keyed by the content of the input file.
+ * The key is the SHA-256 digest of the PDF/A Converter version followed by the bytes of the input file so that
+ * upgrading the converter invalidates every earlier entry. Once the total size of the cached files goes over
+ * the configured budget the least recently used entries are deleted.
+ * <p>
+ * A hit is handed out as a file of its own in the "hits" directory so that an entry evicted while the converted
+ * file is still being sent or kept for a job does not cut it short. Whoever checks a file out deletes it.
+ */
+public class ConversionResultCache {
+
+	private static final Logger logger = LogManager.getLogger();
+	private static final String CACHED_FILE_SUFFIX = ".pdf";
+	private static final String PARTIAL_FILE_SUFFIX = ".part";
+	private static final String HITS_DIRECTORY_NAME = "hits";
+
+	private final File cacheDir;
+	private final File hitsDir;
+	private final long maxBytes;
+	private final byte[] versionBytes;
+	// access-ordered so iteration starts with the least recently used entry
+	private final LinkedHashMap<String, Long> entries = new LinkedHashMap<String, Long>(16, 0.75f, true);
+	private long totalBytes = 0;
+	// number of check-outs in progress by key
+	private final Map<String, Integer> pinned = new HashMap<String, Integer>();
+	private final AtomicLong hitSequence = new AtomicLong();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * @param cacheDir - directory the cached files are kept in; created if it does not exist
+	 * @param maxBytes - total size of cached files above which entries are evicted
+	 * @param converterVersion - version of the PDF/A Converter producing the cached files
+	 * @throws IOException if the cache directory cannot be created
+	 */
+	public ConversionResultCache(File cacheDir, long maxBytes, String converterVersion) throws IOException {
+		this.cacheDir = cacheDir;
+		this.maxBytes = maxBytes;
+		this.versionBytes = String.valueOf(converterVersion).getBytes(StandardCharsets.UTF_8);
+		if (!cacheDir.exists() && !cacheDir.mkdirs()) {
+			throw new IOException("Unable to create cache directory: " + cacheDir.getPath());
+		}
+		this.hitsDir = new File(cacheDir, HITS_DIRECTORY_NAME);
+		if (!hitsDir.exists() && !hitsDir.mkdirs()) {
+			throw new IOException("Unable to create cache directory: " + hitsDir.getPath());
+		}
+		// files checked out before a restart are no longer used by anyone
+		File[] leftovers = hitsDir.listFiles();
+		if (leftovers != null) {
+			for (File leftover : leftovers) {
+				leftover.delete();
+			}
+		}
+		loadExistingEntries();
+		logger.info("Conversion result cache in {} holds {} entries totalling {} bytes -- budget {} bytes",
+				cacheDir.getPath(), entries.size(), totalBytes, maxBytes);
+	}
+
+	/**
+	 * @return A digest initialized with the converter version, ready to be updated with the input file's bytes.
+	 */
+	public MessageDigest newKeyDigest() {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(versionBytes);
+			digest.update((byte) 0);
+			return digest;
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 not available", e);
+		}
+	}
+
+	/**
+	 * @param digest - a digest from newKeyDigest() updated with all of the input file's bytes
+	 * @return The cache key.
+	 */
+	public static String toKey(MessageDigest digest) {
+		byte[] hash = digest.digest();
+		StringBuilder key = new StringBuilder(hash.length * 2);
+		for (byte b : hash) {
+			key.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return key.toString();
+	}
+
+	/**
+	 * Look up a previously converted file and hand out a file of the caller's own with its content: a hard link to
+	 * the cached file, or a copy where the file system has no hard links. The entry is pinned against eviction
+	 * until the caller's file has been made, after which the cache may evict the entry without affecting it.
+	 *
+	 * @param key - the cache key of the input file
+	 * @return A new file with the cached converted file's content, which belongs to the caller, or null if there
+	 * is none.
+	 */
+	public File checkOut(String key) {
+		synchronized (this) {
+			if (entries.get(key) == null) {
+				misses.incrementAndGet();
+				logger.debug("Cache miss: {}", key);
+				return null;
+			}
+			pinned.merge(key, 1, Integer::sum);
+		}
+		File hitFile = new File(hitsDir, key + "-" + hitSequence.incrementAndGet() + CACHED_FILE_SUFFIX);
+		try {
+			try {
+				Files.createLink(hitFile.toPath(), toCachedFile(key).toPath());
+			} catch (UnsupportedOperationException | FileSystemException e) {
+				Files.copy(toCachedFile(key).toPath(), hitFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} catch (IOException e) {
+			// gone from under the cache, e.g. deleted by hand
+			logger.warn("Unable to check out cached file {}: {}", key, e.getMessage());
+			hitFile.delete();
+			hitFile = null;
+		} finally {
+			synchronized (this) {
+				pinned.computeIfPresent(key, (pinnedKey, count) -> count > 1 ? count - 1 : null);
+				evictOverBudget();
+			}
+		}
+		if (hitFile == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		logger.debug("Cache hit: {}", key);
+		return hitFile;
+	}
+
+	/**
+	 * Store a copy of a converted file, evicting least recently used entries if the cache goes over budget.
+	 * The converted file itself is left in place.
+	 *
+	 * @param key - the cache key of the input file
+	 * @param convertedFile - the file produced by the converter
+	 */
+	public void put(String key, File convertedFile) {
+		long size = convertedFile.length();
+		if (size > maxBytes) {
+			logger.debug("Not caching {} -- {} bytes is larger than the cache", key, size);
+			return;
+		}
+		File cachedFile = toCachedFile(key);
+		File partialFile = new File(cacheDir, key + PARTIAL_FILE_SUFFIX + Thread.currentThread().getId());
+		try {
+			Files.copy(convertedFile.toPath(), partialFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			Files.move(partialFile.toPath(), cachedFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			logger.warn("Unable to cache converted file {}: {}", convertedFile.getPath(), e.getMessage());
+			partialFile.delete();
+			return;
+		}
+		synchronized (this) {
+			Long previousSize = entries.put(key, size);
+			totalBytes += size - (previousSize == null ? 0 : previousSize);
+			evictOverBudget();
+		}
+	}
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+
+	public synchronized long getTotalBytes() {
+		return totalBytes;
+	}
+
+	public synchronized int getEntryCount() {
+		return entries.size();
+	}
+
+	/*
+	 * Must be called holding the lock on this. Entries being checked out are passed over.
+	 */
+	private void evictOverBudget() {
+		Iterator<Map.Entry<String, Long>> iter = entries.entrySet().iterator();
+		while (totalBytes > maxBytes && iter.hasNext()) {
+			Map.Entry<String, Long> eldest = iter.next();
+			if (pinned.containsKey(eldest.getKey())) {
+				continue;
+			}
+			iter.remove();
+			totalBytes -= eldest.getValue();
+			evictions.incrementAndGet();
+			if (!toCachedFile(eldest.getKey()).delete()) {
+				logger.warn("Evicted cache file NOT deleted: {}", eldest.getKey());
+			}
+			logger.debug("Evicted from cache: {}", eldest.getKey());
+		}
+	}
+
+	/*
+	 * Pick up entries left from an earlier run, oldest first so they are evicted first.
+	 */
+	private synchronized void loadExistingEntries() {
+		File[] files = cacheDir.listFiles();
+		if (files == null) {
+			return;
+		}
+		Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+		for (File file : files) {
+			String name = file.getName();
+			if (name.endsWith(CACHED_FILE_SUFFIX)) {
+				long size = file.length();
+				entries.put(name.substring(0, name.length() - CACHED_FILE_SUFFIX.length()), size);
+				totalBytes += size;
+			} else if (name.contains(PARTIAL_FILE_SUFFIX)) {
+				file.delete();
+			}
+		}
+		evictOverBudget();
+	}
+
+	private File toCachedFile(String key) {
+		return new File(cacheDir, key + CACHED_FILE_SUFFIX);
+	}
+}
@@ -0,0 +1,149 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.service.clients;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A client of the service, either one configured by name and recognized by its API key or one identified only by
+ * its source address. Each client has a weight giving its share of the converters when several clients are waiting,
+ * a cap on how many of its conversions may run at once and a rate limit on its requests. The client also counts the
+ * requests of its that are admitted, so that no one client can take every place the service has for waiting requests.
+ */
+public class Client {
+
+	private final String name;
+	private final boolean configured;
+	private final int weight;
+	private final int maxConcurrent;
+	private final TokenBucket rateLimit;
+	private final LongAdder requestCount = new LongAdder();
+	private final LongAdder rateLimitedCount = new LongAdder();
+	private final LongAdder conversionCount = new LongAdder();
+	private final AtomicInteger admittedCount = new AtomicInteger();
+
+	/**
+	 * @param name - the client's configured name or its source address
+	 * @param configured - true if the client was configured by name
+	 * @param weight - the client's share of the converters relative to other waiting clients
+	 * @param maxConcurrent - the most conversions the client may have running at once, 0 for no cap
+	 * @param rateLimit - limit on the client's requests or null for none
+	 */
+	public Client(String name, boolean configured, int weight, int maxConcurrent, TokenBucket rateLimit) {
+		this.name = name;
+		this.configured = configured;
+		this.weight = Math.max(1, weight);
+		this.maxConcurrent = Math.max(0, maxConcurrent);
+		this.rateLimit = rateLimit;
+	}
+
+	/**
+	 * Count a request from the client and check it against the client's rate limit.
+	 *
+	 * @return true if the request is within the rate limit.
+	 */
+	public boolean tryAcquire() {
+		requestCount.increment();
+		if (rateLimit == null || rateLimit.tryAcquire()) {
+			return true;
+		}
+		rateLimitedCount.increment();
+		return false;
+	}
+
+	/**
+	 * @return The number of whole seconds until the client's rate limit allows another request, at least 1.
+	 */
+	public long getRetryAfterSeconds() {
+		double seconds = rateLimit == null ? 0 : rateLimit.getSecondsUntilAvailable();
+		return Math.max(1, (long) Math.ceil(seconds));
+	}
+
+	/**
+	 * Count a conversion submitted for the client.
+	 */
+	public void conversionSubmitted() {
+		conversionCount.increment();
+	}
+
+	/**
+	 * Count a request of the client as admitted unless the client already has as many admitted as its quota.
+	 * Every successful call must be matched by a call to releaseAdmission().
+	 *
+	 * @param quota - the most requests the client may have admitted at once
+	 * @return true if the request was admitted.
+	 */
+	public boolean tryAdmit(int quota) {
+		while (true) {
+			int admitted = admittedCount.get();
+			if (admitted >= quota) {
+				return false;
+			}
+			if (admittedCount.compareAndSet(admitted, admitted + 1)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Release a request admitted with tryAdmit().
+	 */
+	public void releaseAdmission() {
+		admittedCount.decrementAndGet();
+	}
+
+	/**
+	 * @return The number of requests of the client currently admitted.
+	 */
+	public int getAdmittedCount() {
+		return admittedCount.get();
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return true if the client was configured by name rather than identified by its source address.
+	 */
+	public boolean isConfigured() {
+		return configured;
+	}
+
+	public int getWeight() {
+		return weight;
+	}
+
+	/**
+	 * @return The most conversions the client may have running at once, 0 for no cap.
+	 */
+	public int getMaxConcurrent() {
+		return maxConcurrent;
+	}
+
+	public long getRequestCount() {
+		return requestCount.sum();
+	}
+
+	public long getRateLimitedCount() {
+		return rateLimitedCount.sum();
+	}
+
+	public long getConversionCount() {
+		return conversionCount.sum();
+	}
+
+	@Override
+	public String toString() {
+		return name + " (weight: " + weight + ", max concurrent: " + (maxConcurrent == 0 ? "none" : maxConcurrent)
+				+ ", rate limited: " + (rateLimit != null) + ")";
+	}
+}
@@ -0,0 +1,215 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.service.clients;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Identifies the client making a request. A request carrying a configured API key in the key header belongs to the
+ * client configured with that key; any other request belongs to a client identified by its source address, taken
+ * from the address header if one is configured (e.g. when the service is behind a proxy) or else from the connection.
+ * Clients identified by address get the default settings, each with its own rate limit and concurrency cap.
+ * At most MAX_TRACKED_ADDRESSES of them are kept; beyond that the one that made a request least recently is forgotten,
+ * unless it still has requests admitted.
+ * <p>
+ * Clients are configured in the application properties, for example:
+ * <pre>
+ * client.key.header=X-API-Key
+ * client.names=deposit,ui
+ * client.deposit.keys=3f9a...,77c1...
+ * client.deposit.weight=1
+ * client.deposit.max.concurrent=2
+ * client.deposit.rate.per.minute=120
+ * client.deposit.burst=20
+ * client.ui.keys=9be0...
+ * client.ui.weight=4
+ * client.default.weight=1
+ * client.default.max.concurrent=0
+ * client.default.rate.per.minute=0
+ * client.default.burst=10
+ * </pre>
+ */
+public class ClientRegistry {
+
+	private static final Logger logger = LogManager.getLogger();
+	private static final String DEFAULT_PREFIX = "client.default.";
+	private static final int MAX_TRACKED_ADDRESSES = 10000;
+
+	private final String keyHeader;
+	private final String addressHeader;
+	private final Map<String, Client> clientsByKey = new HashMap<String, Client>();
+	private final List<Client> configuredClients = new ArrayList<Client>();
+	// in order of last request, least recent first; guarded by its own lock
+	private final LinkedHashMap<String, Client> clientsByAddress = new LinkedHashMap<String, Client>(16, 0.75f, true);
+	private final int defaultWeight;
+	private final int defaultMaxConcurrent;
+	private final double defaultRatePerMinute;
+	private final int defaultBurst;
+	// counts of the address clients no longer tracked, so the totals over all address clients never go down
+	private long forgottenRequestCount = 0;
+	private long forgottenRateLimitedCount = 0;
+	private long forgottenConversionCount = 0;
+
+	/**
+	 * Read the clients from the application properties.
+	 *
+	 * @param applicationProps - the application properties
+	 */
+	public ClientRegistry(Properties applicationProps) {
+		this.keyHeader = applicationProps.getProperty("client.key.header", "X-API-Key").trim();
+		this.addressHeader = applicationProps.getProperty("client.address.header", "").trim();
+		this.defaultWeight = Integer.valueOf(applicationProps.getProperty(DEFAULT_PREFIX + "weight", "1").trim());
+		this.defaultMaxConcurrent = Integer.valueOf(applicationProps.getProperty(DEFAULT_PREFIX + "max.concurrent", "0").trim());
+		this.defaultRatePerMinute = Double.valueOf(applicationProps.getProperty(DEFAULT_PREFIX + "rate.per.minute", "0").trim());
+		this.defaultBurst = Integer.valueOf(applicationProps.getProperty(DEFAULT_PREFIX + "burst", "10").trim());
+		for (String name : StringUtils.split(applicationProps.getProperty("client.names", ""), ", ")) {
+			String prefix = "client." + name + ".";
+			int weight = Integer.valueOf(applicationProps.getProperty(prefix + "weight", String.valueOf(defaultWeight)).trim());
+			int maxConcurrent = Integer.valueOf(applicationProps.getProperty(prefix + "max.concurrent",
+					String.valueOf(defaultMaxConcurrent)).trim());
+			double ratePerMinute = Double.valueOf(applicationProps.getProperty(prefix + "rate.per.minute",
+					String.valueOf(defaultRatePerMinute)).trim());
+			int burst = Integer.valueOf(applicationProps.getProperty(prefix + "burst", String.valueOf(defaultBurst)).trim());
+			Client client = new Client(name, true, weight, maxConcurrent, newRateLimit(ratePerMinute, burst));
+			configuredClients.add(client);
+			for (String key : StringUtils.split(applicationProps.getProperty(prefix + "keys", ""), ", ")) {
+				clientsByKey.put(key, client);
+			}
+		}
+		logger.info("Configured clients: {} -- others by address with weight: {} -- max concurrent: {} -- rate per minute: {}",
+				configuredClients, defaultWeight, defaultMaxConcurrent, defaultRatePerMinute);
+	}
+
+	/**
+	 * @param request - a request
+	 * @return The client making the request.
+	 */
+	public Client identify(HttpServletRequest request) {
+		String key = request.getHeader(keyHeader);
+		if (key != null) {
+			Client client = clientsByKey.get(key.trim());
+			if (client != null) {
+				return client;
+			}
+		}
+		String address = getSourceAddress(request);
+		synchronized (clientsByAddress) {
+			Client client = clientsByAddress.get(address);
+			if (client == null) {
+				client = new Client(address, false, defaultWeight, defaultMaxConcurrent,
+						newRateLimit(defaultRatePerMinute, defaultBurst));
+				clientsByAddress.put(address, client);
+				forgetLeastRecentAddresses();
+			}
+			return client;
+		}
+	}
+
+	private String getSourceAddress(HttpServletRequest request) {
+		if (!addressHeader.isEmpty()) {
+			String forwarded = request.getHeader(addressHeader);
+			if (StringUtils.isNotBlank(forwarded)) {
+				// the first address is the original client's
+				return StringUtils.substringBefore(forwarded, ",").trim();
+			}
+		}
+		return request.getRemoteAddr();
+	}
+
+	/*
+	 * Forget the clients that made a request least recently until no more than MAX_TRACKED_ADDRESSES are left.
+	 * Clients with requests admitted are kept, so their admissions are still counted when they are released; there
+	 * can be no more of them than the service admits at once, which bounds how far the scan goes.
+	 */
+	private void forgetLeastRecentAddresses() {
+		Iterator<Client> iter = clientsByAddress.values().iterator();
+		while (clientsByAddress.size() > MAX_TRACKED_ADDRESSES && iter.hasNext()) {
+			Client client = iter.next();
+			if (client.getAdmittedCount() == 0) {
+				iter.remove();
+				forgottenRequestCount += client.getRequestCount();
+				forgottenRateLimitedCount += client.getRateLimitedCount();
+				forgottenConversionCount += client.getConversionCount();
+			}
+		}
+	}
+
+	private static TokenBucket newRateLimit(double ratePerMinute, int burst) {
+		return ratePerMinute > 0 ? new TokenBucket(ratePerMinute, burst) : null;
+	}
+
+	/**
+	 * @return The clients configured by name.
+	 */
+	public List<Client> getConfiguredClients() {
+		return configuredClients;
+	}
+
+	/**
+	 * @return The clients identified by source address that are currently being tracked.
+	 */
+	public Collection<Client> getAddressClients() {
+		synchronized (clientsByAddress) {
+			return new ArrayList<Client>(clientsByAddress.values());
+		}
+	}
+
+	/**
+	 * @return The number of requests made by all clients identified by source address since startup.
+	 */
+	public long getAddressRequestCount() {
+		synchronized (clientsByAddress) {
+			long count = forgottenRequestCount;
+			for (Client client : clientsByAddress.values()) {
+				count += client.getRequestCount();
+			}
+			return count;
+		}
+	}
+
+	/**
+	 * @return The number of requests turned away by the rate limits of clients identified by source address.
+	 */
+	public long getAddressRateLimitedCount() {
+		synchronized (clientsByAddress) {
+			long count = forgottenRateLimitedCount;
+			for (Client client : clientsByAddress.values()) {
+				count += client.getRateLimitedCount();
+			}
+			return count;
+		}
+	}
+
+	/**
+	 * @return The number of conversions submitted for all clients identified by source address since startup.
+	 */
+	public long getAddressConversionCount() {
+		synchronized (clientsByAddress) {
+			long count = forgottenConversionCount;
+			for (Client client : clientsByAddress.values()) {
+				count += client.getConversionCount();
+			}
+			return count;
+		}
+	}
+}
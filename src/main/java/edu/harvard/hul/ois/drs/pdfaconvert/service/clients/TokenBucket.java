@@ -0,0 +1,64 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.service.clients;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket rate limit: requests may arrive in bursts of up to the bucket's capacity but on average no faster
+ * than the rate at which the bucket refills. The bucket starts full.
+ */
+public class TokenBucket {
+
+	private final double capacity;
+	private final double tokensPerNano;
+	private double tokens;
+	private long lastRefillNanos;
+
+	/**
+	 * @param tokensPerMinute - rate at which the bucket refills
+	 * @param capacity - the most tokens the bucket holds, i.e. the largest burst allowed
+	 */
+	public TokenBucket(double tokensPerMinute, int capacity) {
+		this.capacity = Math.max(1, capacity);
+		this.tokensPerNano = tokensPerMinute / TimeUnit.MINUTES.toNanos(1);
+		this.tokens = this.capacity;
+		this.lastRefillNanos = System.nanoTime();
+	}
+
+	/**
+	 * @return true if a token was taken, false if the bucket is empty.
+	 */
+	public synchronized boolean tryAcquire() {
+		refill();
+		if (tokens < 1) {
+			return false;
+		}
+		tokens--;
+		return true;
+	}
+
+	/**
+	 * @return The number of seconds until a token will be available, 0 if one is available now.
+	 */
+	public synchronized double getSecondsUntilAvailable() {
+		refill();
+		if (tokens >= 1) {
+			return 0;
+		}
+		return (1 - tokens) / tokensPerNano / TimeUnit.SECONDS.toNanos(1);
+	}
+
+	private void refill() {
+		long now = System.nanoTime();
+		tokens = Math.min(capacity, tokens + (now - lastRefillNanos) * tokensPerNano);
+		lastRefillNanos = now;
+	}
+}
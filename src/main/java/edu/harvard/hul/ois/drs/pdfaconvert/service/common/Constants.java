@@ -20,19 +20,57 @@ public class Constants {
 	/** Resource path for processing an input file */
 	public final static String RESOURCE_PATH_CONVERT = "/convert";
 
+	/** Resource path for submitting conversion jobs (POST), polling their status (GET) and removing them (DELETE) */
+	public final static String RESOURCE_PATH_JOBS = "/jobs";
+
+	/** Path appended to a job resource for fetching the converted file (GET only) */
+	public final static String JOB_RESULT_PATH = "/result";
+
+	/**
+	 * Resource path for uploading a large document in chunks: start an upload (POST), send its chunks (PUT), check which
+	 * have been received (GET), complete it as a conversion job (POST) or remove it (DELETE)
+	 */
+	public final static String RESOURCE_PATH_UPLOADS = "/uploads";
+
+	/** Resource path for converting many files in one request returning a ZIP file (POST only) */
+	public final static String RESOURCE_PATH_BATCH = "/batch";
+
+	/**
+	 * Resource path for converting a directory, or the files listed in a manifest, on a shared filesystem into an
+	 * output directory on it, streaming the outcome for each file (POST only)
+	 */
+	public final static String RESOURCE_PATH_BULK = "/bulk";
+
 	/** Resource path for obtaining the PDF/A Utility version (GET only) */
     public final static String RESOURCE_PATH_VERSION = "/version";
 
+	/** Resource path for obtaining pool, queue and conversion metrics in Prometheus text format (GET only) */
+    public final static String RESOURCE_PATH_METRICS = "/metrics";
+
+	/** Resource path for checking that the service is up, without using a converter (GET only) */
+    public final static String RESOURCE_PATH_HEALTH = "/health";
+
+	/** Resource path for checking that the service has warm converters and is ready for traffic (GET only) */
+    public final static String RESOURCE_PATH_READY = "/ready";
+
 	/** Form variable name for access to input file (POST) */
     public final static String FORM_FIELD_DATAFILE = "datafile";
 
 	/** Request parameter name for pointing to input file (GET) */
     public final static String FILE_PARAM = "file";
 
-	/** Key for placing input file name into Request */
-    public final static String TEMP_FILE_NAME_KEY = "tempFilename";
+	/** Key for placing the ConversionTask whose converted file the request is sending into Request */
+    public final static String CONVERSION_TASK_KEY = "conversionTask";
+
+	/** Key for placing the Client making the request into Request */
+    public final static String CLIENT_KEY = "client";
+
+	/** Key for placing the RequestTiming of the request into Request */
+    public final static String REQUEST_TIMING_KEY = "requestTiming";
     
     public final static String TEXT_PLAIN_MIMETYPE = "text/plain";
     public final static String TEXT_XML_MIMETYPE = "text/xml";
     public final static String PDF_MIMETYPE = "application/pdf";
+    public final static String ZIP_MIMETYPE = "application/zip";
+    public final static String NDJSON_MIMETYPE = "application/x-ndjson";
 }
@@ -11,18 +11,29 @@ package edu.harvard.hul.ois.drs.pdfaconvert.service.common;
 
 import static javax.servlet.http.HttpServletResponse.*;
 
+import java.util.NoSuchElementException;
+
 import javax.xml.bind.annotation.XmlAccessType;
 import javax.xml.bind.annotation.XmlAccessorType;
 import javax.xml.bind.annotation.XmlElement;
 import javax.xml.bind.annotation.XmlRootElement;
 import javax.xml.bind.annotation.XmlType;
 
+import edu.harvard.hul.ois.drs.pdfaconvert.ExternalToolException;
+import edu.harvard.hul.ois.drs.pdfaconvert.GeneratedFileUnavailableException;
+import edu.harvard.hul.ois.drs.pdfaconvert.UnknownFileTypeException;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.pool.ConversionTimeoutException;
+
 
 @XmlRootElement(name="error")
 @XmlAccessorType(XmlAccessType.FIELD)
 @XmlType(propOrder={"statusCode",  "message", "request", "support"})
 
 public class ErrorMessage {
+
+	/** Status code for a client that has gone over its rate limit, which HttpServletResponse does not define */
+	public static final int SC_TOO_MANY_REQUESTS = 429;
+
 	@XmlElement
 	private int statusCode;
 	@XmlElement
@@ -95,6 +106,36 @@ public class ErrorMessage {
 		this.support = support;
 	}
 
+	/**
+	 * Translate an exception thrown during conversion into an error message.
+	 * 
+	 * @param e - the exception thrown by the converter
+	 * @param request - the request URL
+	 * @return A 400 error for input the converter cannot handle, otherwise a 500 error.
+	 */
+	public static ErrorMessage forConversionFailure(Throwable e, String request) {
+		if (e instanceof UnknownFileTypeException) {
+			// This is user input error of a file type that cannot be handled so 400 error
+			return new ErrorMessage(SC_BAD_REQUEST,
+					" PdfaConverter Could not handle this request: " + e.getMessage(), request, e.getMessage());
+		} else if (e instanceof ExternalToolException || e instanceof GeneratedFileUnavailableException) {
+			// These cannot be resolved by user so translate to a 500 response
+			return new ErrorMessage(SC_INTERNAL_SERVER_ERROR,
+					" PdfaConverter failed unexpectedly: " + e.getMessage(), request, e.getMessage());
+		} else if (e instanceof ConversionTimeoutException) {
+			// The conversion was cancelled so the input most likely cannot be converted
+			return new ErrorMessage(SC_GATEWAY_TIMEOUT,
+					" PdfaConverter timed out: " + e.getMessage(), request, e.getMessage());
+		} else if (e instanceof NoSuchElementException) {
+			// No converter was returned to the pool within the maximum borrow wait so the service is saturated
+			return new ErrorMessage(SC_SERVICE_UNAVAILABLE,
+					" No PdfaConverter became available in time. Try again later.", request, e.getMessage());
+		} else {
+			// trap any other type of error
+			return new ErrorMessage(SC_INTERNAL_SERVER_ERROR,
+					" PdfaConverter failed unexpectedly: " + e.getMessage(), request, e.getMessage());
+		}
+	}
 	
 	public String getMessage() {
 		return message;
@@ -174,6 +215,7 @@ public class ErrorMessage {
 			case SC_UNSUPPORTED_MEDIA_TYPE : return "Unsupported Media Type";
 			case SC_REQUESTED_RANGE_NOT_SATISFIABLE : return "Requested range not satisfiable";
 			case SC_EXPECTATION_FAILED   : return "Expectation Failed";
+			case SC_TOO_MANY_REQUESTS    : return "Too Many Requests";
 			case SC_INTERNAL_SERVER_ERROR : return "Internal Server Error";
 			case SC_NOT_IMPLEMENTED    : return "Not Implemented";
 			case SC_BAD_GATEWAY        : return "Bad Gateway";
@@ -0,0 +1,55 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.service.common;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+
+/**
+ * Marshals the XML response bodies -- error messages, job and upload statuses -- to strings.
+ * A JAXBContext is expensive to create and safe to share, so one is kept for each class marshalled; a Marshaller
+ * is neither, so one is created for each call.
+ */
+public final class XmlMarshaller {
+
+	private static final ConcurrentMap<Class<?>, JAXBContext> contexts = new ConcurrentHashMap<Class<?>, JAXBContext>();
+
+	private XmlMarshaller() {
+	}
+
+	/**
+	 * @param value - an object of a class annotated for JAXB
+	 * @return The object as XML, or its toString() if it cannot be marshalled.
+	 */
+	public static String toXml(Object value) {
+		try {
+			ByteArrayOutputStream outStream = new ByteArrayOutputStream();
+			Marshaller jaxbMarshaller = getContext(value.getClass()).createMarshaller();
+			jaxbMarshaller.marshal(value, outStream);
+			return outStream.toString();
+		} catch (JAXBException jbe) {
+			return value.toString();
+		}
+	}
+
+	private static JAXBContext getContext(Class<?> type) throws JAXBException {
+		JAXBContext jaxbContext = contexts.get(type);
+		if (jaxbContext == null) {
+			jaxbContext = JAXBContext.newInstance(type);
+			contexts.putIfAbsent(type, jaxbContext);
+		}
+		return jaxbContext;
+	}
+}
@@ -0,0 +1,220 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.service.events;
+
+import java.io.File;
+
+/**
+ * Emits JDK Flight Recorder events for the stages of a conversion so that a recording can relate garbage collection
+ * pauses, I/O stalls and the like to the conversions they held up. Each stage is timed by a begin method, whose
+ * event is passed to the matching end method along with the fields of the event.
+ * <p>
+ * The events cost next to nothing when they are not being recorded: an event that is not enabled in a recording
+ * is never committed and its fields are not filled in. On a Java runtime without Flight Recorder the begin methods
+ * return null, the end methods ignore it and the event classes are never loaded.
+ */
+public final class ConversionEvents {
+
+	/** Prefix of the names of the events, under which they can be enabled in a recording's settings */
+	public static final String EVENT_NAME_PREFIX = "edu.harvard.hul.ois.drs.pdfaconvert.";
+	/** Category the events are shown under */
+	public static final String CATEGORY = "PDF/A Converter Service";
+
+	public static final String OUTCOME_STAGED = "staged";
+	public static final String OUTCOME_BORROWED = "borrowed";
+	public static final String OUTCOME_SENT = "sent";
+	public static final String OUTCOME_DELETED = "deleted";
+	public static final String OUTCOME_RETAINED = "retained";
+	public static final String OUTCOME_FAILED = "failed";
+
+	private static final boolean AVAILABLE = isFlightRecorderAvailable();
+
+	private ConversionEvents() {
+	}
+
+	private static boolean isFlightRecorderAvailable() {
+		try {
+			Class.forName("jdk.jfr.Event");
+			return true;
+		} catch (ClassNotFoundException | LinkageError e) {
+			return false;
+		}
+	}
+
+	/**
+	 * @return The event timing the staging of an upload, or null if Flight Recorder is not available.
+	 */
+	public static UploadStagingEvent beginUploadStaging() {
+		if (!AVAILABLE) {
+			return null;
+		}
+		UploadStagingEvent event = new UploadStagingEvent();
+		event.begin();
+		return event;
+	}
+
+	/**
+	 * @param event - the event from beginUploadStaging()
+	 * @param fileName - name of the document
+	 * @param fileType - type of the document
+	 * @param fileSize - bytes staged
+	 * @param outcome - OUTCOME_STAGED or OUTCOME_FAILED
+	 */
+	public static void endUploadStaging(UploadStagingEvent event, String fileName, String fileType, long fileSize,
+			String outcome) {
+		if (event == null) {
+			return;
+		}
+		event.end();
+		if (event.shouldCommit()) {
+			event.fileName = fileName;
+			event.fileType = fileType;
+			event.fileSize = fileSize;
+			event.outcome = outcome;
+			event.commit();
+		}
+	}
+
+	/**
+	 * @return The event timing the wait to borrow a converter, or null if Flight Recorder is not available.
+	 */
+	public static PoolBorrowEvent beginPoolBorrow() {
+		if (!AVAILABLE) {
+			return null;
+		}
+		PoolBorrowEvent event = new PoolBorrowEvent();
+		event.begin();
+		return event;
+	}
+
+	/**
+	 * @param event - the event from beginPoolBorrow()
+	 * @param fileType - type of the document the converter is for
+	 * @param fileSize - size of the document
+	 * @param poolId - id of the converter borrowed, 0 if none was
+	 * @param outcome - OUTCOME_BORROWED or OUTCOME_FAILED
+	 */
+	public static void endPoolBorrow(PoolBorrowEvent event, String fileType, long fileSize, int poolId, String outcome) {
+		if (event == null) {
+			return;
+		}
+		event.end();
+		if (event.shouldCommit()) {
+			event.fileType = fileType;
+			event.fileSize = fileSize;
+			event.poolId = poolId;
+			event.outcome = outcome;
+			event.commit();
+		}
+	}
+
+	/**
+	 * @return The event timing a conversion by the PDF/A Converter, or null if Flight Recorder is not available.
+	 */
+	public static ExternalConversionEvent beginExternalConversion() {
+		if (!AVAILABLE) {
+			return null;
+		}
+		ExternalConversionEvent event = new ExternalConversionEvent();
+		event.begin();
+		return event;
+	}
+
+	/**
+	 * @param event - the event from beginExternalConversion()
+	 * @param inputFile - the document converted
+	 * @param fileType - type of the document
+	 * @param fileSize - size of the document
+	 * @param convertedFile - the converted file or null if the conversion failed
+	 * @param poolId - id of the converter used
+	 * @param outcome - outcome of the conversion as reported by ConversionMetrics
+	 */
+	public static void endExternalConversion(ExternalConversionEvent event, File inputFile, String fileType,
+			long fileSize, File convertedFile, int poolId, String outcome) {
+		if (event == null) {
+			return;
+		}
+		event.end();
+		if (event.shouldCommit()) {
+			event.fileName = inputFile.getName();
+			event.fileType = fileType;
+			event.fileSize = fileSize;
+			event.outputSize = convertedFile != null ? convertedFile.length() : 0;
+			event.poolId = poolId;
+			event.outcome = outcome;
+			event.commit();
+		}
+	}
+
+	/**
+	 * @return The event timing the writing of a converted file into a response, or null if Flight Recorder is not
+	 * available.
+	 */
+	public static ResponseStreamingEvent beginResponseStreaming() {
+		if (!AVAILABLE) {
+			return null;
+		}
+		ResponseStreamingEvent event = new ResponseStreamingEvent();
+		event.begin();
+		return event;
+	}
+
+	/**
+	 * @param event - the event from beginResponseStreaming()
+	 * @param fileName - name the converted file was sent under
+	 * @param fileSize - bytes written
+	 * @param outcome - OUTCOME_SENT or OUTCOME_FAILED
+	 */
+	public static void endResponseStreaming(ResponseStreamingEvent event, String fileName, long fileSize, String outcome) {
+		if (event == null) {
+			return;
+		}
+		event.end();
+		if (event.shouldCommit()) {
+			event.fileName = fileName;
+			event.fileSize = fileSize;
+			event.outcome = outcome;
+			event.commit();
+		}
+	}
+
+	/**
+	 * @param convertedFile - the converted file about to be released, or null if there is none
+	 * @return The event timing the release of a converted file, or null if Flight Recorder is not available.
+	 */
+	public static OutputCleanupEvent beginOutputCleanup(File convertedFile) {
+		if (!AVAILABLE) {
+			return null;
+		}
+		OutputCleanupEvent event = new OutputCleanupEvent();
+		if (event.isEnabled() && convertedFile != null) {
+			// taken now since the file may be gone once released
+			event.fileName = convertedFile.getName();
+			event.fileSize = convertedFile.length();
+		}
+		event.begin();
+		return event;
+	}
+
+	/**
+	 * @param event - the event from beginOutputCleanup()
+	 * @param deleted - true if the release handed the converted file over for deletion
+	 */
+	public static void endOutputCleanup(OutputCleanupEvent event, boolean deleted) {
+		if (event == null) {
+			return;
+		}
+		event.end();
+		if (event.shouldCommit()) {
+			event.outcome = deleted ? OUTCOME_DELETED : OUTCOME_RETAINED;
+			event.commit();
+		}
+	}
+}
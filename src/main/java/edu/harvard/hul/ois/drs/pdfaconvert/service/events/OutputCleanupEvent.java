@@ -0,0 +1,38 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.service.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Releasing a request's share of a converted file once its response has been sent.
+ */
+@Name(ConversionEvents.EVENT_NAME_PREFIX + "OutputCleanup")
+@Label("Output Cleanup")
+@Category(ConversionEvents.CATEGORY)
+@Description("Releasing a request's share of a converted file once its response has been sent.")
+public final class OutputCleanupEvent extends Event {
+
+	@Label("File Name")
+	String fileName;
+
+	@Label("File Size")
+	@DataAmount(DataAmount.BYTES)
+	long fileSize;
+
+	@Label("Outcome")
+	@Description("deleted if this was the last share of the file and it was handed over for deletion, otherwise retained")
+	String outcome;
+}
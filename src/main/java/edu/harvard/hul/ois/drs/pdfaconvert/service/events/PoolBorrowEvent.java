@@ -0,0 +1,42 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.service.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Waiting to borrow a converter from the pool.
+ */
+@Name(ConversionEvents.EVENT_NAME_PREFIX + "PoolBorrow")
+@Label("Pool Borrow Wait")
+@Category(ConversionEvents.CATEGORY)
+@Description("Waiting to borrow a converter from the pool.")
+public final class PoolBorrowEvent extends Event {
+
+	@Label("File Type")
+	@Description("Type of the document, i.e. its file name extension, checked against its content")
+	String fileType;
+
+	@Label("File Size")
+	@DataAmount(DataAmount.BYTES)
+	long fileSize;
+
+	@Label("Pool Id")
+	@Description("Id of the converter borrowed, 0 if none was")
+	int poolId;
+
+	@Label("Outcome")
+	String outcome;
+}
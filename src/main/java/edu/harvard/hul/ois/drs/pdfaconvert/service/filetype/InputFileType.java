@@ -0,0 +1,184 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.service.filetype;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * The kinds of input file accepted for conversion, recognized by the signature at the start of the file.
+ * Inputs are checked against these before they are staged or a converter is borrowed so that a file the
+ * converter cannot handle is turned away as soon as its first bytes have been read.
+ * A file must both start with a known signature and have a file name extension belonging to that signature.
+ * A file name without an extension is given the usual extension for its signature.
+ */
+public enum InputFileType {
+
+	/** Word 97-2003 and other OLE2 compound documents */
+	OLE2("doc", "dot", "wps"),
+	/** Office Open XML word processing documents, which are ZIP files */
+	OOXML("docx", "docm", "dotx", "dotm"),
+	/** OpenDocument text, a ZIP file whose first entry names its media type */
+	ODF("odt", "ott"),
+	RTF("rtf"),
+	WORDPERFECT("wpd", "wp", "wp5", "wp6"),
+	PDF("pdf");
+
+	/** Number of bytes read from the start of a file to recognize it */
+	public static final int HEADER_LENGTH = 128;
+
+	private static final byte[] OLE2_SIGNATURE = { (byte) 0xD0, (byte) 0xCF, 0x11, (byte) 0xE0, (byte) 0xA1, (byte) 0xB1, 0x1A, (byte) 0xE1 };
+	private static final byte[] ZIP_SIGNATURE = { 'P', 'K', 0x03, 0x04 };
+	private static final byte[] RTF_SIGNATURE = { '{', '\\', 'r', 't', 'f' };
+	private static final byte[] WORDPERFECT_SIGNATURE = { (byte) 0xFF, 'W', 'P', 'C' };
+	private static final byte[] PDF_SIGNATURE = { '%', 'P', 'D', 'F', '-' };
+	private static final String ODF_MIMETYPE_ENTRY = "mimetype";
+	private static final String ODF_MEDIA_TYPE_PREFIX = "application/vnd.oasis.opendocument.text";
+	private static final int ZIP_NAME_OFFSET = 30; // length of the fixed part of a ZIP local file header
+
+	private final List<String> extensions;
+
+	private InputFileType(String... extensions) {
+		this.extensions = Arrays.asList(extensions);
+	}
+
+	/**
+	 * @return The extension given to a file of this type whose name has none.
+	 */
+	public String getDefaultExtension() {
+		return extensions.get(0);
+	}
+
+	/**
+	 * @param fileName - a file name
+	 * @return true if the file name's extension belongs to one of the supported types.
+	 */
+	public static boolean isSupportedExtension(String fileName) {
+		String extension = FilenameUtils.getExtension(fileName).toLowerCase();
+		for (InputFileType type : values()) {
+			if (type.extensions.contains(extension)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Recognize a file from its first bytes and check that its name agrees.
+	 *
+	 * @param inputStream - the file's content, which must support mark() so the bytes read can be given back
+	 * @param fileName - the name the file was submitted under
+	 * @return The type of the file.
+	 * @throws UnsupportedInputException if the content is not a supported type or does not match the name
+	 * @throws IOException if the content cannot be read
+	 */
+	public static InputFileType check(InputStream inputStream, String fileName) throws UnsupportedInputException, IOException {
+		byte[] header = new byte[HEADER_LENGTH];
+		inputStream.mark(HEADER_LENGTH);
+		int length = IOUtils.read(inputStream, header);
+		inputStream.reset();
+		return check(header, length, fileName);
+	}
+
+	/**
+	 * Recognize a file on disk from its first bytes and check that its name agrees.
+	 *
+	 * @param inputFile - the file
+	 * @return The type of the file.
+	 * @throws UnsupportedInputException if the content is not a supported type or does not match the name
+	 * @throws IOException if the file cannot be read
+	 */
+	public static InputFileType check(File inputFile) throws UnsupportedInputException, IOException {
+		byte[] header = new byte[HEADER_LENGTH];
+		int length;
+		try (InputStream inputStream = new FileInputStream(inputFile)) {
+			length = IOUtils.read(inputStream, header);
+		}
+		return check(header, length, inputFile.getName());
+	}
+
+	private static InputFileType check(byte[] header, int length, String fileName) throws UnsupportedInputException {
+		if (length < 1) {
+			throw new UnsupportedInputException("No content received for " + fileName);
+		}
+		InputFileType detected = detect(header, length);
+		if (detected == null) {
+			throw new UnsupportedInputException("Content of " + fileName + " is not a supported document type");
+		}
+		String extension = FilenameUtils.getExtension(fileName).toLowerCase();
+		if (!extension.isEmpty() && !detected.extensions.contains(extension)) {
+			throw new UnsupportedInputException("Content of " + fileName + " is " + detected
+					+ " which does not match its ." + extension + " extension");
+		}
+		return detected;
+	}
+
+	/**
+	 * @param header - the first bytes of a file
+	 * @param length - the number of bytes in the header, which may be fewer than HEADER_LENGTH for a small file
+	 * @return The type of the file or null if it is not recognized.
+	 */
+	public static InputFileType detect(byte[] header, int length) {
+		if (startsWith(header, length, OLE2_SIGNATURE)) {
+			return OLE2;
+		}
+		if (startsWith(header, length, ZIP_SIGNATURE)) {
+			return isOpenDocumentText(header, length) ? ODF : OOXML;
+		}
+		if (startsWith(header, length, RTF_SIGNATURE)) {
+			return RTF;
+		}
+		if (startsWith(header, length, WORDPERFECT_SIGNATURE)) {
+			return WORDPERFECT;
+		}
+		if (startsWith(header, length, PDF_SIGNATURE)) {
+			return PDF;
+		}
+		return null;
+	}
+
+	/*
+	 * An OpenDocument package starts with an uncompressed entry named "mimetype" holding its media type.
+	 */
+	private static boolean isOpenDocumentText(byte[] header, int length) {
+		if (length < ZIP_NAME_OFFSET) {
+			return false;
+		}
+		int nameLength = (header[26] & 0xFF) | (header[27] & 0xFF) << 8;
+		int extraLength = (header[28] & 0xFF) | (header[29] & 0xFF) << 8;
+		int contentOffset = ZIP_NAME_OFFSET + nameLength + extraLength;
+		if (nameLength != ODF_MIMETYPE_ENTRY.length() || contentOffset + ODF_MEDIA_TYPE_PREFIX.length() > length) {
+			return false;
+		}
+		String name = new String(header, ZIP_NAME_OFFSET, nameLength, StandardCharsets.US_ASCII);
+		String mediaType = new String(header, contentOffset, ODF_MEDIA_TYPE_PREFIX.length(), StandardCharsets.US_ASCII);
+		return ODF_MIMETYPE_ENTRY.equals(name) && ODF_MEDIA_TYPE_PREFIX.equals(mediaType);
+	}
+
+	private static boolean startsWith(byte[] header, int length, byte[] signature) {
+		if (length < signature.length) {
+			return false;
+		}
+		for (int i = 0; i < signature.length; i++) {
+			if (header[i] != signature[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
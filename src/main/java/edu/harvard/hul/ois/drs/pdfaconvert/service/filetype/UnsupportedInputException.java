@@ -0,0 +1,22 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.service.filetype;
+
+/**
+ * Thrown when an input file is not a supported type or its content does not match its name.
+ */
+public class UnsupportedInputException extends Exception {
+
+	private static final long serialVersionUID = 1L;
+
+	public UnsupportedInputException(String message) {
+		super(message);
+	}
+}
@@ -0,0 +1,101 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.service.jobs;
+
+import java.io.File;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import edu.harvard.hul.ois.drs.pdfaconvert.service.pool.ConversionTask;
+
+/**
+ * A conversion submitted through the job resource. The job outlives the HTTP request that created it
+ * so the client can poll for its status and collect the converted file later.
+ */
+public class ConversionJob {
+
+	public enum Status { QUEUED, RUNNING, DONE, FAILED }
+
+	private final String id;
+	private final String generatedPdfFilename;
+	private final ConversionTask conversionTask;
+	private final long submittedTime;
+	private volatile long completedTime = 0;
+
+	ConversionJob(String id, String generatedPdfFilename, ConversionTask conversionTask) {
+		this.id = id;
+		this.generatedPdfFilename = generatedPdfFilename;
+		this.conversionTask = conversionTask;
+		this.submittedTime = System.currentTimeMillis();
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	/**
+	 * @return The file name the converted file is returned under.
+	 */
+	public String getGeneratedPdfFilename() {
+		return generatedPdfFilename;
+	}
+
+	public ConversionTask getConversionTask() {
+		return conversionTask;
+	}
+
+	public long getSubmittedTime() {
+		return submittedTime;
+	}
+
+	/**
+	 * @return The time the conversion finished, or 0 if it has not finished yet.
+	 */
+	public long getCompletedTime() {
+		return completedTime;
+	}
+
+	void setCompletedTime(long completedTime) {
+		this.completedTime = completedTime;
+	}
+
+	public Status getStatus() {
+		CompletableFuture<File> result = conversionTask.getResult();
+		if (result.isDone()) {
+			return result.isCompletedExceptionally() ? Status.FAILED : Status.DONE;
+		}
+		return conversionTask.isStarted() ? Status.RUNNING : Status.QUEUED;
+	}
+
+	/**
+	 * @return The converted file if the job is DONE, otherwise null.
+	 */
+	public File getConvertedFile() {
+		return conversionTask.getResult().getNow(null);
+	}
+
+	/**
+	 * @return The exception thrown by the converter if the job FAILED, otherwise null.
+	 */
+	public Throwable getFailure() {
+		CompletableFuture<File> result = conversionTask.getResult();
+		if (!result.isCompletedExceptionally()) {
+			return null;
+		}
+		try {
+			result.get();
+			return null;
+		} catch (ExecutionException e) {
+			return e.getCause();
+		} catch (Exception e) {
+			return e;
+		}
+	}
+}
@@ -0,0 +1,152 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.service.jobs;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import edu.harvard.hul.ois.drs.pdfaconvert.service.clients.Client;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.pool.ConversionExecutor;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.pool.ConversionTask;
+
+/**
+ * Keeps track of conversion jobs submitted through the job resource.
+ * Jobs are converted on the shared ConversionExecutor. Once a job has finished its converted file is kept
+ * for the configured retention period so the client can collect it, after which the job is removed and
+ * its share of the converted file released the same way PdfaRequestListener does for synchronous conversions.
+ */
+public class ConversionJobManager {
+
+	private static final Logger logger = LogManager.getLogger();
+
+	private final ConversionExecutor conversionExecutor;
+	private final long retentionMillis;
+	private final Map<String, ConversionJob> jobs = new ConcurrentHashMap<String, ConversionJob>();
+	private final ScheduledExecutorService reaper;
+
+	/**
+	 * @param conversionExecutor - executor that runs the conversions
+	 * @param retentionMinutes - minutes a finished job is kept before it is removed
+	 */
+	public ConversionJobManager(ConversionExecutor conversionExecutor, long retentionMinutes) {
+		this.conversionExecutor = conversionExecutor;
+		this.retentionMillis = TimeUnit.MINUTES.toMillis(retentionMinutes);
+		this.reaper = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "pdfa-job-reaper");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.reaper.scheduleWithFixedDelay(this::removeExpiredJobs, 1, 1, TimeUnit.MINUTES);
+	}
+
+	/**
+	 * Queue a new conversion job.
+	 *
+	 * @param inputFile - the file to convert
+	 * @param generatedPdfFilename - the file name the converted file is returned under
+	 * @param deleteInputFile - true if the input file is a temporary file to delete once converted
+	 * @param inputKey - the key of the input's content if it was computed while the file was uploaded, otherwise null
+	 * @param client - the client the job is for
+	 * @return The new job.
+	 * @throws RejectedExecutionException if the conversion queue is full
+	 */
+	public ConversionJob submit(final File inputFile, String generatedPdfFilename, final boolean deleteInputFile,
+			String inputKey, Client client) throws RejectedExecutionException {
+		ConversionTask task = conversionExecutor.submit(inputFile, inputKey, client);
+		final ConversionJob job = new ConversionJob(UUID.randomUUID().toString(), generatedPdfFilename, task);
+		jobs.put(job.getId(), job);
+		task.getResult().whenComplete((output, error) -> {
+			job.setCompletedTime(System.currentTimeMillis());
+			if (error != null) {
+				logger.warn("Conversion job {} failed: {}", job.getId(), error.getMessage());
+			}
+			if (deleteInputFile && inputFile.exists()) {
+				inputFile.delete();
+			}
+		});
+		logger.debug("Submitted conversion job: {}", job.getId());
+		return job;
+	}
+
+	/**
+	 * @param id - a job id
+	 * @return The job or null if there is no such job.
+	 */
+	public ConversionJob getJob(String id) {
+		return jobs.get(id);
+	}
+
+	/**
+	 * @param job - a job
+	 * @return The 1-based position of the job in the conversion queue, or 0 if it is not waiting.
+	 */
+	public int getQueuePosition(ConversionJob job) {
+		return conversionExecutor.getQueuePosition(job.getConversionTask());
+	}
+
+	/**
+	 * @param job - a job
+	 * @return The predicted number of seconds before the job's conversion starts, or 0 if it is not waiting.
+	 */
+	public double estimateWaitSeconds(ConversionJob job) {
+		return conversionExecutor.estimateWaitSeconds(job.getConversionTask());
+	}
+
+	/**
+	 * Remove a job and release its converted file. A job that is still converting is forgotten
+	 * and its converted file deleted once the conversion finishes, unless another request shares it.
+	 *
+	 * @param id - a job id
+	 * @return true if the job existed.
+	 */
+	public boolean removeJob(String id) {
+		ConversionJob job = jobs.remove(id);
+		if (job == null) {
+			return false;
+		}
+		job.getConversionTask().releaseOutput();
+		logger.debug("Removed conversion job: {}", id);
+		return true;
+	}
+
+	/**
+	 * Stop the reaper and remove all jobs.
+	 */
+	public void shutdown() {
+		reaper.shutdownNow();
+		for (String id : jobs.keySet()) {
+			removeJob(id);
+		}
+	}
+
+	private void removeExpiredJobs() {
+		long now = System.currentTimeMillis();
+		Iterator<ConversionJob> iter = jobs.values().iterator();
+		while (iter.hasNext()) {
+			ConversionJob job = iter.next();
+			long completedTime = job.getCompletedTime();
+			if (completedTime > 0 && now - completedTime > retentionMillis) {
+				logger.debug("Conversion job expired: {}", job.getId());
+				iter.remove();
+				job.getConversionTask().releaseOutput();
+			}
+		}
+	}
+}
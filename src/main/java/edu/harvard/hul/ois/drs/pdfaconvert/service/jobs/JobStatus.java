@@ -0,0 +1,106 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.service.jobs;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+import javax.xml.bind.annotation.XmlType;
+
+/**
+ * The status of a conversion job as returned to the client.
+ */
+@XmlRootElement(name="job")
+@XmlAccessorType(XmlAccessType.FIELD)
+@XmlType(propOrder={"id", "status", "queuePosition", "filename", "result", "message"})
+public class JobStatus {
+	@XmlElement
+	private String id;
+	@XmlElement
+	private String status;
+	@XmlElement
+	private Integer queuePosition;
+	@XmlElement
+	private String filename;
+	@XmlElement
+	private String result;
+	@XmlElement
+	private String message;
+
+	public JobStatus() {
+		super();
+	}
+
+	/**
+	 * @param id - the job id
+	 * @param status - one of the ConversionJob.Status values
+	 * @param queuePosition - position in the conversion queue; only set while the job is queued
+	 * @param filename - the file name the converted file is returned under
+	 * @param result - the URL for fetching the converted file; only set once the job is done
+	 * @param message - the failure message; only set if the job failed
+	 */
+	public JobStatus(String id, String status, Integer queuePosition, String filename, String result, String message) {
+		this.id = id;
+		this.status = status;
+		this.queuePosition = queuePosition;
+		this.filename = filename;
+		this.result = result;
+		this.message = message;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public String getStatus() {
+		return status;
+	}
+
+	public Integer getQueuePosition() {
+		return queuePosition;
+	}
+
+	public String getFilename() {
+		return filename;
+	}
+
+	public String getResult() {
+		return result;
+	}
+
+	public String getMessage() {
+		return message;
+	}
+
+	/**
+	 * A convenience in case jaxb marshalling is not available
+	 */
+	public String toString() {
+		StringBuilder sb = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>");
+		sb.append("<job>")
+			.append("<id>").append(id).append("</id>")
+			.append("<status>").append(status).append("</status>");
+		if (queuePosition != null) {
+			sb.append("<queuePosition>").append(queuePosition).append("</queuePosition>");
+		}
+		if (filename != null) {
+			sb.append("<filename>").append(filename).append("</filename>");
+		}
+		if (result != null) {
+			sb.append("<result>").append(result).append("</result>");
+		}
+		if (message != null) {
+			sb.append("<message>").append(message).append("</message>");
+		}
+		sb.append("</job>");
+		return sb.toString();
+	}
+}
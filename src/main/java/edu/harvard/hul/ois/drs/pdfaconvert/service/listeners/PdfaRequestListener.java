@@ -9,7 +9,7 @@ See the License for the specific language governing permission and limitations u
 */
 package edu.harvard.hul.ois.drs.pdfaconvert.service.listeners;
 
-import static edu.harvard.hul.ois.drs.pdfaconvert.service.common.Constants.TEMP_FILE_NAME_KEY;
+import static edu.harvard.hul.ois.drs.pdfaconvert.service.common.Constants.CONVERSION_TASK_KEY;
 
 import javax.servlet.ServletRequestEvent;
 import javax.servlet.ServletRequestListener;
@@ -18,49 +18,54 @@ import javax.servlet.annotation.WebListener;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import edu.harvard.hul.ois.drs.pdfaconvert.PdfaConvert;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.events.ConversionEvents;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.events.OutputCleanupEvent;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.metrics.RequestTiming;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.pool.ConversionTask;
 
 /**
- * Request listener class for performing clean-up on the derivative PDF file converted from original input file.
+ * Request listener class for performing clean-up on the derivative PDF file converted from original input file
+ * and for writing the access log line of each request.
  * 
  * @author dan179
  */
 @WebListener
 public class PdfaRequestListener implements ServletRequestListener {
 
-	private PdfaConvert pdfaConverter;
 	private static final Logger logger = LogManager.getLogger();
 
 	public PdfaRequestListener() {
 		logger.debug("In PdfaRequestListener c-tor");
-		pdfaConverter = new PdfaConvert();
 	}
 
 	/**
-	 * Attempt to delete the converted file stored in the configured output directory of the PDF/A Utility.
-	 * The hard dependency here is that the temporary file name (without the file-type suffix) stored by the
-	 * Servlet in the Request must match the derivative file name created by the PDF/A utility which is
-	 * placed in the configured output directory. Each conversion tool in the PDF/A utility is responsible for
-	 * creating this derivative PDF file with the same temporary file name (plus .pdf suffix) and placing in the
-	 * configured output directory.
+	 * Release the request's share of the converted file once the response has been sent.
+	 * The Servlet stores the conversion whose converted file it sent in the Request. Since identical inputs
+	 * converted at the same time share one conversion, and so one converted file in the configured output directory
+	 * of the PDF/A utility, the file is only deleted when the last request sharing it has finished; if the
+	 * conversion is still running it is deleted as soon as the conversion finishes. The file is handed to the
+	 * OutputDeletionQueue rather than deleted here so the request thread goes back to the container straight away.
+	 * The access log line is written here too since this is called once the response has been sent, whether the
+	 * request finished on the container thread or asynchronously.
 	 * 
 	 * @see javax.servlet.ServletRequestListener#requestDestroyed(javax.servlet.ServletRequestEvent)
 	 */
 	@Override
 	public void requestDestroyed(ServletRequestEvent sre) {
 		logger.debug("requestDestroyed");
-		String filename = (String) sre.getServletRequest().getAttribute(TEMP_FILE_NAME_KEY);
-		logger.debug("filename: {}", filename);
-		// Since every request goes through this method, only try to delete if the reqest was to actually convert a document.
-		if (filename != null) {
-			String fullFilename = filename + ".pdf";
-			// make call to utility to delete the file
-			boolean wasDeleted = pdfaConverter.deleteConvertedFile(fullFilename);
-			if (wasDeleted) {
-				logger.debug("File was deleted: {}", filename );
-			} else {
-				logger.warn("File NOT deleted: {}", filename );
-			}
+		ConversionTask conversion = (ConversionTask) sre.getServletRequest().getAttribute(CONVERSION_TASK_KEY);
+		// Since every request goes through this method, only release if the reqest was to actually convert a document.
+		if (conversion != null) {
+			logger.debug("Releasing converted file of: {} -- other requests sharing it: {}",
+					conversion.getInputFile().getName(), conversion.getSubscriberCount() - 1);
+			OutputCleanupEvent cleanupEvent = ConversionEvents.beginOutputCleanup(
+					conversion.getResult().isCompletedExceptionally() ? null : conversion.getResult().getNow(null));
+			boolean deleted = conversion.releaseOutput();
+			ConversionEvents.endOutputCleanup(cleanupEvent, deleted);
+		}
+		RequestTiming timing = RequestTiming.of(sre.getServletRequest());
+		if (timing != null) {
+			timing.log();
 		}
 	}
 
@@ -68,4 +73,4 @@ public class PdfaRequestListener implements ServletRequestListener {
 	public void requestInitialized(ServletRequestEvent sre) {
 		// no-op
 	}
-}
\ No newline at end of file
+}
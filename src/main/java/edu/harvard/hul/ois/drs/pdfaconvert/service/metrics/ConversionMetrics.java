@@ -0,0 +1,173 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.service.metrics;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.commons.io.FilenameUtils;
+
+import edu.harvard.hul.ois.drs.pdfaconvert.ExternalToolException;
+import edu.harvard.hul.ois.drs.pdfaconvert.GeneratedFileUnavailableException;
+import edu.harvard.hul.ois.drs.pdfaconvert.UnknownFileTypeException;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.pool.ConversionTimeoutException;
+
+/**
+ * Counters and latency histograms recorded on the conversion path.
+ * Everything is recorded with LongAdders so recording adds no lock contention between concurrent conversions.
+ * Conversion latency is broken down by input file extension and outcome. Since extensions come from client
+ * supplied file names, anything unusual and any extension past the first MAX_TYPES is counted as "other".
+ */
+public class ConversionMetrics {
+
+	public static final String OUTCOME_SUCCESS = "success";
+	public static final String OUTCOME_UNKNOWN_TYPE = "unknown_type";
+	public static final String OUTCOME_TOOL_ERROR = "tool_error";
+	public static final String OUTCOME_NO_OUTPUT = "no_output";
+	public static final String OUTCOME_TIMEOUT = "timeout";
+	public static final String OUTCOME_ERROR = "error";
+
+	private static final String OTHER_TYPE = "other";
+	private static final int MAX_TYPES = 32;
+	private static final int MAX_TYPE_LENGTH = 8;
+
+	private final LongAdder conversionsStarted = new LongAdder();
+	private final LongAdder inputsRejected = new LongAdder();
+	private final LongAdder bytesIn = new LongAdder();
+	private final LongAdder bytesOut = new LongAdder();
+	private final LatencyHistogram borrowWait = new LatencyHistogram();
+	private final ConcurrentMap<String, ConcurrentMap<String, LatencyHistogram>> conversionLatency =
+			new ConcurrentHashMap<String, ConcurrentMap<String, LatencyHistogram>>();
+
+	/**
+	 * Count a conversion that has been handed to the converter pool.
+	 */
+	public void conversionStarted() {
+		conversionsStarted.increment();
+	}
+
+	/**
+	 * Count an input turned away before conversion because it is not a supported type.
+	 */
+	public void inputRejected() {
+		inputsRejected.increment();
+	}
+
+	/**
+	 * @param nanos - time spent waiting to borrow a converter from the pool
+	 */
+	public void recordBorrowWait(long nanos) {
+		borrowWait.record(nanos);
+	}
+
+	/**
+	 * @param inputFile - the converted file
+	 * @param error - the exception the conversion failed with or null if it succeeded
+	 * @param nanos - time the converter took
+	 */
+	public void recordConversion(File inputFile, Throwable error, long nanos) {
+		String type = toType(inputFile);
+		// look up before computeIfAbsent, which locks even when the entry exists
+		ConcurrentMap<String, LatencyHistogram> byOutcome = conversionLatency.get(type);
+		if (byOutcome == null) {
+			byOutcome = conversionLatency.computeIfAbsent(type, k -> new ConcurrentHashMap<String, LatencyHistogram>());
+		}
+		String outcome = toOutcome(error);
+		LatencyHistogram histogram = byOutcome.get(outcome);
+		if (histogram == null) {
+			histogram = byOutcome.computeIfAbsent(outcome, k -> new LatencyHistogram());
+		}
+		histogram.record(nanos);
+	}
+
+	/**
+	 * @param bytes - number of bytes received from clients
+	 */
+	public void addBytesIn(long bytes) {
+		bytesIn.add(bytes);
+	}
+
+	/**
+	 * @param bytes - number of bytes sent back to clients
+	 */
+	public void addBytesOut(long bytes) {
+		bytesOut.add(bytes);
+	}
+
+	public long getConversionsStarted() {
+		return conversionsStarted.sum();
+	}
+
+	/**
+	 * Write the metrics in Prometheus text format.
+	 *
+	 * @param out - where to write
+	 */
+	void write(PrintWriter out) {
+		MetricsExporter.writeHeader(out, "pdfa_conversions_started_total", "counter", "Conversions handed to the converter pool.");
+		out.println("pdfa_conversions_started_total " + conversionsStarted.sum());
+		MetricsExporter.writeHeader(out, "pdfa_inputs_rejected_total", "counter",
+				"Inputs turned away before conversion as unsupported or not matching their name.");
+		out.println("pdfa_inputs_rejected_total " + inputsRejected.sum());
+
+		MetricsExporter.writeHeader(out, "pdfa_pool_borrow_wait_seconds", "histogram", "Time spent waiting to borrow a converter.");
+		borrowWait.write(out, "pdfa_pool_borrow_wait_seconds", "");
+
+		MetricsExporter.writeHeader(out, "pdfa_conversion_duration_seconds", "histogram",
+				"Time taken by the converter by input file extension and outcome.");
+		// sorted so successive scrapes list the series in the same order
+		for (Map.Entry<String, ConcurrentMap<String, LatencyHistogram>> type : new TreeMap<String, ConcurrentMap<String, LatencyHistogram>>(conversionLatency).entrySet()) {
+			for (Map.Entry<String, LatencyHistogram> outcome : new TreeMap<String, LatencyHistogram>(type.getValue()).entrySet()) {
+				outcome.getValue().write(out, "pdfa_conversion_duration_seconds",
+						"type=\"" + type.getKey() + "\",outcome=\"" + outcome.getKey() + "\"");
+			}
+		}
+
+		MetricsExporter.writeHeader(out, "pdfa_bytes_in_total", "counter", "Bytes of input files received.");
+		out.println("pdfa_bytes_in_total " + bytesIn.sum());
+		MetricsExporter.writeHeader(out, "pdfa_bytes_out_total", "counter", "Bytes of converted files sent.");
+		out.println("pdfa_bytes_out_total " + bytesOut.sum());
+	}
+
+	private String toType(File inputFile) {
+		String extension = FilenameUtils.getExtension(inputFile.getName()).toLowerCase();
+		if (extension.isEmpty() || extension.length() > MAX_TYPE_LENGTH || !extension.matches("[a-z0-9]+")) {
+			return OTHER_TYPE;
+		}
+		if (!conversionLatency.containsKey(extension) && conversionLatency.size() >= MAX_TYPES) {
+			return OTHER_TYPE;
+		}
+		return extension;
+	}
+
+	/**
+	 * @param error - the exception a conversion failed with or null if it succeeded
+	 * @return The outcome of the conversion as labelled in the metrics.
+	 */
+	public static String toOutcome(Throwable error) {
+		if (error == null) {
+			return OUTCOME_SUCCESS;
+		} else if (error instanceof UnknownFileTypeException) {
+			return OUTCOME_UNKNOWN_TYPE;
+		} else if (error instanceof ExternalToolException) {
+			return OUTCOME_TOOL_ERROR;
+		} else if (error instanceof GeneratedFileUnavailableException) {
+			return OUTCOME_NO_OUTPUT;
+		} else if (error instanceof ConversionTimeoutException) {
+			return OUTCOME_TIMEOUT;
+		}
+		return OUTCOME_ERROR;
+	}
+}
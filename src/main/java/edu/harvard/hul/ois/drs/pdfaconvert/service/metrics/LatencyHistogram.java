@@ -0,0 +1,75 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.service.metrics;
+
+import java.io.PrintWriter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of durations with fixed bucket bounds. Recording only increments LongAdders so concurrent
+ * conversions never contend on a lock.
+ */
+public class LatencyHistogram {
+
+	/** Upper bounds of the buckets in seconds. Durations longer than the last bound are only counted in +Inf. */
+	static final double[] BUCKET_BOUNDS_SECONDS = { 0.1, 0.5, 1, 2.5, 5, 10, 30, 60, 120, 300, 600 };
+
+	private final LongAdder[] buckets = new LongAdder[BUCKET_BOUNDS_SECONDS.length];
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sumMicros = new LongAdder();
+
+	public LatencyHistogram() {
+		for (int i = 0; i < buckets.length; i++) {
+			buckets[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * @param nanos - the duration to record
+	 */
+	public void record(long nanos) {
+		double seconds = nanos / 1e9;
+		for (int i = 0; i < BUCKET_BOUNDS_SECONDS.length; i++) {
+			if (seconds <= BUCKET_BOUNDS_SECONDS[i]) {
+				buckets[i].increment();
+				break;
+			}
+		}
+		count.increment();
+		sumMicros.add(TimeUnit.NANOSECONDS.toMicros(nanos));
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	/**
+	 * Write the histogram's samples in Prometheus text format. Buckets are written cumulatively as the format requires.
+	 *
+	 * @param out - where to write
+	 * @param name - the metric name
+	 * @param labels - labels of this histogram without braces, e.g. <code>type="doc"</code>, or an empty string
+	 */
+	void write(PrintWriter out, String name, String labels) {
+		String separator = labels.isEmpty() ? "" : ",";
+		long cumulative = 0;
+		for (int i = 0; i < BUCKET_BOUNDS_SECONDS.length; i++) {
+			cumulative += buckets[i].sum();
+			out.println(name + "_bucket{" + labels + separator + "le=\"" + BUCKET_BOUNDS_SECONDS[i] + "\"} " + cumulative);
+		}
+		String labelBlock = labels.isEmpty() ? "" : "{" + labels + "}";
+		// read count after the buckets so +Inf is never below the last bucket
+		long total = Math.max(cumulative, count.sum());
+		out.println(name + "_bucket{" + labels + separator + "le=\"+Inf\"} " + total);
+		out.println(name + "_sum" + labelBlock + " " + (sumMicros.sum() / 1e6));
+		out.println(name + "_count" + labelBlock + " " + total);
+	}
+}
@@ -0,0 +1,215 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.service.metrics;
+
+import java.io.PrintWriter;
+
+import edu.harvard.hul.ois.drs.pdfaconvert.service.cache.ConversionResultCache;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.clients.Client;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.clients.ClientRegistry;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.pool.AdmissionController;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.pool.ConversionExecutor;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.pool.ConversionScheduler;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.pool.OutputDeletionQueue;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.pool.PdfaConverterWrapperFactory;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.pool.PdfaConverterWrapperPool;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.uploads.UploadSessionManager;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.workdir.WorkDirectory;
+
+/**
+ * Writes the state of the converter pool, the conversion queue, the result cache and the work directory,
+ * along with the ConversionMetrics recorded on the conversion path, in the Prometheus text exposition format.
+ * Gauges are read from their sources when the metrics are scraped so nothing is added to the request path.
+ */
+public class MetricsExporter {
+
+	/** Content type of the Prometheus text exposition format */
+	public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	private final PdfaConverterWrapperPool pdfaConverterWrapperPool;
+	private final ConversionExecutor conversionExecutor;
+	private final AdmissionController admissionController;
+	private final ClientRegistry clientRegistry;
+	private final WorkDirectory workDirectory;
+	private final UploadSessionManager uploadSessionManager;
+
+	/**
+	 * @param pdfaConverterWrapperPool - the converter pool
+	 * @param conversionExecutor - the executor running the conversions
+	 * @param admissionController - the admission control in front of the executor
+	 * @param clientRegistry - the clients of the service
+	 * @param workDirectory - the work directory uploads are staged in
+	 * @param uploadSessionManager - the chunked uploads in progress
+	 */
+	public MetricsExporter(PdfaConverterWrapperPool pdfaConverterWrapperPool, ConversionExecutor conversionExecutor,
+			AdmissionController admissionController, ClientRegistry clientRegistry, WorkDirectory workDirectory,
+			UploadSessionManager uploadSessionManager) {
+		this.pdfaConverterWrapperPool = pdfaConverterWrapperPool;
+		this.conversionExecutor = conversionExecutor;
+		this.admissionController = admissionController;
+		this.clientRegistry = clientRegistry;
+		this.workDirectory = workDirectory;
+		this.uploadSessionManager = uploadSessionManager;
+	}
+
+	/**
+	 * @param out - where to write the metrics
+	 */
+	public void write(PrintWriter out) {
+		writeGauge(out, "pdfa_pool_active", "Converters currently borrowed from the pool.", pdfaConverterWrapperPool.getNumActive());
+		writeGauge(out, "pdfa_pool_idle", "Converters idle in the pool.", pdfaConverterWrapperPool.getNumIdle());
+		writeGauge(out, "pdfa_pool_waiting", "Threads waiting to borrow a converter.", pdfaConverterWrapperPool.getNumWaiters());
+		writeGauge(out, "pdfa_pool_max", "Maximum number of converters in the pool.", pdfaConverterWrapperPool.getMaxTotal());
+		writeCounter(out, "pdfa_pool_created_total", "Converters created by the pool.", pdfaConverterWrapperPool.getCreatedCount());
+		writeCounter(out, "pdfa_pool_destroyed_total", "Converters destroyed by the pool.", pdfaConverterWrapperPool.getDestroyedCount());
+		writeCounter(out, "pdfa_pool_evicted_total", "Converters destroyed by the idle evictor.",
+				pdfaConverterWrapperPool.getDestroyedByEvictorCount());
+		if (pdfaConverterWrapperPool.getFactory() instanceof PdfaConverterWrapperFactory) {
+			PdfaConverterWrapperFactory factory = (PdfaConverterWrapperFactory) pdfaConverterWrapperPool.getFactory();
+			writeHeader(out, "pdfa_pool_recycled_total", "counter", "Converters retired by validation by reason.");
+			out.println("pdfa_pool_recycled_total{reason=\"max_uses\"} " + factory.getRecycledForUsesCount());
+			out.println("pdfa_pool_recycled_total{reason=\"max_age\"} " + factory.getRecycledForAgeCount());
+			out.println("pdfa_pool_recycled_total{reason=\"unhealthy\"} " + factory.getRecycledUnhealthyCount());
+		}
+		writeGauge(out, "pdfa_pool_borrow_wait_max_seconds", "Longest wait to borrow a converter since startup.",
+				pdfaConverterWrapperPool.getMaxBorrowWaitTimeMillis() / 1000.0);
+
+		writeGauge(out, "pdfa_conversions_queued", "Conversions waiting for a converter slot.", conversionExecutor.getQueuedCount());
+		writeGauge(out, "pdfa_conversions_running", "Conversions currently running.", conversionExecutor.getActiveCount());
+		ConversionScheduler scheduler = conversionExecutor.getScheduler();
+		writeHeader(out, "pdfa_partition_queued", "gauge", "Conversions waiting for a converter slot by partition.");
+		for (String partition : scheduler.getPartitionNames()) {
+			out.println("pdfa_partition_queued{partition=\"" + partition + "\"} " + scheduler.getQueuedCount(partition));
+		}
+		writeHeader(out, "pdfa_partition_running", "gauge", "Conversions holding a converter slot by partition.");
+		for (String partition : scheduler.getPartitionNames()) {
+			out.println("pdfa_partition_running{partition=\"" + partition + "\"} " + scheduler.getRunningCount(partition));
+		}
+		writeGauge(out, "pdfa_requests_admitted", "Conversion requests currently admitted.", admissionController.getAdmittedCount());
+		writeClients(out, scheduler);
+		writeCounter(out, "pdfa_conversions_coalesced_total", "Submissions that shared an identical conversion in flight.",
+				conversionExecutor.getCoalescedCount());
+		writeCounter(out, "pdfa_conversions_timed_out_total", "Conversions cancelled for running past their timeout.",
+				conversionExecutor.getTimedOutCount());
+		writeGauge(out, "pdfa_conversions_abandoned", "Timed out conversions not yet stopped, each still holding a converter.",
+				conversionExecutor.getAbandonedCount());
+		writeGauge(out, "pdfa_conversion_average_seconds", "Moving average of recent conversion times.",
+				conversionExecutor.getAverageConversionSeconds());
+		conversionExecutor.getMetrics().write(out);
+
+		ConversionResultCache resultCache = conversionExecutor.getResultCache();
+		if (resultCache != null) {
+			writeCounter(out, "pdfa_cache_hits_total", "Conversions served from the result cache.", resultCache.getHitCount());
+			writeCounter(out, "pdfa_cache_misses_total", "Conversions not found in the result cache.", resultCache.getMissCount());
+			writeCounter(out, "pdfa_cache_evictions_total", "Entries evicted from the result cache.", resultCache.getEvictionCount());
+			writeGauge(out, "pdfa_cache_entries", "Entries in the result cache.", resultCache.getEntryCount());
+			writeGauge(out, "pdfa_cache_bytes", "Total size of the files in the result cache.", resultCache.getTotalBytes());
+		}
+
+		OutputDeletionQueue outputDeletionQueue = conversionExecutor.getOutputDeletionQueue();
+		writeGauge(out, "pdfa_output_live_files", "Converted files still in use.", outputDeletionQueue.getLiveCount());
+		writeGauge(out, "pdfa_output_delete_pending_files", "Converted files waiting to be deleted.", outputDeletionQueue.getPendingCount());
+		writeGauge(out, "pdfa_output_delete_pending_bytes", "Total size of the converted files waiting to be deleted.",
+				outputDeletionQueue.getPendingBytes());
+		writeCounter(out, "pdfa_output_deleted_total", "Converted files deleted.", outputDeletionQueue.getDeletedCount());
+		writeCounter(out, "pdfa_output_delete_batches_total", "Batches of converted file deletions.", outputDeletionQueue.getBatchCount());
+		writeCounter(out, "pdfa_output_delete_retries_total", "Failed converted file deletions tried again.", outputDeletionQueue.getRetriedCount());
+		writeCounter(out, "pdfa_output_delete_failures_total", "Converted files given up on after the maximum number of attempts.",
+				outputDeletionQueue.getFailedCount());
+		writeCounter(out, "pdfa_output_reconciled_total", "Leftover converted files found in the output directories.",
+				outputDeletionQueue.getReconciledCount());
+
+		writeGauge(out, "pdfa_upload_sessions", "Chunked uploads in progress.", uploadSessionManager.getSessionCount());
+		writeCounter(out, "pdfa_upload_chunks_total", "Chunks received by chunked uploads.", uploadSessionManager.getChunkCount());
+		writeCounter(out, "pdfa_upload_chunks_rejected_total", "Chunks rejected for being the wrong length or not matching their checksum.",
+				uploadSessionManager.getRejectedChunkCount());
+		writeCounter(out, "pdfa_upload_completed_total", "Chunked uploads completed and submitted for conversion.",
+				uploadSessionManager.getCompletedCount());
+		writeCounter(out, "pdfa_upload_expired_total", "Chunked uploads removed after going idle.", uploadSessionManager.getExpiredCount());
+
+		writeWorkDirUsage(out);
+	}
+
+	/*
+	 * Configured clients are labelled by name; clients identified by source address are summed under "anonymous"
+	 * to keep the number of series bounded.
+	 */
+	private void writeClients(PrintWriter out, ConversionScheduler scheduler) {
+		writeHeader(out, "pdfa_client_requests_total", "counter", "Conversion requests by client.");
+		for (Client client : clientRegistry.getConfiguredClients()) {
+			out.println("pdfa_client_requests_total{client=\"" + client.getName() + "\"} " + client.getRequestCount());
+		}
+		out.println("pdfa_client_requests_total{client=\"anonymous\"} " + clientRegistry.getAddressRequestCount());
+		writeHeader(out, "pdfa_client_rate_limited_total", "counter", "Conversion requests turned away by client rate limits.");
+		for (Client client : clientRegistry.getConfiguredClients()) {
+			out.println("pdfa_client_rate_limited_total{client=\"" + client.getName() + "\"} " + client.getRateLimitedCount());
+		}
+		out.println("pdfa_client_rate_limited_total{client=\"anonymous\"} " + clientRegistry.getAddressRateLimitedCount());
+		writeHeader(out, "pdfa_client_conversions_total", "counter", "Conversions submitted by client.");
+		for (Client client : clientRegistry.getConfiguredClients()) {
+			out.println("pdfa_client_conversions_total{client=\"" + client.getName() + "\"} " + client.getConversionCount());
+		}
+		out.println("pdfa_client_conversions_total{client=\"anonymous\"} " + clientRegistry.getAddressConversionCount());
+		writeHeader(out, "pdfa_client_queued", "gauge", "Conversions waiting for a converter slot by configured client.");
+		for (Client client : clientRegistry.getConfiguredClients()) {
+			out.println("pdfa_client_queued{client=\"" + client.getName() + "\"} " + scheduler.getQueuedCount(client));
+		}
+		writeHeader(out, "pdfa_client_running", "gauge", "Conversions holding a converter slot by configured client.");
+		for (Client client : clientRegistry.getConfiguredClients()) {
+			out.println("pdfa_client_running{client=\"" + client.getName() + "\"} " + scheduler.getRunningCount(client));
+		}
+	}
+
+	/*
+	 * The staged files are counted by the work directory's janitor rather than on each scrape, so those gauges are
+	 * as of its last run.
+	 */
+	private void writeWorkDirUsage(PrintWriter out) {
+		writeGauge(out, "pdfa_temp_upload_files", "Files staged in the work directory as of the janitor's last run.",
+				workDirectory.getStagedFileCount());
+		writeGauge(out, "pdfa_temp_upload_bytes", "Total size of the files staged in the work directory as of the janitor's last run.",
+				workDirectory.getStagedBytes());
+		writeGauge(out, "pdfa_temp_upload_quota_bytes", "Total size of staged files above which the janitor deletes the oldest, 0 for no quota.",
+				workDirectory.getQuotaBytes());
+		writeHeader(out, "pdfa_temp_upload_deleted_total", "counter", "Staged files deleted by the work directory's janitor.");
+		out.println("pdfa_temp_upload_deleted_total{reason=\"orphaned\"} " + workDirectory.getOrphansDeletedCount());
+		out.println("pdfa_temp_upload_deleted_total{reason=\"expired\"} " + workDirectory.getExpiredDeletedCount());
+		out.println("pdfa_temp_upload_deleted_total{reason=\"over_quota\"} " + workDirectory.getOverQuotaDeletedCount());
+		writeHeader(out, "pdfa_temp_upload_staged_total", "counter", "Files staged in the work directory by tier.");
+		out.println("pdfa_temp_upload_staged_total{tier=\"memory\"} " + workDirectory.getMemoryStagedCount());
+		out.println("pdfa_temp_upload_staged_total{tier=\"disk\"} " + workDirectory.getDiskStagedCount());
+		writeGauge(out, "pdfa_temp_memory_budget_bytes", "Total size of the files staged in memory at any one time, 0 if memory staging is off.",
+				workDirectory.getMemoryBudgetBytes());
+		writeGauge(out, "pdfa_temp_memory_reserved_bytes", "Part of the memory staging budget held by staged files.",
+				workDirectory.getMemoryReservedBytes());
+		writeGauge(out, "pdfa_temp_dir_free_bytes", "Space available on the work directory's file system.", workDirectory.getUsableSpace());
+		writeGauge(out, "pdfa_temp_dir_total_bytes", "Size of the work directory's file system.", workDirectory.getTotalSpace());
+	}
+
+	static void writeHeader(PrintWriter out, String name, String type, String help) {
+		out.println("# HELP " + name + " " + help);
+		out.println("# TYPE " + name + " " + type);
+	}
+
+	private static void writeGauge(PrintWriter out, String name, String help, double value) {
+		writeHeader(out, name, "gauge", help);
+		out.println(name + " " + value);
+	}
+
+	private static void writeGauge(PrintWriter out, String name, String help, long value) {
+		writeHeader(out, name, "gauge", help);
+		out.println(name + " " + value);
+	}
+
+	private static void writeCounter(PrintWriter out, String name, String help, long value) {
+		writeHeader(out, name, "counter", help);
+		out.println(name + " " + value);
+	}
+}
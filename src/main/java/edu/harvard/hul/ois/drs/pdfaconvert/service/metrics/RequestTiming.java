@@ -0,0 +1,347 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.service.metrics;
+
+import static edu.harvard.hul.ois.drs.pdfaconvert.service.common.Constants.CLIENT_KEY;
+import static edu.harvard.hul.ois.drs.pdfaconvert.service.common.Constants.REQUEST_TIMING_KEY;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import edu.harvard.hul.ois.drs.pdfaconvert.service.clients.Client;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.pool.ConversionTask;
+
+/**
+ * Times the stages of one request with the monotonic clock: reading the multipart headers, staging the upload,
+ * waiting for a converter slot, waiting to borrow a converter from the pool, the converter itself and sending
+ * the converted file. The stages finished by the time the response body is started are sent back in a
+ * Server-Timing header, and once the request has ended all of them are written to the access log as a single
+ * line of JSON along with the sizes and type of the input and output.
+ * <p>
+ * The timing is kept in the request under REQUEST_TIMING_KEY. The servlet creates it and sends its responses
+ * through the wrapper from wrap(), and PdfaRequestListener writes the access log line when the request is destroyed.
+ */
+public class RequestTiming {
+
+	public static final String STAGE_PARSE = "parse";
+	public static final String STAGE_STAGE = "stage";
+	public static final String STAGE_QUEUE = "queue";
+	public static final String STAGE_BORROW = "borrow";
+	public static final String STAGE_CONVERT = "convert";
+	public static final String STAGE_SEND = "send";
+
+	private static final Logger accessLogger = LogManager.getLogger("edu.harvard.hul.ois.drs.pdfaconvert.service.access");
+	private static final String SERVER_TIMING_HEADER = "Server-Timing";
+
+	private final HttpServletRequest request;
+	private final long startNanos = System.nanoTime();
+	private final long startMillis = System.currentTimeMillis();
+	// stages timed by the servlet; those repeated, e.g. staging each document of a batch, are summed
+	private final Map<String, Long> stageNanos = new LinkedHashMap<String, Long>();
+	private volatile int status = HttpServletResponse.SC_OK;
+	private volatile String inputName;
+	private volatile String inputType;
+	private volatile int documents = 0;
+	private volatile long inputBytes = 0;
+	private volatile long outputBytes = -1;
+	private volatile ConversionTask conversion;
+	private volatile String jobId;
+
+	/**
+	 * @param request - the request being timed
+	 */
+	public RequestTiming(HttpServletRequest request) {
+		this.request = request;
+	}
+
+	/**
+	 * @param request - a request
+	 * @return The timing kept in the request or null if the request is not being timed.
+	 */
+	public static RequestTiming of(ServletRequest request) {
+		return (RequestTiming) request.getAttribute(REQUEST_TIMING_KEY);
+	}
+
+	/**
+	 * Wrap the response so its status and content length are recorded and the Server-Timing header is added
+	 * just before the body is started.
+	 *
+	 * @param response - the response to the request
+	 * @return The response to write to instead.
+	 */
+	public HttpServletResponse wrap(HttpServletResponse response) {
+		return new TimedResponse(response);
+	}
+
+	/**
+	 * @param stage - name of the stage
+	 * @param nanos - time the stage took, from System.nanoTime()
+	 */
+	public synchronized void record(String stage, long nanos) {
+		Long total = stageNanos.get(stage);
+		stageNanos.put(stage, total == null ? nanos : total + nanos);
+	}
+
+	/**
+	 * Record an input document received with the request.
+	 *
+	 * @param name - the document's file name
+	 * @param type - the document's type, i.e. its file name extension
+	 * @param bytes - the document's size
+	 */
+	public void addInput(String name, String type, long bytes) {
+		this.inputName = name;
+		this.inputType = type;
+		this.documents++;
+		this.inputBytes += bytes;
+	}
+
+	/**
+	 * @param conversion - the conversion the request is waiting on, whose queue, pool and converter times are reported
+	 */
+	public void setConversion(ConversionTask conversion) {
+		this.conversion = conversion;
+	}
+
+	/**
+	 * @param jobId - id of the job the request submitted
+	 */
+	public void setJobId(String jobId) {
+		this.jobId = jobId;
+	}
+
+	/**
+	 * @return The stage times, including those of the conversion, in milliseconds.
+	 */
+	private synchronized Map<String, Double> getStageMillis() {
+		Map<String, Double> millis = new LinkedHashMap<String, Double>();
+		for (Map.Entry<String, Long> stage : stageNanos.entrySet()) {
+			if (stage.getKey().equals(STAGE_SEND)) {
+				continue;
+			}
+			millis.put(stage.getKey(), toMillis(stage.getValue()));
+		}
+		ConversionTask task = conversion;
+		if (task != null && !task.isCacheHit()) {
+			millis.put(STAGE_QUEUE, toMillis(task.getQueueWaitNanos()));
+			millis.put(STAGE_BORROW, toMillis(task.getBorrowWaitNanos()));
+			millis.put(STAGE_CONVERT, toMillis(task.getConverterNanos()));
+		}
+		Long sendNanos = stageNanos.get(STAGE_SEND);
+		if (sendNanos != null) {
+			millis.put(STAGE_SEND, toMillis(sendNanos));
+		}
+		return millis;
+	}
+
+	/**
+	 * @return The value of the Server-Timing header for the stages timed so far, or null if there are none.
+	 */
+	public String toServerTiming() {
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, Double> stage : getStageMillis().entrySet()) {
+			if (sb.length() > 0) {
+				sb.append(", ");
+			}
+			sb.append(stage.getKey()).append(";dur=").append(format(stage.getValue()));
+		}
+		ConversionTask task = conversion;
+		if (task != null && task.isCacheHit()) {
+			sb.append(sb.length() > 0 ? ", " : "").append("cache;desc=hit");
+		}
+		return sb.length() > 0 ? sb.toString() : null;
+	}
+
+	/**
+	 * Write the access log line of the request.
+	 */
+	public void log() {
+		if (accessLogger.isInfoEnabled()) {
+			accessLogger.info(toJson());
+		}
+	}
+
+	/**
+	 * @return The access log line of the request as a JSON object.
+	 */
+	public String toJson() {
+		StringBuilder sb = new StringBuilder(256);
+		sb.append('{');
+		appendField(sb, "time", formatTime(startMillis));
+		appendField(sb, "method", request.getMethod());
+		appendField(sb, "path", request.getServletPath() + (request.getPathInfo() != null ? request.getPathInfo() : ""));
+		appendField(sb, "status", status);
+		Object client = request.getAttribute(CLIENT_KEY);
+		if (client instanceof Client) {
+			appendField(sb, "client", ((Client) client).getName());
+		}
+		if (documents > 0) {
+			if (documents == 1) {
+				appendField(sb, "input", inputName);
+				appendField(sb, "type", inputType);
+			} else {
+				appendField(sb, "documents", documents);
+			}
+			appendField(sb, "inputBytes", inputBytes);
+		}
+		if (outputBytes >= 0) {
+			appendField(sb, "outputBytes", outputBytes);
+		}
+		if (jobId != null) {
+			appendField(sb, "job", jobId);
+		}
+		ConversionTask task = conversion;
+		if (task != null) {
+			appendField(sb, "cacheHit", task.isCacheHit());
+			if (!task.isCacheHit()) {
+				appendField(sb, "poolWaitMs", toMillis(task.getBorrowWaitNanos()));
+			}
+		}
+		sb.append("\"stagesMs\":{");
+		boolean first = true;
+		for (Map.Entry<String, Double> stage : getStageMillis().entrySet()) {
+			if (!first) {
+				sb.append(',');
+			}
+			first = false;
+			sb.append('"').append(stage.getKey()).append("\":").append(format(stage.getValue()));
+		}
+		sb.append("},");
+		sb.append("\"totalMs\":").append(format(toMillis(System.nanoTime() - startNanos)));
+		sb.append('}');
+		return sb.toString();
+	}
+
+	private static void appendField(StringBuilder sb, String name, String value) {
+		if (value == null) {
+			return;
+		}
+		sb.append('"').append(name).append("\":\"");
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\') {
+				sb.append('\\').append(c);
+			} else if (c < 0x20) {
+				sb.append(String.format("\\u%04x", (int) c));
+			} else {
+				sb.append(c);
+			}
+		}
+		sb.append("\",");
+	}
+
+	private static void appendField(StringBuilder sb, String name, long value) {
+		sb.append('"').append(name).append("\":").append(value).append(',');
+	}
+
+	private static void appendField(StringBuilder sb, String name, double value) {
+		sb.append('"').append(name).append("\":").append(format(value)).append(',');
+	}
+
+	private static void appendField(StringBuilder sb, String name, boolean value) {
+		sb.append('"').append(name).append("\":").append(value).append(',');
+	}
+
+	private static double toMillis(long nanos) {
+		return nanos / 1000000.0;
+	}
+
+	private static String format(double millis) {
+		// always a decimal point, whatever the default locale, since this goes into headers and JSON
+		return String.format(Locale.ROOT, "%.1f", millis);
+	}
+
+	private static String formatTime(long millis) {
+		SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+		dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return dateFormat.format(new Date(millis));
+	}
+
+	/*
+	 * Records the status and content length set on the response and adds the Server-Timing header as the body
+	 * is started, when the stages before sending are known.
+	 */
+	private class TimedResponse extends HttpServletResponseWrapper {
+
+		private boolean serverTimingAdded = false;
+
+		private TimedResponse(HttpServletResponse response) {
+			super(response);
+		}
+
+		private void addServerTiming() {
+			if (serverTimingAdded || isCommitted()) {
+				return;
+			}
+			serverTimingAdded = true;
+			String serverTiming = toServerTiming();
+			if (serverTiming != null) {
+				setHeader(SERVER_TIMING_HEADER, serverTiming);
+			}
+		}
+
+		@Override
+		public void setStatus(int sc) {
+			status = sc;
+			super.setStatus(sc);
+		}
+
+		@Override
+		public void sendError(int sc) throws IOException {
+			status = sc;
+			super.sendError(sc);
+		}
+
+		@Override
+		public void sendError(int sc, String msg) throws IOException {
+			status = sc;
+			super.sendError(sc, msg);
+		}
+
+		@Override
+		public void setContentLength(int len) {
+			outputBytes = len;
+			super.setContentLength(len);
+		}
+
+		@Override
+		public void setContentLengthLong(long len) {
+			outputBytes = len;
+			super.setContentLengthLong(len);
+		}
+
+		@Override
+		public ServletOutputStream getOutputStream() throws IOException {
+			addServerTiming();
+			return super.getOutputStream();
+		}
+
+		@Override
+		public PrintWriter getWriter() throws IOException {
+			addServerTiming();
+			return super.getWriter();
+		}
+	}
+}
@@ -0,0 +1,120 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.service.pool;
+
+import java.util.concurrent.Semaphore;
+
+import edu.harvard.hul.ois.drs.pdfaconvert.service.clients.Client;
+
+/**
+ * Limits the number of conversion requests admitted at the same time to the number of converters in the pool
+ * plus the number allowed to wait for one. A request is admitted before its body is read so that when the service
+ * is saturated it can be turned away straight away, without the upload having been received, along with an
+ * estimate of when capacity will be available again.
+ * <p>
+ * Each client may hold only a share of the places, checked before the places of all clients, so that one client
+ * sending more requests than the service can take fills only its own share and the other clients are still admitted.
+ */
+public class AdmissionController {
+
+	private final Semaphore permits;
+	private final int capacity;
+	private final int converters;
+	private final int clientQuota;
+	private final ConversionExecutor conversionExecutor;
+
+	/**
+	 * @param conversionExecutor - executor that runs the conversions and keeps track of how long they take
+	 * @param converters - number of converters in the pool
+	 * @param maxWaiting - number of admitted requests allowed to wait for a converter
+	 * @param maxClientShare - fraction of the admitted requests one client may hold, from 0 to 1
+	 */
+	public AdmissionController(ConversionExecutor conversionExecutor, int converters, int maxWaiting, double maxClientShare) {
+		this.conversionExecutor = conversionExecutor;
+		this.converters = Math.max(1, converters);
+		this.capacity = this.converters + Math.max(0, maxWaiting);
+		this.clientQuota = Math.max(1, (int) Math.ceil(capacity * Math.min(1, maxClientShare)));
+		this.permits = new Semaphore(capacity);
+	}
+
+	/**
+	 * Try to admit a request of a client, first against the client's quota and then against the capacity of the
+	 * service. Every successful call must be matched by a call to release() with the same client.
+	 *
+	 * @param client - the client making the request, or null if it is not known
+	 * @return true if the request was admitted.
+	 */
+	public boolean tryAdmit(Client client) {
+		if (client != null && !client.tryAdmit(clientQuota)) {
+			return false;
+		}
+		if (permits.tryAcquire()) {
+			return true;
+		}
+		if (client != null) {
+			client.releaseAdmission();
+		}
+		return false;
+	}
+
+	/**
+	 * Release a request admitted with tryAdmit() once its conversion has finished or it has been abandoned.
+	 *
+	 * @param client - the client the request was admitted for
+	 */
+	public void release(Client client) {
+		if (client != null) {
+			client.releaseAdmission();
+		}
+		permits.release();
+	}
+
+	/**
+	 * @return true if the client already has as many requests admitted as one client may.
+	 */
+	public boolean isAtClientQuota(Client client) {
+		return client != null && client.getAdmittedCount() >= clientQuota;
+	}
+
+	/**
+	 * @return true if a call to tryAdmit() would currently fail for any client.
+	 */
+	public boolean isSaturated() {
+		return permits.availablePermits() == 0;
+	}
+
+	/**
+	 * @return true if a call to tryAdmit() would currently fail for the client.
+	 */
+	public boolean isSaturated(Client client) {
+		return isSaturated() || isAtClientQuota(client);
+	}
+
+	/**
+	 * @return The number of requests currently admitted.
+	 */
+	public int getAdmittedCount() {
+		return capacity - permits.availablePermits();
+	}
+
+	/**
+	 * Estimate how long before a newly arriving request could start converting. The predicted time of the queued
+	 * and running conversions is used, unless the number of requests admitted, some of which may still be
+	 * uploading, at the average time conversions have been taking comes to more.
+	 *
+	 * @return The estimated wait in whole seconds, at least 1.
+	 */
+	public long estimateRetryAfterSeconds() {
+		int backlog = Math.max(1, getAdmittedCount() - converters + 1);
+		double waitSeconds = Math.max(conversionExecutor.estimateBacklogSeconds(),
+				conversionExecutor.getAverageConversionSeconds() * backlog / converters);
+		return Math.max(1, (long) Math.ceil(waitSeconds));
+	}
+}
@@ -0,0 +1,150 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.service.pool;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Finds and kills the processes the service's JVM has started for a conversion, such as the external tool a
+ * PdfaConvert in the service's JVM launches, which interrupting the converting thread does not stop. Java 8 gives
+ * no handle on processes started by a library, so the process table is read from /proc: a descendant of this JVM
+ * whose command line names the conversion's input file belongs to that conversion, and is killed along with its
+ * own descendants. Each input file has a name of its own, so the processes of other conversions are left alone.
+ * Where there is no /proc nothing is found and nothing is killed.
+ */
+final class ChildProcesses {
+
+	private static final Logger logger = LogManager.getLogger();
+	private static final File PROC = new File("/proc");
+	private static final long KILL_WAIT_SECONDS = 5;
+
+	private ChildProcesses() {
+	}
+
+	/**
+	 * Kill the descendants of this JVM started for a file, and their descendants.
+	 *
+	 * @param file - the file named on the command lines of the processes to kill
+	 * @return The number of processes killed.
+	 */
+	static int killProcessesOf(File file) {
+		String pid = ownPid();
+		if (pid == null || !PROC.isDirectory()) {
+			return 0;
+		}
+		Map<String, List<String>> childrenByParent = readChildrenByParent();
+		String path = file.getAbsolutePath();
+		Set<String> doomed = new LinkedHashSet<String>();
+		for (String descendant : descendantsOf(pid, childrenByParent)) {
+			if (!doomed.contains(descendant) && commandLineNames(descendant, path)) {
+				doomed.add(descendant);
+				doomed.addAll(descendantsOf(descendant, childrenByParent));
+			}
+		}
+		if (doomed.isEmpty()) {
+			return 0;
+		}
+		List<String> command = new ArrayList<String>();
+		command.add("kill");
+		command.add("-KILL");
+		command.add("--");
+		command.addAll(doomed);
+		try {
+			Process kill = new ProcessBuilder(command).redirectErrorStream(true)
+					.redirectOutput(ProcessBuilder.Redirect.appendTo(new File("/dev/null"))).start();
+			kill.waitFor(KILL_WAIT_SECONDS, TimeUnit.SECONDS);
+		} catch (IOException e) {
+			logger.warn("Unable to kill processes {} converting {}: {}", doomed, file.getName(), e.getMessage());
+			return 0;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		logger.warn("Killed processes {} converting {}", doomed, file.getName());
+		return doomed.size();
+	}
+
+	private static String ownPid() {
+		// the runtime name is pid@host
+		String pid = ManagementFactory.getRuntimeMXBean().getName().split("@")[0];
+		return pid.matches("\\d+") ? pid : null;
+	}
+
+	/*
+	 * The parent of each process is the second field after the command name in /proc/<pid>/stat. The command name
+	 * is in parentheses and may itself hold spaces and parentheses, so the fields are counted from the last ')'.
+	 */
+	private static Map<String, List<String>> readChildrenByParent() {
+		Map<String, List<String>> childrenByParent = new HashMap<String, List<String>>();
+		String[] pids = PROC.list();
+		if (pids == null) {
+			return childrenByParent;
+		}
+		for (String pid : pids) {
+			if (!pid.matches("\\d+")) {
+				continue;
+			}
+			String stat;
+			try {
+				stat = new String(Files.readAllBytes(new File(new File(PROC, pid), "stat").toPath()), StandardCharsets.UTF_8);
+			} catch (IOException e) {
+				continue; // exited since it was listed
+			}
+			String[] fields = stat.substring(stat.lastIndexOf(')') + 1).trim().split(" ");
+			if (fields.length > 1) {
+				List<String> children = childrenByParent.get(fields[1]);
+				if (children == null) {
+					children = new ArrayList<String>();
+					childrenByParent.put(fields[1], children);
+				}
+				children.add(pid);
+			}
+		}
+		return childrenByParent;
+	}
+
+	private static List<String> descendantsOf(String pid, Map<String, List<String>> childrenByParent) {
+		List<String> descendants = new ArrayList<String>();
+		Deque<String> toVisit = new ArrayDeque<String>();
+		toVisit.add(pid);
+		while (!toVisit.isEmpty()) {
+			List<String> children = childrenByParent.get(toVisit.poll());
+			if (children != null) {
+				descendants.addAll(children);
+				toVisit.addAll(children);
+			}
+		}
+		return descendants;
+	}
+
+	private static boolean commandLineNames(String pid, String path) {
+		try {
+			byte[] commandLine = Files.readAllBytes(new File(new File(PROC, pid), "cmdline").toPath());
+			return new String(commandLine, StandardCharsets.UTF_8).contains(path);
+		} catch (IOException e) {
+			return false;
+		}
+	}
+}
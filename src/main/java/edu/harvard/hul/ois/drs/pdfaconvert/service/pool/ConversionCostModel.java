@@ -0,0 +1,111 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.service.pool;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Predicts how long a conversion will take from the type and size of its input file.
+ * For each type a straight line, a fixed start-up time plus a time per megabyte, is fitted to recent conversions
+ * by least squares, with older conversions given exponentially less weight so the model follows changes in the
+ * converter or the host. Until a type has enough conversions of its own the fit over all types is used, and
+ * until anything has been converted a fixed default.
+ */
+public class ConversionCostModel {
+
+	private static final double DECAY = 0.95; // weight kept by earlier conversions each time one is recorded
+	private static final int MIN_SAMPLES = 3; // conversions of a type needed before its own fit is used
+	private static final double BYTES_PER_MB = 1024 * 1024;
+
+	private final double defaultSeconds;
+	private final Map<String, Fit> fitsByType = new HashMap<String, Fit>();
+	private final Fit overallFit = new Fit();
+
+	/**
+	 * @param defaultSeconds - estimate used before any conversion has been recorded
+	 */
+	public ConversionCostModel(double defaultSeconds) {
+		this.defaultSeconds = defaultSeconds;
+	}
+
+	/**
+	 * Record a successful conversion.
+	 *
+	 * @param type - the type of the input file
+	 * @param bytes - the size of the input file
+	 * @param nanos - how long the converter took
+	 */
+	public synchronized void record(String type, long bytes, long nanos) {
+		double megabytes = bytes / BYTES_PER_MB;
+		double seconds = nanos / (double) TimeUnit.SECONDS.toNanos(1);
+		Fit fit = fitsByType.get(type);
+		if (fit == null) {
+			fit = new Fit();
+			fitsByType.put(type, fit);
+		}
+		fit.add(megabytes, seconds);
+		overallFit.add(megabytes, seconds);
+	}
+
+	/**
+	 * @param type - the type of the input file
+	 * @param bytes - the size of the input file
+	 * @return The predicted conversion time in seconds.
+	 */
+	public synchronized double estimateSeconds(String type, long bytes) {
+		double megabytes = bytes / BYTES_PER_MB;
+		Fit fit = fitsByType.get(type);
+		if (fit != null && fit.samples >= MIN_SAMPLES) {
+			return fit.estimate(megabytes);
+		}
+		if (overallFit.samples > 0) {
+			return overallFit.estimate(megabytes);
+		}
+		return defaultSeconds;
+	}
+
+	/*
+	 * Exponentially weighted sums for a least squares fit of seconds against megabytes.
+	 */
+	private static class Fit {
+		private int samples = 0;
+		private double weight = 0;
+		private double sumX = 0;
+		private double sumY = 0;
+		private double sumXX = 0;
+		private double sumXY = 0;
+
+		private void add(double x, double y) {
+			samples++;
+			weight = weight * DECAY + 1;
+			sumX = sumX * DECAY + x;
+			sumY = sumY * DECAY + y;
+			sumXX = sumXX * DECAY + x * x;
+			sumXY = sumXY * DECAY + x * y;
+		}
+
+		private double estimate(double x) {
+			double meanY = sumY / weight;
+			double denominator = weight * sumXX - sumX * sumX;
+			// sizes too alike to separate start-up time from time per megabyte
+			if (denominator <= 1e-9 * weight * sumXX) {
+				return meanY;
+			}
+			double slope = (weight * sumXY - sumX * sumY) / denominator;
+			if (slope <= 0) {
+				return meanY;
+			}
+			double intercept = Math.max(0, (sumY - slope * sumX) / weight);
+			return intercept + slope * x;
+		}
+	}
+}
@@ -0,0 +1,624 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.service.pool;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.io.FilenameUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.Marker;
+import org.apache.logging.log4j.MarkerManager;
+
+import edu.harvard.hul.ois.drs.pdfaconvert.service.cache.ConversionResultCache;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.clients.Client;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.events.ConversionEvents;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.events.ExternalConversionEvent;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.events.PoolBorrowEvent;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.metrics.ConversionMetrics;
+
+/**
+ * Runs conversions on a dedicated, bounded set of threads so that Servlet container request threads
+ * are not held while the external conversion tool is running.
+ * The number of conversion threads matches the maximum size of the PdfaConverterWrapperPool so that
+ * every running conversion holds exactly one pool object. Conversions that cannot start right away wait in
+ * the ConversionScheduler, which partitions the converter slots by input type and picks the next conversion to run
+ * whenever one finishes; once its queue is full new submissions are rejected.
+ * If a conversion result cache is configured, inputs that have been converted before are served from the cache
+ * without queueing or borrowing a converter. An input identical to one already queued or converting is not
+ * converted again: the caller subscribes to the conversion in flight and shares its converted file.
+ * A conversion that runs past the timeout for its type is abandoned: its converter's worker process is killed, or
+ * for a converter in the service's JVM the tool processes it started for the input, and the converter stays borrowed
+ * until the abandoned conversion has actually stopped, then is invalidated so the pool replaces it. The conversion's
+ * slot in the scheduler is also held until then, so abandoned conversions count against the pool's converters for
+ * as long as they run, no more of them can be running than there are converters, and no conversion is started
+ * without a converter to run it.
+ */
+public class ConversionExecutor {
+
+	private static final Logger logger = LogManager.getLogger();
+	private static final Marker POOL_MARKER = MarkerManager.getMarker("POOL");
+	private static final AtomicInteger poolUsageCount = new AtomicInteger(); // for testing usage of pool objects
+	private static final long INITIAL_CONVERSION_MICROS = TimeUnit.SECONDS.toMicros(10); // assumed until conversions have been timed
+	private static final double CONVERSION_TIME_WEIGHT = 0.2; // weight of the latest conversion in the moving average
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+	private final PdfaConverterWrapperPool pdfaConverterWrapperPool;
+	private final ThreadPoolExecutor executor;
+	private final ConversionScheduler scheduler;
+	private final ConversionResultCache resultCache;
+	private final ConversionTimeouts conversionTimeouts;
+	private final OutputDeletionQueue outputDeletionQueue;
+	private final boolean coalescing;
+	// runs the converter itself when a timeout applies so the conversion thread can give up waiting on it; every
+	// examination holds a converter, abandoned ones included, so there are never more than the pool's converters
+	private final ThreadPoolExecutor examineRunner;
+	private final AtomicInteger abandonedCount = new AtomicInteger();
+	private final AtomicLong averageConversionMicros = new AtomicLong(INITIAL_CONVERSION_MICROS);
+	private final AtomicLong timedOutCount = new AtomicLong();
+	private final ConversionMetrics metrics = new ConversionMetrics();
+	// conversions queued or running by the type and the key of their input's content
+	private final ConcurrentMap<String, ConversionTask> inFlight = new ConcurrentHashMap<String, ConversionTask>();
+	private final AtomicLong coalescedCount = new AtomicLong();
+	private final ConversionCostModel costModel = new ConversionCostModel(INITIAL_CONVERSION_MICROS / 1000000.0);
+
+	/**
+	 * @param pdfaConverterWrapperPool - the pool from which converters are borrowed
+	 * @param scheduler - queues the conversions waiting for a free converter, with no more slots than the pool has converters
+	 * @param resultCache - cache of earlier conversions or null if caching is disabled
+	 * @param conversionTimeouts - time allowed for a single conversion by type of input file
+	 * @param outputDeletionQueue - deletes the converted files once they are no longer used
+	 */
+	public ConversionExecutor(PdfaConverterWrapperPool pdfaConverterWrapperPool, ConversionScheduler scheduler,
+			ConversionResultCache resultCache, ConversionTimeouts conversionTimeouts, OutputDeletionQueue outputDeletionQueue) {
+		this(pdfaConverterWrapperPool, scheduler, resultCache, conversionTimeouts, outputDeletionQueue, true);
+	}
+
+	/**
+	 * @param pdfaConverterWrapperPool - the pool from which converters are borrowed
+	 * @param scheduler - queues the conversions waiting for a free converter, with no more slots than the pool has converters
+	 * @param resultCache - cache of earlier conversions or null if caching is disabled
+	 * @param conversionTimeouts - time allowed for a single conversion by type of input file
+	 * @param outputDeletionQueue - deletes the converted files once they are no longer used
+	 * @param coalescing - true if a submission identical to a conversion in flight is to share that conversion
+	 */
+	public ConversionExecutor(PdfaConverterWrapperPool pdfaConverterWrapperPool, ConversionScheduler scheduler,
+			ConversionResultCache resultCache, ConversionTimeouts conversionTimeouts, OutputDeletionQueue outputDeletionQueue,
+			boolean coalescing) {
+		this.coalescing = coalescing;
+		this.pdfaConverterWrapperPool = pdfaConverterWrapperPool;
+		this.scheduler = scheduler;
+		this.resultCache = resultCache;
+		this.conversionTimeouts = conversionTimeouts;
+		this.outputDeletionQueue = outputDeletionQueue;
+		int threads = pdfaConverterWrapperPool.getMaxTotal();
+		// the scheduler never hands out more slots than there are threads, so tasks do not wait in this queue
+		this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ConversionThreadFactory("pdfa-conversion-"),
+				new ThreadPoolExecutor.AbortPolicy());
+		// the scheduler bounds the examinations running, but a thread that has just finished one is briefly not yet
+		// free for the next, whose slot it has already given back, so the examining threads are not capped here
+		this.examineRunner = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+				new ConversionThreadFactory("pdfa-examine-"), new ThreadPoolExecutor.AbortPolicy());
+		logger.info("Conversion executor started with {} threads -- conversion timeouts: {} -- coalescing: {}", threads,
+				conversionTimeouts, coalescing);
+	}
+
+	/**
+	 * Queue the input file for conversion. If an identical input of the same type is already queued or converting,
+	 * the returned task is that conversion, now shared with the caller.
+	 *
+	 * @param inputFile - the file to convert
+	 * @param inputKey - the key of the input's content from a digest made by newInputDigest(), or null to read the
+	 * file to find it if isKeyingInputs()
+	 * @param client - the client the conversion is for, by which it is queued fairly with other clients' conversions,
+	 * or null if not known
+	 * @return The task whose result is completed with the converted file or with the exception thrown by the
+	 * converter. The caller must call releaseOutput() on it once done with the converted file.
+	 * @throws RejectedExecutionException if the conversion queue is full or the executor has been shut down
+	 */
+	public ConversionTask submit(File inputFile, String inputKey, Client client) throws RejectedExecutionException {
+		if (!isKeyingInputs()) {
+			inputKey = null;
+		} else if (inputKey == null) {
+			try {
+				inputKey = computeInputKey(inputFile);
+			} catch (IOException e) {
+				logger.warn("Unable to compute key of {}: {}", inputFile.getPath(), e.getMessage());
+			}
+		}
+		if (client != null) {
+			client.conversionSubmitted();
+		}
+		if (resultCache != null && inputKey != null) {
+			File cachedFile = resultCache.checkOut(inputKey);
+			if (cachedFile != null) {
+				outputDeletionQueue.track(cachedFile);
+				return new ConversionTask(inputFile, cachedFile, this);
+			}
+		}
+		if (executor.isShutdown()) {
+			throw new RejectedExecutionException("Conversion executor has been shut down");
+		}
+		// the converter goes by the extension, so the same content given as another type is a different conversion
+		String coalescingKey = coalescing && inputKey != null
+				? FilenameUtils.getExtension(inputFile.getName()).toLowerCase() + ':' + inputKey : null;
+		ConversionTask task = new ConversionTask(inputFile, coalescingKey, resultCache != null ? inputKey : null, this);
+		if (coalescingKey != null) {
+			ConversionTask existing;
+			while ((existing = inFlight.putIfAbsent(coalescingKey, task)) != null) {
+				if (existing.subscribe()) {
+					coalescedCount.incrementAndGet();
+					logger.debug("Conversion of {} joined the identical conversion in flight", inputFile.getName());
+					return existing;
+				}
+				// every subscriber has left it, so it cannot be shared
+				inFlight.remove(coalescingKey, existing);
+			}
+		}
+		task.setEstimatedSeconds(costModel.estimateSeconds(task.getType(), inputFile.length()));
+		task.setClient(client);
+		if (!scheduler.enqueue(task)) {
+			conversionFinished(task);
+			throw new RejectedExecutionException("Conversion queue is full");
+		}
+		dispatch();
+		return task;
+	}
+
+	/**
+	 * @return true if inputs are identified by the key of their content, for the result cache or to share identical
+	 * conversions. Otherwise submit() ignores the key and there is no need to hash inputs.
+	 */
+	public boolean isKeyingInputs() {
+		return resultCache != null || coalescing;
+	}
+
+	/**
+	 * @return A digest to be updated with an input file's bytes, e.g. while it is being uploaded, for toInputKey().
+	 */
+	public MessageDigest newInputDigest() {
+		if (resultCache != null) {
+			// the cache key identifies the converter version as well as the content
+			return resultCache.newKeyDigest();
+		}
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 not available", e);
+		}
+	}
+
+	/**
+	 * @param digest - a digest from newInputDigest() updated with all of the input file's bytes
+	 * @return The key of the input's content.
+	 */
+	public String toInputKey(MessageDigest digest) {
+		return ConversionResultCache.toKey(digest);
+	}
+
+	private String computeInputKey(File inputFile) throws IOException {
+		MessageDigest digest = newInputDigest();
+		byte[] buffer = new byte[READ_BUFFER_SIZE];
+		try (InputStream in = new DigestInputStream(new FileInputStream(inputFile), digest)) {
+			while (in.read(buffer) != -1) {
+				// digested as read
+			}
+		}
+		return toInputKey(digest);
+	}
+
+	/*
+	 * Stop new submissions joining a conversion once it has finished.
+	 */
+	void conversionFinished(ConversionTask task) {
+		if (task.getInputKey() != null) {
+			inFlight.remove(task.getInputKey(), task);
+		}
+	}
+
+	/**
+	 * @return The number of submissions that joined an identical conversion in flight rather than converting again.
+	 */
+	public long getCoalescedCount() {
+		return coalescedCount.get();
+	}
+
+	/*
+	 * Start every queued conversion the scheduler has a free slot for. Called on submission and whenever a
+	 * conversion finishes and gives back its slot.
+	 */
+	private void dispatch() {
+		ConversionTask next;
+		while ((next = scheduler.next()) != null) {
+			final ConversionTask task = next;
+			try {
+				executor.execute(() -> {
+					try {
+						task.run();
+					} finally {
+						CompletableFuture<Void> abandonedExamination = task.getAbandonedExamination();
+						if (abandonedExamination == null) {
+							scheduler.release(task);
+							dispatch();
+						} else {
+							// the abandoned converter is still borrowed, so its slot is given back once it has stopped
+							abandonedExamination.whenComplete((stopped, error) -> {
+								scheduler.release(task);
+								dispatch();
+							});
+						}
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				scheduler.release(task);
+				conversionFinished(task);
+				task.getResult().completeExceptionally(e);
+			}
+		}
+	}
+
+	/**
+	 * Find how far back in the queue a conversion is.
+	 *
+	 * @param task - a task returned from submit()
+	 * @return The 1-based position of the task in the queue for its partition, or 0 if it is no longer waiting.
+	 */
+	public int getQueuePosition(ConversionTask task) {
+		if (task.isStarted()) {
+			return 0;
+		}
+		return scheduler.getQueuePosition(task);
+	}
+
+	/**
+	 * Predict how long before a queued conversion starts.
+	 *
+	 * @param task - a task returned from submit()
+	 * @return The predicted wait in seconds, or 0 if it is no longer waiting.
+	 */
+	public double estimateWaitSeconds(ConversionTask task) {
+		if (task.isStarted()) {
+			return 0;
+		}
+		return scheduler.estimateWaitSeconds(task);
+	}
+
+	/**
+	 * @return The predicted wait in seconds before a conversion submitted now could start.
+	 */
+	public double estimateBacklogSeconds() {
+		return scheduler.estimateBacklogSeconds();
+	}
+
+	/*
+	 * Convert the input file on the calling thread. A converter is borrowed from the pool and returned to it
+	 * as soon as the conversion has finished so that it is not held while the output is being sent to the client.
+	 * If the conversion times out the converter is left to the abandoned examination, which invalidates it once it
+	 * has stopped, instead of being returned, and the task holds its scheduler slot until then. The conversion time is
+	 * recorded against its type in the cost model and, if the conversion is for a task, the time spent borrowing
+	 * the converter and converting against the task.
+	 */
+	File convert(File inputFile, String type, ConversionTask task) throws Exception {
+		long inputBytes = inputFile.length();
+		PdfaConverterWrapper pdfaConverterWrapper = null;
+		AtomicBoolean abandoned = new AtomicBoolean(false);
+		CompletableFuture<Void> examinationStopped = new CompletableFuture<Void>();
+		int poolCnt = poolUsageCount.getAndIncrement();
+		long startTime = System.nanoTime();
+		long examineStartTime = 0;
+		Throwable failure = null;
+		File convertedFile = null;
+		ExternalConversionEvent conversionEvent = null;
+		try {
+			logger.debug("Borrowing PdfaConverter from pool");
+			logger.info(POOL_MARKER, "About to get PdfaConverter object from pool");
+			PoolBorrowEvent borrowEvent = ConversionEvents.beginPoolBorrow();
+			try {
+				pdfaConverterWrapper = pdfaConverterWrapperPool.borrowObject();
+			} finally {
+				ConversionEvents.endPoolBorrow(borrowEvent, type, inputBytes,
+						pdfaConverterWrapper != null ? pdfaConverterWrapper.getId() : 0,
+						pdfaConverterWrapper != null ? ConversionEvents.OUTCOME_BORROWED : ConversionEvents.OUTCOME_FAILED);
+			}
+			logger.info(POOL_MARKER, "Got PdfaConverter object from pool number: {}", poolCnt);
+			conversionEvent = ConversionEvents.beginExternalConversion();
+			examineStartTime = System.nanoTime();
+			metrics.recordBorrowWait(examineStartTime - startTime);
+			metrics.conversionStarted();
+			pdfaConverterWrapper.recordUse();
+
+			logger.debug("Running PdfaConverter on " + inputFile.getPath());
+			long timeoutSeconds = conversionTimeouts.getTimeoutSeconds(inputFile);
+			if (timeoutSeconds > 0) {
+				convertedFile = examineWithTimeout(pdfaConverterWrapper, inputFile, timeoutSeconds, abandoned,
+						examinationStopped);
+			} else {
+				convertedFile = pdfaConverterWrapper.examine(inputFile);
+			}
+			long endTime = System.nanoTime();
+			recordConversionTime(endTime - startTime);
+			costModel.record(type, inputBytes, endTime - examineStartTime);
+			return convertedFile;
+		} catch (ConversionTimeoutException e) {
+			timedOutCount.incrementAndGet();
+			failure = e;
+			throw e;
+		} catch (Exception e) {
+			failure = e;
+			throw e;
+		} finally {
+			if (pdfaConverterWrapper != null) {
+				long converterNanos = System.nanoTime() - examineStartTime;
+				metrics.recordConversion(inputFile, failure, converterNanos);
+				ConversionEvents.endExternalConversion(conversionEvent, inputFile, type, inputBytes, convertedFile,
+						pdfaConverterWrapper.getId(), ConversionMetrics.toOutcome(failure));
+				if (task != null) {
+					task.recordConverterTimes(examineStartTime - startTime, converterNanos);
+				}
+				if (abandoned.get()) {
+					logger.warn(POOL_MARKER, "Keeping PdfaConverter object number: {} until its abandoned conversion stops", poolCnt);
+					if (task != null) {
+						task.setAbandonedExamination(examinationStopped);
+					}
+				} else {
+					logger.info(POOL_MARKER, "Returning PdfaConverter object to pool number: {}", poolCnt);
+					logger.debug("Returning PdfaConverter to pool");
+					pdfaConverterWrapperPool.returnObject(pdfaConverterWrapper);
+				}
+			}
+		}
+	}
+
+	/*
+	 * Run the converter on a separate thread and wait for it no longer than the timeout. On timeout, or if the
+	 * waiting thread is interrupted, the examination is abandoned: the converter's worker process is killed, or for
+	 * a converter without one the tool processes it started for the input are killed and the examining thread is
+	 * interrupted, and the converter is marked abandoned so the caller does not return it to the pool. Once the
+	 * examination has stopped it invalidates the converter, and if it produced an output after all the output is
+	 * deleted since no one is left to collect it. Either way examinationStopped is completed when it stops.
+	 */
+	private File examineWithTimeout(final PdfaConverterWrapper pdfaConverterWrapper, final File inputFile,
+			long timeoutSeconds, AtomicBoolean abandoned, final CompletableFuture<Void> examinationStopped) throws Exception {
+		// claimed by whichever of the converter finishing or the wait giving up happens first
+		final AtomicBoolean settled = new AtomicBoolean(false);
+		final AtomicReference<Thread> examiningThread = new AtomicReference<Thread>();
+		final CompletableFuture<File> examination = new CompletableFuture<File>();
+		examineRunner.execute(() -> {
+			examiningThread.set(Thread.currentThread());
+			File convertedFile = null;
+			Throwable failure = null;
+			try {
+				convertedFile = pdfaConverterWrapper.examine(inputFile);
+			} catch (Throwable t) {
+				failure = t;
+			} finally {
+				synchronized (examiningThread) {
+					examiningThread.set(null);
+					// clear an interrupt meant for this examination so it does not reach the next one on this thread
+					Thread.interrupted();
+				}
+			}
+			if (settled.compareAndSet(false, true)) {
+				if (failure != null) {
+					examination.completeExceptionally(failure);
+				} else {
+					examination.complete(convertedFile);
+				}
+				examinationStopped.complete(null);
+				return;
+			}
+			if (convertedFile != null) {
+				logger.info("Deleting output of abandoned conversion that finished late: {}", convertedFile.getName());
+				outputDeletionQueue.delete(convertedFile);
+			}
+			logger.warn(POOL_MARKER, "Abandoned conversion of {} has stopped -- invalidating its PdfaConverter", inputFile.getName());
+			invalidate(pdfaConverterWrapper);
+			abandonedCount.decrementAndGet();
+			examinationStopped.complete(null);
+		});
+		try {
+			return examination.get(timeoutSeconds, TimeUnit.SECONDS);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof Exception) {
+				throw (Exception) cause;
+			}
+			throw e;
+		} catch (TimeoutException e) {
+			if (!abandon(pdfaConverterWrapper, inputFile, settled, examiningThread, abandoned)) {
+				// finished just as the timeout passed
+				return examination.get();
+			}
+			logger.warn("Cancelled conversion of {} after {} seconds", inputFile.getName(), timeoutSeconds);
+			throw new ConversionTimeoutException(inputFile.getName(), timeoutSeconds);
+		} catch (InterruptedException e) {
+			abandon(pdfaConverterWrapper, inputFile, settled, examiningThread, abandoned);
+			throw e;
+		}
+	}
+
+	/*
+	 * Give up on an examination unless it has already finished, stopping the converter as far as possible.
+	 * Returns false if the examination finished first.
+	 */
+	private boolean abandon(PdfaConverterWrapper pdfaConverterWrapper, File inputFile, AtomicBoolean settled,
+			AtomicReference<Thread> examiningThread, AtomicBoolean abandoned) {
+		if (!settled.compareAndSet(false, true)) {
+			return false;
+		}
+		abandoned.set(true);
+		abandonedCount.incrementAndGet();
+		pdfaConverterWrapper.abandon(inputFile);
+		synchronized (examiningThread) {
+			Thread thread = examiningThread.get();
+			if (thread != null) {
+				thread.interrupt();
+			}
+		}
+		return true;
+	}
+
+	/*
+	 * Remove a converter from the pool. The factory marks it invalid and the pool creates a replacement.
+	 */
+	private void invalidate(PdfaConverterWrapper pdfaConverterWrapper) {
+		try {
+			pdfaConverterWrapperPool.invalidateObject(pdfaConverterWrapper);
+		} catch (Exception e) {
+			logger.error("Unable to invalidate PdfaConverter object: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * @return The metrics recorded on the conversion path.
+	 */
+	public ConversionMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * @return The number of conversions cancelled for running past their timeout.
+	 */
+	public long getTimedOutCount() {
+		return timedOutCount.get();
+	}
+
+	/**
+	 * @return The number of abandoned conversions that have not yet stopped, each still holding its converter.
+	 */
+	public int getAbandonedCount() {
+		return abandonedCount.get();
+	}
+
+	/*
+	 * Fold the time taken by a successful conversion, including waiting for a converter, into the moving average.
+	 */
+	private void recordConversionTime(long nanos) {
+		long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+		long current;
+		long updated;
+		do {
+			current = averageConversionMicros.get();
+			updated = (long) (current + CONVERSION_TIME_WEIGHT * (micros - current));
+		} while (!averageConversionMicros.compareAndSet(current, updated));
+	}
+
+	/**
+	 * @return The exponentially weighted moving average of recent conversion times in seconds.
+	 */
+	public double getAverageConversionSeconds() {
+		return averageConversionMicros.get() / 1000000.0;
+	}
+
+	/*
+	 * Keep a copy of a newly converted file in the conversion result cache.
+	 */
+	void cacheResult(String cacheKey, File convertedFile) {
+		if (resultCache != null && convertedFile != null) {
+			resultCache.put(cacheKey, convertedFile);
+		}
+	}
+
+	/**
+	 * @return The queue deleting converted files once they are no longer used.
+	 */
+	public OutputDeletionQueue getOutputDeletionQueue() {
+		return outputDeletionQueue;
+	}
+
+	/**
+	 * @return The conversion result cache or null if caching is disabled.
+	 */
+	public ConversionResultCache getResultCache() {
+		return resultCache;
+	}
+
+	/**
+	 * @return The number of conversions waiting for a converter slot.
+	 */
+	public int getQueuedCount() {
+		return scheduler.getQueuedCount();
+	}
+
+	/**
+	 * @return The scheduler partitioning the converter slots.
+	 */
+	public ConversionScheduler getScheduler() {
+		return scheduler;
+	}
+
+	/**
+	 * @return The number of conversions currently running.
+	 */
+	public int getActiveCount() {
+		return executor.getActiveCount();
+	}
+
+	/**
+	 * Stop accepting conversions and wait briefly for running conversions to finish.
+	 */
+	public void shutdown() {
+		executor.shutdown();
+		for (ConversionTask task : scheduler.drain()) {
+			conversionFinished(task);
+			task.getResult().completeExceptionally(new RejectedExecutionException("Conversion executor has been shut down"));
+		}
+		examineRunner.shutdownNow();
+		try {
+			if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+				executor.shutdownNow();
+			}
+		} catch (InterruptedException e) {
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/*
+	 * Names conversion threads so they can be identified in the logs.
+	 */
+	private static class ConversionThreadFactory implements ThreadFactory {
+		private final String namePrefix;
+		private final AtomicInteger threadCount = new AtomicInteger();
+
+		private ConversionThreadFactory(String namePrefix) {
+			this.namePrefix = namePrefix;
+		}
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, namePrefix + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
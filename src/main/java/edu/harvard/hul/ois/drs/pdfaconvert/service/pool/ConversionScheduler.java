@@ -0,0 +1,487 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.service.pool;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import edu.harvard.hul.ois.drs.pdfaconvert.service.clients.Client;
+
+/**
+ * Decides which waiting conversion runs next when a converter slot becomes free.
+ * The slots, one per converter in the pool, are divided between partitions of input types so that a run of slow
+ * formats cannot take every slot and leave quick formats queued behind them. Each partition has its own queue and
+ * a number of reserved slots only it can use. The remaining slots are shared, and each partition can be limited
+ * in how many shared slots it may hold at once. Types not assigned to a partition go to the default partition,
+ * which has no reserved slots. The partitions divide the slots of the one converter pool, any converter of which can
+ * take any type, rather than each having a pool of converters of its own.
+ * Partitions are served round robin. Within a partition the conversion expected to finish soonest goes first,
+ * which keeps short documents from waiting behind long ones, but each second a conversion has waited counts
+ * against its expected time so that a long conversion cannot be passed over indefinitely.
+ * When several clients have conversions waiting, the converters are shared between them in proportion to their
+ * weights by weighted fair queuing: each client is charged the expected time of the conversions it starts divided
+ * by its weight, and the waiting client charged least goes next. A client at its cap on running conversions is
+ * passed over until one of them finishes. A client may also have only a share of the queue waiting at once, so
+ * that one client cannot fill the queue and have every other client's conversions turned away.
+ * <p>
+ * Partitions are configured in the application properties, for example:
+ * <pre>
+ * partition.names=slow,fast
+ * partition.slow.types=wpd,doc,docx
+ * partition.slow.reserved=1
+ * partition.slow.shared=2
+ * partition.fast.types=rtf,odt
+ * partition.fast.reserved=1
+ * queue.aging.factor=1.0
+ * client.max.share=0.5
+ * </pre>
+ */
+public class ConversionScheduler {
+
+	/** Name of the partition for types not assigned to any other */
+	public static final String DEFAULT_PARTITION = "default";
+	/** Seconds of expected conversion time forgiven for each second waited, unless configured */
+	public static final String DEFAULT_AGING_FACTOR = "1.0";
+	/** Fraction of the queue, and of the requests admitted, one client may hold, unless configured */
+	public static final String DEFAULT_MAX_CLIENT_SHARE = "0.5";
+
+	private static final Logger logger = LogManager.getLogger();
+
+	private final List<Partition> partitions = new ArrayList<Partition>();
+	private final Map<String, Partition> partitionsByType = new HashMap<String, Partition>();
+	private final Partition defaultPartition;
+	private final int sharedSlots;
+	private final int totalSlots;
+	private final int maxQueued;
+	private final int maxQueuedPerClient;
+	private final double agingFactor;
+	// fair queuing state of the clients with conversions queued or running
+	private final Map<String, ClientShare> clientShares = new HashMap<String, ClientShare>();
+	private int sharedInUse = 0;
+	private int queuedCount = 0;
+	private int nextPartition = 0;
+	private double virtualTime = 0; // charge of the client that last started a conversion
+
+	/**
+	 * @param totalSlots - number of conversions that can run at once
+	 * @param maxQueued - number of conversions allowed to wait
+	 * @param agingFactor - seconds of expected conversion time forgiven for each second a conversion has waited
+	 * @param maxClientShare - fraction of the conversions allowed to wait that may belong to one client, from 0 to 1
+	 * @param partitionSettings - partitions by name, each with its types, reserved slots and maximum shared slots
+	 */
+	public ConversionScheduler(int totalSlots, int maxQueued, double agingFactor, double maxClientShare,
+			Map<String, PartitionSettings> partitionSettings) {
+		this.totalSlots = Math.max(1, totalSlots);
+		this.maxQueued = Math.max(1, maxQueued);
+		this.maxQueuedPerClient = Math.max(1, (int) Math.ceil(this.maxQueued * Math.min(1, maxClientShare)));
+		this.agingFactor = agingFactor;
+		int reservedTotal = 0;
+		for (Map.Entry<String, PartitionSettings> entry : partitionSettings.entrySet()) {
+			PartitionSettings settings = entry.getValue();
+			Partition partition = new Partition(entry.getKey(), settings.reserved, settings.maxShared);
+			partitions.add(partition);
+			for (String type : settings.types) {
+				partitionsByType.put(type, partition);
+			}
+			reservedTotal += settings.reserved;
+		}
+		if (reservedTotal > totalSlots) {
+			throw new IllegalArgumentException("Partitions reserve " + reservedTotal + " slots but there are only " + totalSlots);
+		}
+		this.sharedSlots = totalSlots - reservedTotal;
+		this.defaultPartition = new Partition(DEFAULT_PARTITION, 0, sharedSlots);
+		partitions.add(defaultPartition);
+		logger.info("Conversion partitions: {} -- shared slots: {} -- aging factor: {} -- max queued per client: {}", partitions,
+				sharedSlots, agingFactor, maxQueuedPerClient);
+	}
+
+	/**
+	 * A scheduler with only the default partition, where every slot is shared.
+	 */
+	public ConversionScheduler(int totalSlots, int maxQueued) {
+		this(totalSlots, maxQueued, Double.valueOf(DEFAULT_AGING_FACTOR), Double.valueOf(DEFAULT_MAX_CLIENT_SHARE),
+				new LinkedHashMap<String, PartitionSettings>());
+	}
+
+	/**
+	 * Read the partitions from the application properties.
+	 *
+	 * @param applicationProps - the application properties
+	 * @param totalSlots - number of conversions that can run at once
+	 * @param maxQueued - number of conversions allowed to wait
+	 * @return The scheduler.
+	 */
+	public static ConversionScheduler fromProperties(Properties applicationProps, int totalSlots, int maxQueued) {
+		Map<String, PartitionSettings> partitionSettings = new LinkedHashMap<String, PartitionSettings>();
+		for (String name : StringUtils.split(applicationProps.getProperty("partition.names", ""), ", ")) {
+			String prefix = "partition." + name + ".";
+			PartitionSettings settings = new PartitionSettings();
+			for (String type : StringUtils.split(applicationProps.getProperty(prefix + "types", ""), ", ")) {
+				settings.types.add(type.toLowerCase());
+			}
+			settings.reserved = Integer.valueOf(applicationProps.getProperty(prefix + "reserved", "0").trim());
+			settings.maxShared = Integer.valueOf(applicationProps.getProperty(prefix + "shared", String.valueOf(totalSlots)).trim());
+			partitionSettings.put(name, settings);
+		}
+		double agingFactor = Double.valueOf(applicationProps.getProperty("queue.aging.factor", DEFAULT_AGING_FACTOR).trim());
+		double maxClientShare = Double.valueOf(applicationProps.getProperty("client.max.share", DEFAULT_MAX_CLIENT_SHARE).trim());
+		return new ConversionScheduler(totalSlots, maxQueued, agingFactor, maxClientShare, partitionSettings);
+	}
+
+	/**
+	 * Queue a conversion. Its expected conversion time must already have been set.
+	 *
+	 * @param task - the conversion
+	 * @return false if the queue is full or the task's client already has its share of it waiting.
+	 */
+	synchronized boolean enqueue(ConversionTask task) {
+		if (queuedCount >= maxQueued) {
+			return false;
+		}
+		ClientShare share = shareOf(task);
+		if (task.getClient() != null && share.queued >= maxQueuedPerClient) {
+			return false;
+		}
+		Partition partition = partitionFor(task.getType());
+		task.setPartition(partition.name);
+		task.setQueuedNanos(System.nanoTime());
+		partition.queue.add(task);
+		queuedCount++;
+		if (share.queued == 0 && share.running == 0) {
+			// a client returning after a quiet spell starts level with the others rather than with banked credit
+			share.charge = Math.max(share.charge, virtualTime);
+		}
+		share.queued++;
+		return true;
+	}
+
+	/**
+	 * Take the next conversion that has a free slot, holding the slot for it until release() is called.
+	 *
+	 * @return The conversion to run or null if none can run now.
+	 */
+	synchronized ConversionTask next() {
+		for (int i = 0; i < partitions.size(); i++) {
+			Partition partition = partitions.get((nextPartition + i) % partitions.size());
+			if (partition.queue.isEmpty()) {
+				continue;
+			}
+			boolean useReserved = partition.reservedInUse < partition.reserved;
+			if (!useReserved && (sharedInUse >= sharedSlots || partition.sharedInUse >= partition.maxShared)) {
+				continue;
+			}
+			ConversionTask task = takeFirst(partition.queue, System.nanoTime());
+			if (task == null) {
+				// every client waiting here is at its cap
+				continue;
+			}
+			queuedCount--;
+			ClientShare share = shareOf(task);
+			share.queued--;
+			share.running++;
+			virtualTime = share.charge;
+			share.charge += task.getEstimatedSeconds() / share.weight;
+			partition.runningSeconds += task.getEstimatedSeconds();
+			if (useReserved) {
+				partition.reservedInUse++;
+			} else {
+				partition.sharedInUse++;
+				sharedInUse++;
+			}
+			task.setUsesSharedSlot(!useReserved);
+			nextPartition = (nextPartition + i + 1) % partitions.size();
+			return task;
+		}
+		return null;
+	}
+
+	/**
+	 * Give back the slot held by a conversion taken with next().
+	 */
+	synchronized void release(ConversionTask task) {
+		Partition partition = partitionFor(task.getType());
+		partition.runningSeconds -= task.getEstimatedSeconds();
+		ClientShare share = shareOf(task);
+		share.running--;
+		forgetIfIdle(task, share);
+		if (task.usesSharedSlot()) {
+			partition.sharedInUse--;
+			sharedInUse--;
+		} else {
+			partition.reservedInUse--;
+		}
+	}
+
+	/**
+	 * Remove every waiting conversion, e.g. on shutdown.
+	 *
+	 * @return The conversions that were waiting.
+	 */
+	synchronized List<ConversionTask> drain() {
+		List<ConversionTask> drained = new ArrayList<ConversionTask>();
+		for (Partition partition : partitions) {
+			drained.addAll(partition.queue);
+			partition.queue.clear();
+		}
+		for (ConversionTask task : drained) {
+			ClientShare share = shareOf(task);
+			share.queued--;
+			forgetIfIdle(task, share);
+		}
+		queuedCount = 0;
+		return drained;
+	}
+
+	/**
+	 * @return The 1-based position of the task in its partition's queue in the order they would now be run, or 0
+	 * if it is not waiting.
+	 */
+	synchronized int getQueuePosition(ConversionTask task) {
+		List<ConversionTask> queue = partitionFor(task.getType()).queue;
+		if (!queue.contains(task)) {
+			return 0;
+		}
+		long now = System.nanoTime();
+		double score = score(task, now);
+		int position = 1;
+		for (ConversionTask queued : queue) {
+			if (queued != task && score(queued, now) < score) {
+				position++;
+			}
+		}
+		return position;
+	}
+
+	/**
+	 * Predict how long a queued conversion will wait before it starts: the expected time of the conversions ahead
+	 * of it in its partition and of half of those running there, spread over the slots the partition can use.
+	 *
+	 * @return The predicted wait in seconds, or 0 if the task is not waiting.
+	 */
+	synchronized double estimateWaitSeconds(ConversionTask task) {
+		Partition partition = partitionFor(task.getType());
+		if (!partition.queue.contains(task)) {
+			return 0;
+		}
+		long now = System.nanoTime();
+		double score = score(task, now);
+		double aheadSeconds = partition.runningSeconds / 2;
+		for (ConversionTask queued : partition.queue) {
+			if (queued != task && score(queued, now) < score) {
+				aheadSeconds += queued.getEstimatedSeconds();
+			}
+		}
+		int slots = partition.reserved + Math.min(partition.maxShared, sharedSlots);
+		return aheadSeconds / Math.max(1, slots);
+	}
+
+	/**
+	 * Predict how long a conversion arriving now would wait: the expected time of every queued conversion and of
+	 * half of those running, spread over all the slots.
+	 *
+	 * @return The predicted wait in seconds.
+	 */
+	public synchronized double estimateBacklogSeconds() {
+		double backlogSeconds = 0;
+		for (Partition partition : partitions) {
+			backlogSeconds += partition.runningSeconds / 2;
+			for (ConversionTask queued : partition.queue) {
+				backlogSeconds += queued.getEstimatedSeconds();
+			}
+		}
+		return backlogSeconds / totalSlots;
+	}
+
+	/*
+	 * Remove and return the next queued conversion: one of the client charged least among those not at their cap,
+	 * and of that client's conversions the one with the lowest score. Returns null if every client is at its cap.
+	 */
+	private ConversionTask takeFirst(List<ConversionTask> queue, long now) {
+		int first = -1;
+		double firstCharge = 0;
+		double firstScore = 0;
+		for (int i = 0; i < queue.size(); i++) {
+			ConversionTask task = queue.get(i);
+			ClientShare share = shareOf(task);
+			if (share.maxConcurrent > 0 && share.running >= share.maxConcurrent) {
+				continue;
+			}
+			double score = score(task, now);
+			if (first < 0 || share.charge < firstCharge || (share.charge == firstCharge && score < firstScore)) {
+				first = i;
+				firstCharge = share.charge;
+				firstScore = score;
+			}
+		}
+		return first < 0 ? null : queue.remove(first);
+	}
+
+	private ClientShare shareOf(ConversionTask task) {
+		String key = shareKey(task.getClient());
+		ClientShare share = clientShares.get(key);
+		if (share == null) {
+			Client client = task.getClient();
+			share = client == null ? new ClientShare(1, 0) : new ClientShare(client.getWeight(), client.getMaxConcurrent());
+			clientShares.put(key, share);
+		}
+		return share;
+	}
+
+	private void forgetIfIdle(ConversionTask task, ClientShare share) {
+		if (share.queued == 0 && share.running == 0) {
+			clientShares.remove(shareKey(task.getClient()));
+		}
+	}
+
+	/*
+	 * Configured clients and addresses are kept apart in case a client is configured with a name like an address.
+	 */
+	private static String shareKey(Client client) {
+		if (client == null) {
+			return "";
+		}
+		return (client.isConfigured() ? "client:" : "address:") + client.getName();
+	}
+
+	/**
+	 * @return The number of conversions of the client waiting, across all partitions.
+	 */
+	public synchronized int getQueuedCount(Client client) {
+		ClientShare share = clientShares.get(shareKey(client));
+		return share == null ? 0 : share.queued;
+	}
+
+	/**
+	 * @return The number of conversions of the client running.
+	 */
+	public synchronized int getRunningCount(Client client) {
+		ClientShare share = clientShares.get(shareKey(client));
+		return share == null ? 0 : share.running;
+	}
+
+	/*
+	 * Expected conversion time less the allowance for time already waited; lower runs sooner.
+	 */
+	private double score(ConversionTask task, long now) {
+		double waitedSeconds = (now - task.getQueuedNanos()) / (double) TimeUnit.SECONDS.toNanos(1);
+		return task.getEstimatedSeconds() - agingFactor * waitedSeconds;
+	}
+
+	synchronized int getQueuedCount() {
+		return queuedCount;
+	}
+
+	/**
+	 * @return The names of the partitions, the default partition last.
+	 */
+	public synchronized List<String> getPartitionNames() {
+		List<String> names = new ArrayList<String>();
+		for (Partition partition : partitions) {
+			names.add(partition.name);
+		}
+		return names;
+	}
+
+	/**
+	 * @return The number of conversions waiting in the named partition.
+	 */
+	public synchronized int getQueuedCount(String partitionName) {
+		Partition partition = findPartition(partitionName);
+		return partition == null ? 0 : partition.queue.size();
+	}
+
+	/**
+	 * @return The number of conversions of the named partition currently holding a slot.
+	 */
+	public synchronized int getRunningCount(String partitionName) {
+		Partition partition = findPartition(partitionName);
+		return partition == null ? 0 : partition.reservedInUse + partition.sharedInUse;
+	}
+
+	private Partition findPartition(String partitionName) {
+		for (Partition partition : partitions) {
+			if (partition.name.equals(partitionName)) {
+				return partition;
+			}
+		}
+		return null;
+	}
+
+	private Partition partitionFor(String type) {
+		Partition partition = partitionsByType.get(type);
+		return partition != null ? partition : defaultPartition;
+	}
+
+	/**
+	 * Configuration of one partition.
+	 */
+	public static class PartitionSettings {
+		private final List<String> types = new ArrayList<String>();
+		private int reserved = 0;
+		private int maxShared = Integer.MAX_VALUE;
+
+		public PartitionSettings() {
+		}
+
+		/**
+		 * @param types - lower case file name extensions of the types in the partition
+		 * @param reserved - slots only this partition can use
+		 * @param maxShared - maximum number of shared slots this partition may hold at once
+		 */
+		public PartitionSettings(List<String> types, int reserved, int maxShared) {
+			this.types.addAll(types);
+			this.reserved = reserved;
+			this.maxShared = maxShared;
+		}
+	}
+
+	private static class ClientShare {
+		private final int weight;
+		private final int maxConcurrent;
+		private int queued = 0;
+		private int running = 0;
+		private double charge = 0; // expected seconds of conversion started for the client divided by its weight
+
+		private ClientShare(int weight, int maxConcurrent) {
+			this.weight = Math.max(1, weight);
+			this.maxConcurrent = maxConcurrent;
+		}
+	}
+
+	private static class Partition {
+		private final String name;
+		private final int reserved;
+		private final int maxShared;
+		private final List<ConversionTask> queue = new ArrayList<ConversionTask>();
+		private int reservedInUse = 0;
+		private int sharedInUse = 0;
+		private double runningSeconds = 0; // expected time of the conversions holding a slot
+
+		private Partition(String name, int reserved, int maxShared) {
+			this.name = name;
+			this.reserved = Math.max(0, reserved);
+			this.maxShared = Math.max(0, maxShared);
+		}
+
+		@Override
+		public String toString() {
+			return name + " (reserved: " + reserved + ", max shared: " + maxShared + ")";
+		}
+	}
+}
@@ -0,0 +1,299 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.service.pool;
+
+import java.io.File;
+import java.util.concurrent.CompletableFuture;
+
+import org.apache.commons.io.FilenameUtils;
+
+import edu.harvard.hul.ois.drs.pdfaconvert.service.clients.Client;
+
+/**
+ * A single conversion submitted to the ConversionExecutor.
+ * The result is completed with the converted file or with the exception thrown by the converter.
+ * Identical inputs submitted while a conversion is in flight subscribe to the same task, so the converted file
+ * is shared: every caller given a task must call releaseOutput() once it is done with the converted file,
+ * or no longer wants it, and the file is deleted in the background once the last subscriber has released it.
+ * When the converted file came from the conversion result cache the task is complete as soon as it
+ * is created. Its converted file is the caller's own copy of the cached file, deleted in the same way.
+ */
+public class ConversionTask implements Runnable {
+
+	private final File inputFile;
+	private final String type;
+	private final String inputKey;
+	private final String cacheKey;
+	private final ConversionExecutor conversionExecutor;
+	private final CompletableFuture<File> result = new CompletableFuture<File>();
+	private final boolean cacheHit;
+	private volatile boolean started = false;
+	private volatile String partition;
+	private volatile Client client;
+	private boolean usesSharedSlot = false;
+	private double estimatedSeconds = 0;
+	private long queuedNanos = 0;
+	private volatile long queueWaitNanos = 0;
+	private volatile long borrowWaitNanos = 0;
+	private volatile long converterNanos = 0;
+	// completed once an abandoned examination of this task's input has stopped, null if none was abandoned
+	private volatile CompletableFuture<Void> abandonedExamination;
+	private int subscribers = 1;
+	private boolean outputDeleted = false;
+
+	/*
+	 * A conversion still to be run. The input key identifies the input's content, or is null if it could not be
+	 * read; the cache key is null if caching is disabled.
+	 */
+	ConversionTask(File inputFile, String inputKey, String cacheKey, ConversionExecutor conversionExecutor) {
+		this.inputFile = inputFile;
+		this.type = FilenameUtils.getExtension(inputFile.getName()).toLowerCase();
+		this.inputKey = inputKey;
+		this.cacheKey = cacheKey;
+		this.conversionExecutor = conversionExecutor;
+		this.cacheHit = false;
+	}
+
+	/*
+	 * A conversion already available in the conversion result cache, checked out to a file of its own.
+	 */
+	ConversionTask(File inputFile, File cachedFile, ConversionExecutor conversionExecutor) {
+		this.inputFile = inputFile;
+		this.type = FilenameUtils.getExtension(inputFile.getName()).toLowerCase();
+		this.inputKey = null;
+		this.cacheKey = null;
+		this.conversionExecutor = conversionExecutor;
+		this.cacheHit = true;
+		this.started = true;
+		this.result.complete(cachedFile);
+	}
+
+	@Override
+	public void run() {
+		started = true;
+		if (queuedNanos > 0) {
+			queueWaitNanos = System.nanoTime() - queuedNanos;
+		}
+		File convertedFile = null;
+		Throwable failure = null;
+		try {
+			convertedFile = conversionExecutor.convert(inputFile, type, this);
+			if (convertedFile != null) {
+				conversionExecutor.getOutputDeletionQueue().track(convertedFile);
+			}
+			if (cacheKey != null) {
+				conversionExecutor.cacheResult(cacheKey, convertedFile);
+			}
+		} catch (Throwable t) {
+			failure = t;
+		}
+		// take no more subscribers so a retry after a failure gets a fresh conversion
+		conversionExecutor.conversionFinished(this);
+		if (failure != null) {
+			result.completeExceptionally(failure);
+		} else {
+			result.complete(convertedFile);
+		}
+		synchronized (this) {
+			if (subscribers == 0) {
+				deleteOutput();
+			}
+		}
+	}
+
+	/*
+	 * Note that the conversion was abandoned while the converter was still examining the input. The task's converter
+	 * slot is held until the examination has stopped.
+	 */
+	void setAbandonedExamination(CompletableFuture<Void> abandonedExamination) {
+		this.abandonedExamination = abandonedExamination;
+	}
+
+	/*
+	 * Returns the examination abandoned by the conversion, or null if it was not abandoned.
+	 */
+	CompletableFuture<Void> getAbandonedExamination() {
+		return abandonedExamination;
+	}
+
+	/**
+	 * Add a subscriber to the conversion, taking a share of its converted file that must be given up with
+	 * releaseOutput(). Identical inputs subscribe to a conversion in flight, and a finished job's result subscribes
+	 * for as long as the converted file is being sent.
+	 *
+	 * @return false if every subscriber has already released the task, in which case its output is being discarded.
+	 */
+	public synchronized boolean subscribe() {
+		if (subscribers == 0) {
+			return false;
+		}
+		subscribers++;
+		return true;
+	}
+
+	/**
+	 * Give up this caller's share of the converted file. Once every subscriber has released it, the converted file
+	 * is handed to the OutputDeletionQueue, straight away if the conversion has finished or else as soon as it does.
+	 *
+	 * @return true if the converted file was handed over for deletion by this call.
+	 */
+	public synchronized boolean releaseOutput() {
+		if (subscribers == 0) {
+			return false;
+		}
+		subscribers--;
+		if (subscribers == 0 && result.isDone()) {
+			return deleteOutput();
+		}
+		return false;
+	}
+
+	/**
+	 * @return The number of callers sharing this conversion that have not yet released it.
+	 */
+	public synchronized int getSubscriberCount() {
+		return subscribers;
+	}
+
+	private boolean deleteOutput() {
+		if (outputDeleted || result.isCompletedExceptionally()) {
+			return false;
+		}
+		outputDeleted = true;
+		File convertedFile = result.getNow(null);
+		if (convertedFile == null) {
+			return false;
+		}
+		// deleted in the background so the releasing request thread does not wait on the file system
+		conversionExecutor.getOutputDeletionQueue().delete(convertedFile);
+		return true;
+	}
+
+	/*
+	 * The key identifying the input's content, used to find conversions in flight.
+	 */
+	String getInputKey() {
+		return inputKey;
+	}
+
+	public File getInputFile() {
+		return inputFile;
+	}
+
+	/**
+	 * @return The type of the input file, by which the conversion is assigned to a partition of the converter slots.
+	 */
+	public String getType() {
+		return type;
+	}
+
+	/**
+	 * @return The client the conversion was submitted for, or null if none was identified.
+	 */
+	public Client getClient() {
+		return client;
+	}
+
+	void setClient(Client client) {
+		this.client = client;
+	}
+
+	/**
+	 * @return The name of the partition the conversion was queued in, or null if it was never queued.
+	 */
+	public String getPartition() {
+		return partition;
+	}
+
+	void setPartition(String partition) {
+		this.partition = partition;
+	}
+
+	/**
+	 * @return The predicted conversion time in seconds, by which the conversion is ordered in its queue.
+	 */
+	public double getEstimatedSeconds() {
+		return estimatedSeconds;
+	}
+
+	void setEstimatedSeconds(double estimatedSeconds) {
+		this.estimatedSeconds = estimatedSeconds;
+	}
+
+	/*
+	 * Record how long the conversion waited to borrow a converter and how long the converter took.
+	 */
+	void recordConverterTimes(long borrowWaitNanos, long converterNanos) {
+		this.borrowWaitNanos = borrowWaitNanos;
+		this.converterNanos = converterNanos;
+	}
+
+	/**
+	 * @return Nanoseconds the conversion waited for a converter slot, 0 if it was never queued.
+	 */
+	public long getQueueWaitNanos() {
+		return queueWaitNanos;
+	}
+
+	/**
+	 * @return Nanoseconds the conversion waited to borrow a converter from the pool, 0 if it has not yet borrowed one.
+	 */
+	public long getBorrowWaitNanos() {
+		return borrowWaitNanos;
+	}
+
+	/**
+	 * @return Nanoseconds the converter took, 0 if it has not finished.
+	 */
+	public long getConverterNanos() {
+		return converterNanos;
+	}
+
+	long getQueuedNanos() {
+		return queuedNanos;
+	}
+
+	void setQueuedNanos(long queuedNanos) {
+		this.queuedNanos = queuedNanos;
+	}
+
+	/*
+	 * Whether the slot held while running is a shared one rather than one reserved for the partition.
+	 * Only accessed by ConversionScheduler while holding its lock.
+	 */
+	boolean usesSharedSlot() {
+		return usesSharedSlot;
+	}
+
+	void setUsesSharedSlot(boolean usesSharedSlot) {
+		this.usesSharedSlot = usesSharedSlot;
+	}
+
+	/**
+	 * @return The future completed when the conversion has finished.
+	 */
+	public CompletableFuture<File> getResult() {
+		return result;
+	}
+
+	/**
+	 * @return true if the converted file was served from the conversion result cache.
+	 */
+	public boolean isCacheHit() {
+		return cacheHit;
+	}
+
+	/**
+	 * @return true once a conversion thread has picked up this task.
+	 */
+	public boolean isStarted() {
+		return started;
+	}
+}
@@ -0,0 +1,28 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.service.pool;
+
+/**
+ * Thrown when a conversion does not finish within the timeout for its type and has been cancelled.
+ */
+public class ConversionTimeoutException extends Exception {
+	private static final long serialVersionUID = 1L;
+
+	private final long timeoutSeconds;
+
+	public ConversionTimeoutException(String inputName, long timeoutSeconds) {
+		super("Conversion of " + inputName + " did not finish within " + timeoutSeconds + " seconds and was cancelled");
+		this.timeoutSeconds = timeoutSeconds;
+	}
+
+	public long getTimeoutSeconds() {
+		return timeoutSeconds;
+	}
+}
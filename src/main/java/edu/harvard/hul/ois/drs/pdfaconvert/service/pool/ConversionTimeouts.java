@@ -0,0 +1,73 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.service.pool;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.commons.io.FilenameUtils;
+
+/**
+ * The time a single conversion may take before it is cancelled, by type of input file.
+ * The type is the file name extension of the input file. Types without a timeout of their own use the default.
+ * A timeout of 0 means no limit.
+ */
+public class ConversionTimeouts {
+
+	/** Property holding the default timeout in seconds. A type's timeout is set by appending '.' and the extension. */
+	public static final String TIMEOUT_PROPERTY = "conversion.timeout.seconds";
+
+	private final long defaultTimeoutSeconds;
+	private final Map<String, Long> timeoutSecondsByType;
+
+	/**
+	 * @param defaultTimeoutSeconds - timeout for types without one of their own, 0 for no limit
+	 * @param timeoutSecondsByType - timeouts keyed by lower case file name extension
+	 */
+	public ConversionTimeouts(long defaultTimeoutSeconds, Map<String, Long> timeoutSecondsByType) {
+		this.defaultTimeoutSeconds = defaultTimeoutSeconds;
+		this.timeoutSecondsByType = new HashMap<String, Long>(timeoutSecondsByType);
+	}
+
+	/**
+	 * Read the timeouts from the application properties.
+	 *
+	 * @param applicationProps - the application properties
+	 * @param defaultTimeoutSeconds - default used if the properties do not set one
+	 * @return The timeouts.
+	 */
+	public static ConversionTimeouts fromProperties(Properties applicationProps, String defaultTimeoutSeconds) {
+		long timeoutSeconds = Long.valueOf(applicationProps.getProperty(TIMEOUT_PROPERTY, defaultTimeoutSeconds));
+		Map<String, Long> byType = new HashMap<String, Long>();
+		String typePrefix = TIMEOUT_PROPERTY + '.';
+		for (String name : applicationProps.stringPropertyNames()) {
+			if (name.startsWith(typePrefix)) {
+				byType.put(name.substring(typePrefix.length()).toLowerCase(), Long.valueOf(applicationProps.getProperty(name).trim()));
+			}
+		}
+		return new ConversionTimeouts(timeoutSeconds, byType);
+	}
+
+	/**
+	 * @param inputFile - the file to convert
+	 * @return The timeout in seconds for converting the file, 0 for no limit.
+	 */
+	public long getTimeoutSeconds(File inputFile) {
+		Long timeoutSeconds = timeoutSecondsByType.get(FilenameUtils.getExtension(inputFile.getName()).toLowerCase());
+		return timeoutSeconds != null ? timeoutSeconds : defaultTimeoutSeconds;
+	}
+
+	@Override
+	public String toString() {
+		return "default: " + defaultTimeoutSeconds + "s -- by type: " + timeoutSecondsByType;
+	}
+}
@@ -0,0 +1,279 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.service.pool;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.security.CodeSource;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import edu.harvard.hul.ois.drs.pdfaconvert.ExternalToolException;
+import edu.harvard.hul.ois.drs.pdfaconvert.GeneratedFileUnavailableException;
+import edu.harvard.hul.ois.drs.pdfaconvert.PdfaConvert;
+import edu.harvard.hul.ois.drs.pdfaconvert.UnknownFileTypeException;
+
+/**
+ * A long-lived converter process owned by one PdfaConverterWrapper, running ConverterWorkerMain in its own JVM, so
+ * the conversions of that wrapper run outside the service's JVM and the converter is started once per worker rather
+ * than once per document. Where the <code>setsid</code> command is available the worker is started in a process
+ * group of its own, which the external tools launched by the converter join, so that stopping the worker also stops
+ * any tool it left running.
+ */
+public class ConverterWorker {
+
+	private static final Logger logger = LogManager.getLogger();
+	private static final String[] SETSID_LOCATIONS = { "/usr/bin/setsid", "/bin/setsid" };
+	private static final long STOP_WAIT_SECONDS = 5;
+
+	private final List<String> command;
+	private final long startupTimeoutMillis;
+	private final boolean ownProcessGroup;
+	private volatile Process process;
+	private volatile String pid;
+	private BufferedReader replies;
+	private Writer requests;
+
+	/**
+	 * @param command - the command starting the worker process, e.g. from javaCommand()
+	 * @param startupTimeoutMillis - time the worker process is given to report that it is ready
+	 */
+	public ConverterWorker(List<String> command, long startupTimeoutMillis) {
+		this.command = new ArrayList<String>(command);
+		this.startupTimeoutMillis = startupTimeoutMillis;
+		this.ownProcessGroup = command.size() > 0 && isSetsid(command.get(0));
+	}
+
+	/**
+	 * Build the command starting a worker in a JVM like this one: the same java executable, with the classpath
+	 * holding the converter's jar and those beside it and this class's location, and the converter's system
+	 * properties passed on. The worker is put in its own process group where possible.
+	 *
+	 * @param javaOptions - further options for the worker's JVM, e.g. -Xmx512m, split on whitespace
+	 * @return The command.
+	 */
+	public static List<String> javaCommand(String javaOptions) {
+		List<String> command = new ArrayList<String>();
+		for (String setsid : SETSID_LOCATIONS) {
+			if (new File(setsid).canExecute()) {
+				command.add(setsid);
+				break;
+			}
+		}
+		command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+		for (String option : StringUtils.split(StringUtils.defaultString(javaOptions))) {
+			command.add(option);
+		}
+		for (Map.Entry<Object, Object> property : System.getProperties().entrySet()) {
+			String name = property.getKey().toString();
+			if (name.startsWith("pdfaConverter.")) {
+				command.add("-D" + name + "=" + property.getValue());
+			}
+		}
+		command.add("-cp");
+		command.add(workerClassPath());
+		command.add(ConverterWorkerMain.class.getName());
+		return command;
+	}
+
+	/*
+	 * The location of the converter and of the worker's main class. A jar brings every jar in its directory, which
+	 * for the converter is the lib directory of its home holding the libraries it needs.
+	 */
+	private static String workerClassPath() {
+		Set<String> entries = new LinkedHashSet<String>();
+		for (Class<?> cls : new Class<?>[] { PdfaConvert.class, ConverterWorkerMain.class }) {
+			CodeSource codeSource = cls.getProtectionDomain().getCodeSource();
+			if (codeSource == null) {
+				continue;
+			}
+			try {
+				File location = new File(codeSource.getLocation().toURI());
+				entries.add(location.isFile() ? new File(location.getParentFile(), "*").getPath() : location.getPath());
+			} catch (URISyntaxException | IllegalArgumentException e) {
+				logger.warn("Unable to find location of {}: {}", cls.getName(), e.getMessage());
+			}
+		}
+		return StringUtils.join(entries, File.pathSeparator);
+	}
+
+	private static boolean isSetsid(String executable) {
+		for (String setsid : SETSID_LOCATIONS) {
+			if (setsid.equals(executable)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Start the worker process and wait for it to report that it is ready.
+	 *
+	 * @throws IOException if the process cannot be started, exits during start-up or is not ready in time
+	 */
+	public synchronized void start() throws IOException {
+		logger.debug("Starting converter worker: {}", command);
+		ProcessBuilder processBuilder = new ProcessBuilder(command);
+		processBuilder.redirectError(ProcessBuilder.Redirect.INHERIT);
+		process = processBuilder.start();
+		replies = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+		requests = new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8);
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(startupTimeoutMillis);
+		try {
+			while (!replies.ready()) {
+				if (!process.isAlive()) {
+					throw new IOException("Converter worker exited during start-up with status " + process.exitValue());
+				}
+				if (System.nanoTime() > deadline) {
+					throw new IOException("Converter worker not ready after " + startupTimeoutMillis + "ms");
+				}
+				Thread.sleep(20);
+			}
+			String reply = replies.readLine();
+			if (reply == null || !reply.startsWith(ConverterWorkerMain.READY + " ")) {
+				throw new IOException("Converter worker did not start: " + reply);
+			}
+			pid = reply.substring(ConverterWorkerMain.READY.length() + 1).trim();
+			logger.info("Started converter worker {}", pid);
+		} catch (InterruptedException e) {
+			kill();
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while starting converter worker", e);
+		} catch (IOException e) {
+			kill();
+			throw e;
+		}
+	}
+
+	/**
+	 * Convert a file in the worker process.
+	 *
+	 * @param inputFile - the file to convert
+	 * @return The converted file.
+	 * @throws IOException if the worker process has exited or exits during the conversion
+	 * @throws Exception the exception thrown by the converter
+	 */
+	public synchronized File examine(File inputFile) throws Exception {
+		return new File(request(ConverterWorkerMain.EXAMINE + " " + ConverterWorkerMain.escape(inputFile.getAbsolutePath())));
+	}
+
+	/**
+	 * @return The version of the converter in the worker process.
+	 * @throws Exception if the worker process does not answer
+	 */
+	public synchronized String getVersion() throws Exception {
+		return request(ConverterWorkerMain.VERSION);
+	}
+
+	private String request(String request) throws Exception {
+		if (!isAlive()) {
+			throw new IOException("Converter worker " + pid + " is not running");
+		}
+		requests.write(request);
+		requests.write('\n');
+		requests.flush();
+		String reply = replies.readLine();
+		if (reply == null) {
+			throw new IOException("Converter worker " + pid + " exited");
+		}
+		if (reply.startsWith(ConverterWorkerMain.OK + " ")) {
+			return ConverterWorkerMain.unescape(reply.substring(ConverterWorkerMain.OK.length() + 1));
+		}
+		String[] error = StringUtils.split(reply, " ", 3);
+		throw toException(error.length > 1 ? error[1] : "", ConverterWorkerMain.unescape(error.length > 2 ? error[2] : reply));
+	}
+
+	/*
+	 * Recreate the converter's exceptions so that failures are reported as they would be for an in-process converter.
+	 */
+	private static Exception toException(String className, String message) {
+		if (UnknownFileTypeException.class.getName().equals(className)) {
+			return new UnknownFileTypeException(message);
+		} else if (GeneratedFileUnavailableException.class.getName().equals(className)) {
+			return new GeneratedFileUnavailableException(message);
+		} else if (ExternalToolException.class.getName().equals(className)) {
+			return new ExternalToolException(message);
+		}
+		return new ExternalToolException(className + ": " + message);
+	}
+
+	/**
+	 * @return true if the worker process is running. Does not wait for a conversion in progress.
+	 */
+	public boolean isAlive() {
+		Process current = process;
+		return current != null && current.isAlive();
+	}
+
+	/**
+	 * Stop the worker process, giving it a few seconds to exit once its input is closed before killing it.
+	 * Does not wait for a conversion in progress: the worker is killed and the conversion fails.
+	 */
+	public void stop() {
+		Process current = process;
+		if (current == null) {
+			return;
+		}
+		try {
+			current.getOutputStream().close();
+			if (!current.waitFor(STOP_WAIT_SECONDS, TimeUnit.SECONDS)) {
+				logger.warn("Converter worker {} did not exit -- killing it", pid);
+			}
+		} catch (IOException e) {
+			logger.debug("Unable to close input of converter worker {}: {}", pid, e.getMessage());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		// the tools the converter started may outlive the worker itself
+		kill();
+	}
+
+	/**
+	 * Kill the worker process at once, along with its process group if it has its own. Does not wait for a
+	 * conversion in progress, which fails once the worker is gone.
+	 */
+	public void kill() {
+		Process current = process;
+		if (current == null) {
+			return;
+		}
+		if (ownProcessGroup && pid != null) {
+			try {
+				Process kill = new ProcessBuilder("kill", "-KILL", "--", "-" + pid).redirectErrorStream(true)
+						.redirectOutput(ProcessBuilder.Redirect.appendTo(new File("/dev/null"))).start();
+				kill.waitFor(STOP_WAIT_SECONDS, TimeUnit.SECONDS);
+			} catch (IOException e) {
+				logger.warn("Unable to kill process group of converter worker {}: {}", pid, e.getMessage());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		current.destroyForcibly();
+	}
+
+	@Override
+	public String toString() {
+		return "converter worker " + pid;
+	}
+}
@@ -0,0 +1,119 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.service.pool;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+
+import edu.harvard.hul.ois.drs.pdfaconvert.PdfaConvert;
+
+/**
+ * Entry point of a converter worker process started by ConverterWorker. The worker holds one PdfaConvert and runs
+ * the conversions it is sent one at a time, reading one request per line on standard input and answering each with
+ * one line on standard output:
+ * <pre>
+ * EXAMINE /path/to/input.docx  -&gt;  OK /path/to/output.pdf  or  ERROR exception.ClassName message
+ * VERSION                      -&gt;  OK version              or  ERROR exception.ClassName message
+ * </pre>
+ * Paths and messages are escaped so that each stays on its line: a backslash is sent as <code>\\</code>, a line
+ * feed as <code>\n</code> and a carriage return as <code>\r</code>.
+ * Once the converter has been created the worker reports <code>READY pid</code>. It exits when its standard input is
+ * closed. Anything the converter itself prints to standard output goes to standard error instead so that it cannot
+ * be taken for an answer. Only PdfaConvert and the JDK are used here since the worker runs outside the web application.
+ */
+public final class ConverterWorkerMain {
+
+	static final String READY = "READY";
+	static final String EXAMINE = "EXAMINE";
+	static final String VERSION = "VERSION";
+	static final String OK = "OK";
+	static final String ERROR = "ERROR";
+
+	private ConverterWorkerMain() {
+	}
+
+	public static void main(String[] args) throws IOException {
+		PrintStream replies = new PrintStream(new FileOutputStream(FileDescriptor.out), true, StandardCharsets.UTF_8.name());
+		System.setOut(System.err);
+		BufferedReader requests = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+		PdfaConvert pdfaConvert = new PdfaConvert();
+		// the runtime name is pid@host
+		String pid = ManagementFactory.getRuntimeMXBean().getName().split("@")[0];
+		replies.println(READY + " " + pid);
+		String request;
+		while ((request = requests.readLine()) != null) {
+			replies.println(handle(pdfaConvert, request));
+		}
+	}
+
+	private static String handle(PdfaConvert pdfaConvert, String request) {
+		try {
+			if (request.startsWith(EXAMINE + " ")) {
+				File inputFile = new File(unescape(request.substring(EXAMINE.length() + 1)));
+				File convertedFile = pdfaConvert.examine(inputFile, true).getPdfaConvertedFile();
+				if (convertedFile == null) {
+					return ERROR + " " + IllegalStateException.class.getName() + " Converter produced no output";
+				}
+				return OK + " " + escape(convertedFile.getAbsolutePath());
+			} else if (request.equals(VERSION)) {
+				return OK + " " + escape(String.valueOf(pdfaConvert.getVersion()));
+			}
+			return ERROR + " " + IllegalArgumentException.class.getName() + " " + escape("Unknown request: " + request);
+		} catch (Throwable t) {
+			return ERROR + " " + t.getClass().getName() + " " + escape(t.getMessage() != null ? t.getMessage() : "");
+		}
+	}
+
+	/**
+	 * @param text - a path or message to send on one line
+	 * @return The text with its backslashes and line breaks escaped.
+	 */
+	static String escape(String text) {
+		StringBuilder sb = new StringBuilder(text.length() + 16);
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (c == '\\') {
+				sb.append("\\\\");
+			} else if (c == '\n') {
+				sb.append("\\n");
+			} else if (c == '\r') {
+				sb.append("\\r");
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @param escaped - text escaped by escape()
+	 * @return The text as it was before it was escaped.
+	 */
+	static String unescape(String escaped) {
+		StringBuilder sb = new StringBuilder(escaped.length());
+		for (int i = 0; i < escaped.length(); i++) {
+			char c = escaped.charAt(i);
+			if (c == '\\' && i + 1 < escaped.length()) {
+				char next = escaped.charAt(++i);
+				sb.append(next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,352 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.service.pool;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Deletes converted files in the background so that the threads releasing them, usually request threads, do not
+ * wait on the file system. Files handed over are deleted in batches, either once enough are waiting or after a
+ * short interval, and a file that cannot be deleted is tried again in later batches up to a maximum number of
+ * attempts.
+ * <p>
+ * Converted files are tracked from the moment the converter produces them until they are handed over, so that
+ * every so often the output directories of the PDF/A Converter can be reconciled against them: any file there
+ * that is neither tracked nor waiting to be deleted, and is older than the minimum age, has been left behind,
+ * e.g. by a delete that gave up or a conversion abandoned part way, and is deleted. This keeps the output
+ * directories from filling up with leftovers. The output directories are those the converted files were written
+ * to, so they are expected to belong to this service.
+ * <p>
+ * Configured in the application properties, for example:
+ * <pre>
+ * output.delete.batch.size=64
+ * output.delete.interval.millis=500
+ * output.delete.max.attempts=5
+ * output.reconcile.interval.minutes=10
+ * output.reconcile.min.age.minutes=30
+ * </pre>
+ */
+public class OutputDeletionQueue {
+
+	private static final Logger logger = LogManager.getLogger();
+	private static final String DEFAULT_BATCH_SIZE = "64";
+	private static final String DEFAULT_INTERVAL = "500"; // in milliseconds
+	private static final String DEFAULT_MAX_ATTEMPTS = "5";
+	private static final String DEFAULT_RECONCILE_INTERVAL = "10"; // in minutes - 0 means no reconciliation
+	private static final String DEFAULT_RECONCILE_MIN_AGE = "30"; // in minutes
+
+	private final int batchSize;
+	private final long intervalMillis;
+	private final int maxAttempts;
+	private final long reconcileIntervalMillis;
+	private final long reconcileMinAgeMillis;
+	private ScheduledExecutorService deleter;
+
+	// converted files not yet handed over, with their sizes
+	private final Map<File, Long> liveOutputs = new ConcurrentHashMap<File, Long>();
+	// directories converted files have been written to
+	private final Set<File> outputDirs = ConcurrentHashMap.newKeySet();
+	private final ConcurrentLinkedQueue<PendingDeletion> pending = new ConcurrentLinkedQueue<PendingDeletion>();
+	private final Set<File> pendingFiles = ConcurrentHashMap.newKeySet();
+	private final AtomicInteger pendingCount = new AtomicInteger();
+	private final AtomicLong pendingBytes = new AtomicLong();
+	private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+	private final LongAdder deletedCount = new LongAdder();
+	private final LongAdder retriedCount = new LongAdder();
+	private final LongAdder failedCount = new LongAdder();
+	private final LongAdder reconciledCount = new LongAdder();
+	private final LongAdder batchCount = new LongAdder();
+
+	/**
+	 * @param batchSize - number of waiting files that starts a batch straight away
+	 * @param intervalMillis - longest a file waits for a batch
+	 * @param maxAttempts - attempts at deleting a file before it is left for reconciliation
+	 * @param reconcileIntervalMillis - time between reconciliations of the output directories, 0 for none
+	 * @param reconcileMinAgeMillis - age below which untracked files in the output directories are left alone
+	 */
+	public OutputDeletionQueue(int batchSize, long intervalMillis, int maxAttempts, long reconcileIntervalMillis,
+			long reconcileMinAgeMillis) {
+		this.batchSize = Math.max(1, batchSize);
+		this.intervalMillis = Math.max(1, intervalMillis);
+		this.maxAttempts = Math.max(1, maxAttempts);
+		this.reconcileIntervalMillis = reconcileIntervalMillis;
+		this.reconcileMinAgeMillis = reconcileMinAgeMillis;
+	}
+
+	/**
+	 * Set up the deletion queue from the application properties.
+	 *
+	 * @param applicationProps - the application properties
+	 * @return The deletion queue, not yet started.
+	 */
+	public static OutputDeletionQueue fromProperties(Properties applicationProps) {
+		int batchSize = Integer.valueOf(applicationProps.getProperty("output.delete.batch.size", DEFAULT_BATCH_SIZE).trim());
+		long intervalMillis = Long.valueOf(applicationProps.getProperty("output.delete.interval.millis", DEFAULT_INTERVAL).trim());
+		int maxAttempts = Integer.valueOf(applicationProps.getProperty("output.delete.max.attempts", DEFAULT_MAX_ATTEMPTS).trim());
+		long reconcileMinutes = Long.valueOf(applicationProps.getProperty("output.reconcile.interval.minutes", DEFAULT_RECONCILE_INTERVAL).trim());
+		long reconcileMinAgeMinutes = Long.valueOf(applicationProps.getProperty("output.reconcile.min.age.minutes", DEFAULT_RECONCILE_MIN_AGE).trim());
+		logger.info("Converted files deleted in batches of {} at least every {}ms, {} attempts each -- output directories reconciled every {} minutes",
+				batchSize, intervalMillis, maxAttempts, reconcileMinutes);
+		return new OutputDeletionQueue(batchSize, intervalMillis, maxAttempts, TimeUnit.MINUTES.toMillis(reconcileMinutes),
+				TimeUnit.MINUTES.toMillis(reconcileMinAgeMinutes));
+	}
+
+	/**
+	 * Start deleting in the background.
+	 */
+	public synchronized void start() {
+		deleter = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "pdfa-output-deleter");
+			thread.setDaemon(true);
+			return thread;
+		});
+		deleter.scheduleWithFixedDelay(this::flush, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+		if (reconcileIntervalMillis > 0) {
+			deleter.scheduleWithFixedDelay(this::reconcile, reconcileIntervalMillis, reconcileIntervalMillis,
+					TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Stop deleting in the background and make a last attempt at the files still waiting.
+	 */
+	public synchronized void shutdown() {
+		if (deleter != null) {
+			deleter.shutdownNow();
+			try {
+				deleter.awaitTermination(5, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			deleter = null;
+		}
+		PendingDeletion deletion;
+		while ((deletion = poll()) != null) {
+			if (!deletion.file.delete() && deletion.file.exists()) {
+				failedCount.increment();
+			} else {
+				deletedCount.increment();
+			}
+		}
+	}
+
+	/**
+	 * Track a file the converter has just produced until it is handed over for deletion.
+	 *
+	 * @param convertedFile - the converted file
+	 */
+	public void track(File convertedFile) {
+		liveOutputs.put(convertedFile, convertedFile.length());
+		File outputDir = convertedFile.getAbsoluteFile().getParentFile();
+		if (outputDir != null) {
+			outputDirs.add(outputDir);
+		}
+	}
+
+	/**
+	 * Hand a converted file over to be deleted in the background.
+	 *
+	 * @param convertedFile - the converted file, which is no longer used
+	 */
+	public void delete(File convertedFile) {
+		Long size = liveOutputs.remove(convertedFile);
+		enqueue(new PendingDeletion(convertedFile, size != null ? size : 0));
+	}
+
+	private void enqueue(PendingDeletion deletion) {
+		if (!pendingFiles.add(deletion.file)) {
+			return; // already waiting
+		}
+		pendingBytes.addAndGet(deletion.size);
+		pending.add(deletion);
+		if (pendingCount.incrementAndGet() >= batchSize && flushScheduled.compareAndSet(false, true)) {
+			// start a batch now rather than wait for the interval to pass
+			ScheduledExecutorService deleter = this.deleter;
+			if (deleter != null) {
+				try {
+					deleter.execute(this::flush);
+				} catch (RejectedExecutionException e) {
+					flushScheduled.set(false);
+				}
+			} else {
+				flushScheduled.set(false);
+			}
+		}
+	}
+
+	private PendingDeletion poll() {
+		PendingDeletion deletion = pending.poll();
+		if (deletion != null) {
+			pendingCount.decrementAndGet();
+			pendingBytes.addAndGet(-deletion.size);
+			pendingFiles.remove(deletion.file);
+		}
+		return deletion;
+	}
+
+	/*
+	 * Delete the waiting files a batch at a time. Files that could not be deleted go back on the queue for the next
+	 * flush, once this one has finished, until they run out of attempts.
+	 */
+	void flush() {
+		flushScheduled.set(false);
+		List<PendingDeletion> retries = new ArrayList<PendingDeletion>();
+		try {
+			List<PendingDeletion> batch = new ArrayList<PendingDeletion>(batchSize);
+			PendingDeletion deletion;
+			do {
+				batch.clear();
+				while (batch.size() < batchSize && (deletion = poll()) != null) {
+					batch.add(deletion);
+				}
+				if (batch.isEmpty()) {
+					break;
+				}
+				batchCount.increment();
+				for (PendingDeletion batched : batch) {
+					if (batched.file.delete() || !batched.file.exists()) {
+						deletedCount.increment();
+					} else if (++batched.attempts < maxAttempts) {
+						retriedCount.increment();
+						retries.add(batched);
+					} else {
+						failedCount.increment();
+						logger.warn("Converted file NOT deleted after {} attempts: {}", batched.attempts, batched.file.getName());
+					}
+				}
+			} while (batch.size() == batchSize);
+		} catch (RuntimeException e) {
+			// keep the deleter scheduled
+			logger.error("Converted file deletion failed: " + e.getMessage(), e);
+		}
+		for (PendingDeletion retry : retries) {
+			enqueue(retry);
+		}
+	}
+
+	/*
+	 * Queue for deletion the files in the output directories that are neither tracked nor already waiting and are
+	 * old enough not to belong to a conversion that is still writing them.
+	 */
+	void reconcile() {
+		try {
+			long olderThan = System.currentTimeMillis() - reconcileMinAgeMillis;
+			long leftovers = 0;
+			for (File outputDir : outputDirs) {
+				File[] files = outputDir.listFiles();
+				if (files == null) {
+					continue;
+				}
+				for (File file : files) {
+					if (!file.isFile() || liveOutputs.containsKey(file) || pendingFiles.contains(file)) {
+						continue;
+					}
+					long lastModified = file.lastModified();
+					if (lastModified != 0 && lastModified < olderThan) {
+						enqueue(new PendingDeletion(file, file.length()));
+						leftovers++;
+					}
+				}
+			}
+			if (leftovers > 0) {
+				reconciledCount.add(leftovers);
+				logger.warn("Found {} leftover converted files in the output directories", leftovers);
+			}
+		} catch (RuntimeException e) {
+			// keep the deleter scheduled
+			logger.error("Output directory reconciliation failed: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * @return The number of converted files waiting to be deleted.
+	 */
+	public int getPendingCount() {
+		return pendingCount.get();
+	}
+
+	/**
+	 * @return The total size of the converted files waiting to be deleted.
+	 */
+	public long getPendingBytes() {
+		return pendingBytes.get();
+	}
+
+	/**
+	 * @return The number of converted files not yet handed over for deletion.
+	 */
+	public int getLiveCount() {
+		return liveOutputs.size();
+	}
+
+	/**
+	 * @return The number of converted files deleted since startup.
+	 */
+	public long getDeletedCount() {
+		return deletedCount.sum();
+	}
+
+	/**
+	 * @return The number of failed deletions that were tried again.
+	 */
+	public long getRetriedCount() {
+		return retriedCount.sum();
+	}
+
+	/**
+	 * @return The number of converted files given up on after the maximum number of attempts.
+	 */
+	public long getFailedCount() {
+		return failedCount.sum();
+	}
+
+	/**
+	 * @return The number of leftover files found in the output directories by reconciliation.
+	 */
+	public long getReconciledCount() {
+		return reconciledCount.sum();
+	}
+
+	/**
+	 * @return The number of batches of deletions since startup.
+	 */
+	public long getBatchCount() {
+		return batchCount.sum();
+	}
+
+	private static class PendingDeletion {
+		private final File file;
+		private final long size;
+		private int attempts = 0;
+
+		private PendingDeletion(File file, long size) {
+			this.file = file;
+			this.size = size;
+		}
+	}
+}
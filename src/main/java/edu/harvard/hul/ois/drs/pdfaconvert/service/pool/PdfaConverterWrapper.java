@@ -9,6 +9,9 @@ See the License for the specific language governing permission and limitations u
 */
 package edu.harvard.hul.ois.drs.pdfaconvert.service.pool;
 
+import java.io.File;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import javax.servlet.ServletException;
 
 import org.apache.logging.log4j.LogManager;
@@ -18,11 +21,19 @@ import edu.harvard.hul.ois.drs.pdfaconvert.PdfaConvert;
 
 /**
  * Wrapper around a pdfaConvert instance
- *
+ * or, if converter workers are enabled, around the long-lived converter process owned by this wrapper, which then
+ * runs the wrapper's conversions in a PdfaConvert of its own.
  */
 public class PdfaConverterWrapper {
 	
 	private PdfaConvert pdfaConvert;
+	private volatile boolean invalidated = false;
+	private ConverterWorker converterWorker;
+	private final long createdTime = System.currentTimeMillis();
+	private final AtomicInteger useCount = new AtomicInteger();
+	private final int id = nextId.incrementAndGet();
+
+	private static final AtomicInteger nextId = new AtomicInteger();
 
 	private static Logger logger = LogManager.getLogger();
 
@@ -43,12 +54,146 @@ public class PdfaConverterWrapper {
         logger.debug("Wrapper contains new PdfaConvert instance");
     }
 
+    /**
+     * Create a wrapper owning a started converter worker. No converter is created in the service's JVM.
+     */
+    public PdfaConverterWrapper(ConverterWorker converterWorker) {
+        logger.debug("Creating new PdfaConverter wrapper for {}", converterWorker);
+        this.converterWorker = converterWorker;
+    }
+
+    /**
+     * Wrap an existing converter, e.g. a stub converter for benchmarks.
+     */
+    public PdfaConverterWrapper(PdfaConvert pdfaConvert) {
+        this.pdfaConvert = pdfaConvert;
+    }
+
+    /**
+     * @return The converter in the service's JVM, or null if this wrapper's conversions run in a converter worker.
+     */
     public PdfaConvert getPdfaConvert(){
         return pdfaConvert;
     }
 
+    /**
+     * @return The version of the converter, asked of this wrapper's converter worker if it has one.
+     * @throws Exception if the converter does not answer
+     */
+    public String getVersion() throws Exception {
+        if (converterWorker != null) {
+            return converterWorker.getVersion();
+        }
+        return pdfaConvert.getVersion();
+    }
+
+    /**
+     * Convert a file, in this wrapper's converter worker if it has one.
+     *
+     * @param inputFile - the file to convert
+     * @return The converted file.
+     * @throws Exception the exception thrown by the converter, or an IOException if the converter worker has exited
+     */
+    public File examine(File inputFile) throws Exception {
+        if (converterWorker != null) {
+            return converterWorker.examine(inputFile);
+        }
+        return pdfaConvert.examine(inputFile, true).getPdfaConvertedFile();
+    }
+
+    /**
+     * Delete a file converted by this wrapper's converter.
+     *
+     * @param convertedFile - the converted file
+     */
+    public void deleteConvertedFile(File convertedFile) {
+        if (converterWorker != null) {
+            convertedFile.delete();
+        } else {
+            pdfaConvert.deleteConvertedFile(convertedFile.getName());
+        }
+    }
+
+    /**
+     * @return The number identifying this wrapper among all the wrappers created since startup.
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Count a conversion run by this wrapper's converter.
+     */
+    public void recordUse() {
+        useCount.incrementAndGet();
+    }
+
+    /**
+     * @return The number of conversions run by this wrapper's converter.
+     */
+    public int getUseCount() {
+        return useCount.get();
+    }
+
+    /**
+     * @return Milliseconds since this wrapper was created.
+     */
+    public long getAgeMillis() {
+        return System.currentTimeMillis() - createdTime;
+    }
+
+    /**
+     * Check that the converter responds by asking it for its version.
+     *
+     * @return true if the converter answered.
+     */
+    public boolean probe() {
+        try {
+            return getVersion() != null;
+        } catch (Exception e) {
+            logger.warn("PdfaConverter failed liveness probe: {}", e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Mark this wrapper as no longer usable, e.g. because its converter was abandoned in the middle of a conversion.
+     */
+    public void invalidate() {
+        invalidated = true;
+    }
+
+    /**
+     * Invalidate this wrapper and kill its converter at once, e.g. when its conversion has timed out, so that the
+     * conversion fails rather than running on. A converter worker is killed along with its tools; for a converter in
+     * the service's JVM the tools it started for the input file are killed.
+     *
+     * @param inputFile - the file being converted
+     */
+    public void abandon(File inputFile) {
+        invalidate();
+        if (converterWorker != null) {
+            converterWorker.kill();
+        } else {
+            ChildProcesses.killProcessesOf(inputFile);
+        }
+    }
+
+    /**
+     * Invalidate this wrapper and stop its converter worker.
+     */
+    public void destroy() {
+        invalidate();
+        if (converterWorker != null) {
+            converterWorker.stop();
+        }
+    }
+
+    /**
+     * A wrapper whose converter worker has exited is no longer valid; the pool replaces it.
+     */
     public boolean isValid() {
-        if (pdfaConvert != null){
+        if (!invalidated && (converterWorker != null ? converterWorker.isAlive() : pdfaConvert != null)){
             return true;
         } else {
             return false;
@@ -9,20 +9,65 @@ See the License for the specific language governing permission and limitations u
 */
 package edu.harvard.hul.ois.drs.pdfaconvert.service.pool;
 
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
 import org.apache.commons.pool2.BasePooledObjectFactory;
 import org.apache.commons.pool2.PooledObject;
+import org.apache.commons.pool2.PooledObjectState;
 import org.apache.commons.pool2.impl.DefaultPooledObject;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+/**
+ * Creates the pooled PdfaConverterWrappers. If converter workers are enabled each wrapper is given its own
+ * long-lived converter process, started here and stopped when the pool destroys the wrapper.
+ * Validation retires converters that have run too many conversions or lived too long so leaks in the external
+ * tools cannot build up, and probes the converter when validating an idle converter. The pool destroys a converter
+ * failing validation and the evictor creates its replacement, off the request path.
+ */
 public class PdfaConverterWrapperFactory extends BasePooledObjectFactory<PdfaConverterWrapper> {
 
     private static Logger LOG = LogManager.getLogger();
 
+    private final List<String> workerCommand;
+    private final long workerStartupMillis;
+    private int maxUses = 0;
+    private long maxAgeMillis = 0;
+    private final AtomicLong recycledForUses = new AtomicLong();
+    private final AtomicLong recycledForAge = new AtomicLong();
+    private final AtomicLong recycledUnhealthy = new AtomicLong();
+
+    /**
+     * Factory for wrappers without converter workers.
+     */
+    public PdfaConverterWrapperFactory() {
+        this(null, 0);
+    }
+
+    /**
+     * @param workerCommand - command starting a converter worker process, or null for no workers
+     * @param workerStartupMillis - time a worker process is given to report that it is ready
+     */
+    public PdfaConverterWrapperFactory(List<String> workerCommand, long workerStartupMillis) {
+        this.workerCommand = workerCommand;
+        this.workerStartupMillis = workerStartupMillis;
+    }
+
     @Override
     public PdfaConverterWrapper create() throws Exception {
         LOG.debug("Creating new PdfaConverterWrapper instance in pool");
-        return new PdfaConverterWrapper();
+        if (workerCommand == null) {
+            return new PdfaConverterWrapper();
+        }
+        ConverterWorker converterWorker = new ConverterWorker(workerCommand, workerStartupMillis);
+        converterWorker.start();
+        try {
+            return new PdfaConverterWrapper(converterWorker);
+        } catch (Exception e) {
+            converterWorker.stop();
+            throw e;
+        }
     }
 
     @Override
@@ -30,9 +75,63 @@ public class PdfaConverterWrapperFactory extends BasePooledObjectFactory<PdfaCon
         return new DefaultPooledObject<PdfaConverterWrapper>(pdfaConverterWrapper);
     }
 
+    /**
+     * @param maxUses - number of conversions after which a converter is retired, 0 for no limit
+     * @param maxAgeMillis - age after which a converter is retired, 0 for no limit
+     */
+    public void setRecycling(int maxUses, long maxAgeMillis) {
+        this.maxUses = maxUses;
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
     @Override
     public boolean validateObject(PooledObject<PdfaConverterWrapper> pdfaConverterWrapper){
-        return pdfaConverterWrapper.getObject().isValid();
+        PdfaConverterWrapper wrapper = pdfaConverterWrapper.getObject();
+        if (maxUses > 0 && wrapper.getUseCount() >= maxUses) {
+            LOG.debug("Recycling PdfaConverterWrapper after {} conversions", wrapper.getUseCount());
+            recycledForUses.incrementAndGet();
+            return false;
+        }
+        if (maxAgeMillis > 0 && wrapper.getAgeMillis() >= maxAgeMillis) {
+            LOG.debug("Recycling PdfaConverterWrapper after {}ms", wrapper.getAgeMillis());
+            recycledForAge.incrementAndGet();
+            return false;
+        }
+        // only idle converters are probed so borrowing and returning stay cheap
+        boolean idle = pdfaConverterWrapper.getState() == PooledObjectState.EVICTION;
+        if (!wrapper.isValid() || (idle && !wrapper.probe())) {
+            LOG.warn("Recycling unhealthy PdfaConverterWrapper");
+            recycledUnhealthy.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return The number of converters retired for reaching the maximum number of conversions.
+     */
+    public long getRecycledForUsesCount() {
+        return recycledForUses.get();
+    }
+
+    /**
+     * @return The number of converters retired for reaching the maximum age.
+     */
+    public long getRecycledForAgeCount() {
+        return recycledForAge.get();
+    }
+
+    /**
+     * @return The number of converters retired for failing validation or their liveness probe.
+     */
+    public long getRecycledUnhealthyCount() {
+        return recycledUnhealthy.get();
+    }
+
+    @Override
+    public void destroyObject(PooledObject<PdfaConverterWrapper> pdfaConverterWrapper) {
+        LOG.debug("Destroying PdfaConverterWrapper instance in pool");
+        pdfaConverterWrapper.getObject().destroy();
     }
 
 
@@ -0,0 +1,187 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.service.pool;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FilenameUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import edu.harvard.hul.ois.drs.pdfaconvert.service.workdir.WorkDirectory;
+
+/**
+ * Fills the converter pool in parallel when the service starts so the first requests after a deploy do not pay
+ * for creating converters one at a time inside borrowObject().
+ * Each converter is borrowed on its own thread and, if a canary file is configured, converts a copy of it to show
+ * that it works before it is returned to the pool. A converter failing its canary conversion is invalidated.
+ * All converters are held until every one has been created so the pool cannot hand the same converter to two
+ * warm-up threads.
+ */
+public class PoolWarmer {
+
+	private static final Logger logger = LogManager.getLogger();
+	private static final long MAX_WARMUP_MINUTES = 10;
+
+	private final PdfaConverterWrapperPool pdfaConverterWrapperPool;
+	private final int targetSize;
+	private final File canaryFile;
+	private final WorkDirectory workDirectory;
+	private final AtomicInteger warmedCount = new AtomicInteger();
+	private final AtomicInteger failedCount = new AtomicInteger();
+	private volatile boolean complete = false;
+
+	/**
+	 * @param pdfaConverterWrapperPool - the pool to fill
+	 * @param targetSize - number of converters to create, at most the pool's maximum size
+	 * @param canaryFile - document every converter converts before being put in service, or null for none
+	 * @param workDirectory - work directory staging the per-converter copies of the canary file
+	 */
+	public PoolWarmer(PdfaConverterWrapperPool pdfaConverterWrapperPool, int targetSize, File canaryFile,
+			WorkDirectory workDirectory) {
+		this.pdfaConverterWrapperPool = pdfaConverterWrapperPool;
+		this.targetSize = Math.max(0, Math.min(targetSize, pdfaConverterWrapperPool.getMaxTotal()));
+		this.canaryFile = canaryFile;
+		this.workDirectory = workDirectory;
+	}
+
+	/**
+	 * Start warming the pool in the background.
+	 */
+	public void start() {
+		if (targetSize == 0) {
+			complete = true;
+			return;
+		}
+		logger.info("Warming up {} converters{}", targetSize, canaryFile != null ? " with canary " + canaryFile.getPath() : "");
+		final long startTime = System.currentTimeMillis();
+		final CountDownLatch allBorrowed = new CountDownLatch(targetSize);
+		final CountDownLatch allReturned = new CountDownLatch(targetSize);
+		final AtomicInteger threadCount = new AtomicInteger();
+		ExecutorService warmers = Executors.newFixedThreadPool(targetSize, r -> {
+			Thread thread = new Thread(r, "pdfa-pool-warmer-" + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		for (int i = 0; i < targetSize; i++) {
+			warmers.execute(() -> {
+				try {
+					warmOne(allBorrowed);
+				} finally {
+					allReturned.countDown();
+				}
+			});
+		}
+		warmers.shutdown();
+		Thread waiter = new Thread(() -> {
+			try {
+				allReturned.await(MAX_WARMUP_MINUTES, TimeUnit.MINUTES);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			complete = true;
+			logger.info("Pool warm-up finished in {}ms -- warm: {} -- failed: {}",
+					System.currentTimeMillis() - startTime, warmedCount.get(), failedCount.get());
+		}, "pdfa-pool-warmer-wait");
+		waiter.setDaemon(true);
+		waiter.start();
+	}
+
+	private void warmOne(CountDownLatch allBorrowed) {
+		PdfaConverterWrapper pdfaConverterWrapper = null;
+		boolean healthy = false;
+		try {
+			pdfaConverterWrapper = pdfaConverterWrapperPool.borrowObject();
+			healthy = canaryFile == null || runCanary(pdfaConverterWrapper);
+		} catch (Exception e) {
+			logger.error("Unable to create converter during warm-up: {}", e.getMessage());
+		} finally {
+			allBorrowed.countDown();
+		}
+		try {
+			allBorrowed.await(MAX_WARMUP_MINUTES, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (pdfaConverterWrapper == null) {
+			failedCount.incrementAndGet();
+		} else if (healthy) {
+			warmedCount.incrementAndGet();
+			pdfaConverterWrapperPool.returnObject(pdfaConverterWrapper);
+		} else {
+			failedCount.incrementAndGet();
+			try {
+				pdfaConverterWrapperPool.invalidateObject(pdfaConverterWrapper);
+			} catch (Exception e) {
+				logger.error("Unable to invalidate converter that failed its canary conversion: {}", e.getMessage());
+			}
+		}
+	}
+
+	/*
+	 * Convert a uniquely named copy of the canary file since converted files are named after their input.
+	 */
+	private boolean runCanary(PdfaConverterWrapper pdfaConverterWrapper) {
+		File canaryCopy = workDirectory.newStagedFile("canary_", "canary." + FilenameUtils.getExtension(canaryFile.getName()));
+		File convertedFile = null;
+		try {
+			Files.copy(canaryFile.toPath(), canaryCopy.toPath());
+			convertedFile = pdfaConverterWrapper.examine(canaryCopy);
+			if (convertedFile == null || !convertedFile.exists() || convertedFile.length() == 0) {
+				logger.error("Canary conversion produced no output");
+				return false;
+			}
+			return true;
+		} catch (IOException e) {
+			logger.error("Unable to copy canary file {}: {}", canaryFile.getPath(), e.getMessage());
+			return false;
+		} catch (Exception e) {
+			logger.error("Canary conversion failed: {}", e.getMessage());
+			return false;
+		} finally {
+			canaryCopy.delete();
+			if (convertedFile != null) {
+				pdfaConverterWrapper.deleteConvertedFile(convertedFile);
+			}
+		}
+	}
+
+	/**
+	 * @return true once every warm-up thread has finished.
+	 */
+	public boolean isComplete() {
+		return complete;
+	}
+
+	/**
+	 * @return The number of converters created, and if configured canary tested, during warm-up.
+	 */
+	public int getWarmedCount() {
+		return warmedCount.get();
+	}
+
+	/**
+	 * @return The number of converters that could not be created or failed their canary conversion.
+	 */
+	public int getFailedCount() {
+		return failedCount.get();
+	}
+
+	public int getTargetSize() {
+		return targetSize;
+	}
+}
@@ -0,0 +1,218 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.service.servlets;
+
+import static edu.harvard.hul.ois.drs.pdfaconvert.service.common.Constants.CLIENT_KEY;
+import static edu.harvard.hul.ois.drs.pdfaconvert.service.common.Constants.ZIP_MIMETYPE;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.fileupload.FileItemIterator;
+import org.apache.commons.fileupload.FileItemStream;
+import org.apache.commons.fileupload.FileUploadBase;
+import org.apache.commons.fileupload.FileUploadException;
+import org.apache.commons.fileupload.servlet.ServletFileUpload;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.apache.commons.lang.StringUtils;
+
+import edu.harvard.hul.ois.drs.pdfaconvert.service.batch.BatchConversion;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.clients.Client;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.common.ErrorMessage;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.events.ConversionEvents;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.events.UploadStagingEvent;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.filetype.InputFileType;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.filetype.UnsupportedInputException;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.metrics.RequestTiming;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.pool.AdmissionController;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.pool.ConversionExecutor;
+
+/**
+ * The /batch resource: any number of uploaded files, including ZIP files of documents, are staged and converted in
+ * parallel, and a ZIP file of the converted files plus a manifest is streamed back as the conversions finish.
+ */
+final class BatchHandler {
+
+	private final ServletSupport support;
+	private final ConversionExecutor conversionExecutor;
+	private final AdmissionController admissionController;
+	private final int parallelism;
+	private final int maxBatchFiles;
+
+	/**
+	 * @param support - responses, client admission and upload staging shared by the handlers
+	 * @param conversionExecutor - executor that runs the conversions
+	 * @param admissionController - admits each document of a batch against its client's share
+	 * @param parallelism - most documents of one batch converted at once
+	 * @param maxBatchFiles - most documents a batch may hold
+	 */
+	BatchHandler(ServletSupport support, ConversionExecutor conversionExecutor, AdmissionController admissionController,
+			int parallelism, int maxBatchFiles) {
+		this.support = support;
+		this.conversionExecutor = conversionExecutor;
+		this.admissionController = admissionController;
+		this.parallelism = parallelism;
+		this.maxBatchFiles = maxBatchFiles;
+	}
+
+	/*
+	 * Stage every uploaded file of a batch -- expanding ZIP files into their documents -- then convert them in parallel
+	 * streaming a ZIP file of the converted files and a manifest back as the conversions finish.
+	 */
+	void sendBatchConversionResponse(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		String requestUrl = request.getRequestURL().toString();
+		if (!ServletFileUpload.isMultipartContent(request)) {
+			ErrorMessage errorMessage = new ErrorMessage(HttpServletResponse.SC_BAD_REQUEST,
+					" Missing Multipart Form Data. ", requestUrl);
+			support.sendErrorMessageResponse(errorMessage, response);
+			return;
+		}
+
+		if (!support.acceptClientRequest(request, response)) {
+			return;
+		}
+		if (admissionController.isSaturated((Client) request.getAttribute(CLIENT_KEY))) {
+			support.sendServiceUnavailableResponse(request, response);
+			return;
+		}
+
+		BatchConversion batch = new BatchConversion(conversionExecutor, admissionController, parallelism, requestUrl,
+				(Client) request.getAttribute(CLIENT_KEY));
+		RequestTiming timing = RequestTiming.of(request);
+		try {
+			FileItemIterator iter = support.newFileUpload().getItemIterator(request);
+			while (iter.hasNext()) {
+				FileItemStream item = iter.next();
+				String origFileName = FilenameUtils.getName(item.getName());
+				if (item.isFormField() || StringUtils.isEmpty(origFileName)) {
+					continue;
+				}
+				try (InputStream inputStream = item.openStream()) {
+					if (isZipFile(origFileName, item.getContentType())) {
+						ZipInputStream zipInputStream = new ZipInputStream(inputStream);
+						ZipEntry zipEntry;
+						while ((zipEntry = zipInputStream.getNextEntry()) != null && batch.size() <= maxBatchFiles) {
+							if (!zipEntry.isDirectory()) {
+								stageBatchDocument(FilenameUtils.getName(zipEntry.getName()), zipInputStream, zipEntry.getSize(),
+										batch, requestUrl, timing);
+							}
+						}
+					} else {
+						// the request's length covers every part of the batch, so it says nothing about this one
+						stageBatchDocument(origFileName, inputStream, -1, batch, requestUrl, timing);
+					}
+				}
+				if (batch.size() > maxBatchFiles) {
+					batch.discard();
+					ErrorMessage errorMessage = new ErrorMessage(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE,
+							" Too many files in batch. The maximum is " + maxBatchFiles, requestUrl, " Processing halted.");
+					support.sendErrorMessageResponse(errorMessage, response);
+					return;
+				}
+			}
+		} catch (FileUploadBase.FileUploadIOException ex) {
+			batch.discard();
+			support.sendUploadErrorResponse((FileUploadException) ex.getCause(), request, response);
+			return;
+		} catch (FileUploadException ex) {
+			batch.discard();
+			support.sendUploadErrorResponse(ex, request, response);
+			return;
+		} catch (IOException ex) {
+			batch.discard();
+			throw ex;
+		}
+
+		if (batch.size() == 0) {
+			ErrorMessage errorMessage = new ErrorMessage(HttpServletResponse.SC_BAD_REQUEST,
+					" Missing File Data. ", requestUrl);
+			support.sendErrorMessageResponse(errorMessage, response);
+			return;
+		}
+
+		response.setContentType(ZIP_MIMETYPE);
+		response.addHeader("Content-Disposition", "attachment; filename=\"batch.zip\"");
+		AsyncContext asyncContext = request.startAsync(request, response);
+		asyncContext.setTimeout(0); // each conversion is bounded on its own and results are streamed as they finish
+		batch.start(asyncContext);
+	}
+
+	/*
+	 * Copy one document of a batch into a staged file, recording it as failed if it is not a supported type or
+	 * too large. Unsupported documents are recognized from their first bytes and never staged. The expected size is
+	 * the most the document can hold, or -1 if that is not known.
+	 */
+	private void stageBatchDocument(String origFileName, InputStream inputStream, long expectedSize, BatchConversion batch,
+			String requestUrl, RequestTiming timing) throws IOException {
+		long maxFileSize = support.getMaxFileUploadSizeMb() * ServletSupport.MB_MULTIPLIER;
+		// read one byte past the limit to tell whether it was reached; leave the underlying stream open for the next document
+		BoundedInputStream boundedInputStream = new BoundedInputStream(inputStream, maxFileSize + 1);
+		boundedInputStream.setPropagateClose(false);
+		InputStream documentStream = new BufferedInputStream(boundedInputStream);
+		try {
+			InputFileType inputFileType = InputFileType.check(documentStream, origFileName);
+			if (FilenameUtils.getExtension(origFileName).isEmpty()) {
+				origFileName = origFileName + '.' + inputFileType.getDefaultExtension();
+			}
+		} catch (UnsupportedInputException e) {
+			conversionExecutor.getMetrics().inputRejected();
+			batch.addFailure(origFileName, new ErrorMessage(HttpServletResponse.SC_BAD_REQUEST, " " + e.getMessage(), requestUrl, origFileName));
+			return;
+		}
+		File stagedFile = support.createUploadFile(origFileName, expectedSize);
+		MessageDigest inputDigest = conversionExecutor.isKeyingInputs() ? conversionExecutor.newInputDigest() : null;
+		long fileSize;
+		String fileType = FilenameUtils.getExtension(origFileName).toLowerCase();
+		long stageStart = System.nanoTime();
+		UploadStagingEvent stagingEvent = ConversionEvents.beginUploadStaging();
+		try (OutputStream outputStream = new FileOutputStream(stagedFile)) {
+			fileSize = IOUtils.copyLarge(inputDigest != null ? new DigestInputStream(documentStream, inputDigest) : documentStream,
+					outputStream);
+		} catch (IOException e) {
+			stagedFile.delete();
+			ConversionEvents.endUploadStaging(stagingEvent, stagedFile.getName(), fileType, 0,
+					ConversionEvents.OUTCOME_FAILED);
+			throw e;
+		}
+		ConversionEvents.endUploadStaging(stagingEvent, stagedFile.getName(), fileType, fileSize,
+				fileSize > maxFileSize ? ConversionEvents.OUTCOME_FAILED : ConversionEvents.OUTCOME_STAGED);
+		timing.record(RequestTiming.STAGE_STAGE, System.nanoTime() - stageStart);
+		timing.addInput(origFileName, fileType, fileSize);
+		conversionExecutor.getMetrics().addBytesIn(fileSize);
+		if (fileSize < 1 || fileSize > maxFileSize) {
+			stagedFile.delete();
+			String message = fileSize < 1 ? " Missing File Data. "
+					: " File is larger than the maximum of " + support.getMaxFileUploadSizeMb() + "MB. ";
+			int statusCode = fileSize < 1 ? HttpServletResponse.SC_BAD_REQUEST : HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE;
+			batch.addFailure(origFileName, new ErrorMessage(statusCode, message, requestUrl, origFileName));
+			return;
+		}
+		batch.addDocument(origFileName, stagedFile, inputDigest != null ? conversionExecutor.toInputKey(inputDigest) : null);
+	}
+
+	private static boolean isZipFile(String fileName, String contentType) {
+		return fileName.toLowerCase().endsWith(".zip") || ZIP_MIMETYPE.equals(contentType)
+				|| "application/x-zip-compressed".equals(contentType);
+	}
+}
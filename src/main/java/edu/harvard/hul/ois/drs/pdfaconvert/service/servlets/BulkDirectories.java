@@ -0,0 +1,76 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.service.servlets;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * The directories on a shared filesystem that bulk conversions, and jobs naming a file, may read and write, from the
+ * comma-separated bulk.directories property. A path is checked once any .. or symbolic links in it are resolved.
+ */
+final class BulkDirectories {
+
+	private final List<File> directories = new ArrayList<File>();
+
+	/**
+	 * @param applicationProps - the service's properties
+	 */
+	BulkDirectories(Properties applicationProps) {
+		for (String bulkDirectory : StringUtils.split(applicationProps.getProperty("bulk.directories", ""), ',')) {
+			if (StringUtils.isNotBlank(bulkDirectory)) {
+				directories.add(new File(bulkDirectory.trim()).getAbsoluteFile());
+			}
+		}
+	}
+
+	/**
+	 * @return true if no directories are allowed, in which case bulk conversion is disabled.
+	 */
+	boolean isEmpty() {
+		return directories.isEmpty();
+	}
+
+	/**
+	 * @param file - a file or directory named in a request
+	 * @return true if it is one of the allowed directories or within one.
+	 */
+	boolean isAllowed(File file) {
+		String path;
+		try {
+			path = file.getCanonicalPath();
+		} catch (IOException e) {
+			return false;
+		}
+		for (File bulkDirectory : directories) {
+			String directoryPath;
+			try {
+				directoryPath = bulkDirectory.getCanonicalPath();
+			} catch (IOException e) {
+				continue;
+			}
+			if (path.equals(directoryPath) || path.startsWith(directoryPath.endsWith(File.separator)
+					? directoryPath : directoryPath + File.separator)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public String toString() {
+		return directories.toString();
+	}
+}
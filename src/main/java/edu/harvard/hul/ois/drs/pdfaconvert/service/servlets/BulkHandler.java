@@ -0,0 +1,154 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.service.servlets;
+
+import static edu.harvard.hul.ois.drs.pdfaconvert.service.common.Constants.CLIENT_KEY;
+import static edu.harvard.hul.ois.drs.pdfaconvert.service.common.Constants.NDJSON_MIMETYPE;
+
+import java.io.File;
+import java.io.IOException;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.lang.StringUtils;
+
+import edu.harvard.hul.ois.drs.pdfaconvert.service.bulk.BulkConversion;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.clients.Client;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.common.ErrorMessage;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.pool.AdmissionController;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.pool.ConversionExecutor;
+
+/**
+ * The /bulk resource: a directory, or the files listed in a manifest, on a shared filesystem is converted into an
+ * output directory on it, with a line of JSON streamed back for each document as it finishes.
+ */
+final class BulkHandler {
+
+	private static final String BULK_SOURCE_PARAM = "source";
+	private static final String BULK_MANIFEST_PARAM = "manifest";
+	private static final String BULK_OUTPUT_PARAM = "output";
+
+	private final ServletSupport support;
+	private final ConversionExecutor conversionExecutor;
+	private final AdmissionController admissionController;
+	private final BulkDirectories bulkDirectories;
+	private final int parallelism;
+	private final int maxBulkFiles;
+
+	/**
+	 * @param support - responses and client admission shared by the handlers
+	 * @param conversionExecutor - executor that runs the conversions
+	 * @param admissionController - admits each document against its client's share
+	 * @param bulkDirectories - the only directories a bulk conversion may read and write
+	 * @param parallelism - most documents of one bulk conversion converted at once
+	 * @param maxBulkFiles - most documents a bulk conversion may hold
+	 */
+	BulkHandler(ServletSupport support, ConversionExecutor conversionExecutor, AdmissionController admissionController,
+			BulkDirectories bulkDirectories, int parallelism, int maxBulkFiles) {
+		this.support = support;
+		this.conversionExecutor = conversionExecutor;
+		this.admissionController = admissionController;
+		this.bulkDirectories = bulkDirectories;
+		this.parallelism = parallelism;
+		this.maxBulkFiles = maxBulkFiles;
+	}
+
+	/*
+	 * Convert the documents of the source directory, or those listed in the manifest, into the output directory,
+	 * streaming a line of JSON for each document as it finishes. Every path must be within one of the directories
+	 * allowed for bulk conversion.
+	 */
+	void sendBulkConversionResponse(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		String requestUrl = request.getRequestURL().toString();
+		if (bulkDirectories.isEmpty()) {
+			ErrorMessage errorMessage = new ErrorMessage(HttpServletResponse.SC_FORBIDDEN,
+					" Bulk conversion is not enabled: no bulk.directories are configured ", requestUrl);
+			support.sendErrorMessageResponse(errorMessage, response);
+			return;
+		}
+		String sourcePath = request.getParameter(BULK_SOURCE_PARAM);
+		String manifestPath = request.getParameter(BULK_MANIFEST_PARAM);
+		String outputPath = request.getParameter(BULK_OUTPUT_PARAM);
+		if (StringUtils.isEmpty(outputPath) || StringUtils.isEmpty(sourcePath) == StringUtils.isEmpty(manifestPath)) {
+			ErrorMessage errorMessage = new ErrorMessage(HttpServletResponse.SC_BAD_REQUEST,
+					" Missing parameter: [" + BULK_OUTPUT_PARAM + "] and one of [" + BULK_SOURCE_PARAM + "] or ["
+					+ BULK_MANIFEST_PARAM + "] ", requestUrl);
+			support.sendErrorMessageResponse(errorMessage, response);
+			return;
+		}
+		boolean isDirectory = StringUtils.isNotEmpty(sourcePath);
+		File source = new File(isDirectory ? sourcePath : manifestPath).toPath().toAbsolutePath().normalize().toFile();
+		File outputDirectory = new File(outputPath).toPath().toAbsolutePath().normalize().toFile();
+		for (File file : new File[] { source, outputDirectory }) {
+			if (!bulkDirectories.isAllowed(file)) {
+				ErrorMessage errorMessage = new ErrorMessage(HttpServletResponse.SC_FORBIDDEN,
+						" Not within a directory allowed for bulk conversion: " + file.getPath(), requestUrl);
+				support.sendErrorMessageResponse(errorMessage, response);
+				return;
+			}
+		}
+		if (isDirectory ? !source.isDirectory() : !source.isFile()) {
+			ErrorMessage errorMessage = new ErrorMessage(HttpServletResponse.SC_BAD_REQUEST,
+					" No such " + (isDirectory ? "directory: " : "file: ") + source.getPath(), requestUrl);
+			support.sendErrorMessageResponse(errorMessage, response);
+			return;
+		}
+		if (isDirectory && source.equals(outputDirectory)) {
+			// the PDF/As would be mixed in with the documents, where a later run would take them for documents
+			ErrorMessage errorMessage = new ErrorMessage(HttpServletResponse.SC_BAD_REQUEST,
+					" The output directory must not be the source directory: " + source.getPath(), requestUrl);
+			support.sendErrorMessageResponse(errorMessage, response);
+			return;
+		}
+		if (!outputDirectory.isDirectory() && !outputDirectory.mkdirs()) {
+			ErrorMessage errorMessage = new ErrorMessage(HttpServletResponse.SC_BAD_REQUEST,
+					" Unable to create output directory: " + outputDirectory.getPath(), requestUrl);
+			support.sendErrorMessageResponse(errorMessage, response);
+			return;
+		}
+
+		if (!support.acceptClientRequest(request, response)) {
+			return;
+		}
+		if (admissionController.isSaturated((Client) request.getAttribute(CLIENT_KEY))) {
+			support.sendServiceUnavailableResponse(request, response);
+			return;
+		}
+
+		BulkConversion bulk = new BulkConversion(conversionExecutor, admissionController, parallelism, outputDirectory,
+				(Client) request.getAttribute(CLIENT_KEY));
+		try {
+			if (isDirectory) {
+				bulk.addDirectory(source, maxBulkFiles);
+			} else {
+				bulk.addManifest(source, bulkDirectories::isAllowed, maxBulkFiles);
+			}
+		} catch (IOException e) {
+			ErrorMessage errorMessage = new ErrorMessage(HttpServletResponse.SC_BAD_REQUEST,
+					" Unable to read " + source.getPath() + ": " + e.getMessage(), requestUrl);
+			support.sendErrorMessageResponse(errorMessage, response);
+			return;
+		}
+		if (bulk.size() > maxBulkFiles) {
+			ErrorMessage errorMessage = new ErrorMessage(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE,
+					" Too many files for bulk conversion. The maximum is " + maxBulkFiles, requestUrl, " Processing halted.");
+			support.sendErrorMessageResponse(errorMessage, response);
+			return;
+		}
+
+		response.setContentType(NDJSON_MIMETYPE);
+		response.setCharacterEncoding("UTF-8");
+		AsyncContext asyncContext = request.startAsync(request, response);
+		asyncContext.setTimeout(0); // each conversion is bounded on its own and progress is streamed as they finish
+		bulk.start(asyncContext);
+	}
+}
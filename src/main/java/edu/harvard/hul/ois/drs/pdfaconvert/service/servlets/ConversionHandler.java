@@ -0,0 +1,378 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.service.servlets;
+
+import static edu.harvard.hul.ois.drs.pdfaconvert.service.common.Constants.CLIENT_KEY;
+import static edu.harvard.hul.ois.drs.pdfaconvert.service.common.Constants.CONVERSION_TASK_KEY;
+import static edu.harvard.hul.ois.drs.pdfaconvert.service.common.Constants.FILE_PARAM;
+import static edu.harvard.hul.ois.drs.pdfaconvert.service.common.Constants.FORM_FIELD_DATAFILE;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.fileupload.FileItemIterator;
+import org.apache.commons.fileupload.FileItemStream;
+import org.apache.commons.fileupload.FileUploadBase;
+import org.apache.commons.fileupload.FileUploadException;
+import org.apache.commons.fileupload.servlet.ServletFileUpload;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import edu.harvard.hul.ois.drs.pdfaconvert.service.clients.Client;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.common.ErrorMessage;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.events.ConversionEvents;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.events.UploadStagingEvent;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.filetype.InputFileType;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.filetype.UnsupportedInputException;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.metrics.RequestTiming;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.pool.AdmissionController;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.pool.ConversionExecutor;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.pool.ConversionTask;
+
+/**
+ * The /examine resource and the single file form of /jobs: a file named by the "file" parameter or uploaded as form
+ * data is converted and its PDF/A returned, or queued as a job. Each request is admitted before its body is read.
+ */
+final class ConversionHandler {
+
+	private static final Logger logger = LogManager.getLogger();
+
+	private final ServletSupport support;
+	private final ConversionExecutor conversionExecutor;
+	private final AdmissionController admissionController;
+	private final JobHandler jobHandler;
+	private final BulkDirectories bulkDirectories;
+	private final long asyncTimeoutSeconds;
+
+	/**
+	 * @param support - responses and client admission shared by the handlers
+	 * @param conversionExecutor - executor that runs the conversions
+	 * @param admissionController - admits each request before its body is read
+	 * @param jobHandler - queues a file as a conversion job
+	 * @param bulkDirectories - the only directories a job may name a file in
+	 * @param asyncTimeoutSeconds - longest a request waits for its conversion, 0 for no limit
+	 */
+	ConversionHandler(ServletSupport support, ConversionExecutor conversionExecutor, AdmissionController admissionController,
+			JobHandler jobHandler, BulkDirectories bulkDirectories, long asyncTimeoutSeconds) {
+		this.support = support;
+		this.conversionExecutor = conversionExecutor;
+		this.admissionController = admissionController;
+		this.jobHandler = jobHandler;
+		this.bulkDirectories = bulkDirectories;
+		this.asyncTimeoutSeconds = asyncTimeoutSeconds;
+	}
+
+	/*
+	 * Convert the local file named by the "file" parameter.
+	 */
+	void convertLocalFile(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		String filePath = request.getParameter(FILE_PARAM);
+		if (StringUtils.isEmpty(filePath)) {
+			ErrorMessage errorMessage = new ErrorMessage(HttpServletResponse.SC_BAD_REQUEST,
+					" Missing parameter: [" + FILE_PARAM + "] ", request.getRequestURL().toString());
+			support.sendErrorMessageResponse(errorMessage, response);
+			return;
+		}
+
+		String fileName = null;
+        int index = filePath.lastIndexOf(File.separatorChar);
+        if (index > 0 && index <= filePath.length()) {
+        	fileName = filePath.substring(index + 1);
+        } else {
+        	fileName = filePath;
+        }
+        File inputFile = new File(filePath);
+		if (inputFile.exists() && !support.checkLocalInputFile(inputFile, request, response)) {
+			return;
+		}
+		RequestTiming.of(request).addInput(fileName, FilenameUtils.getExtension(fileName).toLowerCase(), inputFile.length());
+
+		if (!support.acceptClientRequest(request, response)) {
+			return;
+		}
+		if (!admissionController.tryAdmit((Client) request.getAttribute(CLIENT_KEY))) {
+			support.sendServiceUnavailableResponse(request, response);
+			return;
+		}
+		boolean submitted = false;
+		try {
+			// Send it to the PdfaConverter processor...
+			submitted = sendPdfaConverterExamineResponse(inputFile, fileName, false, null, request, response);
+		} finally {
+			if (!submitted) {
+				admissionController.release((Client) request.getAttribute(CLIENT_KEY));
+			}
+		}
+	}
+
+	/*
+	 * Convert an uploaded file, either straight away or, if isJobRequest is true, as a job.
+	 */
+	void convertUpload(boolean isJobRequest, HttpServletRequest request, HttpServletResponse response) throws IOException {
+		// Admit the request before its body is read so a saturated service turns it away without receiving the upload.
+		if (!support.acceptClientRequest(request, response)) {
+			return;
+		}
+		if (!admissionController.tryAdmit((Client) request.getAttribute(CLIENT_KEY))) {
+			support.sendServiceUnavailableResponse(request, response);
+			return;
+		}
+		boolean submitted = false;
+		try {
+			submitted = receiveUploadedFile(isJobRequest, request, response);
+		} finally {
+			if (!submitted) {
+				admissionController.release((Client) request.getAttribute(CLIENT_KEY));
+			}
+		}
+	}
+
+	/*
+	 * Stage the uploaded file and send it for conversion, either straight away or as a job.
+	 * Returns true if the file was submitted for conversion, in which case the admission is released once the
+	 * conversion has finished.
+	 */
+	private boolean receiveUploadedFile(boolean isJobRequest, HttpServletRequest request, HttpServletResponse response)
+			throws IOException {
+
+		if (isJobRequest && !ServletFileUpload.isMultipartContent(request)
+				&& StringUtils.isNotEmpty(request.getParameter(FILE_PARAM))) {
+			File inputFile = new File(request.getParameter(FILE_PARAM));
+			// a job may read only files a bulk conversion could, so a client cannot have any file on the server converted
+			if (!bulkDirectories.isAllowed(inputFile)) {
+				ErrorMessage errorMessage = new ErrorMessage(HttpServletResponse.SC_FORBIDDEN,
+						" Not within a directory allowed for bulk conversion: " + inputFile.getPath(),
+						request.getRequestURL().toString());
+				support.sendErrorMessageResponse(errorMessage, response);
+				return false;
+			}
+			if (inputFile.exists() && !support.checkLocalInputFile(inputFile, request, response)) {
+				return false;
+			}
+			RequestTiming.of(request).addInput(inputFile.getName(),
+					FilenameUtils.getExtension(inputFile.getName()).toLowerCase(), inputFile.length());
+			return jobHandler.submitConversionJob(inputFile, inputFile.getName(), false, null, request, response);
+		}
+		if (!ServletFileUpload.isMultipartContent(request)) {
+			ErrorMessage errorMessage = new ErrorMessage(HttpServletResponse.SC_BAD_REQUEST,
+					" Missing Multipart Form Data. ", request.getRequestURL().toString());
+			support.sendErrorMessageResponse(errorMessage, response);
+			return false;
+		}
+
+		RequestTiming timing = RequestTiming.of(request);
+		long parseStart = System.nanoTime();
+		try {
+			// Streaming API so the upload is written straight into the input file for the converter without being buffered first.
+			FileItemIterator iter = support.newFileUpload().getItemIterator(request);
+
+			// iterates over form's fields
+			while (iter.hasNext()) {
+				FileItemStream item = iter.next();
+
+				// processes only fields that are not form fields
+				if (!item.isFormField() && item.getFieldName().equals(FORM_FIELD_DATAFILE)) {
+
+					// save original uploaded file name
+					String origFileName = FilenameUtils.getName(item.getName());
+
+					// recognize the file from its first bytes, turning away anything unsupported before it is staged
+					InputStream inputStream = new BufferedInputStream(item.openStream());
+					InputFileType inputFileType;
+					try {
+						inputFileType = InputFileType.check(inputStream, origFileName);
+					} catch (UnsupportedInputException e) {
+						inputStream.close();
+						support.sendUnsupportedInputResponse(e, request, response);
+						return false;
+					}
+					if (FilenameUtils.getExtension(origFileName).isEmpty()) {
+						// the converter and scheduler go by extension
+						origFileName = origFileName + '.' + inputFileType.getDefaultExtension();
+					}
+					// the request's length bounds the upload's, letting small uploads be staged in memory
+					File realInputFile = support.createUploadFile(origFileName, request.getContentLengthLong());
+					long stageStart = System.nanoTime();
+					timing.record(RequestTiming.STAGE_PARSE, stageStart - parseStart);
+
+					// turn InputStream into a File in temp directory; size limits are enforced while the bytes are read
+					// and the content is hashed on the way through to find an identical conversion already in flight
+					MessageDigest inputDigest = conversionExecutor.isKeyingInputs() ? conversionExecutor.newInputDigest() : null;
+					long fileSize = stageUpload(inputDigest != null ? new DigestInputStream(inputStream, inputDigest) : inputStream,
+							realInputFile, FilenameUtils.getExtension(origFileName).toLowerCase());
+					timing.record(RequestTiming.STAGE_STAGE, System.nanoTime() - stageStart);
+					timing.addInput(origFileName, FilenameUtils.getExtension(origFileName).toLowerCase(), fileSize);
+					conversionExecutor.getMetrics().addBytesIn(fileSize);
+					String inputKey = inputDigest != null ? conversionExecutor.toInputKey(inputDigest) : null;
+
+					// Send it to the PdfaConverter processor which deletes our created file once the conversion has finished.
+					if (isJobRequest) {
+						return jobHandler.submitConversionJob(realInputFile, origFileName, true, inputKey, request, response);
+					} else {
+						return sendPdfaConverterExamineResponse(realInputFile, origFileName, true, inputKey, request, response);
+					}
+
+				} else {
+					ErrorMessage errorMessage = new ErrorMessage(HttpServletResponse.SC_BAD_REQUEST,
+							" The request did not have the correct name attribute of \"datafile\" in the form processing. ",
+							request.getRequestURL().toString(), " Processing halted.");
+					support.sendErrorMessageResponse(errorMessage, response);
+					return false;
+				}
+
+			}
+
+		} catch (FileUploadBase.FileUploadIOException ex) {
+			// limits exceeded part way through reading the upload
+			support.sendUploadErrorResponse((FileUploadException) ex.getCause(), request, response);
+		} catch (FileUploadException ex) {
+			support.sendUploadErrorResponse(ex, request, response);
+		}
+		return false;
+	}
+
+	/*
+	 * Copy an uploaded file into the file the converter reads, closing the upload stream. The file is deleted if
+	 * the upload fails part way. Package-private so the benchmarks can measure it on its own.
+	 */
+	static long stageUpload(InputStream uploadStream, File uploadFile, String fileType) throws IOException {
+		UploadStagingEvent stagingEvent = ConversionEvents.beginUploadStaging();
+		long fileSize = 0;
+		String outcome = ConversionEvents.OUTCOME_FAILED;
+		try (InputStream inputStream = uploadStream;
+				OutputStream outputStream = new FileOutputStream(uploadFile)) {
+			fileSize = IOUtils.copyLarge(inputStream, outputStream);
+			outcome = ConversionEvents.OUTCOME_STAGED;
+			return fileSize;
+		} catch (IOException e) {
+			uploadFile.delete();
+			throw e;
+		} finally {
+			ConversionEvents.endUploadStaging(stagingEvent, uploadFile.getName(), fileType, fileSize, outcome);
+		}
+	}
+
+	/*
+	 * Send input file to converter application and return converted file, if successful, in HttpServletResponse.
+	 * The conversion runs on the conversion executor so the request is put into asynchronous mode and the
+	 * container thread is released until the converted file is ready to be sent back.
+	 * If deleteInputFile is true the input file is deleted once the conversion has finished.
+	 * The inputKey identifies the content if it was hashed while being uploaded, otherwise it is null and the file is
+	 * read to find it.
+	 * Returns true if the file was submitted for conversion, in which case the admission held by the request is
+	 * released once the conversion has finished.
+	 * The conversion is left in the request for PdfaRequestListener, which releases the request's share of the
+	 * converted file once the response has been sent.
+	 */
+	private boolean sendPdfaConverterExamineResponse(final File inputFile, String inputFileName, final boolean deleteInputFile,
+			String inputKey, final HttpServletRequest req, final HttpServletResponse resp) throws IOException {
+
+		if (!inputFile.exists()) {
+			ErrorMessage errorMessage = new ErrorMessage(HttpServletResponse.SC_BAD_REQUEST,
+					" File not sent with request: " + inputFileName, " " + req.getRequestURL().toString());
+			support.sendErrorMessageResponse(errorMessage, resp);
+			return false;
+		}
+
+		final String generatedPdfFilename = ServletSupport.toGeneratedPdfFilename(inputFileName);
+		final String requestUrl = req.getRequestURL().toString();
+
+		final AsyncContext asyncContext = req.startAsync(req, resp);
+		asyncContext.setTimeout(asyncTimeoutSeconds * 1000);
+		// Set by whichever of conversion completion or request timeout happens first; only that one writes the response.
+		final AtomicBoolean responded = new AtomicBoolean(false);
+		asyncContext.addListener(new AsyncListener() {
+			@Override
+			public void onTimeout(AsyncEvent event) throws IOException {
+				if (responded.compareAndSet(false, true)) {
+					ErrorMessage errorMessage = new ErrorMessage(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+							" PdfaConverter did not finish within " + asyncTimeoutSeconds + " seconds.", requestUrl);
+					support.sendErrorMessageResponse(errorMessage, resp);
+					asyncContext.complete();
+				}
+			}
+
+			@Override
+			public void onStartAsync(AsyncEvent event) throws IOException {
+				// no-op
+			}
+
+			@Override
+			public void onError(AsyncEvent event) throws IOException {
+				logger.warn("Asynchronous conversion request failed: {}", event.getThrowable());
+			}
+
+			@Override
+			public void onComplete(AsyncEvent event) throws IOException {
+				// no-op
+			}
+		});
+
+		ConversionTask conversion;
+		try {
+			conversion = conversionExecutor.submit(inputFile, inputKey, (Client) req.getAttribute(CLIENT_KEY));
+		} catch (RejectedExecutionException e) {
+			responded.set(true);
+			if (deleteInputFile) {
+				inputFile.delete();
+			}
+			ErrorMessage errorMessage = new ErrorMessage(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+					" Too many conversions waiting. Try again later.", requestUrl);
+			support.sendErrorMessageResponse(errorMessage, resp);
+			asyncContext.complete();
+			return false;
+		}
+
+		req.setAttribute(CONVERSION_TASK_KEY, conversion);
+		RequestTiming.of(req).setConversion(conversion);
+		conversion.getResult().whenComplete((convertedFile, error) -> {
+			admissionController.release((Client) req.getAttribute(CLIENT_KEY));
+			if (deleteInputFile && inputFile.exists()) {
+				inputFile.delete();
+			}
+			if (!responded.compareAndSet(false, true)) {
+				// request already timed out and its share of the converted file was released when it ended
+				return;
+			}
+			// hand off writing of the response to a container thread so the conversion thread is free for the next conversion
+			asyncContext.start(() -> {
+				try {
+					if (error != null) {
+						support.sendConversionErrorResponse(error, requestUrl, resp);
+					} else {
+						support.sendConvertedFileResponse(convertedFile, generatedPdfFilename, req, resp);
+					}
+				} catch (IOException e) {
+					logger.error("Unable to write conversion response: " + e.getMessage(), e);
+				} finally {
+					asyncContext.complete();
+				}
+			});
+		});
+		return true;
+	}
+}
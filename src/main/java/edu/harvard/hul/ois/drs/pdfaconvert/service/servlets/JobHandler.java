@@ -0,0 +1,176 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.service.servlets;
+
+import static edu.harvard.hul.ois.drs.pdfaconvert.service.common.Constants.CLIENT_KEY;
+import static edu.harvard.hul.ois.drs.pdfaconvert.service.common.Constants.JOB_RESULT_PATH;
+import static edu.harvard.hul.ois.drs.pdfaconvert.service.common.Constants.RESOURCE_PATH_JOBS;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import edu.harvard.hul.ois.drs.pdfaconvert.service.clients.Client;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.common.ErrorMessage;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.jobs.ConversionJob;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.jobs.ConversionJobManager;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.jobs.JobStatus;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.metrics.RequestTiming;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.pool.AdmissionController;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.pool.ConversionTask;
+
+/**
+ * The /jobs resource: conversion jobs are queued here, polled for their status, fetched once converted and deleted.
+ * Uploads reach the queue through ConversionHandler and UploadHandler.
+ */
+final class JobHandler {
+
+	private final ServletSupport support;
+	private final ConversionJobManager conversionJobManager;
+	private final AdmissionController admissionController;
+
+	/**
+	 * @param support - responses and client admission shared by the handlers
+	 * @param conversionJobManager - manager holding the jobs
+	 * @param admissionController - admission held by a job's request is released once the job is converted
+	 */
+	JobHandler(ServletSupport support, ConversionJobManager conversionJobManager, AdmissionController admissionController) {
+		this.support = support;
+		this.conversionJobManager = conversionJobManager;
+		this.admissionController = admissionController;
+	}
+
+	/*
+	 * Queue the input file as a conversion job and return its status.
+	 * If deleteInputFile is true the input file is deleted once the conversion has finished.
+	 * The inputKey identifies the content if it was hashed while being uploaded, otherwise it is null.
+	 * Returns true if the job was queued, in which case the admission held by the request is released once the
+	 * conversion has finished.
+	 */
+	boolean submitConversionJob(File inputFile, String inputFileName, boolean deleteInputFile,
+			String inputKey, HttpServletRequest req, HttpServletResponse resp) throws IOException {
+
+		if (!inputFile.exists()) {
+			ErrorMessage errorMessage = new ErrorMessage(HttpServletResponse.SC_BAD_REQUEST,
+					" File not sent with request: " + inputFileName, " " + req.getRequestURL().toString());
+			support.sendErrorMessageResponse(errorMessage, resp);
+			return false;
+		}
+
+		ConversionJob job;
+		try {
+			job = conversionJobManager.submit(inputFile, ServletSupport.toGeneratedPdfFilename(inputFileName), deleteInputFile,
+					inputKey, (Client) req.getAttribute(CLIENT_KEY));
+		} catch (RejectedExecutionException e) {
+			if (deleteInputFile) {
+				inputFile.delete();
+			}
+			ErrorMessage errorMessage = new ErrorMessage(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+					" Too many conversions waiting. Try again later.", req.getRequestURL().toString());
+			support.sendErrorMessageResponse(errorMessage, resp);
+			return false;
+		}
+		Client client = (Client) req.getAttribute(CLIENT_KEY);
+		job.getConversionTask().getResult().whenComplete((convertedFile, error) -> admissionController.release(client));
+		RequestTiming.of(req).setJobId(job.getId());
+		resp.setHeader("Location", getJobUrl(req, job));
+		sendJobStatusResponse(job, HttpServletResponse.SC_ACCEPTED, req, resp);
+		return true;
+	}
+
+	/*
+	 * Return either the status of the job or, for the result path, its converted file.
+	 */
+	void sendJobResponse(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+		String jobId = ServletSupport.getResourceId(req);
+		ConversionJob job = jobId == null ? null : conversionJobManager.getJob(jobId);
+		if (job == null) {
+			ErrorMessage errorMessage = new ErrorMessage(HttpServletResponse.SC_NOT_FOUND,
+					" No such job: " + jobId, req.getRequestURL().toString());
+			support.sendErrorMessageResponse(errorMessage, resp);
+			return;
+		}
+
+		if (!req.getPathInfo().endsWith(JOB_RESULT_PATH)) {
+			sendJobStatusResponse(job, HttpServletResponse.SC_OK, req, resp);
+			return;
+		}
+
+		RequestTiming.of(req).setJobId(jobId);
+		switch (job.getStatus()) {
+		case DONE:
+			// hold a share of the converted file while it is sent so the job expiring or being deleted cannot remove it
+			ConversionTask task = job.getConversionTask();
+			if (!task.subscribe()) {
+				ErrorMessage errorMessage = new ErrorMessage(HttpServletResponse.SC_GONE,
+						" Job result is no longer available: " + jobId, req.getRequestURL().toString());
+				support.sendErrorMessageResponse(errorMessage, resp);
+				break;
+			}
+			try {
+				RequestTiming.of(req).setConversion(task);
+				support.sendConvertedFileResponse(job.getConvertedFile(), job.getGeneratedPdfFilename(), req, resp);
+			} finally {
+				task.releaseOutput();
+			}
+			break;
+		case FAILED:
+			support.sendErrorMessageResponse(ErrorMessage.forConversionFailure(job.getFailure(),
+					req.getRequestURL().toString()), resp);
+			break;
+		default:
+			ErrorMessage errorMessage = new ErrorMessage(HttpServletResponse.SC_CONFLICT,
+					" Job has not finished: " + jobId, req.getRequestURL().toString(), job.getStatus().name());
+			support.sendErrorMessageResponse(errorMessage, resp);
+		}
+	}
+
+	/*
+	 * Remove the job along with its converted file.
+	 */
+	void deleteJob(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+		String jobId = ServletSupport.getResourceId(req);
+		if (jobId == null || !conversionJobManager.removeJob(jobId)) {
+			ErrorMessage errorMessage = new ErrorMessage(HttpServletResponse.SC_NOT_FOUND,
+					" No such job: " + jobId, req.getRequestURL().toString());
+			support.sendErrorMessageResponse(errorMessage, resp);
+			return;
+		}
+		resp.setStatus(HttpServletResponse.SC_NO_CONTENT);
+	}
+
+	private void sendJobStatusResponse(ConversionJob job, int statusCode, HttpServletRequest req, HttpServletResponse resp)
+			throws IOException {
+		ConversionJob.Status status = job.getStatus();
+		Integer queuePosition = null;
+		String resultUrl = null;
+		String message = null;
+		if (status == ConversionJob.Status.QUEUED) {
+			queuePosition = conversionJobManager.getQueuePosition(job);
+			// tells a polling client where the job stands and when it is worth asking again
+			long waitSeconds = Math.max(1, (long) Math.ceil(conversionJobManager.estimateWaitSeconds(job)));
+			resp.setHeader("X-Queue-Position", String.valueOf(queuePosition));
+			resp.setHeader("Retry-After", String.valueOf(waitSeconds));
+		} else if (status == ConversionJob.Status.DONE) {
+			resultUrl = getJobUrl(req, job) + JOB_RESULT_PATH;
+		} else if (status == ConversionJob.Status.FAILED) {
+			message = ErrorMessage.forConversionFailure(job.getFailure(), req.getRequestURL().toString()).getMessage();
+		}
+		JobStatus jobStatus = new JobStatus(job.getId(), status.name(), queuePosition, job.getGeneratedPdfFilename(), resultUrl, message);
+		support.sendXmlResponse(jobStatus, statusCode, resp);
+	}
+
+	private String getJobUrl(HttpServletRequest req, ConversionJob job) {
+		return ServletSupport.getResourceUrl(req, RESOURCE_PATH_JOBS, job.getId());
+	}
+}
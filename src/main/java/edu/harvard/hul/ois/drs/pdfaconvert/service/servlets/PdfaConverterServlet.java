@@ -10,25 +10,22 @@ See the License for the specific language governing permission and limitations u
 package edu.harvard.hul.ois.drs.pdfaconvert.service.servlets;
 
 import static edu.harvard.hul.ois.drs.pdfaconvert.service.common.Constants.ENV_PROJECT_PROPS;
-import static edu.harvard.hul.ois.drs.pdfaconvert.service.common.Constants.FILE_PARAM;
-import static edu.harvard.hul.ois.drs.pdfaconvert.service.common.Constants.FORM_FIELD_DATAFILE;
-import static edu.harvard.hul.ois.drs.pdfaconvert.service.common.Constants.PDF_MIMETYPE;
 import static edu.harvard.hul.ois.drs.pdfaconvert.service.common.Constants.PROPERTIES_FILE_NAME;
+import static edu.harvard.hul.ois.drs.pdfaconvert.service.common.Constants.REQUEST_TIMING_KEY;
+import static edu.harvard.hul.ois.drs.pdfaconvert.service.common.Constants.RESOURCE_PATH_BATCH;
+import static edu.harvard.hul.ois.drs.pdfaconvert.service.common.Constants.RESOURCE_PATH_BULK;
 import static edu.harvard.hul.ois.drs.pdfaconvert.service.common.Constants.RESOURCE_PATH_CONVERT;
+import static edu.harvard.hul.ois.drs.pdfaconvert.service.common.Constants.RESOURCE_PATH_JOBS;
+import static edu.harvard.hul.ois.drs.pdfaconvert.service.common.Constants.RESOURCE_PATH_HEALTH;
+import static edu.harvard.hul.ois.drs.pdfaconvert.service.common.Constants.RESOURCE_PATH_METRICS;
+import static edu.harvard.hul.ois.drs.pdfaconvert.service.common.Constants.RESOURCE_PATH_READY;
+import static edu.harvard.hul.ois.drs.pdfaconvert.service.common.Constants.RESOURCE_PATH_UPLOADS;
 import static edu.harvard.hul.ois.drs.pdfaconvert.service.common.Constants.RESOURCE_PATH_VERSION;
-import static edu.harvard.hul.ois.drs.pdfaconvert.service.common.Constants.TEMP_FILE_NAME_KEY;
-import static edu.harvard.hul.ois.drs.pdfaconvert.service.common.Constants.TEXT_PLAIN_MIMETYPE;
-import static edu.harvard.hul.ois.drs.pdfaconvert.service.common.Constants.TEXT_XML_MIMETYPE;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
-import java.io.PrintWriter;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Properties;
 
@@ -37,59 +34,82 @@ import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import javax.xml.bind.JAXBContext;
-import javax.xml.bind.JAXBException;
-import javax.xml.bind.Marshaller;
 
-import org.apache.commons.fileupload.FileItem;
-import org.apache.commons.fileupload.FileUploadException;
-import org.apache.commons.fileupload.disk.DiskFileItemFactory;
-import org.apache.commons.fileupload.servlet.ServletFileUpload;
-import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.apache.logging.log4j.Marker;
-import org.apache.logging.log4j.MarkerManager;
 
-import edu.harvard.hul.ois.drs.pdfaconvert.ExternalToolException;
-import edu.harvard.hul.ois.drs.pdfaconvert.GeneratedFileUnavailableException;
-import edu.harvard.hul.ois.drs.pdfaconvert.PdfaConverterOutput;
-import edu.harvard.hul.ois.drs.pdfaconvert.UnknownFileTypeException;
-import edu.harvard.hul.ois.drs.pdfaconvert.service.common.DiskFileItemExt;
-import edu.harvard.hul.ois.drs.pdfaconvert.service.common.ErrorMessage;
-import edu.harvard.hul.ois.drs.pdfaconvert.service.pool.PdfaConverterWrapper;
+import edu.harvard.hul.ois.drs.pdfaconvert.PdfaConvert;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.cache.ConversionResultCache;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.clients.ClientRegistry;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.jobs.ConversionJobManager;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.metrics.MetricsExporter;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.metrics.RequestTiming;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.pool.AdmissionController;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.pool.ConversionExecutor;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.pool.ConversionScheduler;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.pool.ConversionTimeouts;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.pool.ConverterWorker;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.pool.OutputDeletionQueue;
 import edu.harvard.hul.ois.drs.pdfaconvert.service.pool.PdfaConverterWrapperFactory;
 import edu.harvard.hul.ois.drs.pdfaconvert.service.pool.PdfaConverterWrapperPool;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.pool.PoolWarmer;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.uploads.UploadSessionManager;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.workdir.WorkDirectory;
 
 /**
  * Handles the upload of a file either locally or remotely for processing by
  * Pdfa Converter. For a local upload HTTP GET is used by having a request parameter point
  * to the local file's location. For a remote upload HTTP POST is used to pass
  * the in the file as form data.
+ * Conversions can also be submitted as jobs which are converted in the background. The client then polls
+ * the job for its status and fetches the converted file once the job is done.
+ * Many files can be converted in one request as a batch which returns a ZIP file of the converted files.
+ * Whole directories on a shared filesystem can be converted in bulk into an output directory on it.
+ * The servlet sets up the service and routes each request to the handler for its resource.
  */
-@WebServlet(name="PDF-A Converter Servlet", urlPatterns={RESOURCE_PATH_CONVERT, RESOURCE_PATH_VERSION}, loadOnStartup=1, asyncSupported=false)
+@WebServlet(name="PDF-A Converter Servlet", urlPatterns={RESOURCE_PATH_CONVERT, RESOURCE_PATH_VERSION, RESOURCE_PATH_METRICS,
+		RESOURCE_PATH_HEALTH, RESOURCE_PATH_READY, RESOURCE_PATH_JOBS, RESOURCE_PATH_JOBS + "/*",
+		RESOURCE_PATH_BATCH, RESOURCE_PATH_BULK, RESOURCE_PATH_UPLOADS, RESOURCE_PATH_UPLOADS + "/*"},
+		loadOnStartup=1, asyncSupported=true)
 public class PdfaConverterServlet extends HttpServlet {
 	private static final long serialVersionUID = 1L;
 
-	private static final String UPLOAD_DIRECTORY = "java.io.tmpdir";
 	private static final int MIN_IDLE_OBJECTS_IN_POOL = 3;
 	private static final String DEFAULT_MAX_OBJECTS_IN_POOL = "10";
 	private static final String DEFAULT_MAX_UPLOAD_SIZE = "40";  // in MB
 	private static final String DEFAULT_MAX_REQUEST_SIZE = "50"; // in MB
-	private static final String DEFAULT_IN_MEMORY_FILE_SIZE = "3"; // in MB - above which the temporary file is stored to disk
-	private static final long MB_MULTIPLIER = 1024 * 1024;
-	private static int poolUsageCount = 0; // for testing usage of pool objects
+	private static final String DEFAULT_MAX_QUEUED_CONVERSIONS = "50";
+	private static final String DEFAULT_CONVERTER_MAX_USES = "500"; // 0 means no limit
+	private static final String DEFAULT_CONVERTER_MAX_AGE = "240"; // in minutes - 0 means no limit
+	private static final String DEFAULT_IDLE_CHECK_INTERVAL = "60"; // in seconds - 0 means no background checks
+	private static final String DEFAULT_IDLE_EVICTION = "10"; // in minutes
+	private static final String DEFAULT_WORKER_STARTUP_TIMEOUT = "60"; // in seconds
+	private static final String DEFAULT_MAX_BORROW_WAIT = "120"; // in seconds
+	private static final String DEFAULT_CONVERSION_TIMEOUT = "300"; // in seconds - 0 means no timeout
+	private static final String DEFAULT_ASYNC_TIMEOUT = "600"; // in seconds - 0 means no timeout
+	private static final String DEFAULT_JOB_RETENTION = "60"; // in minutes
+	private static final String DEFAULT_CACHE_ENABLED = "false";
+	private static final String DEFAULT_COALESCING_ENABLED = "true";
+	private static final String DEFAULT_CACHE_MAX_SIZE = "1024"; // in MB
+	private static final String DEFAULT_MAX_BATCH_FILES = "500";
+	private static final String DEFAULT_MAX_BULK_FILES = "100000";
 	private static final Logger logger = LogManager.getLogger();
-	private static final Marker POOL_MARKER = MarkerManager.getMarker("POOL");
 
 	private PdfaConverterWrapperPool pdfaConverterWrapperPool;
-	private DiskFileItemFactory factory;
+	private ConversionExecutor conversionExecutor;
+	private OutputDeletionQueue outputDeletionQueue;
+	private ConversionJobManager conversionJobManager;
+	private UploadSessionManager uploadSessionManager;
+	private WorkDirectory workDirectory;
 	private Properties applicationProps = null;
-	private int maxInMemoryFileSizeMb;
-	private long maxFileUploadSizeMb;
-	private long maxRequestSizeMb;
+	private ConversionHandler conversionHandler;
+	private JobHandler jobHandler;
+	private UploadHandler uploadHandler;
+	private BatchHandler batchHandler;
+	private BulkHandler bulkHandler;
+	private StatusHandler statusHandler;
 
 	@Override
 	public void init() throws ServletException {
@@ -135,11 +155,30 @@ public class PdfaConverterServlet extends HttpServlet {
 			}
 		}
 		int maxPoolSize = Integer.valueOf(applicationProps.getProperty("max.objects.in.pool", DEFAULT_MAX_OBJECTS_IN_POOL));
-		maxFileUploadSizeMb = Long.valueOf(applicationProps.getProperty("max.upload.file.size.MB", DEFAULT_MAX_UPLOAD_SIZE));
-		maxRequestSizeMb = Long.valueOf(applicationProps.getProperty("max.request.size.MB", DEFAULT_MAX_REQUEST_SIZE));
-		maxInMemoryFileSizeMb = Integer.valueOf(applicationProps.getProperty("max.in.memory.file.size.MB", DEFAULT_IN_MEMORY_FILE_SIZE));
-		logger.info("Max objects in object pool: {} -- Max file upload size: {}MB -- Max request object size: {}MB -- Max in-memory file size: {}MB",
-				maxPoolSize, maxFileUploadSizeMb, maxRequestSizeMb, maxInMemoryFileSizeMb);
+		long maxFileUploadSizeMb = Long.valueOf(applicationProps.getProperty("max.upload.file.size.MB", DEFAULT_MAX_UPLOAD_SIZE));
+		long maxRequestSizeMb = Long.valueOf(applicationProps.getProperty("max.request.size.MB", DEFAULT_MAX_REQUEST_SIZE));
+		int maxQueuedConversions = Integer.valueOf(applicationProps.getProperty("max.queued.conversions", DEFAULT_MAX_QUEUED_CONVERSIONS));
+		long maxBorrowWaitSeconds = Long.valueOf(applicationProps.getProperty("max.borrow.wait.seconds", DEFAULT_MAX_BORROW_WAIT));
+		long asyncTimeoutSeconds = Long.valueOf(applicationProps.getProperty("async.timeout.seconds", DEFAULT_ASYNC_TIMEOUT));
+		long jobRetentionMinutes = Long.valueOf(applicationProps.getProperty("job.retention.minutes", DEFAULT_JOB_RETENTION));
+		int maxBatchFiles = Integer.valueOf(applicationProps.getProperty("max.batch.files", DEFAULT_MAX_BATCH_FILES));
+		int maxBulkFiles = Integer.valueOf(applicationProps.getProperty("max.bulk.files", DEFAULT_MAX_BULK_FILES).trim());
+		BulkDirectories bulkDirectories = new BulkDirectories(applicationProps);
+		logger.info("Bulk conversion directories: {} -- Max bulk files: {}",
+				bulkDirectories.isEmpty() ? "none, bulk conversion is disabled" : bulkDirectories, maxBulkFiles);
+		logger.info("Max objects in object pool: {} -- Max file upload size: {}MB -- Max request object size: {}MB",
+				maxPoolSize, maxFileUploadSizeMb, maxRequestSizeMb);
+		logger.info("Max queued conversions: {} -- Max borrow wait: {}s -- Async request timeout: {}s -- Job retention: {} minutes",
+				maxQueuedConversions, maxBorrowWaitSeconds, asyncTimeoutSeconds, jobRetentionMinutes);
+
+		// set up the work directory first since the result cache lives in it by default
+		try {
+			workDirectory = WorkDirectory.fromProperties(applicationProps);
+		} catch (IOException e) {
+			logger.error("Could not set up the work directory", e);
+			throw new ServletException("Couldn't set up the work directory.", e);
+		}
+		workDirectory.start();
 
 		logger.debug("Initializing PdfaConverter pool");
 		GenericObjectPoolConfig poolConfig = new GenericObjectPoolConfig();
@@ -147,42 +186,147 @@ public class PdfaConverterServlet extends HttpServlet {
 		poolConfig.setMaxTotal(maxPoolSize);
 		poolConfig.setTestOnBorrow(true);
 		poolConfig.setBlockWhenExhausted(true);
-		pdfaConverterWrapperPool = new PdfaConverterWrapperPool(new PdfaConverterWrapperFactory(), poolConfig);
-
-		// configures upload settings
-		File tempUploadDir = new File(System.getProperty(UPLOAD_DIRECTORY));
-		if (!tempUploadDir.exists()) {
-			tempUploadDir.mkdir();
+		poolConfig.setMaxWaitMillis(maxBorrowWaitSeconds * 1000);
+		// retire worn converters as they are returned and check idle ones in the background, where the evictor
+		// also tops the pool back up to minIdle
+		int converterMaxUses = Integer.valueOf(applicationProps.getProperty("converter.max.uses", DEFAULT_CONVERTER_MAX_USES));
+		long converterMaxAgeMinutes = Long.valueOf(applicationProps.getProperty("converter.max.age.minutes", DEFAULT_CONVERTER_MAX_AGE));
+		long idleCheckSeconds = Long.valueOf(applicationProps.getProperty("converter.idle.check.seconds", DEFAULT_IDLE_CHECK_INTERVAL));
+		long idleEvictionMinutes = Long.valueOf(applicationProps.getProperty("converter.idle.eviction.minutes", DEFAULT_IDLE_EVICTION));
+		poolConfig.setTestOnReturn(true);
+		poolConfig.setTestWhileIdle(true);
+		poolConfig.setTimeBetweenEvictionRunsMillis(idleCheckSeconds > 0 ? idleCheckSeconds * 1000 : -1);
+		poolConfig.setNumTestsPerEvictionRun(maxPoolSize);
+		poolConfig.setMinEvictableIdleTimeMillis(-1); // never evict below minIdle
+		poolConfig.setSoftMinEvictableIdleTimeMillis(idleEvictionMinutes * 60 * 1000);
+		logger.info("Converter max uses: {} -- Max age: {} minutes -- Idle check every {}s -- Idle eviction after {} minutes",
+				converterMaxUses, converterMaxAgeMinutes, idleCheckSeconds, idleEvictionMinutes);
+		List<String> workerCommand = null;
+		if (Boolean.valueOf(applicationProps.getProperty("converter.worker.enabled", "false").trim())) {
+			workerCommand = ConverterWorker.javaCommand(applicationProps.getProperty("converter.worker.java.options", ""));
+			logger.info("Each pooled converter runs its conversions in a worker process started with: {}", workerCommand);
+		}
+		long workerStartupSeconds = Long.valueOf(applicationProps.getProperty("converter.worker.startup.timeout.seconds",
+				DEFAULT_WORKER_STARTUP_TIMEOUT).trim());
+		PdfaConverterWrapperFactory pdfaConverterWrapperFactory = new PdfaConverterWrapperFactory(workerCommand,
+				workerStartupSeconds * 1000);
+		pdfaConverterWrapperFactory.setRecycling(converterMaxUses, converterMaxAgeMinutes * 60 * 1000);
+		pdfaConverterWrapperPool = new PdfaConverterWrapperPool(pdfaConverterWrapperFactory, poolConfig);
+		ConversionTimeouts conversionTimeouts = ConversionTimeouts.fromProperties(applicationProps, DEFAULT_CONVERSION_TIMEOUT);
+		String pdfaConverterVersion = lookUpPdfaConverterVersion();
+		ConversionScheduler conversionScheduler = ConversionScheduler.fromProperties(applicationProps, maxPoolSize, maxQueuedConversions);
+		outputDeletionQueue = OutputDeletionQueue.fromProperties(applicationProps);
+		outputDeletionQueue.start();
+		conversionExecutor = new ConversionExecutor(pdfaConverterWrapperPool, conversionScheduler,
+				createResultCache(pdfaConverterVersion), conversionTimeouts, outputDeletionQueue, Boolean.valueOf(
+						applicationProps.getProperty("conversion.coalescing.enabled", DEFAULT_COALESCING_ENABLED).trim()));
+		AdmissionController admissionController = new AdmissionController(conversionExecutor, maxPoolSize, maxQueuedConversions,
+				Double.valueOf(applicationProps.getProperty("client.max.share", ConversionScheduler.DEFAULT_MAX_CLIENT_SHARE).trim()));
+		ClientRegistry clientRegistry = new ClientRegistry(applicationProps);
+		conversionJobManager = new ConversionJobManager(conversionExecutor, jobRetentionMinutes);
+		uploadSessionManager = UploadSessionManager.fromProperties(applicationProps, workDirectory);
+
+		// fill the pool in the background; /ready reports whether it has finished
+		int warmupSize = Integer.valueOf(applicationProps.getProperty("warmup.converters", String.valueOf(MIN_IDLE_OBJECTS_IN_POOL)));
+		String canaryPath = applicationProps.getProperty("warmup.canary.file");
+		File canaryFile = StringUtils.isNotBlank(canaryPath) ? new File(canaryPath.trim()) : null;
+		if (canaryFile != null && !canaryFile.isFile()) {
+			logger.error("Warm-up canary file not found: {} -- warming up without it", canaryFile.getPath());
+			canaryFile = null;
 		}
-		factory = new DiskFileItemFactory((maxInMemoryFileSizeMb * (int)MB_MULTIPLIER), tempUploadDir);
+		PoolWarmer poolWarmer = new PoolWarmer(pdfaConverterWrapperPool, warmupSize, canaryFile, workDirectory);
+		poolWarmer.start();
+
+		MetricsExporter metricsExporter = new MetricsExporter(pdfaConverterWrapperPool, conversionExecutor, admissionController,
+				clientRegistry, workDirectory, uploadSessionManager);
+
+		ServletSupport support = new ServletSupport(conversionExecutor, admissionController, clientRegistry, workDirectory,
+				maxFileUploadSizeMb, maxRequestSizeMb);
+		jobHandler = new JobHandler(support, conversionJobManager, admissionController);
+		conversionHandler = new ConversionHandler(support, conversionExecutor, admissionController, jobHandler,
+				bulkDirectories, asyncTimeoutSeconds);
+		uploadHandler = new UploadHandler(support, uploadSessionManager, conversionExecutor, admissionController, jobHandler);
+		batchHandler = new BatchHandler(support, conversionExecutor, admissionController, maxPoolSize, maxBatchFiles);
+		bulkHandler = new BulkHandler(support, conversionExecutor, admissionController, bulkDirectories, maxPoolSize,
+				maxBulkFiles);
+		statusHandler = new StatusHandler(support, pdfaConverterWrapperPool, conversionExecutor, admissionController,
+				poolWarmer, metricsExporter, pdfaConverterVersion);
 
 		logger.debug("PdfaConverter pool finished Initializing");
 	}
 	
+	/*
+	 * Look up the PdfaConverter version once so that /version, /health and /ready do not need to borrow a converter.
+	 */
+	private String lookUpPdfaConverterVersion() {
+		try {
+			return new PdfaConvert().getVersion();
+		} catch (Exception e) {
+			logger.error("Unable to get PdfaConverter version: {}", e.getMessage());
+			return null;
+		}
+	}
+
+	/*
+	 * Set up the conversion result cache if it has been enabled. Cached results are keyed by the converter's version.
+	 */
+	private ConversionResultCache createResultCache(String pdfaConverterVersion) {
+		if (!Boolean.valueOf(applicationProps.getProperty("cache.enabled", DEFAULT_CACHE_ENABLED))) {
+			logger.info("Conversion result cache disabled");
+			return null;
+		}
+		String defaultCacheDir = workDirectory.getCacheDir().getPath();
+		File cacheDir = new File(applicationProps.getProperty("cache.directory", defaultCacheDir));
+		long cacheMaxSizeMb = Long.valueOf(applicationProps.getProperty("cache.max.size.MB", DEFAULT_CACHE_MAX_SIZE));
+		if (pdfaConverterVersion == null) {
+			logger.error("PdfaConverter version unknown -- continuing without conversion result cache");
+			return null;
+		}
+		try {
+			return new ConversionResultCache(cacheDir, cacheMaxSizeMb * ServletSupport.MB_MULTIPLIER, pdfaConverterVersion);
+		} catch (Exception e) {
+			logger.error("Unable to set up conversion result cache in {} -- continuing without it", cacheDir.getPath(), e);
+			return null;
+		}
+	}
+
 	/**
-	 * Clean up any leftover files in Servlet container upload directory.
-	 * These should have been cleaned up during normal processing.
+	 * Stop the conversion executor and clean up any leftover files in the work directory's staging area.
+	 * These should have been cleaned up during normal processing. Other files in the system temp directory
+	 * belong to other applications and are left alone.
 	 * 
 	 * @see javax.servlet.GenericServlet#destroy()
 	 */
 	@Override
 	public void destroy() {
-		File tempUploadDir = new File(System.getProperty(UPLOAD_DIRECTORY));
-		if (tempUploadDir.exists() && tempUploadDir.listFiles() != null) {
-			File[] files = tempUploadDir.listFiles();
-			for (File file : files) {
-				file.delete();
-			}
+		if (conversionJobManager != null) {
+			conversionJobManager.shutdown();
+		}
+		if (conversionExecutor != null) {
+			conversionExecutor.shutdown();
+		}
+		if (pdfaConverterWrapperPool != null) {
+			pdfaConverterWrapperPool.close();
+		}
+		if (outputDeletionQueue != null) {
+			outputDeletionQueue.shutdown();
+		}
+		if (uploadSessionManager != null) {
+			uploadSessionManager.shutdown();
+		}
+		if (workDirectory != null) {
+			workDirectory.shutdown();
 		}
 	}
 
 	/**
-	 * Handles the HTTP <code>GET</code> method. There are currently two end
+	 * Handles the HTTP <code>GET</code> method. There are currently three end
 	 * point for GET:
 	 * <ol>
 	 * <li>/examine -- to have PdfaConverter examine a file and return a PDF/A. Use this when uploading a file locally.</li>
 	 * <li>/version -- to receive "text/plain" output of the version of PdfaConverter
 	 * being used to process files.</li>
+	 * <li>/jobs/&lt;id&gt; -- to receive the status of a conversion job and /jobs/&lt;id&gt;/result to fetch its PDF/A.</li>
 	 * </ol>
 	 * "/examine" requires the path to the file to be analyzed with the request
 	 * parameter "file" set to location of the file. E.g.: http://
@@ -202,34 +346,64 @@ public class PdfaConverterServlet extends HttpServlet {
 			throws ServletException, IOException {
 
 		String servletPath = request.getServletPath(); // gives servlet mapping
-		logger.info("Entering doGet(): " + servletPath);
 
 		// See if path is just requesting version number. If so, just return it.
 		// Outputs version of PdfaConverter, not the version of web application.
 		if (RESOURCE_PATH_VERSION.equals(servletPath)) {
-			sendPdfaConverterVersionResponse(request, response); 
-			return;
+			statusHandler.sendPdfaConverterVersionResponse(request, response);
+		} else if (RESOURCE_PATH_HEALTH.equals(servletPath)) {
+			statusHandler.sendHealthResponse(response);
+		} else if (RESOURCE_PATH_READY.equals(servletPath)) {
+			statusHandler.sendReadyResponse(response);
+		} else if (RESOURCE_PATH_METRICS.equals(servletPath)) {
+			statusHandler.sendMetricsResponse(response);
+		} else if (RESOURCE_PATH_JOBS.equals(servletPath)) {
+			jobHandler.sendJobResponse(request, response);
+		} else if (RESOURCE_PATH_UPLOADS.equals(servletPath)) {
+			uploadHandler.sendUploadResponse(request, response);
+		} else {
+			conversionHandler.convertLocalFile(request, response);
 		}
+	}
 
-		String filePath = request.getParameter(FILE_PARAM);
-		if (StringUtils.isEmpty(filePath)) {
-			ErrorMessage errorMessage = new ErrorMessage(HttpServletResponse.SC_BAD_REQUEST,
-					" Missing parameter: [" + FILE_PARAM + "] ", request.getRequestURL().toString());
-			sendErrorMessageResponse(errorMessage, response);
-			return;
-		}
-		
-		String fileName = null;
-        int index = filePath.lastIndexOf(File.separatorChar);
-        if (index > 0 && index <= filePath.length()) {
-        	fileName = filePath.substring(index + 1);
-        } else {
-        	fileName = filePath;
-        }
-        File inputFile = new File(filePath);
+	/**
+	 * Time every request, sending its responses through the timing's wrapper so the stages timed before the body is
+	 * started go back in a Server-Timing header. PdfaRequestListener writes the access log line once the request,
+	 * including any asynchronous part, has ended.
+	 */
+	@Override
+	protected void service(HttpServletRequest request, HttpServletResponse response)
+			throws ServletException, IOException {
+		RequestTiming timing = new RequestTiming(request);
+		request.setAttribute(REQUEST_TIMING_KEY, timing);
+		super.service(request, timing.wrap(response));
+	}
 
-        // Send it to the PdfaConverter processor...
-		sendPdfaConverterExamineResponse(inputFile, fileName, request, response);
+	/**
+	 * Handles the HTTP <code>DELETE</code> method for removing a conversion job along with its converted file,
+	 * or a chunked upload along with the chunks received.
+	 * Example: curl -X DELETE <host>:[<port>]/pdfa-converter/jobs/<id>
+	 *
+	 * @param request
+	 *            servlet request
+	 * @param response
+	 *            servlet response
+	 * @throws ServletException
+	 *             if a servlet-specific error occurs
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	protected void doDelete(HttpServletRequest request, HttpServletResponse response)
+			throws ServletException, IOException {
+
+		String servletPath = request.getServletPath();
+		if (RESOURCE_PATH_UPLOADS.equals(servletPath)) {
+			uploadHandler.deleteUpload(request, response);
+		} else if (RESOURCE_PATH_JOBS.equals(servletPath)) {
+			jobHandler.deleteJob(request, response);
+		} else {
+			super.doDelete(request, response);
+		}
 	}
 
 	/**
@@ -237,6 +411,12 @@ public class PdfaConverterServlet extends HttpServlet {
 	 * using the <code>POST</code> method. Example: curl -X POST -F datafile=@
 	 * <path/to/file> <host>:[<port>]/pdfa-converter/examine Note: "pdfa-converter" in the above URL
 	 * needs to be adjusted to the final name of the WAR file.
+	 * A POST to /jobs instead queues the file as a conversion job and returns the job status right away.
+	 * A local file can also be submitted as a job with the "file" request parameter rather than form data.
+	 * A POST to /batch accepts any number of files, including ZIP files of documents, and returns a ZIP file
+	 * of the converted files plus a manifest.
+	 * A POST to /uploads starts a chunked upload, and a POST to /uploads/<id> completes one as a conversion job.
+	 * A POST to /bulk converts a directory or the files listed in a manifest into an output directory.
 	 *
 	 * @param request
 	 *            servlet request
@@ -250,219 +430,44 @@ public class PdfaConverterServlet extends HttpServlet {
 	protected void doPost(HttpServletRequest request, HttpServletResponse response)
 			throws ServletException, IOException {
 
-		logger.info("Entering doPost()");
-		if (!ServletFileUpload.isMultipartContent(request)) {
-			ErrorMessage errorMessage = new ErrorMessage(HttpServletResponse.SC_BAD_REQUEST,
-					" Missing Multipart Form Data. ", request.getRequestURL().toString());
-			sendErrorMessageResponse(errorMessage, response);
-			return;
-		}
-
-		try {
-			ServletFileUpload upload = new ServletFileUpload(factory);
-			upload.setFileSizeMax(maxFileUploadSizeMb * MB_MULTIPLIER); // convert from MB to bytes
-			upload.setSizeMax(maxRequestSizeMb * MB_MULTIPLIER); // convert from MB to bytes
-			List<FileItem> formItems = upload.parseRequest(request);
-			Iterator<FileItem> iter = formItems.iterator();
-
-			// iterates over form's fields
-			while (iter.hasNext()) {
-				FileItem item = iter.next();
-
-				// processes only fields that are not form fields
-				// if (!item.isFormField()) {
-				if (!item.isFormField() && item.getFieldName().equals(FORM_FIELD_DATAFILE)) {
-
-					long fileSize = item.getSize();
-					if (fileSize < 1) {
-						ErrorMessage errorMessage = new ErrorMessage(HttpServletResponse.SC_BAD_REQUEST,
-								" Missing File Data. ", request.getRequestURL().toString());
-						sendErrorMessageResponse(errorMessage, response);
-						return;
-					}
-					// save original uploaded file name
-					InputStream inputStream = item.getInputStream();
-					String origFileName = item.getName();
-					
-					DiskFileItemExt itemExt = new DiskFileItemExt(item.getFieldName(),
-							item.getContentType(),
-							item.isFormField(),
-							item.getName(),
-							(maxInMemoryFileSizeMb * (int)MB_MULTIPLIER),
-							factory.getRepository());
-					// Create a temporary unique filename for a file containing the original temp filename plus the real filename containing its file type suffix.
-					String tempFilename = itemExt.getTempFile().getName();
-					StringBuilder realFileTypeFilename = new StringBuilder(tempFilename);
-					realFileTypeFilename.append('-');
-					realFileTypeFilename.append(origFileName);
-					// create the file in the same temporary directory
-					File realInputFile = new File(factory.getRepository(), realFileTypeFilename.toString());
-					
-					// strip out suffix before saving to ServletRequestListener
-					request.setAttribute(TEMP_FILE_NAME_KEY, tempFilename.substring(0, tempFilename.indexOf('.')));
-
-					// turn InputStream into a File in temp directory
-					OutputStream outputStream = new FileOutputStream(realInputFile);
-					IOUtils.copy(inputStream, outputStream);
-					outputStream.close();
-					
-					try {
-						// Send it to the PdfaConverter processor...
-						sendPdfaConverterExamineResponse(realInputFile, origFileName, request, response);
-					} finally {
-						// delete both original temporary file -- if large enough will have been persisted to disk -- and our created file
-						if (!item.isInMemory()) { // 
-							item.delete();
-						}
-						if (realInputFile.exists()) {
-							realInputFile.delete();
-						}
-					}
-
-				} else {
-					ErrorMessage errorMessage = new ErrorMessage(HttpServletResponse.SC_BAD_REQUEST,
-							" The request did not have the correct name attribute of \"datafile\" in the form processing. ",
-							request.getRequestURL().toString(), " Processing halted.");
-					sendErrorMessageResponse(errorMessage, response);
-					return;
-				}
-
+		String servletPath = request.getServletPath();
+		if (RESOURCE_PATH_BATCH.equals(servletPath)) {
+			batchHandler.sendBatchConversionResponse(request, response);
+		} else if (RESOURCE_PATH_BULK.equals(servletPath)) {
+			bulkHandler.sendBulkConversionResponse(request, response);
+		} else if (RESOURCE_PATH_UPLOADS.equals(servletPath)) {
+			if (ServletSupport.getResourceId(request) == null) {
+				uploadHandler.startChunkedUpload(request, response);
+			} else {
+				uploadHandler.completeChunkedUpload(request, response);
 			}
-
-		} catch (FileUploadException ex) {
-			logger.error(ex);
-			ErrorMessage errorMessage = new ErrorMessage(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
-					" There was an unexpected server error: " + ex.getMessage(), request.getRequestURL().toString(),
-					" Processing halted.");
-			sendErrorMessageResponse(errorMessage, response);
-			return;
+		} else {
+			conversionHandler.convertUpload(RESOURCE_PATH_JOBS.equals(servletPath), request, response);
 		}
 	}
 
-	/*
-	 * Send input file to converter application and return converted file, if successful, in HttpServletResponse.
+	/**
+	 * Handles the HTTP <code>PUT</code> method for sending a chunk of a chunked upload. The chunk's number follows the
+	 * upload in the path and its SHA-256 checksum is sent in a Digest header.
+	 * Example: curl -X PUT -H "Digest: SHA-256=<base64 checksum>" --data-binary @chunk <host>:[<port>]/pdfa-converter/uploads/<id>/<chunk>
+	 *
+	 * @param request
+	 *            servlet request
+	 * @param response
+	 *            servlet response
+	 * @throws ServletException
+	 *             if a servlet-specific error occurs
+	 * @throws IOException
+	 *             if an I/O error occurs
 	 */
-	private void sendPdfaConverterExamineResponse(File inputFile, String inputFileName, HttpServletRequest req, HttpServletResponse resp)
-			throws IOException {
+	@Override
+	protected void doPut(HttpServletRequest request, HttpServletResponse response)
+			throws ServletException, IOException {
 
-		if (!inputFile.exists()) {
-			ErrorMessage errorMessage = new ErrorMessage(HttpServletResponse.SC_BAD_REQUEST,
-					" File not sent with request: " + inputFileName, " " + req.getRequestURL().toString());
-			sendErrorMessageResponse(errorMessage, resp);
+		if (!RESOURCE_PATH_UPLOADS.equals(request.getServletPath())) {
+			super.doPut(request, response);
 			return;
 		}
-
-		FileInputStream fileInputStream = null;
-		PdfaConverterWrapper pdfaConverterWrapper = null;
-		int poolCnt = poolUsageCount++;
-		try {
-			logger.debug("Borrowing PdfaConverter from pool");
-	        logger.info(POOL_MARKER, "About to get PdfaConverter object from pool");
-			pdfaConverterWrapper = pdfaConverterWrapperPool.borrowObject();
-	        logger.info(POOL_MARKER, "Got PdfaConverter object from pool number: {}", poolCnt);
-
-			logger.debug("Running PdfaConverter on " + inputFile.getPath());
-			
-			String outputFilenameBase = null;
-			// Since a POST creates a temporary file name we need to use original file name.
-			if (inputFileName.lastIndexOf('.') > 0) {
-				outputFilenameBase = inputFileName.substring(0, inputFileName.indexOf('.'));
-			} else {
-				outputFilenameBase = inputFileName;
-			}
-			String generatedPdfFilename = outputFilenameBase + ".pdf";
-
-			// Start the output process
-			PdfaConverterOutput output = pdfaConverterWrapper.getPdfaConvert().examine(inputFile, true);
-			File pdfReturnFile = output.getPdfaConvertedFile();
-			resp.setContentType(PDF_MIMETYPE);
-			// Double-quote the filename in case it contains spaces so it doesn't get truncated at first space.
-			resp.addHeader("Content-Disposition", "attachment; filename=\"" + generatedPdfFilename+ "\""); // downloaded as attached separate file (This is the filename the browser uses.)
-//			resp.addHeader("Content-Disposition", "filename=\"" + generatedPdfFilename+ "\""); // opens in browser window
-			resp.addHeader("filename", generatedPdfFilename); // Convenience to get filename without having to parse the "Content-Disposition" line.
-			resp.setContentLength((int) pdfReturnFile.length());
-			fileInputStream = new FileInputStream(pdfReturnFile);
-			OutputStream responseOutputStream = resp.getOutputStream();
-			int bytes;
-			while ((bytes = fileInputStream.read()) != -1) {
-				responseOutputStream.write(bytes);
-			}
-			logger.debug("Finished writing to OutputStream");
-		} catch (UnknownFileTypeException e) {
-			// This is user input error of a file type that cannot be handled so 400 error
-			logger.warn(e);
-			ErrorMessage errorMessage = new ErrorMessage(HttpServletResponse.SC_BAD_REQUEST,
-					" PdfaConverter Could not handle this request: " + e.getMessage(), req.getRequestURL().toString(), e.getMessage());
-			sendErrorMessageResponse(errorMessage, resp);
-		} catch (ExternalToolException | GeneratedFileUnavailableException e) {
-			// These cannot be resolved by user so translate to a 500 response
-			logger.error(e);
-			ErrorMessage errorMessage = new ErrorMessage(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
-					" PdfaConverter failed unexpectedly: " + e.getMessage(), req.getRequestURL().toString(), e.getMessage());
-			sendErrorMessageResponse(errorMessage, resp);
-		} catch (Throwable e) {
-			// trap any other type of error
-			logger.error("Unexpected exception: " + e.getLocalizedMessage(), e);
-			ErrorMessage errorMessage = new ErrorMessage(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
-					" PdfaConverter failed unexpectedly: " + e.getMessage(), req.getRequestURL().toString(), e.getMessage());
-			sendErrorMessageResponse(errorMessage, resp);
-		} finally {
-			if (fileInputStream != null) {
-				fileInputStream.close();
-			}
-			if (pdfaConverterWrapper != null) {
-				logger.info(POOL_MARKER, "Returning PdfaConverter object to pool number: {}", poolCnt);
-				logger.debug("Returning PdfaConverter to pool");
-				pdfaConverterWrapperPool.returnObject(pdfaConverterWrapper);
-			}
-		}
-	}
-
-	private void sendPdfaConverterVersionResponse(HttpServletRequest req, HttpServletResponse resp) throws IOException {
-
-		PdfaConverterWrapper pdfaConverterWrapper = null;
-		String pdfaConverterVersion = null;
-		try {
-			logger.debug("Borrowing PdfaConverter from pool");
-			pdfaConverterWrapper = pdfaConverterWrapperPool.borrowObject();
-			pdfaConverterVersion = pdfaConverterWrapper.getPdfaConvert().getVersion();
-		} catch (Exception e) {
-			logger.error("Problem executing call...", e);
-			ErrorMessage errorMessage = new ErrorMessage(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
-					" Getting PdfaConverter version failed: " + e.getMessage(), req.getRequestURL().toString(), e.getMessage());
-			sendErrorMessageResponse(errorMessage, resp);
-		} finally {
-			if (pdfaConverterWrapper != null) {
-				logger.debug("Returning PdfaConverter to pool");
-				pdfaConverterWrapperPool.returnObject(pdfaConverterWrapper);
-			}
-		}
-		resp.setContentType(TEXT_PLAIN_MIMETYPE);
-		PrintWriter out = resp.getWriter();
-		out.println(pdfaConverterVersion);
-	}
-
-	private void sendErrorMessageResponse(ErrorMessage errorMessage, HttpServletResponse resp) throws IOException {
-		String errorMessageStr = errorMessageToString(errorMessage);
-		logger.error("Error -- Status:" + errorMessage.getStatusCode() + " - " + errorMessage.getReasonPhrase() + ", "
-				+ errorMessage.getMessage());
-		PrintWriter out = resp.getWriter();
-		resp.setContentType(TEXT_XML_MIMETYPE);
-		resp.setStatus(errorMessage.getStatusCode());
-		out.println(errorMessageStr);
-	}
-
-	private String errorMessageToString(ErrorMessage errorMessage) {
-		String errorMessageStr = null;
-		try {
-			ByteArrayOutputStream outStream = new ByteArrayOutputStream();
-			JAXBContext jaxbContext = JAXBContext.newInstance(ErrorMessage.class);
-			Marshaller jaxbMarshaller = jaxbContext.createMarshaller();
-			jaxbMarshaller.marshal(errorMessage, outStream);
-			errorMessageStr = outStream.toString();
-		} catch (JAXBException jbe) {
-			errorMessageStr = errorMessage.toString();
-		}
-		return errorMessageStr;
+		uploadHandler.receiveChunk(request, response);
 	}
 }
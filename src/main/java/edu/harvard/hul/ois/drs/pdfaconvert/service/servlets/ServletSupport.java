@@ -0,0 +1,307 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.service.servlets;
+
+import static edu.harvard.hul.ois.drs.pdfaconvert.service.common.Constants.CLIENT_KEY;
+import static edu.harvard.hul.ois.drs.pdfaconvert.service.common.Constants.PDF_MIMETYPE;
+import static edu.harvard.hul.ois.drs.pdfaconvert.service.common.Constants.TEXT_XML_MIMETYPE;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.fileupload.FileUploadBase;
+import org.apache.commons.fileupload.FileUploadException;
+import org.apache.commons.fileupload.servlet.ServletFileUpload;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import edu.harvard.hul.ois.drs.pdfaconvert.ExternalToolException;
+import edu.harvard.hul.ois.drs.pdfaconvert.GeneratedFileUnavailableException;
+import edu.harvard.hul.ois.drs.pdfaconvert.UnknownFileTypeException;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.clients.Client;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.clients.ClientRegistry;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.common.ErrorMessage;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.common.XmlMarshaller;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.events.ConversionEvents;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.events.ResponseStreamingEvent;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.filetype.InputFileType;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.filetype.UnsupportedInputException;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.metrics.RequestTiming;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.pool.AdmissionController;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.pool.ConversionExecutor;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.pool.ConversionTimeoutException;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.workdir.WorkDirectory;
+
+/**
+ * What the resource handlers share: identifying and admitting clients, staging uploads, and writing the XML,
+ * PDF and error responses the same way for every resource.
+ */
+final class ServletSupport {
+
+	static final long MB_MULTIPLIER = 1024 * 1024;
+
+	private static final String UPLOAD_FILE_PREFIX = "upload_";
+	private static final Logger logger = LogManager.getLogger();
+
+	private final ConversionExecutor conversionExecutor;
+	private final AdmissionController admissionController;
+	private final ClientRegistry clientRegistry;
+	private final WorkDirectory workDirectory;
+	private final long maxFileUploadSizeMb;
+	private final long maxRequestSizeMb;
+
+	/**
+	 * @param conversionExecutor - executor that runs the conversions, whose metrics the handlers update
+	 * @param admissionController - admits conversion requests and estimates when a turned away one may retry
+	 * @param clientRegistry - identifies the client making a request
+	 * @param workDirectory - work directory in which uploads are staged
+	 * @param maxFileUploadSizeMb - largest file that may be uploaded, in MB
+	 * @param maxRequestSizeMb - largest upload request, in MB
+	 */
+	ServletSupport(ConversionExecutor conversionExecutor, AdmissionController admissionController,
+			ClientRegistry clientRegistry, WorkDirectory workDirectory, long maxFileUploadSizeMb, long maxRequestSizeMb) {
+		this.conversionExecutor = conversionExecutor;
+		this.admissionController = admissionController;
+		this.clientRegistry = clientRegistry;
+		this.workDirectory = workDirectory;
+		this.maxFileUploadSizeMb = maxFileUploadSizeMb;
+		this.maxRequestSizeMb = maxRequestSizeMb;
+	}
+
+	long getMaxFileUploadSizeMb() {
+		return maxFileUploadSizeMb;
+	}
+
+	/*
+	 * A streaming upload parser enforcing the size limits while the bytes are read.
+	 */
+	ServletFileUpload newFileUpload() {
+		ServletFileUpload upload = new ServletFileUpload();
+		upload.setFileSizeMax(maxFileUploadSizeMb * MB_MULTIPLIER); // convert from MB to bytes
+		upload.setSizeMax(maxRequestSizeMb * MB_MULTIPLIER); // convert from MB to bytes
+		return upload;
+	}
+
+	/*
+	 * Create a temporary unique filename for a file containing a unique temp name plus the real filename containing its file type suffix.
+	 * The converter names the converted file after the part of the name before the first '.'.
+	 * Uploads whose expected size fits the work directory's memory tier are staged in memory.
+	 */
+	File createUploadFile(String origFileName, long expectedSize) {
+		return workDirectory.newStagedFile(UPLOAD_FILE_PREFIX, origFileName, expectedSize);
+	}
+
+	/*
+	 * Identify the client making a conversion request and check the request against the client's rate limit.
+	 * Returns false if the request has been turned away, before its body is read.
+	 */
+	boolean acceptClientRequest(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+		Client client = clientRegistry.identify(req);
+		req.setAttribute(CLIENT_KEY, client);
+		if (client.tryAcquire()) {
+			return true;
+		}
+		ErrorMessage errorMessage = new ErrorMessage(ErrorMessage.SC_TOO_MANY_REQUESTS,
+				" Too many requests from client " + client.getName() + ". Try again later.", req.getRequestURL().toString());
+		resp.setHeader("Retry-After", String.valueOf(client.getRetryAfterSeconds()));
+		sendErrorMessageResponse(errorMessage, resp);
+		return false;
+	}
+
+	/*
+	 * Turn away a request that could not be admitted, before its body is read: with a 429 if its client already has
+	 * its share of the admitted requests, otherwise because every converter and every waiting slot is taken.
+	 */
+	void sendServiceUnavailableResponse(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+		Client client = (Client) req.getAttribute(CLIENT_KEY);
+		if (admissionController.isAtClientQuota(client)) {
+			ErrorMessage errorMessage = new ErrorMessage(ErrorMessage.SC_TOO_MANY_REQUESTS, " Too many conversions waiting for client "
+					+ client.getName() + ". Try again later.", req.getRequestURL().toString());
+			resp.setHeader("Retry-After", String.valueOf(admissionController.estimateRetryAfterSeconds()));
+			sendErrorMessageResponse(errorMessage, resp);
+			return;
+		}
+		ErrorMessage errorMessage = new ErrorMessage(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+				" Too many conversions waiting. Try again later.", req.getRequestURL().toString());
+		sendErrorMessageResponse(errorMessage, resp);
+	}
+
+	/*
+	 * Check that a file named in the request is a supported type before it is admitted, sending a 400 if it is not.
+	 * Unlike an upload, a file on disk cannot be given the extension the converter needs, so it must have one.
+	 */
+	boolean checkLocalInputFile(File inputFile, HttpServletRequest request, HttpServletResponse response)
+			throws IOException {
+		try {
+			InputFileType inputFileType = InputFileType.check(inputFile);
+			if (FilenameUtils.getExtension(inputFile.getName()).isEmpty()) {
+				throw new UnsupportedInputException(inputFile.getName() + " is " + inputFileType
+						+ " but has no file name extension");
+			}
+			return true;
+		} catch (UnsupportedInputException e) {
+			sendUnsupportedInputResponse(e, request, response);
+			return false;
+		}
+	}
+
+	void sendUnsupportedInputResponse(UnsupportedInputException e, HttpServletRequest request,
+			HttpServletResponse response) throws IOException {
+		conversionExecutor.getMetrics().inputRejected();
+		ErrorMessage errorMessage = new ErrorMessage(HttpServletResponse.SC_BAD_REQUEST, " " + e.getMessage(),
+				request.getRequestURL().toString());
+		sendErrorMessageResponse(errorMessage, response);
+	}
+
+	/*
+	 * Translate a failure parsing the upload into an error response.
+	 */
+	void sendUploadErrorResponse(FileUploadException ex, HttpServletRequest request, HttpServletResponse response)
+			throws IOException {
+		ErrorMessage errorMessage;
+		if (ex instanceof FileUploadBase.FileSizeLimitExceededException || ex instanceof FileUploadBase.SizeLimitExceededException) {
+			logger.warn(ex);
+			errorMessage = new ErrorMessage(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE,
+					" " + ex.getMessage(), request.getRequestURL().toString(), " Processing halted.");
+		} else {
+			logger.error(ex);
+			errorMessage = new ErrorMessage(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+					" There was an unexpected server error: " + ex.getMessage(), request.getRequestURL().toString(),
+					" Processing halted.");
+		}
+		sendErrorMessageResponse(errorMessage, response);
+	}
+
+	/*
+	 * Write the converted file into the response. The converter has already been returned to the pool by the time
+	 * this is called so a slow client only holds on to the file, not a converter.
+	 */
+	void sendConvertedFileResponse(File pdfReturnFile, String generatedPdfFilename, HttpServletRequest req,
+			HttpServletResponse resp) throws IOException {
+
+		resp.setContentType(PDF_MIMETYPE);
+		// Double-quote the filename in case it contains spaces so it doesn't get truncated at first space.
+		resp.addHeader("Content-Disposition", "attachment; filename=\"" + generatedPdfFilename+ "\""); // downloaded as attached separate file (This is the filename the browser uses.)
+//		resp.addHeader("Content-Disposition", "filename=\"" + generatedPdfFilename+ "\""); // opens in browser window
+		resp.addHeader("filename", generatedPdfFilename); // Convenience to get filename without having to parse the "Content-Disposition" line.
+		long sendStart = System.nanoTime();
+		ResponseStreamingEvent streamingEvent = ConversionEvents.beginResponseStreaming();
+		long size;
+		try {
+			size = transferFile(pdfReturnFile, resp);
+		} catch (IOException e) {
+			ConversionEvents.endResponseStreaming(streamingEvent, generatedPdfFilename, 0, ConversionEvents.OUTCOME_FAILED);
+			throw e;
+		}
+		ConversionEvents.endResponseStreaming(streamingEvent, generatedPdfFilename, size, ConversionEvents.OUTCOME_SENT);
+		RequestTiming.of(req).record(RequestTiming.STAGE_SEND, System.nanoTime() - sendStart);
+		conversionExecutor.getMetrics().addBytesOut(size);
+		logger.debug("Finished writing to OutputStream");
+	}
+
+	/*
+	 * Set the content length and copy the file into the response body. The file is transferred by the FileChannel in
+	 * large blocks rather than copied through the heap a byte at a time.
+	 * Package-private so the benchmarks can measure it on its own.
+	 */
+	static long transferFile(File file, HttpServletResponse resp) throws IOException {
+		try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long size = fileChannel.size();
+			resp.setContentLengthLong(size);
+			WritableByteChannel responseChannel = Channels.newChannel(resp.getOutputStream());
+			long position = 0;
+			while (position < size) {
+				position += fileChannel.transferTo(position, size - position, responseChannel);
+			}
+			return size;
+		}
+	}
+
+	/*
+	 * Translate an exception thrown during conversion into an error response.
+	 */
+	void sendConversionErrorResponse(Throwable e, String requestUrl, HttpServletResponse resp) throws IOException {
+		if (e instanceof UnknownFileTypeException || e instanceof ConversionTimeoutException) {
+			logger.warn(e);
+		} else if (e instanceof ExternalToolException || e instanceof GeneratedFileUnavailableException) {
+			logger.error(e);
+		} else {
+			logger.error("Unexpected exception: " + e.getLocalizedMessage(), e);
+		}
+		sendErrorMessageResponse(ErrorMessage.forConversionFailure(e, requestUrl), resp);
+	}
+
+	/*
+	 * Send a job or upload status, or any other object annotated for JAXB, as the XML body of the response.
+	 */
+	void sendXmlResponse(Object body, int statusCode, HttpServletResponse resp) throws IOException {
+		resp.setContentType(TEXT_XML_MIMETYPE);
+		resp.setStatus(statusCode);
+		PrintWriter out = resp.getWriter();
+		out.println(XmlMarshaller.toXml(body));
+	}
+
+	void sendErrorMessageResponse(ErrorMessage errorMessage, HttpServletResponse resp) throws IOException {
+		String errorMessageStr = XmlMarshaller.toXml(errorMessage);
+		logger.error("Error -- Status:" + errorMessage.getStatusCode() + " - " + errorMessage.getReasonPhrase() + ", "
+				+ errorMessage.getMessage());
+		PrintWriter out = resp.getWriter();
+		resp.setContentType(TEXT_XML_MIMETYPE);
+		resp.setStatus(errorMessage.getStatusCode());
+		if (errorMessage.getStatusCode() == HttpServletResponse.SC_SERVICE_UNAVAILABLE) {
+			resp.setHeader("Retry-After", String.valueOf(admissionController.estimateRetryAfterSeconds()));
+		}
+		out.println(errorMessageStr);
+	}
+
+	/*
+	 * Pull the job or upload id out of a path of the form /jobs/<id>, /jobs/<id>/result or /uploads/<id>/<chunk>.
+	 */
+	static String getResourceId(HttpServletRequest req) {
+		String pathInfo = req.getPathInfo();
+		if (pathInfo == null || pathInfo.length() < 2) {
+			return null;
+		}
+		String jobId = pathInfo.substring(1);
+		int index = jobId.indexOf('/');
+		return index > 0 ? jobId.substring(0, index) : jobId;
+	}
+
+	/*
+	 * The absolute URL of a job or upload, for the Location header.
+	 */
+	static String getResourceUrl(HttpServletRequest req, String resourcePath, String id) {
+		StringBuffer url = req.getRequestURL();
+		url.setLength(url.length() - req.getRequestURI().length());
+		return url.append(req.getContextPath()).append(resourcePath).append('/').append(id).toString();
+	}
+
+	/*
+	 * Since a POST creates a temporary file name we need to use original file name for the converted file.
+	 */
+	static String toGeneratedPdfFilename(String inputFileName) {
+		String outputFilenameBase = null;
+		if (inputFileName.lastIndexOf('.') > 0) {
+			outputFilenameBase = inputFileName.substring(0, inputFileName.indexOf('.'));
+		} else {
+			outputFilenameBase = inputFileName;
+		}
+		return outputFilenameBase + ".pdf";
+	}
+}
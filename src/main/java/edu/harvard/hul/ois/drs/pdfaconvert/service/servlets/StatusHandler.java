@@ -0,0 +1,145 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.service.servlets;
+
+import static edu.harvard.hul.ois.drs.pdfaconvert.service.common.Constants.TEXT_PLAIN_MIMETYPE;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import edu.harvard.hul.ois.drs.pdfaconvert.service.common.ErrorMessage;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.metrics.MetricsExporter;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.pool.AdmissionController;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.pool.ConversionExecutor;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.pool.PdfaConverterWrapper;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.pool.PdfaConverterWrapperPool;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.pool.PoolWarmer;
+
+/**
+ * The /version, /health, /ready and /metrics resources. These report state the service already holds, so apart
+ * from a version that could not be looked up at start-up none of them waits on a converter.
+ */
+final class StatusHandler {
+
+	private static final Logger logger = LogManager.getLogger();
+
+	private final ServletSupport support;
+	private final PdfaConverterWrapperPool pdfaConverterWrapperPool;
+	private final ConversionExecutor conversionExecutor;
+	private final AdmissionController admissionController;
+	private final PoolWarmer poolWarmer;
+	private final MetricsExporter metricsExporter;
+	private volatile String pdfaConverterVersion;
+
+	/**
+	 * @param support - error responses shared by the handlers
+	 * @param pdfaConverterWrapperPool - pool of converters reported on
+	 * @param conversionExecutor - executor whose queue is reported on
+	 * @param admissionController - whether the service is turning requests away
+	 * @param poolWarmer - warm-up of the pool, which must finish before the service is ready
+	 * @param metricsExporter - exporter of the metrics in Prometheus text format
+	 * @param pdfaConverterVersion - version looked up at start-up, or null if it could not be
+	 */
+	StatusHandler(ServletSupport support, PdfaConverterWrapperPool pdfaConverterWrapperPool,
+			ConversionExecutor conversionExecutor, AdmissionController admissionController, PoolWarmer poolWarmer,
+			MetricsExporter metricsExporter, String pdfaConverterVersion) {
+		this.support = support;
+		this.pdfaConverterWrapperPool = pdfaConverterWrapperPool;
+		this.conversionExecutor = conversionExecutor;
+		this.admissionController = admissionController;
+		this.poolWarmer = poolWarmer;
+		this.metricsExporter = metricsExporter;
+		this.pdfaConverterVersion = pdfaConverterVersion;
+	}
+
+	void sendPdfaConverterVersionResponse(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+
+		String pdfaConverterVersion = this.pdfaConverterVersion;
+		if (pdfaConverterVersion != null) {
+			resp.setContentType(TEXT_PLAIN_MIMETYPE);
+			resp.getWriter().println(pdfaConverterVersion);
+			return;
+		}
+
+		// the version could not be looked up at start-up so ask a pooled converter
+		PdfaConverterWrapper pdfaConverterWrapper = null;
+		try {
+			logger.debug("Borrowing PdfaConverter from pool");
+			pdfaConverterWrapper = pdfaConverterWrapperPool.borrowObject();
+			pdfaConverterVersion = pdfaConverterWrapper.getVersion();
+			this.pdfaConverterVersion = pdfaConverterVersion;
+		} catch (Exception e) {
+			logger.error("Problem executing call...", e);
+			ErrorMessage errorMessage = new ErrorMessage(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+					" Getting PdfaConverter version failed: " + e.getMessage(), req.getRequestURL().toString(), e.getMessage());
+			support.sendErrorMessageResponse(errorMessage, resp);
+			return;
+		} finally {
+			if (pdfaConverterWrapper != null) {
+				logger.debug("Returning PdfaConverter to pool");
+				pdfaConverterWrapperPool.returnObject(pdfaConverterWrapper);
+			}
+		}
+		resp.setContentType(TEXT_PLAIN_MIMETYPE);
+		PrintWriter out = resp.getWriter();
+		out.println(pdfaConverterVersion);
+	}
+
+	/*
+	 * Report whether the service is up. Only the state already held by the service is used so this never waits on
+	 * a converter.
+	 */
+	void sendHealthResponse(HttpServletResponse resp) throws IOException {
+		boolean healthy = !pdfaConverterWrapperPool.isClosed();
+		resp.setStatus(healthy ? HttpServletResponse.SC_OK : HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+		resp.setContentType(TEXT_PLAIN_MIMETYPE);
+		PrintWriter out = resp.getWriter();
+		out.println("status: " + (healthy ? "UP" : "DOWN"));
+		out.println("version: " + pdfaConverterVersion);
+		out.println("converters active: " + pdfaConverterWrapperPool.getNumActive());
+		out.println("converters idle: " + pdfaConverterWrapperPool.getNumIdle());
+		out.println("conversions queued: " + conversionExecutor.getQueuedCount());
+	}
+
+	/*
+	 * Report whether the service is ready for traffic: the pool warm-up has finished with at least one working
+	 * converter and the service is not turning requests away.
+	 */
+	void sendReadyResponse(HttpServletResponse resp) throws IOException {
+		int warmCapacity = pdfaConverterWrapperPool.getNumIdle() + pdfaConverterWrapperPool.getNumActive();
+		boolean ready = poolWarmer.isComplete() && poolWarmer.getWarmedCount() > 0 && !pdfaConverterWrapperPool.isClosed()
+				&& !admissionController.isSaturated();
+		resp.setStatus(ready ? HttpServletResponse.SC_OK : HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+		resp.setContentType(TEXT_PLAIN_MIMETYPE);
+		PrintWriter out = resp.getWriter();
+		out.println("status: " + (ready ? "READY" : "NOT READY"));
+		out.println("version: " + pdfaConverterVersion);
+		out.println("warm-up: " + (poolWarmer.isComplete() ? "complete" : "in progress") + " -- warmed: "
+				+ poolWarmer.getWarmedCount() + " of " + poolWarmer.getTargetSize() + " -- failed: " + poolWarmer.getFailedCount());
+		out.println("warm capacity: " + warmCapacity + " of " + pdfaConverterWrapperPool.getMaxTotal());
+		out.println("requests admitted: " + admissionController.getAdmittedCount());
+	}
+
+	/*
+	 * Export the state of the pool, the conversion queue and the conversion metrics in Prometheus text format.
+	 */
+	void sendMetricsResponse(HttpServletResponse resp) throws IOException {
+		resp.setContentType(MetricsExporter.CONTENT_TYPE);
+		PrintWriter out = resp.getWriter();
+		metricsExporter.write(out);
+		out.flush();
+	}
+}
@@ -0,0 +1,286 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.service.servlets;
+
+import static edu.harvard.hul.ois.drs.pdfaconvert.service.common.Constants.CLIENT_KEY;
+import static edu.harvard.hul.ois.drs.pdfaconvert.service.common.Constants.RESOURCE_PATH_UPLOADS;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Base64;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.lang.StringUtils;
+
+import edu.harvard.hul.ois.drs.pdfaconvert.service.clients.Client;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.common.ErrorMessage;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.events.ConversionEvents;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.events.UploadStagingEvent;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.filetype.InputFileType;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.filetype.UnsupportedInputException;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.metrics.RequestTiming;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.pool.AdmissionController;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.pool.ConversionExecutor;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.uploads.InvalidChunkException;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.uploads.UploadSession;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.uploads.UploadSessionManager;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.uploads.UploadStatus;
+
+/**
+ * The /uploads resource: a chunked upload is started, sent a chunk at a time in any order, polled for the chunks
+ * still missing, and completed as a conversion job once every chunk has arrived.
+ */
+final class UploadHandler {
+
+	private static final String UPLOAD_NAME_PARAM = "name";
+	private static final String UPLOAD_SIZE_PARAM = "size";
+	private static final String UPLOAD_CHUNK_SIZE_PARAM = "chunkSize";
+	private static final String DIGEST_HEADER = "Digest"; // RFC 3230, e.g. Digest: SHA-256=<base64 checksum>
+
+	private final ServletSupport support;
+	private final UploadSessionManager uploadSessionManager;
+	private final ConversionExecutor conversionExecutor;
+	private final AdmissionController admissionController;
+	private final JobHandler jobHandler;
+
+	/**
+	 * @param support - responses and client admission shared by the handlers
+	 * @param uploadSessionManager - manager holding the uploads in progress
+	 * @param conversionExecutor - executor whose metrics count the bytes received
+	 * @param admissionController - admits a completed upload before it is queued
+	 * @param jobHandler - queues a completed upload as a conversion job
+	 */
+	UploadHandler(ServletSupport support, UploadSessionManager uploadSessionManager, ConversionExecutor conversionExecutor,
+			AdmissionController admissionController, JobHandler jobHandler) {
+		this.support = support;
+		this.uploadSessionManager = uploadSessionManager;
+		this.conversionExecutor = conversionExecutor;
+		this.admissionController = admissionController;
+		this.jobHandler = jobHandler;
+	}
+
+	/*
+	 * Start a chunked upload of the document named by the "name" parameter whose size in bytes is given by the "size"
+	 * parameter. The optional "chunkSize" parameter sets the size of every chunk but the last.
+	 */
+	void startChunkedUpload(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		String requestUrl = request.getRequestURL().toString();
+		if (!support.acceptClientRequest(request, response)) {
+			return;
+		}
+		String fileName = FilenameUtils.getName(StringUtils.defaultString(request.getParameter(UPLOAD_NAME_PARAM)));
+		if (FilenameUtils.getExtension(fileName).isEmpty()) {
+			// the converter goes by extension and the upload cannot be recognized until it has arrived
+			ErrorMessage errorMessage = new ErrorMessage(HttpServletResponse.SC_BAD_REQUEST,
+					" Missing parameter: [" + UPLOAD_NAME_PARAM + "] with a file name extension ", requestUrl);
+			support.sendErrorMessageResponse(errorMessage, response);
+			return;
+		}
+		UploadSession session;
+		try {
+			long size = Long.parseLong(StringUtils.defaultString(request.getParameter(UPLOAD_SIZE_PARAM)).trim());
+			String chunkSizeParam = request.getParameter(UPLOAD_CHUNK_SIZE_PARAM);
+			int chunkSize = StringUtils.isBlank(chunkSizeParam) ? 0 : Integer.parseInt(chunkSizeParam.trim());
+			session = uploadSessionManager.create(fileName, size, chunkSize);
+		} catch (NumberFormatException e) {
+			ErrorMessage errorMessage = new ErrorMessage(HttpServletResponse.SC_BAD_REQUEST,
+					" Missing or invalid parameter: [" + UPLOAD_SIZE_PARAM + "] or [" + UPLOAD_CHUNK_SIZE_PARAM + "] ", requestUrl);
+			support.sendErrorMessageResponse(errorMessage, response);
+			return;
+		} catch (IllegalArgumentException e) {
+			ErrorMessage errorMessage = new ErrorMessage(HttpServletResponse.SC_BAD_REQUEST, " " + e.getMessage(), requestUrl);
+			support.sendErrorMessageResponse(errorMessage, response);
+			return;
+		} catch (IllegalStateException e) {
+			ErrorMessage errorMessage = new ErrorMessage(HttpServletResponse.SC_SERVICE_UNAVAILABLE, " " + e.getMessage()
+					+ ". Try again later.", requestUrl);
+			support.sendErrorMessageResponse(errorMessage, response);
+			return;
+		}
+		response.setHeader("Location", ServletSupport.getResourceUrl(request, RESOURCE_PATH_UPLOADS, session.getId()));
+		sendUploadStatusResponse(session, HttpServletResponse.SC_CREATED, response);
+	}
+
+	/*
+	 * Write one chunk of an upload. The chunk's number follows the upload in the path and its SHA-256 checksum is
+	 * sent in a Digest header.
+	 */
+	void receiveChunk(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		UploadSession session = getUploadSession(request, response);
+		if (session == null) {
+			return;
+		}
+		String requestUrl = request.getRequestURL().toString();
+		String pathInfo = request.getPathInfo();
+		int chunkIndex;
+		try {
+			chunkIndex = Integer.parseInt(pathInfo.substring(pathInfo.indexOf('/', 1) + 1));
+		} catch (NumberFormatException | IndexOutOfBoundsException e) {
+			ErrorMessage errorMessage = new ErrorMessage(HttpServletResponse.SC_BAD_REQUEST,
+					" Missing chunk number: PUT each chunk to /uploads/<id>/<chunk> ", requestUrl);
+			support.sendErrorMessageResponse(errorMessage, response);
+			return;
+		}
+		byte[] checksum = parseSha256Digest(request.getHeader(DIGEST_HEADER));
+		if (checksum == null) {
+			ErrorMessage errorMessage = new ErrorMessage(HttpServletResponse.SC_BAD_REQUEST,
+					" Missing or invalid " + DIGEST_HEADER + " header: each chunk must be sent with SHA-256=<base64 checksum> ",
+					requestUrl);
+			support.sendErrorMessageResponse(errorMessage, response);
+			return;
+		}
+		if (request.getContentLengthLong() > session.getChunkSize()) {
+			ErrorMessage errorMessage = new ErrorMessage(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE,
+					" Chunk is larger than the upload's chunk size of " + session.getChunkSize() + " bytes. ", requestUrl);
+			support.sendErrorMessageResponse(errorMessage, response);
+			return;
+		}
+
+		RequestTiming timing = RequestTiming.of(request);
+		String fileType = FilenameUtils.getExtension(session.getFileName()).toLowerCase();
+		long stageStart = System.nanoTime();
+		UploadStagingEvent stagingEvent = ConversionEvents.beginUploadStaging();
+		long chunkBytes;
+		try {
+			chunkBytes = session.writeChunk(chunkIndex, request.getInputStream(), checksum);
+		} catch (InvalidChunkException e) {
+			ConversionEvents.endUploadStaging(stagingEvent, session.getStagedFile().getName(), fileType, 0,
+					ConversionEvents.OUTCOME_FAILED);
+			uploadSessionManager.chunkReceived(false);
+			ErrorMessage errorMessage = new ErrorMessage(HttpServletResponse.SC_BAD_REQUEST, " " + e.getMessage(), requestUrl);
+			support.sendErrorMessageResponse(errorMessage, response);
+			return;
+		}
+		ConversionEvents.endUploadStaging(stagingEvent, session.getStagedFile().getName(), fileType, chunkBytes,
+				ConversionEvents.OUTCOME_STAGED);
+		timing.record(RequestTiming.STAGE_STAGE, System.nanoTime() - stageStart);
+		timing.addInput(session.getFileName(), fileType, chunkBytes);
+		conversionExecutor.getMetrics().addBytesIn(chunkBytes);
+		uploadSessionManager.chunkReceived(true);
+		sendUploadStatusResponse(session, HttpServletResponse.SC_OK, response);
+	}
+
+	/*
+	 * Submit a chunked upload whose chunks have all been received as a conversion job. An upload with chunks missing
+	 * is left as it is and a 409 returned with its status.
+	 */
+	void completeChunkedUpload(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		String requestUrl = request.getRequestURL().toString();
+		UploadSession session = getUploadSession(request, response);
+		if (session == null) {
+			return;
+		}
+		if (!session.isComplete()) {
+			ErrorMessage errorMessage = new ErrorMessage(HttpServletResponse.SC_CONFLICT,
+					" Upload has not received every chunk. Missing: " + session.getMissingChunks(), requestUrl);
+			support.sendErrorMessageResponse(errorMessage, response);
+			return;
+		}
+		if (!support.acceptClientRequest(request, response)) {
+			return;
+		}
+		// admitted before the upload is taken so a saturated service leaves it to be completed later
+		if (!admissionController.tryAdmit((Client) request.getAttribute(CLIENT_KEY))) {
+			support.sendServiceUnavailableResponse(request, response);
+			return;
+		}
+		boolean submitted = false;
+		try {
+			if (!uploadSessionManager.complete(session)) {
+				ErrorMessage errorMessage = new ErrorMessage(HttpServletResponse.SC_NOT_FOUND,
+						" No such upload: " + session.getId(), requestUrl);
+				support.sendErrorMessageResponse(errorMessage, response);
+				return;
+			}
+			File stagedFile = session.getStagedFile();
+			try {
+				InputFileType.check(stagedFile);
+			} catch (UnsupportedInputException e) {
+				stagedFile.delete();
+				support.sendUnsupportedInputResponse(e, request, response);
+				return;
+			}
+			RequestTiming.of(request).addInput(session.getFileName(),
+					FilenameUtils.getExtension(session.getFileName()).toLowerCase(), session.getSize());
+			submitted = jobHandler.submitConversionJob(stagedFile, session.getFileName(), true, null, request, response);
+		} finally {
+			if (!submitted) {
+				admissionController.release((Client) request.getAttribute(CLIENT_KEY));
+			}
+		}
+	}
+
+	/*
+	 * Return the status of the upload named in the path, listing the chunks still missing.
+	 */
+	void sendUploadResponse(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		UploadSession session = getUploadSession(request, response);
+		if (session != null) {
+			sendUploadStatusResponse(session, HttpServletResponse.SC_OK, response);
+		}
+	}
+
+	/*
+	 * Remove the upload along with the chunks received.
+	 */
+	void deleteUpload(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		String uploadId = ServletSupport.getResourceId(request);
+		if (uploadId == null || !uploadSessionManager.removeSession(uploadId)) {
+			ErrorMessage errorMessage = new ErrorMessage(HttpServletResponse.SC_NOT_FOUND,
+					" No such upload: " + uploadId, request.getRequestURL().toString());
+			support.sendErrorMessageResponse(errorMessage, response);
+			return;
+		}
+		response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+	}
+
+	/*
+	 * Find the chunked upload named in the path, sending a 404 if there is none.
+	 */
+	private UploadSession getUploadSession(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+		String uploadId = ServletSupport.getResourceId(req);
+		UploadSession session = uploadId == null ? null : uploadSessionManager.getSession(uploadId);
+		if (session == null) {
+			ErrorMessage errorMessage = new ErrorMessage(HttpServletResponse.SC_NOT_FOUND,
+					" No such upload: " + uploadId, req.getRequestURL().toString());
+			support.sendErrorMessageResponse(errorMessage, resp);
+		}
+		return session;
+	}
+
+	/*
+	 * The SHA-256 checksum from an RFC 3230 Digest header, which may list checksums by other algorithms too, or null
+	 * if there is none.
+	 */
+	private static byte[] parseSha256Digest(String digestHeader) {
+		if (digestHeader == null) {
+			return null;
+		}
+		for (String instanceDigest : digestHeader.split(",")) {
+			int index = instanceDigest.indexOf('=');
+			if (index > 0 && instanceDigest.substring(0, index).trim().equalsIgnoreCase("SHA-256")) {
+				try {
+					byte[] checksum = Base64.getDecoder().decode(instanceDigest.substring(index + 1).trim());
+					return checksum.length == 32 ? checksum : null;
+				} catch (IllegalArgumentException e) {
+					return null;
+				}
+			}
+		}
+		return null;
+	}
+
+	private void sendUploadStatusResponse(UploadSession session, int statusCode, HttpServletResponse resp) throws IOException {
+		support.sendXmlResponse(new UploadStatus(session), statusCode, resp);
+	}
+}
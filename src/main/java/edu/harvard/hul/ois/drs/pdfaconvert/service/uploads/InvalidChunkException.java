@@ -0,0 +1,24 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.service.uploads;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a chunk of an upload is rejected: its number is out of range, it is the wrong length or it does
+ * not match its checksum. The chunk is not counted as received and can be sent again.
+ */
+public class InvalidChunkException extends IOException {
+	private static final long serialVersionUID = 1L;
+
+	public InvalidChunkException(String message) {
+		super(message);
+	}
+}
@@ -0,0 +1,237 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.service.uploads;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.BitSet;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A document being uploaded in numbered chunks of a fixed size, the last of which may be shorter. Each chunk is
+ * written straight into the staged file at its offset as it arrives, so chunks may be sent in any order, in
+ * parallel, and sent again after a failure without the rest of the document being sent again. A chunk only
+ * counts as received once all of its bytes have arrived and match its SHA-256 checksum.
+ */
+public class UploadSession {
+
+	private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+	private final String id;
+	private final String fileName;
+	private final long size;
+	private final int chunkSize;
+	private final int chunkCount;
+	private final File stagedFile;
+	private final BitSet receivedChunks;
+	// chunks are written under the read lock so they can be written at the same time; closing takes the write lock
+	private final ReadWriteLock writeLock = new ReentrantReadWriteLock();
+	private boolean closed = false;
+	private volatile long lastActivityMillis = System.currentTimeMillis();
+
+	/**
+	 * @param id - the session id
+	 * @param fileName - the document's file name
+	 * @param size - the document's size
+	 * @param chunkSize - the size of every chunk but the last
+	 * @param stagedFile - the file the document is written into
+	 */
+	UploadSession(String id, String fileName, long size, int chunkSize, File stagedFile) {
+		this.id = id;
+		this.fileName = fileName;
+		this.size = size;
+		this.chunkSize = chunkSize;
+		this.chunkCount = (int) ((size + chunkSize - 1) / chunkSize);
+		this.stagedFile = stagedFile;
+		this.receivedChunks = new BitSet(chunkCount);
+	}
+
+	/**
+	 * Write a chunk into the staged file at its offset.
+	 *
+	 * @param index - the 0-based chunk number
+	 * @param chunkStream - the chunk's bytes
+	 * @param expectedSha256 - the SHA-256 checksum of the chunk's bytes
+	 * @return The number of bytes written.
+	 * @throws InvalidChunkException if the chunk number is out of range, or the chunk is the wrong length or does
+	 * not match its checksum
+	 * @throws IOException if the chunk cannot be read or written
+	 */
+	public long writeChunk(int index, InputStream chunkStream, byte[] expectedSha256) throws IOException {
+		if (index < 0 || index >= chunkCount) {
+			throw new InvalidChunkException("Chunk " + index + " is out of range -- the upload has chunks 0 to " + (chunkCount - 1));
+		}
+		writeLock.readLock().lock();
+		try {
+			if (closed) {
+				throw new InvalidChunkException("Upload " + id + " has already been completed or removed");
+			}
+			return write(index, chunkStream, expectedSha256);
+		} finally {
+			writeLock.readLock().unlock();
+		}
+	}
+
+	private long write(int index, InputStream chunkStream, byte[] expectedSha256) throws IOException {
+		lastActivityMillis = System.currentTimeMillis();
+		long offset = (long) index * chunkSize;
+		long expectedLength = Math.min(chunkSize, size - offset);
+		MessageDigest digest = newSha256Digest();
+		long written = 0;
+		synchronized (receivedChunks) {
+			// a chunk sent again overwrites what was received, so it only counts if this copy is good
+			receivedChunks.clear(index);
+		}
+		// positional writes so chunks can be written at the same time
+		try (FileChannel channel = FileChannel.open(stagedFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE)) {
+			byte[] buffer = new byte[WRITE_BUFFER_SIZE];
+			int read;
+			while ((read = chunkStream.read(buffer)) != -1) {
+				if (written + read > expectedLength) {
+					throw new InvalidChunkException("Chunk " + index + " is longer than " + expectedLength + " bytes");
+				}
+				digest.update(buffer, 0, read);
+				ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, read);
+				while (byteBuffer.hasRemaining()) {
+					channel.write(byteBuffer, offset + written + byteBuffer.position());
+				}
+				written += read;
+			}
+		}
+		if (written != expectedLength) {
+			throw new InvalidChunkException("Chunk " + index + " is " + written + " bytes instead of " + expectedLength);
+		}
+		if (!MessageDigest.isEqual(digest.digest(), expectedSha256)) {
+			throw new InvalidChunkException("Chunk " + index + " does not match its SHA-256 checksum");
+		}
+		synchronized (receivedChunks) {
+			receivedChunks.set(index);
+		}
+		lastActivityMillis = System.currentTimeMillis();
+		return written;
+	}
+
+	private static MessageDigest newSha256Digest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			// every Java platform has SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Stop taking chunks, waiting for any being written to finish.
+	 *
+	 * @return false if the session had already been closed.
+	 */
+	boolean close() {
+		writeLock.writeLock().lock();
+		try {
+			if (closed) {
+				return false;
+			}
+			closed = true;
+			return true;
+		} finally {
+			writeLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @return true once every chunk has been received.
+	 */
+	public boolean isComplete() {
+		synchronized (receivedChunks) {
+			return receivedChunks.cardinality() == chunkCount;
+		}
+	}
+
+	/**
+	 * @return The number of chunks received.
+	 */
+	public int getReceivedCount() {
+		synchronized (receivedChunks) {
+			return receivedChunks.cardinality();
+		}
+	}
+
+	/**
+	 * @return The chunks not yet received as a list of ranges, e.g. "0-3,7", or an empty string if there are none.
+	 */
+	public String getMissingChunks() {
+		StringBuilder sb = new StringBuilder();
+		synchronized (receivedChunks) {
+			int start = receivedChunks.nextClearBit(0);
+			while (start < chunkCount) {
+				int next = receivedChunks.nextSetBit(start);
+				int end = (next < 0 ? chunkCount : next) - 1;
+				if (sb.length() > 0) {
+					sb.append(',');
+				}
+				sb.append(start);
+				if (end > start) {
+					sb.append('-').append(end);
+				}
+				start = receivedChunks.nextClearBit(end + 1);
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @return The number of bytes received in whole chunks.
+	 */
+	public long getReceivedBytes() {
+		synchronized (receivedChunks) {
+			long bytes = (long) receivedChunks.cardinality() * chunkSize;
+			if (chunkCount > 0 && receivedChunks.get(chunkCount - 1)) {
+				// the last chunk may be short
+				bytes -= (long) chunkCount * chunkSize - size;
+			}
+			return bytes;
+		}
+	}
+
+	boolean isIdleSince(long millis) {
+		return lastActivityMillis < millis;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public String getFileName() {
+		return fileName;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	public int getChunkCount() {
+		return chunkCount;
+	}
+
+	public File getStagedFile() {
+		return stagedFile;
+	}
+}
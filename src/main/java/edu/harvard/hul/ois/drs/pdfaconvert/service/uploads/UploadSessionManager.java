@@ -0,0 +1,247 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.service.uploads;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import edu.harvard.hul.ois.drs.pdfaconvert.service.workdir.WorkDirectory;
+
+/**
+ * Keeps track of the documents being uploaded in chunks through the upload resource. Each upload is staged in the
+ * work directory as its chunks arrive. Once complete the upload is handed over for conversion and forgotten, and
+ * an upload that receives no chunks for the expiry period is removed along with its staged file.
+ * <p>
+ * Configured in the application properties, for example:
+ * <pre>
+ * max.chunked.upload.size.MB=1024
+ * upload.chunk.max.size.MB=16
+ * upload.session.expiry.minutes=60
+ * max.upload.sessions=100
+ * </pre>
+ */
+public class UploadSessionManager {
+
+	/** Name prefix of the files staged for chunked uploads */
+	public static final String UPLOAD_FILE_PREFIX = "chunked_";
+
+	private static final Logger logger = LogManager.getLogger();
+	private static final String DEFAULT_MAX_UPLOAD_SIZE = "1024"; // in MB
+	private static final String DEFAULT_MAX_CHUNK_SIZE = "16"; // in MB
+	private static final String DEFAULT_EXPIRY = "60"; // in minutes
+	private static final String DEFAULT_MAX_SESSIONS = "100";
+	private static final long MB_MULTIPLIER = 1024 * 1024;
+
+	private final WorkDirectory workDirectory;
+	private final long maxUploadBytes;
+	private final int maxChunkBytes;
+	private final long expiryMillis;
+	private final int maxSessions;
+	private final Map<String, UploadSession> sessions = new ConcurrentHashMap<String, UploadSession>();
+	private final ScheduledExecutorService reaper;
+	private final LongAdder chunkCount = new LongAdder();
+	private final LongAdder rejectedChunkCount = new LongAdder();
+	private final LongAdder completedCount = new LongAdder();
+	private final LongAdder expiredCount = new LongAdder();
+
+	/**
+	 * @param workDirectory - the work directory the uploads are staged in
+	 * @param maxUploadBytes - size of the largest document that can be uploaded in chunks
+	 * @param maxChunkBytes - size of the largest chunk
+	 * @param expiryMinutes - minutes an upload may go without receiving a chunk before it is removed
+	 * @param maxSessions - the most uploads in progress at once
+	 */
+	public UploadSessionManager(WorkDirectory workDirectory, long maxUploadBytes, int maxChunkBytes, long expiryMinutes,
+			int maxSessions) {
+		this.workDirectory = workDirectory;
+		this.maxUploadBytes = maxUploadBytes;
+		this.maxChunkBytes = maxChunkBytes;
+		this.expiryMillis = TimeUnit.MINUTES.toMillis(expiryMinutes);
+		this.maxSessions = maxSessions;
+		this.reaper = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "pdfa-upload-reaper");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.reaper.scheduleWithFixedDelay(this::removeExpiredSessions, 1, 1, TimeUnit.MINUTES);
+	}
+
+	/**
+	 * Set up the upload sessions from the application properties.
+	 *
+	 * @param applicationProps - the application properties
+	 * @param workDirectory - the work directory the uploads are staged in
+	 * @return The upload session manager.
+	 */
+	public static UploadSessionManager fromProperties(Properties applicationProps, WorkDirectory workDirectory) {
+		long maxUploadMb = Long.valueOf(applicationProps.getProperty("max.chunked.upload.size.MB", DEFAULT_MAX_UPLOAD_SIZE).trim());
+		int maxChunkMb = Integer.valueOf(applicationProps.getProperty("upload.chunk.max.size.MB", DEFAULT_MAX_CHUNK_SIZE).trim());
+		long expiryMinutes = Long.valueOf(applicationProps.getProperty("upload.session.expiry.minutes", DEFAULT_EXPIRY).trim());
+		int maxSessions = Integer.valueOf(applicationProps.getProperty("max.upload.sessions", DEFAULT_MAX_SESSIONS).trim());
+		logger.info("Chunked uploads up to {}MB in chunks up to {}MB -- expire after {} minutes idle -- max sessions: {}",
+				maxUploadMb, maxChunkMb, expiryMinutes, maxSessions);
+		return new UploadSessionManager(workDirectory, maxUploadMb * MB_MULTIPLIER, (int) (maxChunkMb * MB_MULTIPLIER),
+				expiryMinutes, maxSessions);
+	}
+
+	/**
+	 * Start a new upload.
+	 *
+	 * @param fileName - the document's file name, with the extension for its type
+	 * @param size - the document's size
+	 * @param chunkSize - the size of every chunk but the last, or 0 for the largest allowed
+	 * @return The new upload.
+	 * @throws IllegalArgumentException if the size or chunk size is out of range
+	 * @throws IllegalStateException if there are already as many uploads in progress as allowed
+	 */
+	public UploadSession create(String fileName, long size, int chunkSize) {
+		if (size < 1 || size > maxUploadBytes) {
+			throw new IllegalArgumentException("Upload size must be between 1 and " + maxUploadBytes + " bytes");
+		}
+		if (chunkSize == 0) {
+			chunkSize = maxChunkBytes;
+		}
+		if (chunkSize < 1 || chunkSize > maxChunkBytes) {
+			throw new IllegalArgumentException("Chunk size must be between 1 and " + maxChunkBytes + " bytes");
+		}
+		if (sessions.size() >= maxSessions) {
+			throw new IllegalStateException("Too many uploads in progress. The maximum is " + maxSessions);
+		}
+		File stagedFile = workDirectory.newStagedFile(UPLOAD_FILE_PREFIX, fileName, size);
+		UploadSession session = new UploadSession(UUID.randomUUID().toString(), fileName, size, chunkSize, stagedFile);
+		sessions.put(session.getId(), session);
+		logger.debug("Started upload {} of {} -- {} chunks", session.getId(), fileName, session.getChunkCount());
+		return session;
+	}
+
+	/**
+	 * @param id - an upload id
+	 * @return The upload or null if there is no such upload.
+	 */
+	public UploadSession getSession(String id) {
+		return sessions.get(id);
+	}
+
+	/**
+	 * Count a chunk written to an upload, or rejected.
+	 *
+	 * @param accepted - true if the chunk was received, false if it was rejected
+	 */
+	public void chunkReceived(boolean accepted) {
+		if (accepted) {
+			chunkCount.increment();
+		} else {
+			rejectedChunkCount.increment();
+		}
+	}
+
+	/**
+	 * Take a complete upload out of the manager so its staged file can be converted. The staged file then belongs
+	 * to the caller.
+	 *
+	 * @param session - a complete upload
+	 * @return false if the upload has already been completed or removed.
+	 */
+	public boolean complete(UploadSession session) {
+		if (!sessions.remove(session.getId(), session) || !session.close()) {
+			return false;
+		}
+		completedCount.increment();
+		return true;
+	}
+
+	/**
+	 * Remove an upload and delete its staged file.
+	 *
+	 * @param id - an upload id
+	 * @return true if the upload existed.
+	 */
+	public boolean removeSession(String id) {
+		UploadSession session = sessions.remove(id);
+		if (session == null) {
+			return false;
+		}
+		discard(session);
+		return true;
+	}
+
+	private void discard(UploadSession session) {
+		session.close();
+		session.getStagedFile().delete();
+	}
+
+	/*
+	 * Remove the uploads that have not received a chunk for the expiry period.
+	 */
+	private void removeExpiredSessions() {
+		long idleSince = System.currentTimeMillis() - expiryMillis;
+		Iterator<UploadSession> iter = sessions.values().iterator();
+		while (iter.hasNext()) {
+			UploadSession session = iter.next();
+			if (session.isIdleSince(idleSince) && sessions.remove(session.getId(), session)) {
+				logger.info("Removing expired upload {} of {} -- {} of {} chunks received", session.getId(),
+						session.getFileName(), session.getReceivedCount(), session.getChunkCount());
+				discard(session);
+				expiredCount.increment();
+			}
+		}
+	}
+
+	/**
+	 * Stop removing expired uploads and remove every upload in progress.
+	 */
+	public void shutdown() {
+		reaper.shutdownNow();
+		for (String id : sessions.keySet()) {
+			removeSession(id);
+		}
+	}
+
+	/**
+	 * @return The number of uploads in progress.
+	 */
+	public int getSessionCount() {
+		return sessions.size();
+	}
+
+	/**
+	 * @return The size of the largest chunk.
+	 */
+	public int getMaxChunkBytes() {
+		return maxChunkBytes;
+	}
+
+	public long getChunkCount() {
+		return chunkCount.sum();
+	}
+
+	public long getRejectedChunkCount() {
+		return rejectedChunkCount.sum();
+	}
+
+	public long getCompletedCount() {
+		return completedCount.sum();
+	}
+
+	public long getExpiredCount() {
+		return expiredCount.sum();
+	}
+}
@@ -0,0 +1,112 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.service.uploads;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+import javax.xml.bind.annotation.XmlType;
+
+/**
+ * The status of a chunked upload as returned to the client.
+ */
+@XmlRootElement(name="upload")
+@XmlAccessorType(XmlAccessType.FIELD)
+@XmlType(propOrder={"id", "filename", "size", "chunkSize", "chunks", "received", "receivedBytes", "missing"})
+public class UploadStatus {
+	@XmlElement
+	private String id;
+	@XmlElement
+	private String filename;
+	@XmlElement
+	private long size;
+	@XmlElement
+	private int chunkSize;
+	@XmlElement
+	private int chunks;
+	@XmlElement
+	private int received;
+	@XmlElement
+	private long receivedBytes;
+	@XmlElement
+	private String missing;
+
+	public UploadStatus() {
+		super();
+	}
+
+	/**
+	 * @param session - the upload
+	 */
+	public UploadStatus(UploadSession session) {
+		this.id = session.getId();
+		this.filename = session.getFileName();
+		this.size = session.getSize();
+		this.chunkSize = session.getChunkSize();
+		this.chunks = session.getChunkCount();
+		this.received = session.getReceivedCount();
+		this.receivedBytes = session.getReceivedBytes();
+		this.missing = session.getMissingChunks();
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public String getFilename() {
+		return filename;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	public int getChunks() {
+		return chunks;
+	}
+
+	public int getReceived() {
+		return received;
+	}
+
+	public long getReceivedBytes() {
+		return receivedBytes;
+	}
+
+	/**
+	 * @return The chunks not yet received as a list of ranges, e.g. "0-3,7".
+	 */
+	public String getMissing() {
+		return missing;
+	}
+
+	/**
+	 * A convenience in case jaxb marshalling is not available
+	 */
+	public String toString() {
+		StringBuilder sb = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>");
+		sb.append("<upload>")
+			.append("<id>").append(id).append("</id>")
+			.append("<filename>").append(filename).append("</filename>")
+			.append("<size>").append(size).append("</size>")
+			.append("<chunkSize>").append(chunkSize).append("</chunkSize>")
+			.append("<chunks>").append(chunks).append("</chunks>")
+			.append("<received>").append(received).append("</received>")
+			.append("<receivedBytes>").append(receivedBytes).append("</receivedBytes>")
+			.append("<missing>").append(missing).append("</missing>")
+			.append("</upload>");
+		return sb.toString();
+	}
+}
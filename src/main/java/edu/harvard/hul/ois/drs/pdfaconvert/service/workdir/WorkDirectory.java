@@ -0,0 +1,512 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.service.workdir;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * The directory owned by the service for its working files. Uploads are staged in the "staging" directory within
+ * it, spread over SHARD_COUNT subdirectories picked by the random part of each file's name so that no directory
+ * grows large enough to slow down file creation and lookup. The "cache" directory within it is the default home of
+ * the conversion result cache, which manages its own files.
+ * <p>
+ * Since the directory belongs to this service alone, anything left in the staging directory when the service starts
+ * is an orphan of an earlier run and is deleted. A janitor then runs in the background deleting staged files older
+ * than the maximum age and, once the staged files total more than the quota, the oldest of them, sparing those
+ * younger than the quota's minimum age since they may belong to a conversion in progress.
+ * <p>
+ * Optionally, uploads whose size is known in advance can be staged in memory instead, in a directory on a tmpfs such
+ * as /dev/shm sharded the same way, to keep them off the block device. Only files no larger than the memory tier's
+ * file size cap are staged there, and only while the files staged there total no more than its budget; any other
+ * upload is staged on disk. The memory tier's files are looked after by the janitor along with those on disk.
+ * <p>
+ * Configured in the application properties, for example:
+ * <pre>
+ * work.directory=/var/lib/pdfa-converter/work
+ * work.max.age.minutes=1440
+ * work.quota.MB=10240
+ * work.quota.min.age.minutes=60
+ * work.janitor.interval.seconds=60
+ * work.memory.directory=/dev/shm/pdfa-converter-work
+ * work.memory.max.file.size.MB=8
+ * work.memory.budget.MB=256
+ * </pre>
+ */
+public class WorkDirectory {
+
+	/** Number of subdirectories the staged files are spread over */
+	public static final int SHARD_COUNT = 256;
+
+	private static final Logger logger = LogManager.getLogger();
+	private static final String DEFAULT_DIRECTORY_NAME = "pdfa-converter-work"; // within java.io.tmpdir
+	private static final String STAGING_DIRECTORY_NAME = "staging";
+	private static final String CACHE_DIRECTORY_NAME = "cache";
+	private static final String DEFAULT_MAX_AGE = "1440"; // in minutes - 0 means no limit
+	private static final String DEFAULT_QUOTA = "10240"; // in MB - 0 means no quota
+	private static final String DEFAULT_QUOTA_MIN_AGE = "60"; // in minutes - covers the default job retention
+	private static final String DEFAULT_JANITOR_INTERVAL = "60"; // in seconds
+	private static final String DEFAULT_MEMORY_MAX_FILE_SIZE = "8"; // in MB
+	private static final String DEFAULT_MEMORY_BUDGET = "256"; // in MB
+	private static final long MB_MULTIPLIER = 1024 * 1024;
+
+	private final File root;
+	private final File stagingDir;
+	private final File[] shards;
+	private final long maxAgeMillis;
+	private final long quotaBytes;
+	private final long quotaMinAgeMillis;
+	private final long janitorIntervalSeconds;
+	private ScheduledExecutorService janitor;
+	// the memory tier, or null shards if it is not in use
+	private final File memoryStagingDir;
+	private final File[] memoryShards;
+	private final long memoryMaxFileBytes;
+	private final long memoryBudgetBytes;
+	// bytes reserved by the files staged in memory, released once they have been deleted
+	private final Map<File, Long> memoryReservations = new ConcurrentHashMap<File, Long>();
+	private final AtomicLong memoryReservedBytes = new AtomicLong();
+	private final LongAdder memoryStagedCount = new LongAdder();
+	private final LongAdder diskStagedCount = new LongAdder();
+
+	private volatile long stagedFiles = 0;
+	private volatile long stagedBytes = 0;
+	private final AtomicLong orphansDeleted = new AtomicLong();
+	private final AtomicLong expiredDeleted = new AtomicLong();
+	private final AtomicLong overQuotaDeleted = new AtomicLong();
+
+	/**
+	 * @param root - the directory, created if it does not exist
+	 * @param maxAgeMillis - age past which staged files are deleted, 0 for no limit
+	 * @param quotaBytes - total size of staged files above which the oldest are deleted, 0 for no quota
+	 * @param quotaMinAgeMillis - age below which staged files are not deleted to keep within the quota
+	 * @param janitorIntervalSeconds - seconds between runs of the janitor
+	 * @throws IOException if the directory cannot be created
+	 */
+	public WorkDirectory(File root, long maxAgeMillis, long quotaBytes, long quotaMinAgeMillis,
+			long janitorIntervalSeconds) throws IOException {
+		this(root, maxAgeMillis, quotaBytes, quotaMinAgeMillis, janitorIntervalSeconds, null, 0, 0);
+	}
+
+	/**
+	 * @param root - the directory, created if it does not exist
+	 * @param maxAgeMillis - age past which staged files are deleted, 0 for no limit
+	 * @param quotaBytes - total size of staged files above which the oldest are deleted, 0 for no quota
+	 * @param quotaMinAgeMillis - age below which staged files are not deleted to keep within the quota
+	 * @param janitorIntervalSeconds - seconds between runs of the janitor
+	 * @param memoryRoot - directory on a tmpfs for the memory tier, or null for none
+	 * @param memoryMaxFileBytes - size of the largest file staged in memory
+	 * @param memoryBudgetBytes - total size of the files staged in memory at any one time
+	 * @throws IOException if the directory cannot be created
+	 */
+	public WorkDirectory(File root, long maxAgeMillis, long quotaBytes, long quotaMinAgeMillis,
+			long janitorIntervalSeconds, File memoryRoot, long memoryMaxFileBytes, long memoryBudgetBytes) throws IOException {
+		this.root = root;
+		this.stagingDir = new File(root, STAGING_DIRECTORY_NAME);
+		this.maxAgeMillis = maxAgeMillis;
+		this.quotaBytes = quotaBytes;
+		this.quotaMinAgeMillis = quotaMinAgeMillis;
+		this.janitorIntervalSeconds = Math.max(1, janitorIntervalSeconds);
+		this.shards = createShards(stagingDir);
+		File[] memoryShards = null;
+		if (memoryRoot != null && memoryMaxFileBytes > 0 && memoryBudgetBytes > 0) {
+			try {
+				memoryShards = createShards(new File(memoryRoot, STAGING_DIRECTORY_NAME));
+			} catch (IOException e) {
+				logger.error("Unable to set up memory staging in {} -- staging every upload on disk", memoryRoot.getPath(), e);
+			}
+		}
+		this.memoryShards = memoryShards;
+		this.memoryStagingDir = memoryShards != null ? new File(memoryRoot, STAGING_DIRECTORY_NAME) : null;
+		this.memoryMaxFileBytes = memoryShards != null ? memoryMaxFileBytes : 0;
+		this.memoryBudgetBytes = memoryShards != null ? memoryBudgetBytes : 0;
+	}
+
+	private static File[] createShards(File dir) throws IOException {
+		File[] shards = new File[SHARD_COUNT];
+		for (int i = 0; i < SHARD_COUNT; i++) {
+			shards[i] = new File(dir, String.format("%02x", i));
+			if (!shards[i].isDirectory() && !shards[i].mkdirs()) {
+				throw new IOException("Unable to create work directory: " + shards[i].getPath());
+			}
+		}
+		return shards;
+	}
+
+	/**
+	 * Set up the work directory from the application properties.
+	 *
+	 * @param applicationProps - the application properties
+	 * @return The work directory.
+	 * @throws IOException if the directory cannot be created
+	 */
+	public static WorkDirectory fromProperties(Properties applicationProps) throws IOException {
+		String defaultRoot = new File(System.getProperty("java.io.tmpdir"), DEFAULT_DIRECTORY_NAME).getPath();
+		File root = new File(applicationProps.getProperty("work.directory", defaultRoot).trim());
+		long maxAgeMinutes = Long.valueOf(applicationProps.getProperty("work.max.age.minutes", DEFAULT_MAX_AGE).trim());
+		long quotaMb = Long.valueOf(applicationProps.getProperty("work.quota.MB", DEFAULT_QUOTA).trim());
+		long quotaMinAgeMinutes = Long.valueOf(applicationProps.getProperty("work.quota.min.age.minutes", DEFAULT_QUOTA_MIN_AGE).trim());
+		long janitorIntervalSeconds = Long.valueOf(applicationProps.getProperty("work.janitor.interval.seconds", DEFAULT_JANITOR_INTERVAL).trim());
+		logger.info("Work directory: {} -- max age: {} minutes -- quota: {}MB sparing files under {} minutes old -- janitor every {}s",
+				root.getPath(), maxAgeMinutes, quotaMb, quotaMinAgeMinutes, janitorIntervalSeconds);
+		String memoryPath = applicationProps.getProperty("work.memory.directory", "").trim();
+		File memoryRoot = memoryPath.isEmpty() ? null : new File(memoryPath);
+		long memoryMaxFileMb = Long.valueOf(applicationProps.getProperty("work.memory.max.file.size.MB", DEFAULT_MEMORY_MAX_FILE_SIZE).trim());
+		long memoryBudgetMb = Long.valueOf(applicationProps.getProperty("work.memory.budget.MB", DEFAULT_MEMORY_BUDGET).trim());
+		if (memoryRoot != null) {
+			logger.info("Memory staging: {} -- max file size: {}MB -- budget: {}MB", memoryRoot.getPath(), memoryMaxFileMb, memoryBudgetMb);
+		}
+		return new WorkDirectory(root, TimeUnit.MINUTES.toMillis(maxAgeMinutes), quotaMb * MB_MULTIPLIER,
+				TimeUnit.MINUTES.toMillis(quotaMinAgeMinutes), janitorIntervalSeconds, memoryRoot,
+				memoryMaxFileMb * MB_MULTIPLIER, memoryBudgetMb * MB_MULTIPLIER);
+	}
+
+	/**
+	 * Delete the orphans of an earlier run and start the janitor.
+	 */
+	public synchronized void start() {
+		long orphans = 0;
+		for (File file : listStagedFiles()) {
+			if (file.delete()) {
+				orphans++;
+			}
+		}
+		orphansDeleted.addAndGet(orphans);
+		if (orphans > 0) {
+			logger.warn("Deleted {} files left in {} by an earlier run", orphans, stagingDir.getPath());
+		}
+		janitor = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "pdfa-work-janitor");
+			thread.setDaemon(true);
+			return thread;
+		});
+		janitor.scheduleWithFixedDelay(this::sweep, janitorIntervalSeconds, janitorIntervalSeconds, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Stop the janitor and delete every staged file. Only called once nothing is using the staged files any more.
+	 */
+	public synchronized void shutdown() {
+		if (janitor != null) {
+			janitor.shutdownNow();
+			janitor = null;
+		}
+		for (File file : listStagedFiles()) {
+			file.delete();
+		}
+		memoryReservations.clear();
+		memoryReservedBytes.set(0);
+	}
+
+	/**
+	 * @param prefix - start of the file's name, identifying what the file is for
+	 * @param name - end of the file's name, e.g. the original name of an upload so its extension is kept
+	 * @return A new file in the staging directory; the file itself is not created.
+	 */
+	public File newStagedFile(String prefix, String name) {
+		return newStagedFile(prefix, name, -1);
+	}
+
+	/**
+	 * @param prefix - start of the file's name, identifying what the file is for
+	 * @param name - end of the file's name, e.g. the original name of an upload so its extension is kept
+	 * @param expectedSize - the most the file will hold, or -1 if that is not known
+	 * @return A new file in the staging directory, in memory if the expected size fits the memory tier. A file in
+	 * memory is created empty so that its share of the memory budget is held until it is deleted; a file on disk
+	 * is not created.
+	 */
+	public File newStagedFile(String prefix, String name, long expectedSize) {
+		String id = UUID.randomUUID().toString().replace('-', '_');
+		// the UUID is random so its first two hex digits spread the files evenly over the shards
+		int shardIndex = Integer.parseInt(id.substring(0, 2), 16);
+		String fileName = prefix + id + ".tmp-" + name;
+		if (memoryShards != null && expectedSize >= 0 && expectedSize <= memoryMaxFileBytes && reserveMemory(expectedSize)) {
+			File file = new File(shardOf(memoryShards, shardIndex), fileName);
+			try {
+				if (file.createNewFile()) {
+					memoryReservations.put(file, expectedSize);
+					memoryStagedCount.increment();
+					return file;
+				}
+			} catch (IOException e) {
+				logger.warn("Unable to stage {} in memory -- staging it on disk: {}", fileName, e.getMessage());
+			}
+			memoryReservedBytes.addAndGet(-expectedSize);
+		}
+		diskStagedCount.increment();
+		return new File(shardOf(shards, shardIndex), fileName);
+	}
+
+	private static File shardOf(File[] shards, int shardIndex) {
+		File shard = shards[shardIndex];
+		if (!shard.isDirectory()) {
+			// removed from under the service; put it back rather than fail the upload
+			shard.mkdirs();
+		}
+		return shard;
+	}
+
+	/*
+	 * Reserve room in the memory budget, first releasing the reservations of files deleted since the last time the
+	 * budget ran short. The staged files are deleted in many places, so their reservations are released here and by
+	 * the janitor rather than as they are deleted.
+	 */
+	private boolean reserveMemory(long bytes) {
+		if (tryReserveMemory(bytes)) {
+			return true;
+		}
+		releaseDeletedMemoryFiles();
+		return tryReserveMemory(bytes);
+	}
+
+	private boolean tryReserveMemory(long bytes) {
+		while (true) {
+			long reserved = memoryReservedBytes.get();
+			if (reserved + bytes > memoryBudgetBytes) {
+				return false;
+			}
+			if (memoryReservedBytes.compareAndSet(reserved, reserved + bytes)) {
+				return true;
+			}
+		}
+	}
+
+	private void releaseDeletedMemoryFiles() {
+		Iterator<Map.Entry<File, Long>> iter = memoryReservations.entrySet().iterator();
+		while (iter.hasNext()) {
+			Map.Entry<File, Long> reservation = iter.next();
+			if (!reservation.getKey().exists() && memoryReservations.remove(reservation.getKey(), reservation.getValue())) {
+				memoryReservedBytes.addAndGet(-reservation.getValue());
+			}
+		}
+	}
+
+	/**
+	 * @return The default directory of the conversion result cache.
+	 */
+	public File getCacheDir() {
+		return new File(root, CACHE_DIRECTORY_NAME);
+	}
+
+	public File getRoot() {
+		return root;
+	}
+
+	/*
+	 * Delete staged files past the maximum age, then the oldest ones on disk while they total more than the quota.
+	 * Also takes the count and size of the staged files for the gauges.
+	 */
+	void sweep() {
+		try {
+			if (memoryShards != null) {
+				releaseDeletedMemoryFiles();
+			}
+			long now = System.currentTimeMillis();
+			List<StagedFile> remaining = new ArrayList<StagedFile>();
+			long totalBytes = 0;
+			long memoryFiles = 0;
+			long memoryBytes = 0;
+			for (File file : listStagedFiles()) {
+				long lastModified = file.lastModified();
+				if (lastModified == 0) {
+					continue; // deleted since it was listed
+				}
+				if (maxAgeMillis > 0 && now - lastModified > maxAgeMillis) {
+					if (file.delete()) {
+						expiredDeleted.incrementAndGet();
+						logger.warn("Deleted staged file past the maximum age: {}", file.getName());
+						continue;
+					}
+				}
+				StagedFile stagedFile = new StagedFile(file, lastModified, file.length());
+				if (memoryReservations.containsKey(file)) {
+					// counted against the memory budget rather than the quota
+					memoryFiles++;
+					memoryBytes += stagedFile.length;
+					continue;
+				}
+				remaining.add(stagedFile);
+				totalBytes += stagedFile.length;
+			}
+			if (quotaBytes > 0 && totalBytes > quotaBytes) {
+				Collections.sort(remaining, Comparator.comparingLong(f -> f.lastModified));
+				long deleted = 0;
+				Iterator<StagedFile> iter = remaining.iterator();
+				while (iter.hasNext() && totalBytes > quotaBytes) {
+					StagedFile stagedFile = iter.next();
+					if (now - stagedFile.lastModified < quotaMinAgeMillis) {
+						break;
+					}
+					if (stagedFile.file.delete()) {
+						iter.remove();
+						totalBytes -= stagedFile.length;
+						deleted++;
+					}
+				}
+				if (deleted > 0) {
+					overQuotaDeleted.addAndGet(deleted);
+					logger.warn("Deleted the {} oldest staged files to keep within the quota of {} bytes", deleted, quotaBytes);
+				}
+			}
+			stagedFiles = remaining.size() + memoryFiles;
+			stagedBytes = totalBytes + memoryBytes;
+		} catch (RuntimeException e) {
+			// keep the janitor scheduled
+			logger.error("Work directory janitor failed: " + e.getMessage(), e);
+		}
+	}
+
+	private List<File> listStagedFiles() {
+		List<File> files = new ArrayList<File>();
+		addFiles(stagingDir, files);
+		for (File shard : shards) {
+			addFiles(shard, files);
+		}
+		if (memoryShards != null) {
+			addFiles(memoryStagingDir, files);
+			for (File shard : memoryShards) {
+				addFiles(shard, files);
+			}
+		}
+		return files;
+	}
+
+	private static void addFiles(File dir, List<File> files) {
+		File[] entries = dir.listFiles();
+		if (entries != null) {
+			for (File entry : entries) {
+				if (entry.isFile()) {
+					files.add(entry);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return The number of staged files when the janitor last looked.
+	 */
+	public long getStagedFileCount() {
+		return stagedFiles;
+	}
+
+	/**
+	 * @return The total size of the staged files when the janitor last looked.
+	 */
+	public long getStagedBytes() {
+		return stagedBytes;
+	}
+
+	/**
+	 * @return The total size of staged files above which the oldest are deleted, 0 for no quota.
+	 */
+	public long getQuotaBytes() {
+		return quotaBytes;
+	}
+
+	/**
+	 * @return Space available to the service on the work directory's file system.
+	 */
+	public long getUsableSpace() {
+		return root.getUsableSpace();
+	}
+
+	/**
+	 * @return Size of the work directory's file system.
+	 */
+	public long getTotalSpace() {
+		return root.getTotalSpace();
+	}
+
+	/**
+	 * @return The number of files left by an earlier run deleted at startup.
+	 */
+	public long getOrphansDeletedCount() {
+		return orphansDeleted.get();
+	}
+
+	/**
+	 * @return The number of staged files deleted by the janitor for being past the maximum age.
+	 */
+	public long getExpiredDeletedCount() {
+		return expiredDeleted.get();
+	}
+
+	/**
+	 * @return The number of staged files deleted by the janitor to keep within the quota.
+	 */
+	public long getOverQuotaDeletedCount() {
+		return overQuotaDeleted.get();
+	}
+
+	/**
+	 * @return The size of the largest file staged in memory, 0 if the memory tier is not in use.
+	 */
+	public long getMemoryMaxFileBytes() {
+		return memoryMaxFileBytes;
+	}
+
+	/**
+	 * @return The total size of the files staged in memory at any one time, 0 if the memory tier is not in use.
+	 */
+	public long getMemoryBudgetBytes() {
+		return memoryBudgetBytes;
+	}
+
+	/**
+	 * @return The part of the memory budget held by files staged in memory, including some deleted since the budget
+	 * last ran short or the janitor last ran.
+	 */
+	public long getMemoryReservedBytes() {
+		return memoryReservedBytes.get();
+	}
+
+	/**
+	 * @return The number of files staged in memory since startup.
+	 */
+	public long getMemoryStagedCount() {
+		return memoryStagedCount.sum();
+	}
+
+	/**
+	 * @return The number of files staged on disk since startup.
+	 */
+	public long getDiskStagedCount() {
+		return diskStagedCount.sum();
+	}
+
+	private static class StagedFile {
+		private final File file;
+		private final long lastModified;
+		private final long length;
+
+		private StagedFile(File file, long lastModified, long length) {
+			this.file = file;
+			this.lastModified = lastModified;
+			this.length = length;
+		}
+	}
+}
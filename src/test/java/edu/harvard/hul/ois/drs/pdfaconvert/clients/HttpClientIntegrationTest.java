@@ -50,6 +50,7 @@ public class HttpClientIntegrationTest {
 	
 	private static final String INPUT_FILENAME = "TrivialDocument.docx";
 	private static final String LOCAL_TOMCAT_SERVICE_URL = "http://localhost:8080/pdfa-converter-service/convert";
+	private static final String LOCAL_TOMCAT_JOBS_URL = "http://localhost:8080/pdfa-converter-service/jobs";
 	private static final Logger logger = LogManager.getLogger();
 	
 	@BeforeClass
@@ -191,6 +192,56 @@ public class HttpClientIntegrationTest {
 
 	}
 	
+	@Test
+	public void jobSubmitAndPollTest() throws URISyntaxException {
+		ClassLoader loader = Thread.currentThread().getContextClassLoader();
+		URL fileUrl = loader.getResource(INPUT_FILENAME);
+		File inputFile = new File(fileUrl.toURI());
+		assertTrue(inputFile.exists());
+		
+		CloseableHttpClient httpclient = HttpClients.createDefault();
+		
+		HttpPost httpPost = new HttpPost(LOCAL_TOMCAT_JOBS_URL);
+		FileBody fileContent = new FileBody(inputFile);
+		HttpEntity reqEntity = MultipartEntityBuilder.create().addPart(FORM_FIELD_DATAFILE, fileContent).build();
+		httpPost.setEntity(reqEntity);
+		
+		CloseableHttpResponse response = null;
+		try {
+			logger.debug("executing request " + httpPost.getRequestLine());
+			response = httpclient.execute(httpPost);
+			StatusLine statusLine = response.getStatusLine();
+			logger.debug("Response status line : " + statusLine);
+			assertEquals( 202, statusLine.getStatusCode());
+			Header location = response.getFirstHeader("Location");
+			assertNotNull(location);
+			logger.debug(EntityUtils.toString(response.getEntity()));
+			response.close();
+
+			HttpGet httpGet = new HttpGet(location.getValue());
+			logger.debug("executing request " + httpGet.getRequestLine());
+			response = httpclient.execute(httpGet);
+			statusLine = response.getStatusLine();
+			logger.debug("Response status line : " + statusLine);
+			assertEquals( 200, statusLine.getStatusCode());
+			logger.debug(EntityUtils.toString(response.getEntity()));
+		} catch (IOException e) {
+			logger.error("Something went wrong...", e);
+			fail(e.getMessage());
+		} finally {
+			if (response != null) {
+				try {
+					response.close();
+					httpclient.close();
+				} catch (IOException e) {
+					// nothing to do
+					;
+				}
+			}
+		}
+		logger.debug("DONE");
+	}
+	
 	@Test
 	public void noFileParameterValueTest() throws URISyntaxException {
 		ClassLoader loader = Thread.currentThread().getContextClassLoader();
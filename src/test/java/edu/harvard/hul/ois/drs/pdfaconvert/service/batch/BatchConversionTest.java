@@ -0,0 +1,185 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.service.batch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletResponse;
+import javax.servlet.WriteListener;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.harvard.hul.ois.drs.pdfaconvert.service.cache.ConversionResultCache;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.clients.Client;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.pool.AdmissionController;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.pool.ConversionExecutor;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.pool.ConversionScheduler;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.pool.ConversionTimeouts;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.pool.OutputDeletionQueue;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.pool.PdfaConverterWrapperFactory;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.pool.PdfaConverterWrapperPool;
+
+/**
+ * Checks that every document of a batch is admitted as a request of its own, within the client's share, and gives
+ * its place back once it has finished. The conversions are answered from the result cache, which is filled
+ * beforehand, so no converter is run.
+ */
+public class BatchConversionTest {
+
+	@Rule
+	public TemporaryFolder tempFolder = new TemporaryFolder();
+
+	private final Client client = new Client("client", true, 1, 0, null);
+	private ConversionResultCache resultCache;
+	private OutputDeletionQueue outputDeletionQueue;
+	private ConversionExecutor conversionExecutor;
+	private AdmissionController admissionController;
+
+	@Before
+	public void setUp() throws Exception {
+		resultCache = new ConversionResultCache(tempFolder.newFolder("cache"), 1024 * 1024, "1.0");
+		outputDeletionQueue = new OutputDeletionQueue(10, 1000, 3, 0, 0);
+		conversionExecutor = new ConversionExecutor(
+				new PdfaConverterWrapperPool(new PdfaConverterWrapperFactory(), new GenericObjectPoolConfig()),
+				new ConversionScheduler(1, 10), resultCache, new ConversionTimeouts(60, Collections.<String, Long> emptyMap()),
+				outputDeletionQueue);
+		// one converter and one waiting place, of which a client may hold one
+		admissionController = new AdmissionController(conversionExecutor, 1, 1, 0.5);
+	}
+
+	@After
+	public void tearDown() {
+		conversionExecutor.shutdown();
+		outputDeletionQueue.shutdown();
+	}
+
+	@Test
+	public void documentsGiveTheirPlaceBackWhenFinished() throws Exception {
+		BatchConversion batch = new BatchConversion(conversionExecutor, admissionController, 2, "/batch", client);
+		batch.addDocument("one.docx", stagedDocument("one.docx", "one", "%PDF-1.4 one"), null);
+		batch.addDocument("two.docx", stagedDocument("two.docx", "two", "%PDF-1.4 two"), null);
+		Map<String, String> entries = run(batch);
+		assertEquals("%PDF-1.4 one", entries.get("one.pdf"));
+		assertEquals("%PDF-1.4 two", entries.get("two.pdf"));
+		assertEquals(0, admissionController.getAdmittedCount());
+		assertEquals(0, client.getAdmittedCount());
+	}
+
+	@Test
+	public void documentBeyondClientShareIsNotConverted() throws Exception {
+		// the client's one place is taken by a conversion of its own still in progress
+		assertTrue(admissionController.tryAdmit(client));
+		BatchConversion batch = new BatchConversion(conversionExecutor, admissionController, 2, "/batch", client);
+		File staged = stagedDocument("one.docx", "one", "%PDF-1.4 one");
+		batch.addDocument("one.docx", staged, null);
+		Map<String, String> entries = run(batch);
+		assertFalse(entries.containsKey("one.pdf"));
+		assertFalse("the staged file is deleted", staged.exists());
+		assertEquals(1, admissionController.getAdmittedCount());
+		admissionController.release(client);
+	}
+
+	/*
+	 * Stage a document and put the PDF/A of its content in the result cache.
+	 */
+	private File stagedDocument(String name, String content, String pdf) throws IOException {
+		File staged = tempFolder.newFile(name);
+		Files.write(staged.toPath(), content.getBytes(StandardCharsets.US_ASCII));
+		MessageDigest digest = conversionExecutor.newInputDigest();
+		digest.update(Files.readAllBytes(staged.toPath()));
+		File converted = new File(tempFolder.getRoot(), name + ".pdf");
+		Files.write(converted.toPath(), pdf.getBytes(StandardCharsets.US_ASCII));
+		resultCache.put(conversionExecutor.toInputKey(digest), converted);
+		return staged;
+	}
+
+	/*
+	 * Run a batch and return the entries of its ZIP file by name.
+	 */
+	private static Map<String, String> run(BatchConversion batch) throws IOException {
+		ByteArrayOutputStream zip = new ByteArrayOutputStream();
+		boolean[] completed = new boolean[1];
+		batch.start(asyncContext(zip, completed));
+		// the conversions are cache hits, which finish before start() returns
+		assertTrue("batch completed", completed[0]);
+		Map<String, String> entries = new LinkedHashMap<String, String>();
+		try (ZipInputStream zipInputStream = new ZipInputStream(new ByteArrayInputStream(zip.toByteArray()))) {
+			ZipEntry zipEntry;
+			while ((zipEntry = zipInputStream.getNextEntry()) != null) {
+				entries.put(zipEntry.getName(), IOUtils.toString(zipInputStream, StandardCharsets.UTF_8));
+			}
+		}
+		return entries;
+	}
+
+	private static AsyncContext asyncContext(final ByteArrayOutputStream zip, final boolean[] completed) {
+		final ServletOutputStream out = new ServletOutputStream() {
+			@Override
+			public void write(int b) {
+				zip.write(b);
+			}
+
+			@Override
+			public boolean isReady() {
+				return true;
+			}
+
+			@Override
+			public void setWriteListener(WriteListener writeListener) {
+			}
+		};
+		final ServletResponse response = (ServletResponse) Proxy.newProxyInstance(BatchConversionTest.class.getClassLoader(),
+				new Class<?>[] { ServletResponse.class }, (proxy, method, args) -> {
+					if (method.getName().equals("getOutputStream")) {
+						return out;
+					}
+					throw new UnsupportedOperationException(method.getName());
+				});
+		return (AsyncContext) Proxy.newProxyInstance(BatchConversionTest.class.getClassLoader(), new Class<?>[] { AsyncContext.class },
+				(proxy, method, args) -> {
+					switch (method.getName()) {
+					case "getResponse":
+						return response;
+					case "start":
+						((Runnable) args[0]).run();
+						return null;
+					case "complete":
+						completed[0] = true;
+						return null;
+					default:
+						throw new UnsupportedOperationException(method.getName());
+					}
+				});
+	}
+}
@@ -0,0 +1,250 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.service.bulk;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletResponse;
+import javax.servlet.WriteListener;
+
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.harvard.hul.ois.drs.pdfaconvert.service.cache.ConversionResultCache;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.clients.Client;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.pool.AdmissionController;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.pool.ConversionExecutor;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.pool.ConversionScheduler;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.pool.ConversionTimeouts;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.pool.OutputDeletionQueue;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.pool.PdfaConverterWrapperFactory;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.pool.PdfaConverterWrapperPool;
+
+/**
+ * Checks that a repeated bulk run resumes an earlier one: documents whose PDF/As are up to date are skipped and the
+ * rest converted, and that each document is admitted within the client's share. The conversions are answered from the result cache, which is filled beforehand, so no converter
+ * is run.
+ */
+public class BulkConversionTest {
+
+	private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+
+	@Rule
+	public TemporaryFolder tempFolder = new TemporaryFolder();
+
+	private File sourceDir;
+	private File outputDir;
+	private File one;
+	private File two;
+	private ConversionResultCache resultCache;
+	private OutputDeletionQueue outputDeletionQueue;
+	private ConversionExecutor conversionExecutor;
+	private AdmissionController admissionController;
+
+	@Before
+	public void setUp() throws Exception {
+		sourceDir = tempFolder.newFolder("source");
+		outputDir = tempFolder.newFolder("output");
+		one = document("one.docx", "");
+		two = document("sub/two.docx", "extra");
+		Files.write(new File(sourceDir, "notes.txt").toPath(), "not a document".getBytes(StandardCharsets.US_ASCII));
+		resultCache = new ConversionResultCache(tempFolder.newFolder("cache"), 1024 * 1024, "1.0");
+		outputDeletionQueue = new OutputDeletionQueue(10, 1000, 3, 0, 0);
+		conversionExecutor = new ConversionExecutor(
+				new PdfaConverterWrapperPool(new PdfaConverterWrapperFactory(), new GenericObjectPoolConfig()),
+				new ConversionScheduler(1, 10), resultCache, new ConversionTimeouts(60, Collections.<String, Long> emptyMap()),
+				outputDeletionQueue);
+		admissionController = new AdmissionController(conversionExecutor, 1, 1, 0.5);
+		cacheConversion(one, "%PDF-1.4 one");
+		cacheConversion(two, "%PDF-1.4 two");
+	}
+
+	@After
+	public void tearDown() {
+		conversionExecutor.shutdown();
+		outputDeletionQueue.shutdown();
+	}
+
+	@Test
+	public void firstRunConvertsEveryDocument() throws IOException {
+		String progress = run();
+		assertTrue(progress, progress.contains("{\"input\":\"one.docx\",\"output\":\"one.pdf\",\"outcome\":\"converted\""));
+		assertTrue(progress, progress.contains("{\"input\":\"sub/two.docx\",\"output\":\"sub/two.pdf\",\"outcome\":\"converted\""));
+		assertTrue(progress, progress.endsWith("{\"converted\":2,\"skipped\":0,\"failed\":0,\"total\":2}\n"));
+		assertEquals("%PDF-1.4 one", read(new File(outputDir, "one.pdf")));
+		assertEquals("%PDF-1.4 two", read(new File(outputDir, "sub/two.pdf")));
+		assertFalse("nothing left under a temporary name", new File(outputDir, "one.pdf.part").exists());
+	}
+
+	@Test
+	public void repeatedRunSkipsUpToDateDocuments() throws IOException {
+		run();
+		String progress = run();
+		assertTrue(progress, progress.contains("\"outcome\":\"skipped\""));
+		assertTrue(progress, progress.endsWith("{\"converted\":0,\"skipped\":2,\"failed\":0,\"total\":2}\n"));
+	}
+
+	@Test
+	public void interruptedRunIsResumed() throws IOException {
+		// the earlier run wrote one PDF/A and was stopped while copying the other
+		File finished = new File(outputDir, "one.pdf");
+		Files.write(finished.toPath(), "%PDF-1.4 one".getBytes(StandardCharsets.US_ASCII));
+		File partial = new File(outputDir, "sub/two.pdf.part");
+		assertTrue(partial.getParentFile().mkdirs());
+		Files.write(partial.toPath(), "%PDF".getBytes(StandardCharsets.US_ASCII));
+		String progress = run();
+		assertTrue(progress, progress.contains("{\"input\":\"one.docx\",\"output\":\"one.pdf\",\"outcome\":\"skipped\""));
+		assertTrue(progress, progress.endsWith("{\"converted\":1,\"skipped\":1,\"failed\":0,\"total\":2}\n"));
+		assertEquals("%PDF-1.4 two", read(new File(outputDir, "sub/two.pdf")));
+		assertFalse(partial.exists());
+	}
+
+	@Test
+	public void documentChangedSinceItsConversionIsConvertedAgain() throws IOException {
+		run();
+		File stale = new File(outputDir, "sub/two.pdf");
+		assertTrue(stale.setLastModified(System.currentTimeMillis() - 2 * HOUR));
+		assertTrue(two.setLastModified(System.currentTimeMillis() - HOUR));
+		String progress = run();
+		assertTrue(progress, progress.contains("{\"input\":\"sub/two.docx\",\"output\":\"sub/two.pdf\",\"outcome\":\"converted\""));
+		assertTrue(progress, progress.endsWith("{\"converted\":1,\"skipped\":1,\"failed\":0,\"total\":2}\n"));
+	}
+
+	@Test
+	public void earlierOutputWithinSourceIsNotConverted() throws IOException {
+		File nestedOutput = new File(sourceDir, "pdfa");
+		BulkConversion bulkConversion = new BulkConversion(conversionExecutor, admissionController, 2, nestedOutput, null);
+		Files.createDirectories(nestedOutput.toPath());
+		Files.copy(one.toPath(), new File(nestedOutput, "one.docx").toPath());
+		bulkConversion.addDirectory(sourceDir, 100);
+		assertEquals("the output directory is passed over", 2, bulkConversion.size());
+	}
+
+	@Test
+	public void documentsAreAdmittedWithinClientShare() throws IOException {
+		Client client = new Client("client", true, 1, 0, null);
+		String progress = run(client);
+		assertTrue(progress, progress.endsWith("{\"converted\":2,\"skipped\":0,\"failed\":0,\"total\":2}\n"));
+		assertEquals("every place is given back", 0, admissionController.getAdmittedCount());
+
+		// the client's one place is taken by a conversion of its own still in progress
+		assertTrue(new File(outputDir, "one.pdf").delete());
+		assertTrue(admissionController.tryAdmit(client));
+		progress = run(client);
+		assertTrue(progress, progress.contains("{\"input\":\"one.docx\",\"outcome\":\"failed\""));
+		assertFalse(new File(outputDir, "one.pdf").exists());
+		assertEquals(1, client.getAdmittedCount());
+		admissionController.release(client);
+	}
+
+	private String run() throws IOException {
+		return run(null);
+	}
+
+	/*
+	 * Run a bulk conversion of the source directory to the output directory and return its progress lines.
+	 */
+	private String run(Client client) throws IOException {
+		BulkConversion bulkConversion = new BulkConversion(conversionExecutor, admissionController, 2, outputDir, client);
+		bulkConversion.addDirectory(sourceDir, 100);
+		ByteArrayOutputStream progress = new ByteArrayOutputStream();
+		boolean[] completed = new boolean[1];
+		bulkConversion.start(asyncContext(progress, completed));
+		// the conversions are cache hits, which finish before start() returns
+		assertTrue("run completed", completed[0]);
+		return new String(progress.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	private File document(String name, String suffix) throws Exception {
+		File file = new File(sourceDir, name);
+		Files.createDirectories(file.getParentFile().toPath());
+		Files.copy(getTestFile("TrivialDocument.docx").toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		// the bytes after the end of the ZIP make the content, and so the cache key, differ
+		Files.write(file.toPath(), suffix.getBytes(StandardCharsets.US_ASCII), StandardOpenOption.APPEND);
+		assertTrue(file.setLastModified(System.currentTimeMillis() - 3 * HOUR));
+		return file;
+	}
+
+	private void cacheConversion(File input, String pdf) throws IOException {
+		MessageDigest digest = conversionExecutor.newInputDigest();
+		digest.update(Files.readAllBytes(input.toPath()));
+		File converted = new File(tempFolder.getRoot(), input.getName() + ".pdf");
+		Files.write(converted.toPath(), pdf.getBytes(StandardCharsets.US_ASCII));
+		resultCache.put(conversionExecutor.toInputKey(digest), converted);
+	}
+
+	private static AsyncContext asyncContext(final ByteArrayOutputStream progress, final boolean[] completed) {
+		final ServletOutputStream out = new ServletOutputStream() {
+			@Override
+			public void write(int b) {
+				progress.write(b);
+			}
+
+			@Override
+			public boolean isReady() {
+				return true;
+			}
+
+			@Override
+			public void setWriteListener(WriteListener writeListener) {
+			}
+		};
+		final ServletResponse response = (ServletResponse) Proxy.newProxyInstance(BulkConversionTest.class.getClassLoader(),
+				new Class<?>[] { ServletResponse.class }, (proxy, method, args) -> {
+					if (method.getName().equals("getOutputStream")) {
+						return out;
+					}
+					throw new UnsupportedOperationException(method.getName());
+				});
+		return (AsyncContext) Proxy.newProxyInstance(BulkConversionTest.class.getClassLoader(), new Class<?>[] { AsyncContext.class },
+				(proxy, method, args) -> {
+					switch (method.getName()) {
+					case "getResponse":
+						return response;
+					case "start":
+						((Runnable) args[0]).run();
+						return null;
+					case "complete":
+						completed[0] = true;
+						return null;
+					default:
+						throw new UnsupportedOperationException(method.getName());
+					}
+				});
+	}
+
+	private static String read(File file) throws IOException {
+		return new String(Files.readAllBytes(file.toPath()), StandardCharsets.US_ASCII);
+	}
+
+	private File getTestFile(String name) throws Exception {
+		return new File(Thread.currentThread().getContextClassLoader().getResource(name).toURI());
+	}
+}
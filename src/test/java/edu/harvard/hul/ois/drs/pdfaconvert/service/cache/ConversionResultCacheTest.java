@@ -0,0 +1,148 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.service.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks the least recently used eviction of the conversion result cache and that checked out files are the
+ * caller's own.
+ */
+public class ConversionResultCacheTest {
+
+	@Rule
+	public TemporaryFolder tempFolder = new TemporaryFolder();
+
+	private File cacheDir;
+
+	@Before
+	public void setUp() {
+		cacheDir = new File(tempFolder.getRoot(), "cache");
+	}
+
+	@Test
+	public void missThenHit() throws IOException {
+		ConversionResultCache cache = new ConversionResultCache(cacheDir, 1000, "1.0");
+		assertNull(cache.checkOut("a"));
+		File converted = convertedFile("a.pdf", "0123456789");
+		cache.put("a", converted);
+		assertTrue("the converted file is left in place", converted.exists());
+		File hit = cache.checkOut("a");
+		assertNotNull(hit);
+		assertEquals("0123456789", read(hit));
+		assertEquals(1, cache.getHitCount());
+		assertEquals(1, cache.getMissCount());
+		assertEquals(1, cache.getEntryCount());
+		assertEquals(10, cache.getTotalBytes());
+	}
+
+	@Test
+	public void eachCheckOutIsAFileOfItsOwn() throws IOException {
+		ConversionResultCache cache = new ConversionResultCache(cacheDir, 1000, "1.0");
+		cache.put("a", convertedFile("a.pdf", "0123456789"));
+		File first = cache.checkOut("a");
+		File second = cache.checkOut("a");
+		assertNotEquals(first, second);
+		assertTrue(first.delete());
+		assertEquals("0123456789", read(second));
+		assertNotNull("deleting a checked out file leaves the entry", cache.checkOut("a"));
+	}
+
+	@Test
+	public void leastRecentlyUsedEntryIsEvicted() throws IOException {
+		ConversionResultCache cache = new ConversionResultCache(cacheDir, 25, "1.0");
+		cache.put("a", convertedFile("a.pdf", "0123456789"));
+		cache.put("b", convertedFile("b.pdf", "0123456789"));
+		assertNotNull(cache.checkOut("a"));
+		cache.put("c", convertedFile("c.pdf", "0123456789"));
+		assertEquals(1, cache.getEvictionCount());
+		assertEquals(2, cache.getEntryCount());
+		assertEquals(20, cache.getTotalBytes());
+		assertNull("b was used least recently", cache.checkOut("b"));
+		assertNotNull(cache.checkOut("a"));
+		assertNotNull(cache.checkOut("c"));
+	}
+
+	@Test
+	public void checkedOutFileOutlivesEviction() throws IOException {
+		ConversionResultCache cache = new ConversionResultCache(cacheDir, 15, "1.0");
+		cache.put("a", convertedFile("a.pdf", "0123456789"));
+		File hit = cache.checkOut("a");
+		cache.put("b", convertedFile("b.pdf", "abcdefghij"));
+		assertNull("a has been evicted", cache.checkOut("a"));
+		assertTrue(hit.exists());
+		assertEquals("0123456789", read(hit));
+	}
+
+	@Test
+	public void fileLargerThanCacheIsNotCached() throws IOException {
+		ConversionResultCache cache = new ConversionResultCache(cacheDir, 5, "1.0");
+		cache.put("a", convertedFile("a.pdf", "0123456789"));
+		assertEquals(0, cache.getEntryCount());
+		assertNull(cache.checkOut("a"));
+	}
+
+	@Test
+	public void entriesSurviveRestart() throws IOException {
+		ConversionResultCache cache = new ConversionResultCache(cacheDir, 1000, "1.0");
+		cache.put("a", convertedFile("a.pdf", "0123456789"));
+		File hit = cache.checkOut("a");
+		File partial = new File(cacheDir, "b.part1");
+		Files.write(partial.toPath(), "01234".getBytes(StandardCharsets.US_ASCII));
+
+		ConversionResultCache restarted = new ConversionResultCache(cacheDir, 1000, "1.0");
+		assertEquals(1, restarted.getEntryCount());
+		assertEquals(10, restarted.getTotalBytes());
+		assertFalse("files checked out before the restart are cleared", hit.exists());
+		assertFalse("partial copies are cleared", partial.exists());
+		assertEquals("0123456789", read(restarted.checkOut("a")));
+	}
+
+	@Test
+	public void keyDependsOnConverterVersion() throws IOException {
+		byte[] input = "same input".getBytes(StandardCharsets.US_ASCII);
+		MessageDigest oldVersion = new ConversionResultCache(new File(tempFolder.getRoot(), "old"), 1000, "1.0").newKeyDigest();
+		MessageDigest newVersion = new ConversionResultCache(new File(tempFolder.getRoot(), "new"), 1000, "2.0").newKeyDigest();
+		MessageDigest sameVersion = new ConversionResultCache(new File(tempFolder.getRoot(), "same"), 1000, "1.0").newKeyDigest();
+		oldVersion.update(input);
+		newVersion.update(input);
+		sameVersion.update(input);
+		String key = ConversionResultCache.toKey(oldVersion);
+		assertEquals(64, key.length());
+		assertNotEquals(key, ConversionResultCache.toKey(newVersion));
+		assertEquals(key, ConversionResultCache.toKey(sameVersion));
+	}
+
+	private File convertedFile(String name, String content) throws IOException {
+		File file = new File(tempFolder.getRoot(), name);
+		Files.write(file.toPath(), content.getBytes(StandardCharsets.US_ASCII));
+		return file;
+	}
+
+	private static String read(File file) throws IOException {
+		return new String(Files.readAllBytes(file.toPath()), StandardCharsets.US_ASCII);
+	}
+}
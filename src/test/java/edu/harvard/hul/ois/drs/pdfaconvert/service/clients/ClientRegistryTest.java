@@ -0,0 +1,134 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.service.clients;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.junit.Test;
+
+/**
+ * Checks how requests are matched to clients and that the clients tracked by address stay bounded.
+ */
+public class ClientRegistryTest {
+
+	private static final int MAX_TRACKED_ADDRESSES = 10000;
+
+	@Test
+	public void configuredKeyIdentifiesClient() {
+		Properties props = new Properties();
+		props.setProperty("client.names", "deposit");
+		props.setProperty("client.deposit.keys", "key-1, key-2");
+		props.setProperty("client.deposit.weight", "4");
+		props.setProperty("client.deposit.rate.per.minute", "1");
+		props.setProperty("client.deposit.burst", "1");
+		ClientRegistry registry = new ClientRegistry(props);
+		Client client = registry.identify(request("10.0.0.1", "key-2", null));
+		assertEquals("deposit", client.getName());
+		assertTrue(client.isConfigured());
+		assertEquals(4, client.getWeight());
+		assertSame(client, registry.identify(request("10.0.0.2", "key-1", null)));
+		assertTrue(client.tryAcquire());
+		assertFalse("over its rate limit", client.tryAcquire());
+		assertEquals(1, client.getRateLimitedCount());
+	}
+
+	@Test
+	public void unknownKeyFallsBackToAddress() {
+		ClientRegistry registry = new ClientRegistry(new Properties());
+		Client client = registry.identify(request("10.0.0.1", "wrong-key", null));
+		assertEquals("10.0.0.1", client.getName());
+		assertFalse(client.isConfigured());
+		assertSame(client, registry.identify(request("10.0.0.1", null, null)));
+		assertNotSame(client, registry.identify(request("10.0.0.2", null, null)));
+	}
+
+	@Test
+	public void addressHeaderGivesOriginalClient() {
+		Properties props = new Properties();
+		props.setProperty("client.address.header", "X-Forwarded-For");
+		ClientRegistry registry = new ClientRegistry(props);
+		assertEquals("192.168.1.5", registry.identify(request("10.0.0.1", null, "192.168.1.5, 10.0.0.1")).getName());
+		assertEquals("10.0.0.1", registry.identify(request("10.0.0.1", null, null)).getName());
+	}
+
+	@Test
+	public void leastRecentAddressIsForgottenButItsCountsAreKept() {
+		ClientRegistry registry = new ClientRegistry(new Properties());
+		Client first = registry.identify(request("client-0", null, null));
+		first.tryAcquire();
+		for (int i = 1; i <= MAX_TRACKED_ADDRESSES; i++) {
+			registry.identify(request("client-" + i, null, null)).tryAcquire();
+		}
+		assertEquals(MAX_TRACKED_ADDRESSES, registry.getAddressClients().size());
+		assertNotSame("forgotten", first, registry.identify(request("client-0", null, null)));
+		assertEquals(MAX_TRACKED_ADDRESSES + 1, registry.getAddressRequestCount());
+	}
+
+	@Test
+	public void recentlySeenAddressIsKept() {
+		ClientRegistry registry = new ClientRegistry(new Properties());
+		Client first = registry.identify(request("client-0", null, null));
+		Client second = registry.identify(request("client-1", null, null));
+		for (int i = 2; i <= MAX_TRACKED_ADDRESSES; i++) {
+			registry.identify(request("client-" + i, null, null));
+			if (i == MAX_TRACKED_ADDRESSES / 2) {
+				assertSame(first, registry.identify(request("client-0", null, null)));
+			}
+		}
+		assertSame(first, registry.identify(request("client-0", null, null)));
+		assertNotSame(second, registry.identify(request("client-1", null, null)));
+	}
+
+	@Test
+	public void addressWithRequestsAdmittedIsKept() {
+		ClientRegistry registry = new ClientRegistry(new Properties());
+		Client busy = registry.identify(request("client-0", null, null));
+		assertTrue(busy.tryAdmit(1));
+		for (int i = 1; i <= MAX_TRACKED_ADDRESSES; i++) {
+			registry.identify(request("client-" + i, null, null));
+		}
+		assertSame(busy, registry.identify(request("client-0", null, null)));
+		busy.releaseAdmission();
+		assertEquals(0, busy.getAdmittedCount());
+	}
+
+	/*
+	 * A request from the given address carrying the given key and forwarded-for headers.
+	 */
+	private static HttpServletRequest request(String remoteAddr, String key, String forwardedFor) {
+		Map<String, String> headers = new HashMap<String, String>();
+		if (key != null) {
+			headers.put("X-API-Key", key);
+		}
+		if (forwardedFor != null) {
+			headers.put("X-Forwarded-For", forwardedFor);
+		}
+		return (HttpServletRequest) Proxy.newProxyInstance(ClientRegistryTest.class.getClassLoader(),
+				new Class<?>[] { HttpServletRequest.class }, (proxy, method, args) -> {
+					if (method.getName().equals("getHeader")) {
+						return headers.get(args[0]);
+					} else if (method.getName().equals("getRemoteAddr")) {
+						return remoteAddr;
+					}
+					throw new UnsupportedOperationException(method.getName());
+				});
+	}
+}
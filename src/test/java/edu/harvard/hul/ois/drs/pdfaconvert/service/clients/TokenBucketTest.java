@@ -0,0 +1,66 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.service.clients;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Checks the bursts and refill rate of the token bucket rate limit.
+ */
+public class TokenBucketTest {
+
+	@Test
+	public void allowsBurstUpToCapacity() {
+		TokenBucket bucket = new TokenBucket(1, 3);
+		assertTrue(bucket.tryAcquire());
+		assertTrue(bucket.tryAcquire());
+		assertTrue(bucket.tryAcquire());
+		assertFalse(bucket.tryAcquire());
+	}
+
+	@Test
+	public void capacityIsAtLeastOne() {
+		TokenBucket bucket = new TokenBucket(1, 0);
+		assertTrue(bucket.tryAcquire());
+		assertFalse(bucket.tryAcquire());
+	}
+
+	@Test
+	public void refillsAtItsRate() throws InterruptedException {
+		// one token every 10ms
+		TokenBucket bucket = new TokenBucket(6000, 1);
+		assertTrue(bucket.tryAcquire());
+		assertFalse(bucket.tryAcquire());
+		Thread.sleep(50);
+		assertTrue(bucket.tryAcquire());
+	}
+
+	@Test
+	public void refillStopsAtCapacity() throws InterruptedException {
+		TokenBucket bucket = new TokenBucket(6000, 2);
+		Thread.sleep(50);
+		assertTrue(bucket.tryAcquire());
+		assertTrue(bucket.tryAcquire());
+		assertFalse(bucket.tryAcquire());
+	}
+
+	@Test
+	public void reportsWaitForNextToken() {
+		TokenBucket bucket = new TokenBucket(60, 1);
+		assertEquals(0, bucket.getSecondsUntilAvailable(), 0);
+		assertTrue(bucket.tryAcquire());
+		double seconds = bucket.getSecondsUntilAvailable();
+		assertTrue(String.valueOf(seconds), seconds > 0.9 && seconds <= 1.0);
+	}
+}
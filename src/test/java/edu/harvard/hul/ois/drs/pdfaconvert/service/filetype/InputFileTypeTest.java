@@ -0,0 +1,193 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.service.filetype;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks that inputs are recognized by their signature and that their names must agree with it.
+ */
+public class InputFileTypeTest {
+
+	private static final byte[] OLE2_HEADER = { (byte) 0xD0, (byte) 0xCF, 0x11, (byte) 0xE0, (byte) 0xA1, (byte) 0xB1, 0x1A, (byte) 0xE1, 0, 0 };
+
+	@Rule
+	public TemporaryFolder tempFolder = new TemporaryFolder();
+
+	@Test
+	public void recognizesEachSignature() throws Exception {
+		assertEquals(InputFileType.OLE2, InputFileType.check(stream(OLE2_HEADER), "report.doc"));
+		assertEquals(InputFileType.RTF, InputFileType.check(stream(ascii("{\\rtf1\\ansi hello}")), "report.rtf"));
+		assertEquals(InputFileType.WORDPERFECT, InputFileType.check(stream(new byte[] { (byte) 0xFF, 'W', 'P', 'C', 0x10 }), "report.wpd"));
+		assertEquals(InputFileType.PDF, InputFileType.check(stream(ascii("%PDF-1.4\n")), "report.pdf"));
+		assertEquals(InputFileType.OOXML, InputFileType.check(stream(zip("[Content_Types].xml", "<Types/>")), "report.docx"));
+		assertEquals(InputFileType.ODF, InputFileType.check(stream(storedZip("mimetype", "application/vnd.oasis.opendocument.text")),
+				"report.odt"));
+	}
+
+	@Test
+	public void recognizesDocumentOnDisk() throws Exception {
+		assertEquals(InputFileType.OOXML, InputFileType.check(getTestFile("TrivialDocument.docx")));
+	}
+
+	@Test
+	public void zipWithoutOpenDocumentMediaTypeIsOfficeOpenXml() throws Exception {
+		byte[] spreadsheet = storedZip("mimetype", "application/vnd.oasis.opendocument.spreadsheet");
+		assertEquals(InputFileType.OOXML, InputFileType.detect(spreadsheet, spreadsheet.length));
+	}
+
+	@Test
+	public void extensionIsCheckedCaseInsensitively() throws Exception {
+		assertEquals(InputFileType.OLE2, InputFileType.check(stream(OLE2_HEADER), "REPORT.DOC"));
+		assertEquals(InputFileType.OLE2, InputFileType.check(stream(OLE2_HEADER), "report.Dot"));
+	}
+
+	@Test
+	public void nameWithoutExtensionIsAccepted() throws Exception {
+		assertEquals(InputFileType.RTF, InputFileType.check(stream(ascii("{\\rtf1}")), "report"));
+		assertEquals("rtf", InputFileType.RTF.getDefaultExtension());
+	}
+
+	@Test
+	public void extensionMustMatchContent() throws Exception {
+		assertUnsupported(stream(OLE2_HEADER), "report.docx", "does not match its .docx extension");
+		assertUnsupported(stream(ascii("%PDF-1.7")), "report.rtf", "does not match its .rtf extension");
+	}
+
+	@Test
+	public void unknownContentIsRejected() throws Exception {
+		assertUnsupported(stream(ascii("Just some plain text")), "notes.txt", "is not a supported document type");
+		assertUnsupported(stream(ascii("Just some plain text")), "notes.doc", "is not a supported document type");
+		assertNull(InputFileType.detect(ascii("PK"), 2));
+	}
+
+	@Test
+	public void emptyContentIsRejected() throws Exception {
+		assertUnsupported(stream(new byte[0]), "empty.doc", "No content received");
+		File emptyFile = tempFolder.newFile("empty.docx");
+		try {
+			InputFileType.check(emptyFile);
+			fail("Empty file accepted");
+		} catch (UnsupportedInputException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("No content received"));
+		}
+	}
+
+	@Test
+	public void headerIsGivenBack() throws Exception {
+		byte[] content = ascii("{\\rtf1\\ansi some text}");
+		InputStream inputStream = stream(content);
+		InputFileType.check(inputStream, "report.rtf");
+		ByteArrayOutputStream read = new ByteArrayOutputStream();
+		int b;
+		while ((b = inputStream.read()) != -1) {
+			read.write(b);
+		}
+		assertEquals(new String(content, StandardCharsets.US_ASCII), new String(read.toByteArray(), StandardCharsets.US_ASCII));
+	}
+
+	@Test
+	public void fileOnDiskIsCheckedAgainstItsName() throws Exception {
+		File renamed = tempFolder.newFile("report.rtf");
+		try (OutputStream out = new FileOutputStream(renamed)) {
+			out.write(OLE2_HEADER);
+		}
+		try {
+			InputFileType.check(renamed);
+			fail("Mismatched file accepted");
+		} catch (UnsupportedInputException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("report.rtf"));
+		}
+	}
+
+	@Test
+	public void supportedExtensions() {
+		for (String name : new String[] { "a.doc", "a.dot", "a.wps", "a.docx", "a.docm", "a.dotx", "a.dotm", "a.odt", "a.ott",
+				"a.rtf", "a.wpd", "a.wp", "a.wp5", "a.wp6", "a.pdf", "A.DOCX", "dir/sub/a.Rtf" }) {
+			assertTrue(name, InputFileType.isSupportedExtension(name));
+		}
+		for (String name : new String[] { "a.txt", "a.xlsx", "a.ods", "a", "a.", "docx", "a.docx.tmp" }) {
+			assertFalse(name, InputFileType.isSupportedExtension(name));
+		}
+	}
+
+	private static void assertUnsupported(InputStream inputStream, String fileName, String expectedMessage) throws IOException {
+		try {
+			InputFileType type = InputFileType.check(inputStream, fileName);
+			fail(fileName + " accepted as " + type);
+		} catch (UnsupportedInputException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains(expectedMessage));
+		}
+	}
+
+	private static InputStream stream(byte[] content) {
+		return new BufferedInputStream(new ByteArrayInputStream(content));
+	}
+
+	private static byte[] ascii(String text) {
+		return text.getBytes(StandardCharsets.US_ASCII);
+	}
+
+	private static byte[] zip(String entryName, String content) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ZipOutputStream zip = new ZipOutputStream(bytes)) {
+			zip.putNextEntry(new ZipEntry(entryName));
+			zip.write(ascii(content));
+			zip.closeEntry();
+		}
+		return bytes.toByteArray();
+	}
+
+	/*
+	 * A ZIP whose first entry is stored uncompressed, as OpenDocument requires of its mimetype entry.
+	 */
+	private static byte[] storedZip(String entryName, String content) throws IOException {
+		byte[] data = ascii(content);
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		ZipEntry entry = new ZipEntry(entryName);
+		entry.setMethod(ZipEntry.STORED);
+		entry.setSize(data.length);
+		entry.setCrc(crc.getValue());
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ZipOutputStream zip = new ZipOutputStream(bytes)) {
+			zip.putNextEntry(entry);
+			zip.write(data);
+			zip.closeEntry();
+		}
+		return bytes.toByteArray();
+	}
+
+	private File getTestFile(String name) throws URISyntaxException {
+		return new File(Thread.currentThread().getContextClassLoader().getResource(name).toURI());
+	}
+}
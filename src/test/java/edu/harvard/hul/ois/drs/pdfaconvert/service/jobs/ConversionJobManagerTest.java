@@ -0,0 +1,100 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.service.jobs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.harvard.hul.ois.drs.pdfaconvert.service.cache.ConversionResultCache;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.pool.ConversionExecutor;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.pool.ConversionScheduler;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.pool.ConversionTask;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.pool.ConversionTimeouts;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.pool.OutputDeletionQueue;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.pool.PdfaConverterWrapperFactory;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.pool.PdfaConverterWrapperPool;
+
+/**
+ * Checks that a job's converted file is kept while its result is being sent even if the job is removed meanwhile,
+ * and cannot be taken once the job has released it. The conversion is answered from the result cache, which is
+ * filled beforehand, so no converter is run.
+ */
+public class ConversionJobManagerTest {
+
+	@Rule
+	public TemporaryFolder tempFolder = new TemporaryFolder();
+
+	private OutputDeletionQueue outputDeletionQueue;
+	private ConversionExecutor conversionExecutor;
+	private ConversionJobManager conversionJobManager;
+	private ConversionJob job;
+
+	@Before
+	public void setUp() throws Exception {
+		ConversionResultCache resultCache = new ConversionResultCache(tempFolder.newFolder("cache"), 1024 * 1024, "1.0");
+		outputDeletionQueue = new OutputDeletionQueue(10, 1000, 3, 0, 0);
+		conversionExecutor = new ConversionExecutor(
+				new PdfaConverterWrapperPool(new PdfaConverterWrapperFactory(), new GenericObjectPoolConfig()),
+				new ConversionScheduler(1, 10), resultCache, new ConversionTimeouts(60, Collections.<String, Long> emptyMap()),
+				outputDeletionQueue);
+		conversionJobManager = new ConversionJobManager(conversionExecutor, 60);
+
+		File input = tempFolder.newFile("one.docx");
+		Files.write(input.toPath(), "one".getBytes(StandardCharsets.US_ASCII));
+		MessageDigest digest = conversionExecutor.newInputDigest();
+		digest.update(Files.readAllBytes(input.toPath()));
+		File converted = tempFolder.newFile("one.pdf");
+		Files.write(converted.toPath(), "%PDF-1.4 one".getBytes(StandardCharsets.US_ASCII));
+		resultCache.put(conversionExecutor.toInputKey(digest), converted);
+
+		job = conversionJobManager.submit(input, "one.pdf", false, null, null);
+		job.getConversionTask().getResult().get(10, TimeUnit.SECONDS);
+		assertEquals(ConversionJob.Status.DONE, job.getStatus());
+	}
+
+	@After
+	public void tearDown() {
+		conversionJobManager.shutdown();
+		conversionExecutor.shutdown();
+		outputDeletionQueue.shutdown();
+	}
+
+	@Test
+	public void resultBeingSentOutlivesRemoval() {
+		ConversionTask task = job.getConversionTask();
+		assertTrue("the result is held for sending", task.subscribe());
+		assertTrue(conversionJobManager.removeJob(job.getId()));
+		assertNull(conversionJobManager.getJob(job.getId()));
+		assertTrue("the converted file is kept while it is sent", job.getConvertedFile().exists());
+		assertTrue("the last share hands the file over for deletion", task.releaseOutput());
+	}
+
+	@Test
+	public void removedResultCannotBeHeld() {
+		assertTrue(conversionJobManager.removeJob(job.getId()));
+		assertFalse(job.getConversionTask().subscribe());
+	}
+}
@@ -0,0 +1,103 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.service.pool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import edu.harvard.hul.ois.drs.pdfaconvert.service.clients.Client;
+
+/**
+ * Checks that admission is limited to the converters plus the requests allowed to wait for one, and to each
+ * client's share of them.
+ */
+public class AdmissionControllerTest {
+
+	private final Client first = new Client("first", true, 1, 0, null);
+	private final Client second = new Client("second", true, 1, 0, null);
+
+	@Test
+	public void admitsConvertersPlusWaiting() {
+		AdmissionController admissionController = new AdmissionController(null, 2, 1, 1.0);
+		for (int i = 0; i < 3; i++) {
+			assertFalse(admissionController.isSaturated());
+			assertTrue(admissionController.tryAdmit(null));
+		}
+		assertTrue(admissionController.isSaturated());
+		assertFalse(admissionController.tryAdmit(null));
+		assertEquals(3, admissionController.getAdmittedCount());
+		admissionController.release(null);
+		assertEquals(2, admissionController.getAdmittedCount());
+		assertTrue(admissionController.tryAdmit(null));
+	}
+
+	@Test
+	public void atLeastOneConverterIsAdmitted() {
+		AdmissionController admissionController = new AdmissionController(null, 0, -1, 1.0);
+		assertTrue(admissionController.tryAdmit(null));
+		assertFalse(admissionController.tryAdmit(null));
+	}
+
+	@Test
+	public void clientIsLimitedToItsShare() {
+		// 2 converters and 2 waiting places, half of them for any one client
+		AdmissionController admissionController = new AdmissionController(null, 2, 2, 0.5);
+		assertTrue(admissionController.tryAdmit(first));
+		assertTrue(admissionController.tryAdmit(first));
+		assertFalse(admissionController.tryAdmit(first));
+		assertTrue(admissionController.isAtClientQuota(first));
+		assertTrue(admissionController.isSaturated(first));
+		assertFalse(admissionController.isSaturated());
+		assertTrue("another client is still admitted", admissionController.tryAdmit(second));
+		assertEquals(3, admissionController.getAdmittedCount());
+	}
+
+	@Test
+	public void releaseGivesBackBothPlaces() {
+		AdmissionController admissionController = new AdmissionController(null, 1, 1, 0.5);
+		assertTrue(admissionController.tryAdmit(first));
+		assertFalse(admissionController.tryAdmit(first));
+		admissionController.release(first);
+		assertEquals(0, first.getAdmittedCount());
+		assertEquals(0, admissionController.getAdmittedCount());
+		assertTrue(admissionController.tryAdmit(first));
+	}
+
+	@Test
+	public void refusalByCapacityDoesNotCountAgainstClient() {
+		AdmissionController admissionController = new AdmissionController(null, 1, 1, 1.0);
+		assertTrue(admissionController.tryAdmit(first));
+		assertTrue(admissionController.tryAdmit(first));
+		assertFalse(admissionController.tryAdmit(second));
+		assertEquals(0, second.getAdmittedCount());
+		assertTrue(admissionController.isSaturated());
+		assertFalse(admissionController.isAtClientQuota(second));
+	}
+
+	@Test
+	public void everyClientGetsAtLeastOnePlace() {
+		AdmissionController admissionController = new AdmissionController(null, 1, 0, 0);
+		assertTrue(admissionController.tryAdmit(first));
+		assertFalse(admissionController.tryAdmit(second));
+	}
+
+	@Test
+	public void unidentifiedRequestsUseOnlyTheOverallLimit() {
+		AdmissionController admissionController = new AdmissionController(null, 1, 1, 0.5);
+		assertTrue(admissionController.tryAdmit(null));
+		assertTrue(admissionController.tryAdmit(null));
+		assertFalse(admissionController.tryAdmit(null));
+		admissionController.release(null);
+		assertEquals(1, admissionController.getAdmittedCount());
+	}
+}
@@ -0,0 +1,89 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.service.pool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks that the tool processes started for a conversion's input are killed along with their own children, and
+ * that those of other inputs are left running.
+ */
+public class ChildProcessesTest {
+
+	@Rule
+	public TemporaryFolder tempFolder = new TemporaryFolder();
+
+	@Before
+	public void setUp() {
+		Assume.assumeTrue("needs /proc", new File("/proc/self/stat").exists());
+	}
+
+	@Test
+	public void processesNamingTheInputAreKilled() throws Exception {
+		File input = tempFolder.newFile("stuck.docx");
+		File other = tempFolder.newFile("other.docx");
+		// the shell names its input as $0 and starts a child that does not
+		Process tool = new ProcessBuilder("sh", "-c", "sleep 3001 & wait", input.getAbsolutePath()).start();
+		Process otherTool = new ProcessBuilder("sh", "-c", "sleep 3002", other.getAbsolutePath()).start();
+		try {
+			Thread.sleep(300);
+			assertTrue(isRunning("3001"));
+			assertEquals(2, ChildProcesses.killProcessesOf(input));
+			assertTrue(tool.waitFor(5, TimeUnit.SECONDS));
+			Thread.sleep(300);
+			assertFalse("the tool's own child is killed too", isRunning("3001"));
+			assertTrue(otherTool.isAlive());
+		} finally {
+			ChildProcesses.killProcessesOf(input);
+			ChildProcesses.killProcessesOf(other);
+		}
+	}
+
+	@Test
+	public void nothingToKill() throws Exception {
+		assertEquals(0, ChildProcesses.killProcessesOf(tempFolder.newFile("idle.docx")));
+	}
+
+	/*
+	 * Whether a sleep for the given number of seconds is running, as a zombie has no command line.
+	 */
+	private static boolean isRunning(String sleepSeconds) throws Exception {
+		File[] processes = new File("/proc").listFiles();
+		for (File process : processes) {
+			File commandLine = new File(process, "cmdline");
+			if (!process.getName().matches("\\d+") || !commandLine.canRead()) {
+				continue;
+			}
+			try {
+				String command = new String(Files.readAllBytes(commandLine.toPath()), StandardCharsets.UTF_8);
+				if (command.equals("sleep\0" + sleepSeconds + "\0")) {
+					return true;
+				}
+			} catch (IOException e) {
+				// exited since it was listed
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,163 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.service.pool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.harvard.hul.ois.drs.pdfaconvert.ExternalToolException;
+import edu.harvard.hul.ois.drs.pdfaconvert.PdfaConverterOutput;
+import edu.harvard.hul.ois.drs.pdfaconvert.PdfaConvert;
+
+/**
+ * Checks that a conversion abandoned after its timeout keeps its converter slot until the converter has stopped, so
+ * that no conversion is started without a converter to run it, and that only identical inputs of the same type share
+ * a conversion.
+ */
+public class ConversionExecutorTest {
+
+	@Rule
+	public TemporaryFolder tempFolder = new TemporaryFolder();
+
+	private final CountDownLatch toolStops = new CountDownLatch(1);
+	private final List<String> examined = new CopyOnWriteArrayList<String>();
+	private PdfaConverterWrapperPool pool;
+	private OutputDeletionQueue outputDeletionQueue;
+	private ConversionExecutor conversionExecutor;
+
+	@Before
+	public void setUp() {
+		GenericObjectPoolConfig poolConfig = new GenericObjectPoolConfig();
+		poolConfig.setMaxTotal(1);
+		poolConfig.setBlockWhenExhausted(true);
+		pool = new PdfaConverterWrapperPool(new PdfaConverterWrapperFactory() {
+			@Override
+			public PdfaConverterWrapper create() {
+				return new PdfaConverterWrapper(new StuckPdfaConvert());
+			}
+		}, poolConfig);
+		outputDeletionQueue = new OutputDeletionQueue(10, 1000, 3, 0, 0);
+		conversionExecutor = new ConversionExecutor(pool, new ConversionScheduler(1, 10), null,
+				new ConversionTimeouts(1, Collections.<String, Long> emptyMap()), outputDeletionQueue);
+	}
+
+	@After
+	public void tearDown() {
+		toolStops.countDown();
+		conversionExecutor.shutdown();
+		outputDeletionQueue.shutdown();
+	}
+
+	@Test
+	public void abandonedConversionHoldsItsSlotUntilItStops() throws Exception {
+		ConversionTask stuck = conversionExecutor.submit(input("stuck.docx"), null, null);
+		assertFailsWith(stuck, ConversionTimeoutException.class);
+		assertEquals(1, conversionExecutor.getAbandonedCount());
+
+		ConversionTask next = conversionExecutor.submit(input("next.docx"), null, null);
+		Thread.sleep(500);
+		assertFalse("the only converter is still held by the abandoned conversion", next.isStarted());
+		assertEquals(1, conversionExecutor.getQueuePosition(next));
+
+		toolStops.countDown();
+		assertFailsWith(next, ExternalToolException.class);
+		assertEquals(0, conversionExecutor.getAbandonedCount());
+		assertEquals(2, examined.size());
+		assertTrue(examined.get(1).endsWith("next.docx"));
+	}
+
+	@Test
+	public void identicalInputsOfTheSameTypeShareAConversion() throws Exception {
+		ConversionTask first = conversionExecutor.submit(input("first.docx", "same"), null, null);
+		assertSame(first, conversionExecutor.submit(input("second.docx", "same"), null, null));
+		assertNotSame("another type is converted on its own", first, conversionExecutor.submit(input("third.doc", "same"), null, null));
+		assertNotSame(first, conversionExecutor.submit(input("fourth.docx", "other"), null, null));
+		assertEquals(1, conversionExecutor.getCoalescedCount());
+	}
+
+	@Test
+	public void withoutCoalescingOrCacheInputsAreNotKeyed() throws Exception {
+		ConversionExecutor uncoalesced = new ConversionExecutor(pool, new ConversionScheduler(1, 10), null,
+				new ConversionTimeouts(1, Collections.<String, Long> emptyMap()), outputDeletionQueue, false);
+		try {
+			assertFalse(uncoalesced.isKeyingInputs());
+			ConversionTask first = uncoalesced.submit(input("first.docx", "same"), null, null);
+			assertNotSame(first, uncoalesced.submit(input("second.docx", "same"), null, null));
+			assertEquals(0, uncoalesced.getCoalescedCount());
+		} finally {
+			toolStops.countDown();
+			uncoalesced.shutdown();
+		}
+	}
+
+	private File input(String name) throws IOException {
+		return input(name, name);
+	}
+
+	private File input(String name, String content) throws IOException {
+		File file = tempFolder.newFile(name);
+		Files.write(file.toPath(), content.getBytes(StandardCharsets.US_ASCII));
+		return file;
+	}
+
+	private static void assertFailsWith(ConversionTask task, Class<? extends Exception> expected) throws Exception {
+		try {
+			task.getResult().get(10, TimeUnit.SECONDS);
+			fail("Conversion succeeded");
+		} catch (ExecutionException e) {
+			assertTrue(String.valueOf(e.getCause()), expected.isInstance(e.getCause()));
+		}
+	}
+
+	/*
+	 * A converter whose tool does not stop when the converting thread is interrupted, only once the test lets it.
+	 */
+	private class StuckPdfaConvert extends PdfaConvert {
+		@Override
+		public PdfaConverterOutput examine(File inputFile, boolean deleteOutput) throws ExternalToolException {
+			examined.add(inputFile.getPath());
+			boolean interrupted = false;
+			while (true) {
+				try {
+					toolStops.await();
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+			throw new ExternalToolException("Tool stopped");
+		}
+	}
+}
@@ -0,0 +1,208 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.service.pool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import edu.harvard.hul.ois.drs.pdfaconvert.service.clients.Client;
+import edu.harvard.hul.ois.drs.pdfaconvert.service.pool.ConversionScheduler.PartitionSettings;
+
+/**
+ * Checks the order in which the scheduler hands out converter slots: shortest first with aging, weighted fair
+ * shares between clients, per-client caps and queue shares, and reserved partition slots of the one pool.
+ */
+public class ConversionSchedulerTest {
+
+	private final Client light = new Client("light", true, 1, 0, null);
+	private final Client heavy = new Client("heavy", true, 3, 0, null);
+
+	@Test
+	public void shortestConversionGoesFirst() {
+		ConversionScheduler scheduler = new ConversionScheduler(1, 10, 0, 1, noPartitions());
+		ConversionTask slow = task("slow.doc", 60, null);
+		ConversionTask quick = task("quick.doc", 2, null);
+		assertTrue(scheduler.enqueue(slow));
+		assertTrue(scheduler.enqueue(quick));
+		assertEquals(2, scheduler.getQueuePosition(slow));
+		assertEquals(1, scheduler.getQueuePosition(quick));
+		assertSame(quick, scheduler.next());
+		assertNull("the only slot is taken", scheduler.next());
+		scheduler.release(quick);
+		assertSame(slow, scheduler.next());
+	}
+
+	@Test
+	public void waitingCountsAgainstExpectedTime() {
+		ConversionScheduler scheduler = new ConversionScheduler(1, 10, 1.0, 1, noPartitions());
+		ConversionTask slow = task("slow.doc", 60, null);
+		assertTrue(scheduler.enqueue(slow));
+		slow.setQueuedNanos(System.nanoTime() - TimeUnit.SECONDS.toNanos(100));
+		ConversionTask quick = task("quick.doc", 2, null);
+		assertTrue(scheduler.enqueue(quick));
+		assertSame("waited long enough to go ahead", slow, scheduler.next());
+	}
+
+	@Test
+	public void withoutAgingLongConversionKeepsWaiting() {
+		ConversionScheduler scheduler = new ConversionScheduler(1, 10, 0, 1, noPartitions());
+		ConversionTask slow = task("slow.doc", 60, null);
+		assertTrue(scheduler.enqueue(slow));
+		slow.setQueuedNanos(System.nanoTime() - TimeUnit.SECONDS.toNanos(100));
+		ConversionTask quick = task("quick.doc", 2, null);
+		assertTrue(scheduler.enqueue(quick));
+		assertSame(quick, scheduler.next());
+	}
+
+	@Test
+	public void clientsShareConvertersByWeight() {
+		ConversionScheduler scheduler = new ConversionScheduler(1, 100, 0, 1, noPartitions());
+		for (int i = 0; i < 20; i++) {
+			assertTrue(scheduler.enqueue(task("light" + i + ".doc", 1, light)));
+			assertTrue(scheduler.enqueue(task("heavy" + i + ".doc", 1, heavy)));
+		}
+		int heavyStarted = 0;
+		for (int i = 0; i < 20; i++) {
+			ConversionTask task = scheduler.next();
+			if (task.getClient() == heavy) {
+				heavyStarted++;
+			}
+			scheduler.release(task);
+		}
+		assertEquals("three to one by weight", 15, heavyStarted);
+	}
+
+	@Test
+	public void returningClientStartsLevel() {
+		ConversionScheduler scheduler = new ConversionScheduler(1, 100, 0, 1, noPartitions());
+		for (int i = 0; i < 10; i++) {
+			assertTrue(scheduler.enqueue(task("heavy" + i + ".doc", 1, heavy)));
+		}
+		for (int i = 0; i < 5; i++) {
+			scheduler.release(scheduler.next());
+		}
+		// the light client was quiet while the heavy client was charged; it gets no credit for that
+		for (int i = 0; i < 5; i++) {
+			assertTrue(scheduler.enqueue(task("light" + i + ".doc", 1, light)));
+		}
+		int lightStarted = 0;
+		for (int i = 0; i < 4; i++) {
+			ConversionTask task = scheduler.next();
+			if (task.getClient() == light) {
+				lightStarted++;
+			}
+			scheduler.release(task);
+		}
+		assertEquals(1, lightStarted);
+	}
+
+	@Test
+	public void clientAtItsCapIsPassedOver() {
+		Client capped = new Client("capped", true, 10, 1, null);
+		ConversionScheduler scheduler = new ConversionScheduler(2, 10, 0, 1, noPartitions());
+		ConversionTask first = task("first.doc", 1, capped);
+		ConversionTask second = task("second.doc", 1, capped);
+		ConversionTask other = task("other.doc", 50, light);
+		assertTrue(scheduler.enqueue(first));
+		assertTrue(scheduler.enqueue(second));
+		assertTrue(scheduler.enqueue(other));
+		assertSame(first, scheduler.next());
+		assertSame(other, scheduler.next());
+		assertEquals(1, scheduler.getRunningCount(capped));
+		scheduler.release(first);
+		assertSame(second, scheduler.next());
+	}
+
+	@Test
+	public void clientMayHoldOnlyItsShareOfTheQueue() {
+		ConversionScheduler scheduler = new ConversionScheduler(1, 4, 0, 0.5, noPartitions());
+		assertTrue(scheduler.enqueue(task("a1.doc", 1, light)));
+		assertTrue(scheduler.enqueue(task("a2.doc", 1, light)));
+		assertFalse("over the client's share", scheduler.enqueue(task("a3.doc", 1, light)));
+		assertEquals(2, scheduler.getQueuedCount(light));
+		assertTrue(scheduler.enqueue(task("b1.doc", 1, heavy)));
+		assertTrue(scheduler.enqueue(task("b2.doc", 1, heavy)));
+		assertFalse("queue full", scheduler.enqueue(task("c1.doc", 1, null)));
+		assertSame(light, scheduler.next().getClient());
+		assertTrue("a conversion started so the client has room again", scheduler.enqueue(task("a3.doc", 1, light)));
+	}
+
+	@Test
+	public void unidentifiedConversionsShareOnlyTheGlobalQueue() {
+		ConversionScheduler scheduler = new ConversionScheduler(1, 3, 0, 0.5, noPartitions());
+		assertTrue(scheduler.enqueue(task("a.doc", 1, null)));
+		assertTrue(scheduler.enqueue(task("b.doc", 1, null)));
+		assertTrue(scheduler.enqueue(task("c.doc", 1, null)));
+		assertFalse(scheduler.enqueue(task("d.doc", 1, null)));
+		assertEquals(3, scheduler.getQueuedCount());
+	}
+
+	@Test
+	public void reservedSlotKeepsPartitionMoving() {
+		Map<String, PartitionSettings> partitions = new LinkedHashMap<String, PartitionSettings>();
+		partitions.put("fast", new PartitionSettings(Arrays.asList("rtf"), 1, 0));
+		ConversionScheduler scheduler = new ConversionScheduler(2, 10, 0, 1, partitions);
+		ConversionTask doc1 = task("one.doc", 1, null);
+		ConversionTask doc2 = task("two.doc", 1, null);
+		ConversionTask rtf = task("three.rtf", 100, null);
+		assertTrue(scheduler.enqueue(doc1));
+		assertTrue(scheduler.enqueue(doc2));
+		assertTrue(scheduler.enqueue(rtf));
+		assertEquals("fast", rtf.getPartition());
+		assertEquals(ConversionScheduler.DEFAULT_PARTITION, doc1.getPartition());
+		ConversionTask firstStarted = scheduler.next();
+		ConversionTask secondStarted = scheduler.next();
+		assertTrue(firstStarted == rtf || secondStarted == rtf);
+		assertNull("the default partition has only the one shared slot", scheduler.next());
+		assertEquals(1, scheduler.getQueuedCount(ConversionScheduler.DEFAULT_PARTITION));
+		assertEquals(1, scheduler.getRunningCount("fast"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void partitionsCannotReserveMoreThanThePool() {
+		Map<String, PartitionSettings> partitions = new LinkedHashMap<String, PartitionSettings>();
+		partitions.put("word", new PartitionSettings(Arrays.asList("doc"), 2, 0));
+		partitions.put("fast", new PartitionSettings(Arrays.asList("rtf"), 1, 0));
+		new ConversionScheduler(2, 10, 0, 1, partitions);
+	}
+
+	@Test
+	public void drainEmptiesEveryQueue() {
+		ConversionScheduler scheduler = new ConversionScheduler(1, 10);
+		assertTrue(scheduler.enqueue(task("a.doc", 1, light)));
+		assertTrue(scheduler.enqueue(task("b.rtf", 1, heavy)));
+		assertEquals(2, scheduler.drain().size());
+		assertEquals(0, scheduler.getQueuedCount());
+		assertEquals(0, scheduler.getQueuedCount(light));
+		assertNull(scheduler.next());
+	}
+
+	private static Map<String, PartitionSettings> noPartitions() {
+		return new LinkedHashMap<String, PartitionSettings>();
+	}
+
+	private static ConversionTask task(String name, double estimatedSeconds, Client client) {
+		ConversionTask task = new ConversionTask(new File(name), null, null, null);
+		task.setEstimatedSeconds(estimatedSeconds);
+		task.setClient(client);
+		return task;
+	}
+}
@@ -0,0 +1,44 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.service.pool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import org.junit.Test;
+
+/**
+ * Checks that the paths and messages of the converter worker protocol each stay on one line.
+ */
+public class ConverterWorkerMainTest {
+
+	@Test
+	public void lineBreaksAndBackslashesAreEscaped() {
+		String path = "/data/odd\nname\r\\x.docx";
+		String escaped = ConverterWorkerMain.escape(path);
+		assertFalse(escaped.contains("\n"));
+		assertFalse(escaped.contains("\r"));
+		assertEquals("/data/odd\\nname\\r\\\\x.docx", escaped);
+		assertEquals(path, ConverterWorkerMain.unescape(escaped));
+	}
+
+	@Test
+	public void plainPathIsUnchanged() {
+		String path = "/data/some dir/report.docx";
+		assertEquals(path, ConverterWorkerMain.escape(path));
+		assertEquals(path, ConverterWorkerMain.unescape(path));
+	}
+
+	@Test
+	public void backslashBeforeLetterSurvives() {
+		String path = "C:\\new\\report.docx";
+		assertEquals(path, ConverterWorkerMain.unescape(ConverterWorkerMain.escape(path)));
+	}
+}
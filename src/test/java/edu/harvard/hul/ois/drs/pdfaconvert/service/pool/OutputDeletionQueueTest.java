@@ -0,0 +1,144 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.service.pool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks that converted files are deleted in batches, that failed deletions are tried again a limited number of
+ * times and that leftovers in the output directories are found by reconciliation.
+ */
+public class OutputDeletionQueueTest {
+
+	private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+
+	@Rule
+	public TemporaryFolder tempFolder = new TemporaryFolder();
+
+	@Test
+	public void handedOverFilesAreDeletedInBatches() throws IOException {
+		OutputDeletionQueue queue = new OutputDeletionQueue(2, 1000, 3, 0, 0);
+		File[] converted = new File[5];
+		for (int i = 0; i < converted.length; i++) {
+			converted[i] = converted("out" + i + ".pdf", 10);
+			queue.track(converted[i]);
+		}
+		assertEquals(5, queue.getLiveCount());
+		for (File file : converted) {
+			queue.delete(file);
+		}
+		assertEquals(0, queue.getLiveCount());
+		assertEquals(5, queue.getPendingCount());
+		assertEquals(50, queue.getPendingBytes());
+		queue.flush();
+		for (File file : converted) {
+			assertFalse(file.getName(), file.exists());
+		}
+		assertEquals(5, queue.getDeletedCount());
+		assertEquals(3, queue.getBatchCount());
+		assertEquals(0, queue.getPendingCount());
+		assertEquals(0, queue.getPendingBytes());
+	}
+
+	@Test
+	public void fileHandedOverTwiceIsQueuedOnce() throws IOException {
+		OutputDeletionQueue queue = new OutputDeletionQueue(10, 1000, 3, 0, 0);
+		File converted = converted("out.pdf", 10);
+		queue.delete(converted);
+		queue.delete(converted);
+		assertEquals(1, queue.getPendingCount());
+	}
+
+	@Test
+	public void failedDeletionIsTriedAgainUpToMaximumAttempts() throws IOException {
+		OutputDeletionQueue queue = new OutputDeletionQueue(10, 1000, 3, 0, 0);
+		// a directory with something in it cannot be deleted
+		File undeletable = tempFolder.newFolder("out.pdf");
+		assertTrue(new File(undeletable, "inside").createNewFile());
+		queue.delete(undeletable);
+		queue.flush();
+		assertEquals(1, queue.getPendingCount());
+		queue.flush();
+		assertEquals(2, queue.getRetriedCount());
+		assertEquals(0, queue.getFailedCount());
+		queue.flush();
+		assertEquals("given up on the third attempt", 1, queue.getFailedCount());
+		assertEquals(0, queue.getPendingCount());
+		assertEquals(0, queue.getDeletedCount());
+	}
+
+	@Test
+	public void fileGoneBeforeItsTurnCountsAsDeleted() throws IOException {
+		OutputDeletionQueue queue = new OutputDeletionQueue(10, 1000, 3, 0, 0);
+		File converted = converted("out.pdf", 10);
+		queue.delete(converted);
+		assertTrue(converted.delete());
+		queue.flush();
+		assertEquals(1, queue.getDeletedCount());
+		assertEquals(0, queue.getFailedCount());
+	}
+
+	@Test
+	public void reconcileFindsOnlyOldUntrackedFiles() throws IOException {
+		OutputDeletionQueue queue = new OutputDeletionQueue(10, 1000, 3, 0, HOUR);
+		File tracked = converted("tracked.pdf", 10);
+		queue.track(tracked);
+		File oldTracked = converted("old-tracked.pdf", 10);
+		queue.track(oldTracked);
+		File leftover = converted("leftover.pdf", 10);
+		File recent = converted("recent.pdf", 10);
+		age(tracked, 0);
+		age(oldTracked, 2 * HOUR);
+		age(leftover, 2 * HOUR);
+
+		queue.reconcile();
+		assertEquals(1, queue.getReconciledCount());
+		assertEquals(1, queue.getPendingCount());
+		queue.reconcile();
+		assertEquals("already waiting to be deleted", 1, queue.getReconciledCount());
+		queue.flush();
+		assertFalse(leftover.exists());
+		assertTrue("a conversion may still be writing it", recent.exists());
+		assertTrue(tracked.exists());
+		assertTrue(oldTracked.exists());
+	}
+
+	@Test
+	public void shutdownDeletesWaitingFiles() throws IOException {
+		OutputDeletionQueue queue = new OutputDeletionQueue(10, TimeUnit.HOURS.toMillis(1), 3, 0, 0);
+		queue.start();
+		File converted = converted("out.pdf", 10);
+		queue.delete(converted);
+		queue.shutdown();
+		assertFalse(converted.exists());
+		assertEquals(1, queue.getDeletedCount());
+	}
+
+	private File converted(String name, int size) throws IOException {
+		File file = new File(tempFolder.getRoot(), name);
+		Files.write(file.toPath(), new byte[size]);
+		return file;
+	}
+
+	private static void age(File file, long ageMillis) {
+		assertTrue(file.setLastModified(System.currentTimeMillis() - ageMillis));
+	}
+}
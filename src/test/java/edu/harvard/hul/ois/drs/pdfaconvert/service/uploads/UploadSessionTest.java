@@ -0,0 +1,151 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.service.uploads;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks that chunks may arrive in any order, that only whole, matching chunks count as received and that the
+ * missing chunks are reported as ranges.
+ */
+public class UploadSessionTest {
+
+	private static final int CHUNK_SIZE = 4;
+
+	@Rule
+	public TemporaryFolder tempFolder = new TemporaryFolder();
+
+	private byte[] content;
+	private UploadSession session;
+
+	@Before
+	public void setUp() throws IOException {
+		// 8 chunks, the last of them 2 bytes long
+		content = new byte[30];
+		for (int i = 0; i < content.length; i++) {
+			content[i] = (byte) i;
+		}
+		session = new UploadSession("id", "report.docx", content.length, CHUNK_SIZE, tempFolder.newFile("staged"));
+	}
+
+	@Test
+	public void chunksInAnyOrderMakeTheDocument() throws Exception {
+		assertEquals(8, session.getChunkCount());
+		for (int index : new int[] { 7, 3, 0, 5, 1, 6, 2, 4 }) {
+			assertFalse(session.isComplete());
+			write(index);
+		}
+		assertTrue(session.isComplete());
+		assertEquals("", session.getMissingChunks());
+		assertEquals(content.length, session.getReceivedBytes());
+		assertArrayEquals(content, Files.readAllBytes(session.getStagedFile().toPath()));
+	}
+
+	@Test
+	public void missingChunksAreReportedAsRanges() throws Exception {
+		assertEquals("0-7", session.getMissingChunks());
+		write(4);
+		assertEquals("0-3,5-7", session.getMissingChunks());
+		write(5);
+		write(6);
+		assertEquals("0-3,7", session.getMissingChunks());
+		write(0);
+		write(7);
+		assertEquals("1-3", session.getMissingChunks());
+		write(2);
+		assertEquals("1,3", session.getMissingChunks());
+		assertEquals(6, session.getReceivedCount());
+	}
+
+	@Test
+	public void receivedBytesAllowForShortLastChunk() throws Exception {
+		write(0);
+		assertEquals(CHUNK_SIZE, session.getReceivedBytes());
+		write(7);
+		assertEquals(CHUNK_SIZE + 2, session.getReceivedBytes());
+	}
+
+	@Test
+	public void chunkNotMatchingItsChecksumIsNotReceived() throws Exception {
+		write(1);
+		byte[] chunk = chunk(1);
+		byte[] wrongChecksum = sha256(chunk(2));
+		try {
+			session.writeChunk(1, new ByteArrayInputStream(chunk), wrongChecksum);
+			fail("Chunk with wrong checksum accepted");
+		} catch (InvalidChunkException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("checksum"));
+		}
+		assertEquals("a bad copy replaces the good one", "0-7", session.getMissingChunks());
+		write(1);
+		assertEquals("0,2-7", session.getMissingChunks());
+	}
+
+	@Test
+	public void chunkOfWrongLengthIsRejected() throws Exception {
+		byte[] shortChunk = Arrays.copyOf(chunk(0), 3);
+		assertInvalid(0, shortChunk, "instead of");
+		byte[] longChunk = Arrays.copyOf(chunk(7), 3);
+		assertInvalid(7, longChunk, "longer than");
+		assertEquals(0, session.getReceivedCount());
+	}
+
+	@Test
+	public void chunkOutOfRangeIsRejected() throws Exception {
+		assertInvalid(8, chunk(0), "out of range");
+		assertInvalid(-1, chunk(0), "out of range");
+	}
+
+	@Test
+	public void closedSessionTakesNoChunks() throws Exception {
+		assertTrue(session.close());
+		assertFalse(session.close());
+		assertInvalid(0, chunk(0), "already been completed");
+	}
+
+	private void assertInvalid(int index, byte[] chunk, String expectedMessage) throws Exception {
+		try {
+			session.writeChunk(index, new ByteArrayInputStream(chunk), sha256(chunk));
+			fail("Chunk " + index + " accepted");
+		} catch (InvalidChunkException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains(expectedMessage));
+		}
+	}
+
+	private void write(int index) throws Exception {
+		byte[] chunk = chunk(index);
+		assertEquals(chunk.length, session.writeChunk(index, new ByteArrayInputStream(chunk), sha256(chunk)));
+	}
+
+	private byte[] chunk(int index) {
+		int from = index * CHUNK_SIZE;
+		return Arrays.copyOfRange(content, from, Math.min(from + CHUNK_SIZE, content.length));
+	}
+
+	private static byte[] sha256(byte[] bytes) throws Exception {
+		return MessageDigest.getInstance("SHA-256").digest(bytes);
+	}
+}
@@ -0,0 +1,150 @@
+/*
+Copyright (c) 2016 by The President and Fellows of Harvard College
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. You may obtain a copy of the License at:
+http://www.apache.org/licenses/LICENSE-2.0
+Unless required by applicable law or agreed to in writing, software distributed under the License is
+distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permission and limitations under the License.
+*/
+package edu.harvard.hul.ois.drs.pdfaconvert.service.workdir;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks the janitor of the work directory: orphans deleted at startup, files past the maximum age, the quota
+ * sparing young files, and the memory tier's budget.
+ */
+public class WorkDirectoryTest {
+
+	private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+	private static final long JANITOR_INTERVAL_SECONDS = 3600; // the tests run the janitor themselves
+
+	@Rule
+	public TemporaryFolder tempFolder = new TemporaryFolder();
+
+	private WorkDirectory workDirectory;
+
+	@After
+	public void tearDown() {
+		if (workDirectory != null) {
+			workDirectory.shutdown();
+		}
+	}
+
+	@Test
+	public void stagedFilesAreSpreadOverShards() throws IOException {
+		workDirectory = new WorkDirectory(tempFolder.getRoot(), 0, 0, 0, JANITOR_INTERVAL_SECONDS);
+		File first = workDirectory.newStagedFile("upload-", "report.docx");
+		File second = workDirectory.newStagedFile("upload-", "report.docx");
+		assertNotEquals(first, second);
+		assertTrue(first.getName().startsWith("upload-"));
+		assertTrue(first.getName().endsWith(".tmp-report.docx"));
+		assertTrue(first.getParentFile().isDirectory());
+		assertEquals(new File(tempFolder.getRoot(), "staging"), first.getParentFile().getParentFile());
+		assertFalse("files on disk are not created", first.exists());
+	}
+
+	@Test
+	public void orphansAreDeletedAtStartup() throws IOException {
+		workDirectory = new WorkDirectory(tempFolder.getRoot(), 0, 0, 0, JANITOR_INTERVAL_SECONDS);
+		File orphan = stage(workDirectory, 10, 0);
+		File cached = new File(workDirectory.getCacheDir(), "kept.pdf");
+		assertTrue(cached.getParentFile().mkdirs());
+		Files.write(cached.toPath(), new byte[10]);
+
+		WorkDirectory restarted = new WorkDirectory(tempFolder.getRoot(), 0, 0, 0, JANITOR_INTERVAL_SECONDS);
+		restarted.start();
+		restarted.shutdown();
+		assertFalse(orphan.exists());
+		assertEquals(1, restarted.getOrphansDeletedCount());
+		assertTrue("the cache looks after its own files", cached.exists());
+	}
+
+	@Test
+	public void filesPastMaximumAgeAreDeleted() throws IOException {
+		workDirectory = new WorkDirectory(tempFolder.getRoot(), 2 * HOUR, 0, 0, JANITOR_INTERVAL_SECONDS);
+		File expired = stage(workDirectory, 10, 3 * HOUR);
+		File current = stage(workDirectory, 10, HOUR);
+		workDirectory.sweep();
+		assertFalse(expired.exists());
+		assertTrue(current.exists());
+		assertEquals(1, workDirectory.getExpiredDeletedCount());
+		assertEquals(1, workDirectory.getStagedFileCount());
+		assertEquals(10, workDirectory.getStagedBytes());
+	}
+
+	@Test
+	public void oldestFilesAreDeletedToKeepWithinQuota() throws IOException {
+		workDirectory = new WorkDirectory(tempFolder.getRoot(), 0, 25, HOUR, JANITOR_INTERVAL_SECONDS);
+		File oldest = stage(workDirectory, 10, 5 * HOUR);
+		File older = stage(workDirectory, 10, 4 * HOUR);
+		File old = stage(workDirectory, 10, 3 * HOUR);
+		workDirectory.sweep();
+		assertFalse(oldest.exists());
+		assertTrue(older.exists());
+		assertTrue(old.exists());
+		assertEquals(1, workDirectory.getOverQuotaDeletedCount());
+		assertEquals(20, workDirectory.getStagedBytes());
+	}
+
+	@Test
+	public void youngFilesAreSparedFromQuota() throws IOException {
+		workDirectory = new WorkDirectory(tempFolder.getRoot(), 0, 15, HOUR, JANITOR_INTERVAL_SECONDS);
+		File old = stage(workDirectory, 10, 2 * HOUR);
+		File young = stage(workDirectory, 10, 0);
+		File younger = stage(workDirectory, 10, 0);
+		workDirectory.sweep();
+		assertFalse(old.exists());
+		assertTrue("may belong to a conversion in progress", young.exists());
+		assertTrue(younger.exists());
+		assertEquals("still over the quota", 20, workDirectory.getStagedBytes());
+	}
+
+	@Test
+	public void smallUploadsAreStagedInMemoryWithinBudget() throws IOException {
+		File memoryRoot = tempFolder.newFolder("shm");
+		workDirectory = new WorkDirectory(tempFolder.newFolder("disk"), 0, 0, 0, JANITOR_INTERVAL_SECONDS, memoryRoot, 10, 15);
+		File inMemory = workDirectory.newStagedFile("upload-", "a.doc", 10);
+		assertTrue(inMemory.getPath().startsWith(memoryRoot.getPath()));
+		assertTrue("created to hold its share of the budget", inMemory.exists());
+		assertEquals(10, workDirectory.getMemoryReservedBytes());
+
+		File overBudget = workDirectory.newStagedFile("upload-", "b.doc", 10);
+		File tooLarge = workDirectory.newStagedFile("upload-", "c.doc", 11);
+		File unknownSize = workDirectory.newStagedFile("upload-", "d.doc");
+		for (File file : new File[] { overBudget, tooLarge, unknownSize }) {
+			assertFalse(file.getPath(), file.getPath().startsWith(memoryRoot.getPath()));
+		}
+		assertEquals(1, workDirectory.getMemoryStagedCount());
+		assertEquals(3, workDirectory.getDiskStagedCount());
+
+		assertTrue(inMemory.delete());
+		File reused = workDirectory.newStagedFile("upload-", "e.doc", 10);
+		assertTrue("the deleted file's share is released", reused.getPath().startsWith(memoryRoot.getPath()));
+		assertEquals(10, workDirectory.getMemoryReservedBytes());
+	}
+
+	/*
+	 * Create a staged file of the given size last modified the given time ago.
+	 */
+	private static File stage(WorkDirectory workDirectory, int size, long ageMillis) throws IOException {
+		File file = workDirectory.newStagedFile("upload-", "report.docx");
+		Files.write(file.toPath(), new byte[size]);
+		assertTrue(file.setLastModified(System.currentTimeMillis() - ageMillis));
+		return file;
+	}
+}